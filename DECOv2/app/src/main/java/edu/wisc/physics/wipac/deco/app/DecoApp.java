@@ -5,37 +5,89 @@ import android.os.Environment;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+
+import edu.wisc.physics.wipac.deco.service.logging.AsyncLog;
+import edu.wisc.physics.wipac.deco.service.logging.LogFormat;
+import edu.wisc.physics.wipac.deco.service.logging.LogLevel;
+import edu.wisc.physics.wipac.deco.service.logging.LogRecord;
+import edu.wisc.physics.wipac.deco.service.logging.LogSink;
+import edu.wisc.physics.wipac.deco.service.logging.RollingLogSink;
 
 /**
  * Created by andrewbiewer on 4/23/15.
+ *
+ * Logs through an {@link AsyncLog} like the service's Logger, to logcat and log.txt, which is
+ * rotated at LOG_FILE_SIZE keeping LOG_FILE_COUNT files.
  */
 public class DecoApp extends Application
 {
     private static final String TAG = "DecoApp";
-    private static PrintWriter log;
-    private static SimpleDateFormat TIMESTAMP = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-    private static final LogLevel LOG_LEVEL_MAX = LogLevel.INFO;
+    private static final long CLOSE_TIMEOUT = 1000; // milliseconds
+    private static final long LOG_FILE_SIZE = 256 * 1024; // bytes
+    private static final int LOG_FILE_COUNT = 2;
 
-    public enum LogLevel
-    {
-        ERROR("E"), WARNING("W"), INFO("I"), DEBUG("D");
+    private static LogSink sFile;
+    private static final AsyncLog sLog = new AsyncLog(1024, LogLevel.INFO,
+            new LogSink()
+            {
+                @Override
+                public void write(LogRecord record) throws IOException
+                {
+                    String tag = record.getTag();
+                    String text = record.getMessage().toString();
+                    Throwable thrown = record.getThrown();
+                    switch (record.getLevel())
+                    {
+                        case    INFO:
+                            Log.i(tag, text);
+                            break;
+
+                        case    WARNING:
+                            Log.w(tag, text, thrown);
+                            break;
+
+                        case    DEBUG:
+                            Log.d(tag, text);
+                            break;
+
+                        case    ERROR:
+                            Log.e(tag, text, thrown);
+                            break;
+                    }
+
+                    synchronized (DecoApp.class)
+                    {
+                        if (sFile != null)
+                        {
+                            sFile.write(record);
+                        }
+                    }
+                }
 
-        private String level;
-        private LogLevel(String level)
-        {
-            this.level = level;
-        }
+                @Override
+                public void flush() throws IOException
+                {
+                    synchronized (DecoApp.class)
+                    {
+                        if (sFile != null)
+                        {
+                            sFile.flush();
+                        }
+                    }
+                }
 
-        @Override
-        public String toString()
-        {
-            return level;
-        }
-    };
+                @Override
+                public void close()
+                {
+                    // The file is closed in onTerminate
+                }
+            });
+
+    static
+    {
+        sLog.start();
+    }
 
     @Override
     public void onCreate()
@@ -47,15 +99,14 @@ public class DecoApp extends Application
             File file = new File(Environment.getExternalStorageDirectory(), getResources().getString(R.string.app_name));
             file.mkdirs();
 
-            log = new PrintWriter(
-                new FileWriter(
-                   new File(file, "log.txt"),
-                   true), // append
-                true); // autoFlush
+            LogSink sink = new RollingLogSink(new File(file, "log.txt"), LOG_FILE_SIZE, LOG_FILE_COUNT, LogFormat.TEXT);
+            synchronized (DecoApp.class)
+            {
+                sFile = sink;
+            }
         }
         catch (Exception e)
         {
-            log = null;
             Log.e(TAG, "Failed to open log.txt");
         }
 
@@ -67,75 +118,61 @@ public class DecoApp extends Application
     {
         super.onTerminate();
         DecoApp.i(TAG, "Application stopped");
-        if (log != null)
+        sLog.flush(CLOSE_TIMEOUT);
+        synchronized (DecoApp.class)
         {
-            log.close();
+            if (sFile != null)
+            {
+                try
+                {
+                    sFile.close();
+                }
+                catch (IOException e)
+                {
+                    Log.e(TAG, "Failed to close log.txt", e);
+                }
+                sFile = null;
+            }
         }
     }
 
     public static void log(LogLevel level, String tag, String message)
     {
-        log(level, tag, message, null);
+        sLog.log(level, tag, message);
     }
 
     public static void log(LogLevel level, String tag, String message, Throwable e)
     {
-        if (log != null && level.ordinal() <= LOG_LEVEL_MAX.ordinal())
-        {
-            synchronized (log)
-            {
-                log.write(TIMESTAMP.format(new Date()) + " " + level + "/" + tag + ": " + message + "\n");
-                if (e != null)
-                {
-                    e.printStackTrace(log);
-                }
-                log.flush();
-            }
-        }
-
-        // Log to logcat at a minimum
-        switch (level)
-        {
-            case    INFO:
-                Log.i(tag, message);
-                break;
-
-            case    WARNING:
-                Log.w(tag, message);
-                break;
-
-            case    DEBUG:
-                Log.d(tag, message);
-                break;
-
-            case    ERROR:
-                Log.e(tag, message, e);
-                break;
-        }
+        sLog.log(level, tag, message, e);
     }
 
     public static void i(String tag, String message)
     {
-        log(LogLevel.INFO, tag, message);
+        sLog.log(LogLevel.INFO, tag, message);
     }
 
     public static void w(String tag, String message)
     {
-        log(LogLevel.WARNING, tag, message);
+        sLog.log(LogLevel.WARNING, tag, message);
     }
 
     public static void d(String tag, String message)
     {
-        log(LogLevel.DEBUG, tag, message);
+        sLog.log(LogLevel.DEBUG, tag, message);
+    }
+
+    public static void d(String tag, String template, Object a0)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0);
     }
 
     public static void e(String tag, String message)
     {
-        log(LogLevel.ERROR, tag, message);
+        sLog.log(LogLevel.ERROR, tag, message);
     }
 
     public static void e(String tag, String message, Throwable e)
     {
-        log(LogLevel.ERROR, tag, message, e);
+        sLog.log(LogLevel.ERROR, tag, message, e);
     }
 }
@@ -179,7 +179,7 @@ public class MainActivity extends Activity
         if (determineCameraOutputSize())
         {
             mCameraReady.set(true);
-            DecoApp.d(TAG, "onCameraDeviceOpen camera ready " + mCameraReady.get());
+            DecoApp.d(TAG, "onCameraDeviceOpen camera ready {}", mCameraReady.get());
             createCaptureSession();
         }
     }
@@ -206,7 +206,7 @@ public class MainActivity extends Activity
                 {
                     mStillSize = outputSizes[0];
                 }
-                DecoApp.d(TAG, "Still capture output size " + mStillSize);
+                DecoApp.d(TAG, "Still capture output size {}", mStillSize);
             }
         }
         catch (Exception e)
@@ -343,7 +343,7 @@ public class MainActivity extends Activity
                                     {
                                         DecoApp.d(TAG, "Initiating still capture");
                                         int captureId = mCameraCaptureSession.capture(mStillCaptureRequest, stillCaptureCallback, handler);
-                                        DecoApp.d(TAG, "Capture ID " + captureId);
+                                        DecoApp.d(TAG, "Capture ID {}", captureId);
                                     }
                                 }
                                 catch (Exception e)
@@ -429,7 +429,7 @@ public class MainActivity extends Activity
             String imageName = IMAGE_FILE_FORMAT.format(now) + ".jpg";
 
             File file = new File(dir, imageName);
-            DecoApp.d(TAG, "Image " + file.getAbsolutePath());
+            DecoApp.d(TAG, "Image {}", file);
 
             FileOutputStream output = new FileOutputStream(file);
             output.write(imageBytes);
@@ -506,7 +506,7 @@ public class MainActivity extends Activity
     protected void onResume()
     {
         super.onResume();
-        DecoApp.d(TAG, "onResume camera ready " + mCameraReady.get());
+        DecoApp.d(TAG, "onResume camera ready {}", mCameraReady.get());
 
         if (!mCameraReady.get())
         {
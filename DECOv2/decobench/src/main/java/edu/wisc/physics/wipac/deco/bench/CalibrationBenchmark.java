@@ -0,0 +1,87 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.analysis.DarkFrameCalibration;
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+import edu.wisc.physics.wipac.deco.service.analysis.TriggerResult;
+
+/**
+ * Calibrated detection (per-pixel thresholds with the hot-pixel mask), the calibrated excess
+ * handed to cluster extraction, and an incremental calibration update.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CalibrationBenchmark
+{
+    private static final int CALIBRATION_FRAMES = 8;
+
+    @Param({"640x480", "1920x1080", "3264x2448", "4160x3120", "5312x2988"})
+    public String size;
+
+    /**
+     * Memory budget of the calibration in MB, the service's default bins sensors above 8 MP
+     */
+    @Param({"48"})
+    public int memory;
+
+    private FramePlane mPlane;
+    private DarkFrameCalibration mCalibration;
+    private final TriggerResult mResult = new TriggerResult();
+    private ByteBuffer mExcess;
+    private final FramePlane mExcessPlane = new FramePlane();
+
+    @Setup
+    public void setup()
+    {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        int width = dimensions[0];
+        int height = dimensions[1];
+
+        mCalibration = new DarkFrameCalibration(CALIBRATION_FRAMES, 5f, 4, 5f, 4f, 100, memory * 1024L * 1024L);
+        for (int i = 0; i < CALIBRATION_FRAMES; i++)
+        {
+            mCalibration.accumulate(SyntheticFrames.plane(SyntheticFrames.darkFrame(width, height, i, false), width, height));
+        }
+
+        mPlane = SyntheticFrames.plane(SyntheticFrames.darkFrame(width, height, CALIBRATION_FRAMES, true), width, height);
+        mExcess = ByteBuffer.allocateDirect(width * height);
+    }
+
+    @Benchmark
+    public int detect()
+    {
+        mCalibration.detect(mPlane, 1, mResult);
+        return mResult.getHits();
+    }
+
+    @Benchmark
+    public FramePlane subtract()
+    {
+        return mCalibration.subtract(mPlane, mExcess, mExcessPlane);
+    }
+
+    @Benchmark
+    public boolean update()
+    {
+        mCalibration.update(mPlane);
+        return mCalibration.isCalibrated();
+    }
+}
@@ -0,0 +1,62 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.analysis.ClusterExtractor;
+import edu.wisc.physics.wipac.deco.service.analysis.EventRecords;
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+import edu.wisc.physics.wipac.deco.service.analysis.HitTrigger;
+import edu.wisc.physics.wipac.deco.service.analysis.TriggerResult;
+
+/**
+ * Cluster labeling of a triggered frame, at the threshold the hit trigger picks for it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClusterExtractorBenchmark
+{
+    @Param({"640x480", "1920x1080", "3264x2448", "4160x3120", "5312x2988"})
+    public String size;
+
+    private FramePlane mPlane;
+    private ClusterExtractor mExtractor;
+    private final EventRecords mRecords = new EventRecords(64, 32);
+    private int mThreshold;
+    private int mBaseline;
+
+    @Setup
+    public void setup()
+    {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        mPlane = SyntheticFrames.plane(SyntheticFrames.darkFrame(dimensions[0], dimensions[1], 1, true), dimensions[0], dimensions[1]);
+        mExtractor = new ClusterExtractor(1, 16384, 2);
+
+        TriggerResult result = new TriggerResult();
+        new HitTrigger(5f, 10, 1, 4).scan(mPlane, result);
+        mThreshold = result.getThreshold();
+        mBaseline = Math.round(result.getMean());
+    }
+
+    @Benchmark
+    public int extract()
+    {
+        mExtractor.extract(mPlane, mThreshold, mBaseline, mRecords);
+        return mRecords.size();
+    }
+}
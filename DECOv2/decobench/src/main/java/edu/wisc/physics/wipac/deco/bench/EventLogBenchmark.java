@@ -0,0 +1,136 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+import edu.wisc.physics.wipac.deco.service.storage.EventIndex;
+import edu.wisc.physics.wipac.deco.service.storage.EventLog;
+import edu.wisc.physics.wipac.deco.service.storage.FrameWriter;
+import edu.wisc.physics.wipac.deco.service.storage.StorageLayout;
+
+/**
+ * Persisting records of the size of an event record, a dark 1080p JPEG and a 1080p luma plane:
+ * one new file per record in the hourly directory, against appending to the event log with a
+ * sync every 16 records, and without syncing.
+ *
+ * Files go round a set of names and the old file is deleted first, the way uploads remove
+ * them, so the directory does not grow without bound; old log segments are deleted too.
+ * Without syncing this mostly measures the page cache and filesystem metadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EventLogBenchmark
+{
+    private static final int FILES = 1024;
+    private static final String DEVICE_ID = "bench";
+
+    public enum Target { FILES, LOG, LOG_UNSYNCED }
+
+    @Param({"4096", "262144", "2073600"})
+    public int length;
+
+    @Param({"FILES", "LOG", "LOG_UNSYNCED"})
+    public Target target;
+
+    private Frame mFrame;
+    private File mDirectory;
+    private StorageLayout mLayout;
+    private FrameWriter mWriter;
+    private EventLog mLog;
+    private File mSegment;
+    private long mTime;
+    private long mAppended;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        ByteBuffer pixels = SyntheticFrames.darkFrame(1920, 1080, 1, true);
+        pixels.limit(length);
+        mFrame = new FramePool(1).acquire(length);
+        mFrame.getData().put(pixels).flip();
+        mFrame.set(1, 0, System.currentTimeMillis(), 0);
+        mFrame.setLayout(FrameFormat.JPEG, 1920, 1080, 0, 0);
+
+        mDirectory = File.createTempFile("deco-bench", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mLayout = new StorageLayout(mDirectory, DEVICE_ID);
+        mWriter = new FrameWriter(false);
+        mLog = new EventLog(mDirectory, DEVICE_ID, 64L << 20, 0, 60000, 0.1f);
+        mLog.open();
+        mTime = System.currentTimeMillis();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        mLog.close();
+        delete(mDirectory);
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public int persist() throws IOException
+    {
+        if (target == Target.FILES)
+        {
+            // One millisecond apart, going round FILES names within the hour
+            long time = mTime + mFrame.getNumber() % FILES;
+            mFrame.set(mFrame.getNumber() + 1, 0, time, 0);
+            File file = new File(mLayout.getDirectory(time), mLayout.getFileName(time, FrameFormat.JPEG.getExtension()));
+            file.delete();
+            return mWriter.write(file, mFrame);
+        }
+
+        int size = mLog.appendFrame(mFrame);
+        if (target == Target.LOG && ++mAppended % 16 == 0)
+        {
+            mLog.flush();
+        }
+        File segment = mLog.getSegment();
+        if (segment != mSegment)
+        {
+            if (mSegment != null)
+            {
+                mSegment.delete();
+                EventIndex.getFile(mSegment).delete();
+            }
+            mSegment = segment;
+        }
+        return size;
+    }
+}
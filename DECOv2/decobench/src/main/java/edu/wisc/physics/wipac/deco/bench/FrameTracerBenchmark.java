@@ -0,0 +1,66 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.tracing.FrameTracer;
+
+/**
+ * Overhead of tracing a frame: the seven phases the camera records from the request to the
+ * frame's release, with the default ring of 8192 events, and the export of a full ring.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameTracerBenchmark
+{
+    private static final FrameTracer.Phase[] PHASES = FrameTracer.Phase.values();
+
+    private FrameTracer mTracer;
+    private long mFrameNumber;
+
+    @Setup
+    public void setup()
+    {
+        mTracer = new FrameTracer(8192, 1);
+        for (int i = 0; i < 8192; i++)
+        {
+            perFrame();
+        }
+    }
+
+    @Benchmark
+    public long perFrame()
+    {
+        long frameNumber = ++mFrameNumber;
+        long time = frameNumber * 41000000;
+        for (FrameTracer.Phase phase : PHASES)
+        {
+            mTracer.record(frameNumber, phase, time);
+            time += 1000000;
+        }
+        return frameNumber;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int export() throws IOException
+    {
+        return mTracer.export(new StringWriter(1 << 20));
+    }
+}
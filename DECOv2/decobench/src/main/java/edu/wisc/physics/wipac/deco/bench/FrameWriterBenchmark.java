@@ -0,0 +1,85 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+import edu.wisc.physics.wipac.deco.service.storage.FrameWriter;
+
+/**
+ * Persisting a frame from its direct buffer through a FileChannel, against the old copy into
+ * a heap array. JPEG frames are written as is, YUV frames with their header. The target is a
+ * temporary file, so this measures the page cache rather than the phone's flash.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FrameWriterBenchmark
+{
+    // Typical size of a dark JPEG frame relative to its pixel count
+    private static final int JPEG_RATIO = 8;
+
+    @Param({"640x480", "1920x1080", "3264x2448", "4160x3120", "5312x2988"})
+    public String size;
+
+    @Param({"JPEG", "YUV"})
+    public FrameFormat format;
+
+    @Param({"false", "true"})
+    public boolean heapCopy;
+
+    private Frame mFrame;
+    private FrameWriter mWriter;
+    private File mFile;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        int width = dimensions[0];
+        int height = dimensions[1];
+        int length = format.isCompressed() ? width * height / JPEG_RATIO : width * height;
+
+        ByteBuffer pixels = SyntheticFrames.darkFrame(width, height, 1, true);
+        pixels.limit(length);
+        mFrame = new FramePool(1).acquire(length);
+        mFrame.getData().put(pixels).flip();
+        mFrame.set(1, 0, System.currentTimeMillis(), 0);
+        mFrame.setLayout(format, width, height, width, 1);
+
+        mWriter = new FrameWriter(heapCopy);
+        mFile = File.createTempFile("deco-bench", format.getExtension());
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int write() throws IOException
+    {
+        return mWriter.write(mFile, mFrame);
+    }
+}
@@ -0,0 +1,56 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+import edu.wisc.physics.wipac.deco.service.analysis.HitTrigger;
+import edu.wisc.physics.wipac.deco.service.analysis.TriggerResult;
+
+/**
+ * Threshold scan of the hit trigger: noise estimate from a sub-sample, then a full pass.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HitTriggerBenchmark
+{
+    @Param({"640x480", "1920x1080", "3264x2448", "4160x3120", "5312x2988"})
+    public String size;
+
+    @Param({"4"})
+    public int sampleStep;
+
+    private FramePlane mPlane;
+    private HitTrigger mTrigger;
+    private final TriggerResult mResult = new TriggerResult();
+
+    @Setup
+    public void setup()
+    {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        mPlane = SyntheticFrames.plane(SyntheticFrames.darkFrame(dimensions[0], dimensions[1], 1, true), dimensions[0], dimensions[1]);
+        mTrigger = new HitTrigger(5f, 10, 1, sampleStep);
+    }
+
+    @Benchmark
+    public int scan()
+    {
+        mTrigger.scan(mPlane, mResult);
+        return mResult.getHits();
+    }
+}
@@ -0,0 +1,149 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.logging.AsyncLog;
+import edu.wisc.physics.wipac.deco.service.logging.LogLevel;
+import edu.wisc.physics.wipac.deco.service.logging.TextLogSink;
+
+/**
+ * Cost of the logging the camera does per frame, four debug records, on the capturing thread.
+ * "legacy" is the Logger as it was: messages concatenated before the level check, a shared
+ * SimpleDateFormat, and a synchronized write and flush per line. "async" is the
+ * {@link AsyncLog}. With the level at INFO the debug records are dropped; at DEBUG they are
+ * written to a temporary file.
+ *
+ * The legacy Logger also sent every record to logcat, whatever the level, which this leaves
+ * out, so the legacy numbers are a lower bound. At DEBUG the benchmark logs far faster than a
+ * camera captures and the writer drops records, the teardown prints how many.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoggerBenchmark
+{
+    private static final String TAG = "Camera";
+
+    @Param({"legacy", "async"})
+    public String logger;
+
+    @Param({"INFO", "DEBUG"})
+    public String level;
+
+    private File mFile;
+    private LegacyLog mLegacy;
+    private AsyncLog mAsync;
+    private TextLogSink mSink;
+    private long mImageNum;
+
+    /**
+     * The Logger before it was made asynchronous, without logcat.
+     */
+    private static class LegacyLog
+    {
+        private final PrintWriter mLog;
+        private final SimpleDateFormat mTimestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        private final LogLevel mMaxLevel;
+
+        LegacyLog(File file, LogLevel maxLevel) throws IOException
+        {
+            mLog = new PrintWriter(new FileWriter(file, true), true);
+            mMaxLevel = maxLevel;
+        }
+
+        void log(LogLevel level, String tag, String message)
+        {
+            if (level.ordinal() <= mMaxLevel.ordinal())
+            {
+                synchronized (mLog)
+                {
+                    mLog.write(mTimestamp.format(new Date()) + " " + level + "/" + tag + ": " + message + "\n");
+                    mLog.flush();
+                }
+            }
+        }
+
+        void close()
+        {
+            mLog.close();
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException
+    {
+        mFile = File.createTempFile("logger", ".txt");
+        LogLevel maxLevel = LogLevel.valueOf(level);
+        if (logger.equals("legacy"))
+        {
+            mLegacy = new LegacyLog(mFile, maxLevel);
+        }
+        else
+        {
+            mSink = new TextLogSink(mFile);
+            mAsync = new AsyncLog(1024, maxLevel, mSink);
+            mAsync.start();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        if (mLegacy != null)
+        {
+            mLegacy.close();
+        }
+        if (mAsync != null)
+        {
+            mAsync.stop();
+            System.out.println();
+            System.out.println(mAsync.report());
+            mSink.close();
+        }
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long perFrame()
+    {
+        long imageNum = ++mImageNum;
+        long total = 41000000 + (imageNum & 0xfffff);
+        if (mLegacy != null)
+        {
+            mLegacy.log(LogLevel.DEBUG, TAG, "Image capture completed");
+            mLegacy.log(LogLevel.DEBUG, TAG, "Still capture image " + imageNum + " available");
+            mLegacy.log(LogLevel.DEBUG, TAG, "Acquired image " + imageNum + " in " + (total / 1000000) + "ms");
+            mLegacy.log(LogLevel.DEBUG, TAG, "Saving image " + imageNum);
+        }
+        else
+        {
+            mAsync.log(LogLevel.DEBUG, TAG, "Image capture completed");
+            mAsync.log(LogLevel.DEBUG, TAG, "Still capture image {} available", imageNum);
+            mAsync.log(LogLevel.DEBUG, TAG, "Acquired image {} in {}ms", imageNum, total / 1000000);
+            mAsync.log(LogLevel.DEBUG, TAG, "Saving image {}", imageNum);
+        }
+        return imageNum;
+    }
+}
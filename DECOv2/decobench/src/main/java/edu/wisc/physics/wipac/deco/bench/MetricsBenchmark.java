@@ -0,0 +1,86 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.metrics.CaptureMetrics;
+import edu.wisc.physics.wipac.deco.service.metrics.Counter;
+import edu.wisc.physics.wipac.deco.service.metrics.MetricsRegistry;
+import edu.wisc.physics.wipac.deco.service.metrics.MetricsSnapshot;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+import edu.wisc.physics.wipac.deco.service.pipeline.LatencyHistogram;
+
+/**
+ * Cost of recording metrics on the capture path: one latency, one counter increment, and
+ * everything the camera records per frame through {@link CaptureMetrics}, from the capture
+ * starting to the frame being persisted. The snapshot is what the service's periodic report
+ * costs, it does not stop recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetricsBenchmark
+{
+    private MetricsRegistry mRegistry;
+    private LatencyHistogram mHistogram;
+    private Counter mCounter;
+    private CaptureMetrics mCaptureMetrics;
+    private Frame mFrame;
+    private long mFrameNumber;
+
+    @Setup
+    public void setup()
+    {
+        mRegistry = new MetricsRegistry();
+        mHistogram = mRegistry.histogram("latency");
+        mCounter = mRegistry.counter("frames");
+        mCaptureMetrics = new CaptureMetrics(mRegistry);
+        mFrame = new FramePool(1).acquire(0);
+    }
+
+    @Benchmark
+    public void recordLatency()
+    {
+        mHistogram.record(41000000 + (++mFrameNumber & 0xfffff));
+    }
+
+    @Benchmark
+    public void incrementCounter()
+    {
+        mCounter.increment();
+    }
+
+    @Benchmark
+    public long captureFrame()
+    {
+        long frameNumber = ++mFrameNumber;
+        long timestamp = frameNumber * 41000000;
+        long start = System.nanoTime();
+        mCaptureMetrics.onCaptureStarted(frameNumber, timestamp, start);
+        mCaptureMetrics.onCaptureCompleted(frameNumber, start + 40000000);
+        mFrame.set(frameNumber, timestamp, 0, start + 41000000);
+        mCaptureMetrics.onImageAvailable(mFrame, start + 41000000);
+        mCaptureMetrics.onPersisted(mFrame, 4096, start + 45000000);
+        return mFrame.getRequestTime();
+    }
+
+    @Benchmark
+    public MetricsSnapshot snapshot()
+    {
+        return mRegistry.snapshot();
+    }
+}
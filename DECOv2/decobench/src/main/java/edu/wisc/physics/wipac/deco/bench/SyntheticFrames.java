@@ -0,0 +1,82 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+
+/**
+ * Dark frames for the benchmarks: a pedestal with gaussian noise, a sprinkling of hot pixels
+ * and a few straight tracks. Frames are 8 bit luma planes, the size of the sensors' outputs.
+ */
+public class SyntheticFrames
+{
+    public static final int PEDESTAL = 10;
+    public static final double NOISE = 2.0;
+    public static final double HOT_PIXEL_FRACTION = 1e-5;
+    public static final int TRACKS = 4;
+
+    /**
+     * @param size "widthxheight"
+     */
+    public static int[] parseSize(String size)
+    {
+        int separator = size.indexOf('x');
+        return new int[] { Integer.parseInt(size.substring(0, separator)), Integer.parseInt(size.substring(separator + 1)) };
+    }
+
+    public static ByteBuffer darkFrame(int width, int height, long seed, boolean tracks)
+    {
+        Random random = new Random(seed);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < width * height; i++)
+        {
+            buffer.put(i, (byte) clamp((int) Math.round(PEDESTAL + random.nextGaussian() * NOISE)));
+        }
+
+        // Same hot pixels in every frame whatever the seed
+        Random hot = new Random(width * 31L + height);
+        int hotPixels = (int) Math.max(1, width * (long) height * HOT_PIXEL_FRACTION);
+        for (int i = 0; i < hotPixels; i++)
+        {
+            buffer.put(hot.nextInt(width * height), (byte) 200);
+        }
+
+        if (tracks)
+        {
+            for (int i = 0; i < TRACKS; i++)
+            {
+                addTrack(buffer, width, height, random);
+            }
+        }
+        return buffer;
+    }
+
+    private static void addTrack(ByteBuffer buffer, int width, int height, Random random)
+    {
+        double x = random.nextInt(width);
+        double y = random.nextInt(height);
+        double angle = random.nextDouble() * 2 * Math.PI;
+        int length = 10 + random.nextInt(40);
+        for (int i = 0; i < length; i++, x += Math.cos(angle), y += Math.sin(angle))
+        {
+            int px = (int) x;
+            int py = (int) y;
+            if (px >= 0 && px < width && py >= 0 && py < height)
+            {
+                buffer.put(py * width + px, (byte) clamp(80 + random.nextInt(150)));
+            }
+        }
+    }
+
+    public static FramePlane plane(ByteBuffer buffer, int width, int height)
+    {
+        return new FramePlane().set(buffer, 0, width, height, width, 1, 1);
+    }
+
+    private static int clamp(int value)
+    {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
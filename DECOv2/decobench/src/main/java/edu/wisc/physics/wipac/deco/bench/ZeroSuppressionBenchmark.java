@@ -0,0 +1,161 @@
+package edu.wisc.physics.wipac.deco.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+import edu.wisc.physics.wipac.deco.service.storage.ZeroSuppressionCodec;
+
+/**
+ * Zero suppression of a dark luma plane against JPEG at quality 100, which the phones store
+ * today. The setup checks the round trip, every pixel outside the noise floor has to come back
+ * exactly and every other one as the pedestal, and prints the sizes; the benchmarks give the
+ * time per frame, so MB/s is the plane size over it.
+ *
+ * A floor of 0 is lossless but keeps all the noise, it does not beat the raw plane and is
+ * measured giving up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZeroSuppressionBenchmark
+{
+    @Param({"1920x1080", "4032x3024"})
+    public String size;
+
+    @Param({"0", "4", "8"})
+    public int floor;
+
+    private int mWidth;
+    private int mHeight;
+    private FramePlane mPlane;
+    private ZeroSuppressionCodec mCodec;
+    private ByteBuffer mOutput;
+    private ByteBuffer mEncoded;
+    private ByteBuffer mDecoded;
+    private BufferedImage mImage;
+    private ImageWriter mJpegWriter;
+    private ImageWriteParam mJpegParam;
+    private ByteArrayOutputStream mJpeg;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        mWidth = dimensions[0];
+        mHeight = dimensions[1];
+        ByteBuffer pixels = SyntheticFrames.darkFrame(mWidth, mHeight, 1, true);
+        mPlane = SyntheticFrames.plane(pixels, mWidth, mHeight);
+        mCodec = new ZeroSuppressionCodec(floor);
+        mOutput = ByteBuffer.allocateDirect(mWidth * mHeight);
+        mEncoded = ByteBuffer.allocateDirect(mWidth * mHeight);
+        mDecoded = ByteBuffer.allocateDirect(mWidth * mHeight).order(ByteOrder.nativeOrder());
+
+        mImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < mHeight; y++)
+        {
+            for (int x = 0; x < mWidth; x++)
+            {
+                int value = mPlane.getPixel(x, y);
+                mImage.getRaster().setSample(x, y, 0, value);
+            }
+        }
+        mJpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        mJpegParam = mJpegWriter.getDefaultWriteParam();
+        mJpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        mJpegParam.setCompressionQuality(1.0f);
+        mJpeg = new ByteArrayOutputStream(mWidth * mHeight);
+        int jpegSize = jpeg();
+
+        int encodedSize = mCodec.encode(mPlane, mEncoded);
+        mEncoded.flip();
+        if (encodedSize > 0)
+        {
+            checkRoundTrip();
+        }
+
+        int raw = mWidth * mHeight;
+        System.out.println(String.format(Locale.US, "%n%s floor %d: raw %d bytes, zero suppressed %s, JPEG q100 %d bytes (%.1f%%)",
+                size, floor, raw,
+                encodedSize > 0 ? String.format(Locale.US, "%d bytes (%.1f%%)", encodedSize, 100.0 * encodedSize / raw) : "not smaller",
+                jpegSize, 100.0 * jpegSize / raw));
+    }
+
+    private void checkRoundTrip()
+    {
+        if (!decode())
+        {
+            throw new IllegalStateException("Failed to decode");
+        }
+
+        int pedestal = mEncoded.getInt(0);
+        for (int y = 0; y < mHeight; y++)
+        {
+            for (int x = 0; x < mWidth; x++)
+            {
+                int original = mPlane.getPixel(x, y);
+                int expected = Math.abs(original - pedestal) > floor ? original : pedestal;
+                int decoded = mDecoded.get(y * mWidth + x) & 0xff;
+                if (decoded != expected)
+                {
+                    throw new IllegalStateException("Pixel (" + x + ", " + y + ") is " + decoded + " instead of " + expected);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int encode()
+    {
+        mOutput.clear();
+        return mCodec.encode(mPlane, mOutput);
+    }
+
+    @Benchmark
+    public boolean decode()
+    {
+        if (!mEncoded.hasRemaining())
+        {
+            return false;
+        }
+        mDecoded.clear();
+        return mCodec.decode(mEncoded.duplicate(), mDecoded, mWidth, mHeight, 1);
+    }
+
+    @Benchmark
+    public int jpeg() throws IOException
+    {
+        mJpeg.reset();
+        MemoryCacheImageOutputStream output = new MemoryCacheImageOutputStream(mJpeg);
+        mJpegWriter.setOutput(output);
+        mJpegWriter.write(null, new IIOImage(mImage, null, null), mJpegParam);
+        output.close();
+        return mJpeg.size();
+    }
+}
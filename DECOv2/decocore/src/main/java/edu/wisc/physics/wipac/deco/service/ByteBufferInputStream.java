@@ -0,0 +1,50 @@
+package edu.wisc.physics.wipac.deco.service;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the bytes between a buffer's position and limit without copying the buffer first.
+ * Reading advances the buffer's position, callers restore it when they are done.
+ */
+public class ByteBufferInputStream extends InputStream
+{
+    private ByteBuffer mBuffer;
+
+    public ByteBufferInputStream setBuffer(ByteBuffer buffer)
+    {
+        mBuffer = buffer;
+        return this;
+    }
+
+    @Override
+    public int read()
+    {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length)
+    {
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        int remaining = mBuffer.remaining();
+        if (remaining == 0)
+        {
+            return -1;
+        }
+
+        length = Math.min(length, remaining);
+        mBuffer.get(bytes, offset, length);
+        return length;
+    }
+
+    @Override
+    public int available()
+    {
+        return mBuffer.remaining();
+    }
+}
@@ -0,0 +1,103 @@
+package edu.wisc.physics.wipac.deco.service;
+
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * DECO settings which live in camera-settings.properties next to the capture request keys.
+ * All of them are prefixed with "deco." so they are never mistaken for a capture request key.
+ */
+public class DecoSettings
+{
+    public static final String PREFIX = "deco.";
+
+    private Properties properties;
+
+    public DecoSettings(Properties properties)
+    {
+        this.properties = properties;
+    }
+
+    public static boolean isDecoProperty(String propertyName)
+    {
+        return propertyName.startsWith(PREFIX);
+    }
+
+    public String getString(String name, String defaultValue)
+    {
+        String value = properties.getProperty(PREFIX + name);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public int getInt(String name, int defaultValue)
+    {
+        String value = getString(name, null);
+        try
+        {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw invalidValue(name, value);
+        }
+    }
+
+    public long getLong(String name, long defaultValue)
+    {
+        String value = getString(name, null);
+        try
+        {
+            return value == null ? defaultValue : Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw invalidValue(name, value);
+        }
+    }
+
+    public float getFloat(String name, float defaultValue)
+    {
+        String value = getString(name, null);
+        try
+        {
+            return value == null ? defaultValue : Float.parseFloat(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw invalidValue(name, value);
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue)
+    {
+        String value = getString(name, null);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        else if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value))
+        {
+            return Boolean.parseBoolean(value);
+        }
+
+        throw invalidValue(name, value);
+    }
+
+    public <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue)
+    {
+        String value = getString(name, null);
+        try
+        {
+            return value == null ? defaultValue : Enum.valueOf(type, value.toUpperCase(Locale.US).replace('-', '_'));
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw invalidValue(name, value);
+        }
+    }
+
+    private IllegalArgumentException invalidValue(String name, String value)
+    {
+        return new IllegalArgumentException("Invalid value \"" + value + "\" for property \"" + PREFIX + name + "\"");
+    }
+}
@@ -0,0 +1,289 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+
+/**
+ * Groups the hit pixels of a frame into clusters (8-connected components) and turns them
+ * into {@link EventRecords}.
+ *
+ * The frame is labeled in a single pass which only keeps the label rows of the previous and
+ * current image row, and equivalent labels are joined with a union-find. All scratch space is
+ * allocated once, so extracting clusters does not allocate per frame or per pixel.
+ */
+public class ClusterExtractor
+{
+    private final int mMinPixels;
+    private final int mMaxLabels;
+    private final int mPatchMargin;
+
+    // Label rows, padded by one on each side so the neighbours of x are at x, x + 1 and x + 2
+    private int[] mPreviousRow = new int[0];
+    private int[] mCurrentRow = new int[0];
+
+    // Union-find and accumulators per label, label 0 is the background
+    private final int[] mParent;
+    private final int[] mMinX;
+    private final int[] mMinY;
+    private final int[] mMaxX;
+    private final int[] mMaxY;
+    private final int[] mPixels;
+    private final int[] mPeak;
+    private final int[] mPeakX;
+    private final int[] mPeakY;
+    private final long[] mSum;
+    private final long[] mSumX;
+    private final long[] mSumY;
+
+    /**
+     * @param minPixels   Minimum number of pixels of a cluster to become an event
+     * @param maxLabels   Maximum number of provisional labels per frame, bounds the scratch space
+     * @param patchMargin Pixels around the bounding box included in the event patch
+     */
+    public ClusterExtractor(int minPixels, int maxLabels, int patchMargin)
+    {
+        mMinPixels = Math.max(1, minPixels);
+        mMaxLabels = Math.max(2, maxLabels);
+        mPatchMargin = Math.max(0, patchMargin);
+
+        mParent = new int[mMaxLabels];
+        mMinX = new int[mMaxLabels];
+        mMinY = new int[mMaxLabels];
+        mMaxX = new int[mMaxLabels];
+        mMaxY = new int[mMaxLabels];
+        mPixels = new int[mMaxLabels];
+        mPeak = new int[mMaxLabels];
+        mPeakX = new int[mMaxLabels];
+        mPeakY = new int[mMaxLabels];
+        mSum = new long[mMaxLabels];
+        mSumX = new long[mMaxLabels];
+        mSumY = new long[mMaxLabels];
+    }
+
+    public ClusterExtractor(DecoSettings settings)
+    {
+        this(settings.getInt("cluster.pixels.min", 1),
+             settings.getInt("cluster.labels.max", 16384),
+             settings.getInt("cluster.patch.margin", 2));
+    }
+
+    /**
+     * @param plane     The frame to extract clusters from
+     * @param threshold Pixels above this value are hits
+     * @param baseline  Value intensities are summed relative to, usually the frame mean
+     * @param records   Receives the events, cleared first
+     */
+    public void extract(FramePlane plane, int threshold, int baseline, EventRecords records)
+    {
+        records.clear();
+        records.setLevels(threshold, baseline);
+
+        ByteBuffer buffer = plane.getBuffer();
+        int offset = plane.getOffset();
+        int width = plane.getWidth();
+        int height = plane.getHeight();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        boolean wide = plane.isWide();
+
+        if (mPreviousRow.length < width + 2)
+        {
+            mPreviousRow = new int[width + 2];
+            mCurrentRow = new int[width + 2];
+        }
+        Arrays.fill(mPreviousRow, 0, width + 2, 0);
+
+        int labels = 1;
+        for (int y = 0; y < height; y++)
+        {
+            int[] previous = mPreviousRow;
+            int[] current = mCurrentRow;
+            Arrays.fill(current, 0, width + 2, 0);
+
+            int index = offset + y * rowStride;
+            for (int x = 0; x < width; x++, index += pixelStride)
+            {
+                int value = wide ? buffer.getShort(index) & 0xffff : buffer.get(index) & 0xff;
+                if (value <= threshold)
+                {
+                    continue;
+                }
+
+                int label = join(join(join(current[x], previous[x]), previous[x + 1]), previous[x + 2]);
+                if (label == 0)
+                {
+                    if (labels == mMaxLabels)
+                    {
+                        records.setOverflow();
+                        continue;
+                    }
+                    label = labels++;
+                    newLabel(label, x, y);
+                }
+                current[x + 1] = label;
+                accumulate(label, x, y, value, value - baseline);
+            }
+
+            mPreviousRow = current;
+            mCurrentRow = previous;
+        }
+
+        // Fold every label into the root of its cluster
+        for (int label = 1; label < labels; label++)
+        {
+            int root = find(label);
+            if (root != label)
+            {
+                merge(label, root);
+            }
+        }
+
+        for (int label = 1; label < labels; label++)
+        {
+            if (mParent[label] == label && mPixels[label] >= mMinPixels)
+            {
+                int event = records.add();
+                if (event < 0)
+                {
+                    break;
+                }
+                record(plane, label, event, records);
+            }
+        }
+    }
+
+    private void newLabel(int label, int x, int y)
+    {
+        mParent[label] = label;
+        mMinX[label] = x;
+        mMaxX[label] = x;
+        mMinY[label] = y;
+        mMaxY[label] = y;
+        mPixels[label] = 0;
+        mPeak[label] = -1;
+        mSum[label] = 0;
+        mSumX[label] = 0;
+        mSumY[label] = 0;
+    }
+
+    private void accumulate(int label, int x, int y, int value, int excess)
+    {
+        mPixels[label]++;
+        mSum[label] += excess;
+        mSumX[label] += (long) x * excess;
+        mSumY[label] += (long) y * excess;
+        if (x < mMinX[label]) mMinX[label] = x;
+        if (x > mMaxX[label]) mMaxX[label] = x;
+        if (y > mMaxY[label]) mMaxY[label] = y;
+        if (value > mPeak[label])
+        {
+            mPeak[label] = value;
+            mPeakX[label] = x;
+            mPeakY[label] = y;
+        }
+    }
+
+    private void merge(int from, int to)
+    {
+        mPixels[to] += mPixels[from];
+        mSum[to] += mSum[from];
+        mSumX[to] += mSumX[from];
+        mSumY[to] += mSumY[from];
+        mMinX[to] = Math.min(mMinX[to], mMinX[from]);
+        mMinY[to] = Math.min(mMinY[to], mMinY[from]);
+        mMaxX[to] = Math.max(mMaxX[to], mMaxX[from]);
+        mMaxY[to] = Math.max(mMaxY[to], mMaxY[from]);
+        if (mPeak[from] > mPeak[to])
+        {
+            mPeak[to] = mPeak[from];
+            mPeakX[to] = mPeakX[from];
+            mPeakY[to] = mPeakY[from];
+        }
+    }
+
+    /**
+     * @return The label a pixel gets when it touches both labels, 0 meaning no label
+     */
+    private int join(int a, int b)
+    {
+        if (a == 0)
+        {
+            return b;
+        }
+        if (b == 0 || a == b)
+        {
+            return a;
+        }
+
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB)
+        {
+            mParent[rootB] = rootA;
+            return rootA;
+        }
+        mParent[rootA] = rootB;
+        return rootB;
+    }
+
+    private int find(int label)
+    {
+        while (mParent[label] != label)
+        {
+            mParent[label] = mParent[mParent[label]];
+            label = mParent[label];
+        }
+        return label;
+    }
+
+    private void record(FramePlane plane, int label, int event, EventRecords records)
+    {
+        records.mMinX[event] = mMinX[label];
+        records.mMinY[event] = mMinY[label];
+        records.mMaxX[event] = mMaxX[label];
+        records.mMaxY[event] = mMaxY[label];
+        records.mPixels[event] = mPixels[label];
+        records.mSum[event] = mSum[label];
+        records.mPeak[event] = mPeak[label];
+
+        long sum = mSum[label];
+        records.mCentroidX[event] = sum > 0 ? (float) ((double) mSumX[label] / sum) : (mMinX[label] + mMaxX[label]) / 2f;
+        records.mCentroidY[event] = sum > 0 ? (float) ((double) mSumY[label] / sum) : (mMinY[label] + mMaxY[label]) / 2f;
+
+        // Patch around the bounding box, centered on the peak when the cluster is too large
+        int maxPatchSize = records.getMaxPatchSize();
+        int patchWidth = Math.min(Math.min(maxPatchSize, mMaxX[label] - mMinX[label] + 1 + 2 * mPatchMargin), plane.getWidth());
+        int patchHeight = Math.min(Math.min(maxPatchSize, mMaxY[label] - mMinY[label] + 1 + 2 * mPatchMargin), plane.getHeight());
+        int patchX = clamp(mPeakX[label] - patchWidth / 2, 0, plane.getWidth() - patchWidth);
+        int patchY = clamp(mPeakY[label] - patchHeight / 2, 0, plane.getHeight() - patchHeight);
+        if (patchWidth < maxPatchSize)
+        {
+            patchX = clamp(mMinX[label] - mPatchMargin, 0, plane.getWidth() - patchWidth);
+        }
+        if (patchHeight < maxPatchSize)
+        {
+            patchY = clamp(mMinY[label] - mPatchMargin, 0, plane.getHeight() - patchHeight);
+        }
+
+        records.mPatchX[event] = patchX;
+        records.mPatchY[event] = patchY;
+        records.mPatchWidth[event] = patchWidth;
+        records.mPatchHeight[event] = patchHeight;
+
+        int patchOffset = records.getPatchOffset(event);
+        for (int y = 0; y < patchHeight; y++)
+        {
+            for (int x = 0; x < patchWidth; x++)
+            {
+                records.mPatchData[patchOffset++] = (short) plane.getPixel(patchX + x, patchY + y);
+            }
+        }
+    }
+
+    private static int clamp(int value, int min, int max)
+    {
+        return value < min ? min : value > max ? max : value;
+    }
+}
@@ -0,0 +1,128 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePipeline;
+
+/**
+ * Analyze stage which extracts the clusters of triggered frames into {@link EventRecords}.
+ * Frames without a cluster large enough to become an event are dropped.
+ *
+ * Runs after the {@link TriggerStage} and uses its threshold and frame mean. With a
+ * {@link DarkFrameCalibration}, clusters are extracted from the calibrated excess of the frame
+ * instead, so event sums and patches are relative to each pixel's dark level. Each stage thread
+ * has its own {@link ClusterExtractor} and calibrated plane scratch space.
+ */
+public class ClusterStage implements FramePipeline.FrameAnalyzer
+{
+    private final FrameDecoder mDecoder;
+    private final DarkFrameCalibration mCalibration;
+    private final int mMaxEvents;
+    private final int mMaxPatchSize;
+
+    private final ThreadLocal<ClusterExtractor> mExtractor;
+    private final ThreadLocal<CalibratedPlane> mCalibratedPlane =
+        new ThreadLocal<CalibratedPlane>()
+        {
+            @Override
+            protected CalibratedPlane initialValue()
+            {
+                return new CalibratedPlane();
+            }
+        };
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mEvents = new AtomicLong();
+    private final AtomicLong mOverflows = new AtomicLong();
+    private final AtomicLong mTotalTime = new AtomicLong();
+
+    public ClusterStage(DecoSettings settings, FrameDecoder decoder)
+    {
+        this(settings, decoder, null);
+    }
+
+    public ClusterStage(final DecoSettings settings, FrameDecoder decoder, DarkFrameCalibration calibration)
+    {
+        mDecoder = decoder;
+        mCalibration = calibration;
+        mMaxEvents = settings.getInt("cluster.events.max", 64);
+        mMaxPatchSize = settings.getInt("cluster.patch.size", 32);
+        mExtractor =
+            new ThreadLocal<ClusterExtractor>()
+            {
+                @Override
+                protected ClusterExtractor initialValue()
+                {
+                    return new ClusterExtractor(settings);
+                }
+            };
+    }
+
+    @Override
+    public boolean analyze(Frame frame) throws Exception
+    {
+        long start = System.nanoTime();
+
+        FramePlane plane = mDecoder.decode(frame);
+
+        EventRecords events = frame.getEvents();
+        if (events == null)
+        {
+            // Once per pooled frame
+            events = new EventRecords(mMaxEvents, mMaxPatchSize);
+            frame.setEvents(events);
+        }
+
+        if (mCalibration != null && mCalibration.matches(plane))
+        {
+            // Only hits are left in the calibrated plane, with their excess over the dark level
+            mExtractor.get().extract(mCalibratedPlane.get().subtract(mCalibration, plane), 0, 0, events);
+        }
+        else
+        {
+            TriggerResult triggerResult = frame.getTriggerResult();
+            mExtractor.get().extract(plane, triggerResult.getThreshold(), Math.round(triggerResult.getMean()), events);
+        }
+
+        mFrames.incrementAndGet();
+        mEvents.addAndGet(events.size());
+        if (events.isOverflow())
+        {
+            mOverflows.incrementAndGet();
+        }
+        mTotalTime.addAndGet(System.nanoTime() - start);
+
+        return events.size() > 0;
+    }
+
+    public String report()
+    {
+        long frames = mFrames.get();
+        return String.format(Locale.US, "Clusters: %d frames, %d events (%d frames overflowed), %.2fms per frame",
+                frames, mEvents.get(), mOverflows.get(), frames > 0 ? mTotalTime.get() / 1e6 / frames : 0);
+    }
+
+    /**
+     * Scratch buffer receiving the calibrated excess of a frame, grown as needed.
+     */
+    private static class CalibratedPlane
+    {
+        private final FramePlane mPlane = new FramePlane();
+        private ByteBuffer mBuffer;
+
+        FramePlane subtract(DarkFrameCalibration calibration, FramePlane plane)
+        {
+            int size = plane.getWidth() * plane.getHeight() * plane.getBytesPerSample();
+            if (mBuffer == null || mBuffer.capacity() < size)
+            {
+                mBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            }
+            return calibration.subtract(plane, mBuffer, mPlane);
+        }
+    }
+}
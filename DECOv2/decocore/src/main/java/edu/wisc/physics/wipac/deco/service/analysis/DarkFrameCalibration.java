@@ -0,0 +1,579 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+
+/**
+ * Per-pixel dark-frame calibration: a running mean and variance of every pixel, from which a
+ * hot-pixel mask and per-pixel hit thresholds are derived.
+ *
+ * The first frames after {@link #reset()} are accumulated into the statistics, after which
+ * frames are searched with {@link #detect} (subtract and mask in a single pass). Every
+ * {@link #getUpdateInterval()} frames the statistics are updated with the pixels of a frame
+ * below their threshold, so the calibration follows the sensor as it warms up.
+ *
+ * Memory is bounded: mean, variance and threshold take 6 bytes per cell in fixed-point chars,
+ * plus one bit for the mask. A cell is a single pixel unless that exceeds the memory budget,
+ * in which case cells are 2x2, 4x4 or 8x8 pixel bins. With bins, a hot pixel masks its bin.
+ *
+ * The statistics are written by one thread (accumulate and update) while others detect and
+ * subtract. Readers only use the arrays once {@link #isCalibrated()} returns true; updates
+ * after that are single char writes, so a concurrent reader sees either the old or new value.
+ *
+ * The statistics can be saved with {@link #writeTo(ByteBuffer)} and restored with
+ * {@link #readFrom(ByteBuffer)}, which only bulk-copies the arrays out of the buffer.
+ */
+public class DarkFrameCalibration
+{
+    private static final int MAX_BINNING_SHIFT = 3;
+    private static final int BYTES_PER_CELL = 6;
+    private static final int LAYOUT_SIZE = 36;
+
+    public interface Listener
+    {
+        /**
+         * Called on the accumulating thread once enough frames have been accumulated.
+         */
+        void onCalibrated(DarkFrameCalibration calibration);
+    }
+
+    private final int mFrames;
+    private final float mSigmas;
+    private final int mMinExcess;
+    private final float mHotSigmas;
+    private final float mHotNoise;
+    private final int mUpdateInterval;
+    private final long mMemoryBudget;
+
+    private Listener mListener;
+    private volatile boolean mCalibrated;
+    private int mAccumulated;
+    private long mUpdates;
+
+    // Layout of the calibrated frames
+    private int mWidth;
+    private int mHeight;
+    private boolean mWide;
+    private int mShift;
+    private int mCellsWidth;
+    private int mCellsHeight;
+    private int mFractionBits;
+    private int mMaxSample;
+
+    // Per cell statistics: mean and variance in fixed point with mFractionBits, threshold in pixel units
+    private char[] mMean = new char[0];
+    private char[] mVariance = new char[0];
+    private char[] mThreshold = new char[0];
+    private long[] mHot = new long[0];
+
+    // Summary of the cells, refreshed with the thresholds
+    private float mDarkMean;
+    private float mDarkSigma;
+    private int mMeanThreshold;
+    private int mHotCells;
+
+    /**
+     * @param frames         Number of frames accumulated before the calibration is used
+     * @param sigmas         Per-pixel threshold above the pixel mean, in standard deviations of the pixel
+     * @param minExcess      Minimum per-pixel threshold above the pixel mean
+     * @param hotSigmas      Pixels whose mean is this many standard deviations (of all pixel means) above the
+     *                       average are masked
+     * @param hotNoise       Pixels whose noise is this many times the average noise are masked
+     * @param updateInterval Frames between incremental updates once calibrated, 0 to never update
+     * @param memoryBudget   Maximum memory of the per-cell statistics, in bytes
+     */
+    public DarkFrameCalibration(int frames, float sigmas, int minExcess, float hotSigmas, float hotNoise,
+                                int updateInterval, long memoryBudget)
+    {
+        mFrames = Math.max(2, frames);
+        mSigmas = sigmas;
+        mMinExcess = Math.max(1, minExcess);
+        mHotSigmas = hotSigmas;
+        mHotNoise = hotNoise;
+        mUpdateInterval = Math.max(0, updateInterval);
+        mMemoryBudget = memoryBudget;
+    }
+
+    public DarkFrameCalibration(DecoSettings settings)
+    {
+        this(settings.getInt("calibration.frames", 50),
+             settings.getFloat("calibration.sigma", 5f),
+             settings.getInt("calibration.threshold.min", 4),
+             settings.getFloat("calibration.hot.sigma", 5f),
+             settings.getFloat("calibration.hot.noise", 4f),
+             settings.getInt("calibration.update.interval", 100),
+             settings.getLong("calibration.memory.max", 48) * 1024 * 1024);
+    }
+
+    /**
+     * Starts a new calibration with the next frame.
+     */
+    public synchronized void reset()
+    {
+        mCalibrated = false;
+        mAccumulated = 0;
+        mUpdates = 0;
+    }
+
+    public void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    public boolean isCalibrated()
+    {
+        return mCalibrated;
+    }
+
+    /**
+     * @return true if the calibration can be used with frames of this plane's size and depth
+     */
+    public boolean matches(FramePlane plane)
+    {
+        return mCalibrated && plane.getWidth() == mWidth && plane.getHeight() == mHeight && plane.isWide() == mWide;
+    }
+
+    public int getUpdateInterval()
+    {
+        return mUpdateInterval;
+    }
+
+    /**
+     * Adds a dark frame to the statistics.
+     *
+     * @return true once enough frames have been accumulated and the calibration is usable
+     */
+    public synchronized boolean accumulate(FramePlane plane)
+    {
+        if (mAccumulated == 0 || plane.getWidth() != mWidth || plane.getHeight() != mHeight || plane.isWide() != mWide)
+        {
+            // Also when a restored calibration does not fit the frames
+            mCalibrated = false;
+            mAccumulated = 0;
+            allocate(plane);
+        }
+
+        mAccumulated++;
+        int samplesPerFrame = 1 << (2 * mShift);
+        int base = (mAccumulated - 1) * samplesPerFrame;
+        int mask = (1 << mShift) - 1;
+
+        ByteBuffer buffer = plane.getBuffer();
+        int offset = plane.getOffset();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int y = 0; y < mHeight; y++)
+        {
+            int rowCell = (y >> mShift) * mCellsWidth;
+            int rowSample = base + ((y & mask) << mShift) + 1;
+            int index = offset + y * rowStride;
+            for (int x = 0; x < mWidth; x++, index += pixelStride)
+            {
+                int value = mWide ? buffer.getShort(index) & 0xffff : buffer.get(index) & 0xff;
+                // Sample count of the cell, so every pixel of a bin has the same weight
+                addSample(rowCell + (x >> mShift), value, rowSample + (x & mask));
+            }
+        }
+
+        if (mAccumulated >= mFrames)
+        {
+            refresh();
+            mCalibrated = true;
+            if (mListener != null)
+            {
+                mListener.onCalibrated(this);
+            }
+        }
+        return mCalibrated;
+    }
+
+    /**
+     * Moves the statistics towards a frame, ignoring pixels above their threshold. The frame
+     * has the weight of one calibration frame.
+     */
+    public synchronized void update(FramePlane plane)
+    {
+        if (!matches(plane))
+        {
+            return;
+        }
+
+        int window = mFrames << (2 * mShift);
+        char[] threshold = mThreshold;
+
+        ByteBuffer buffer = plane.getBuffer();
+        int offset = plane.getOffset();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int y = 0; y < mHeight; y++)
+        {
+            int rowCell = (y >> mShift) * mCellsWidth;
+            int index = offset + y * rowStride;
+            for (int x = 0; x < mWidth; x++, index += pixelStride)
+            {
+                int value = mWide ? buffer.getShort(index) & 0xffff : buffer.get(index) & 0xff;
+                int cell = rowCell + (x >> mShift);
+                if (value <= threshold[cell])
+                {
+                    addSample(cell, value, window);
+                }
+            }
+        }
+
+        refresh();
+        mUpdates++;
+    }
+
+    /**
+     * Searches a frame for pixels above their threshold, skipping masked pixels. The result's
+     * mean and sigma are those of the dark frames, its threshold the average per-pixel threshold
+     * and its maximum the largest excess over the pixel's dark mean.
+     */
+    public void detect(FramePlane plane, int minHits, TriggerResult result)
+    {
+        long start = System.nanoTime();
+
+        char[] mean = mMean;
+        char[] threshold = mThreshold;
+        long[] hot = mHot;
+        int shift = mShift;
+        int cellsWidth = mCellsWidth;
+        int fractionBits = mFractionBits;
+        int half = 1 << (fractionBits - 1);
+
+        ByteBuffer buffer = plane.getBuffer();
+        int offset = plane.getOffset();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        boolean wide = mWide;
+
+        int hits = 0;
+        int maxExcess = -1;
+        int maxX = 0;
+        int maxY = 0;
+        for (int y = 0; y < mHeight; y++)
+        {
+            int rowCell = (y >> shift) * cellsWidth;
+            int index = offset + y * rowStride;
+            for (int x = 0; x < mWidth; x++, index += pixelStride)
+            {
+                int value = wide ? buffer.getShort(index) & 0xffff : buffer.get(index) & 0xff;
+                int cell = rowCell + (x >> shift);
+                if (value <= threshold[cell] || (hot[cell >> 6] & (1L << cell)) != 0)
+                {
+                    continue;
+                }
+
+                hits++;
+                int excess = value - ((mean[cell] + half) >> fractionBits);
+                if (excess > maxExcess)
+                {
+                    maxExcess = excess;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
+        }
+
+        result.set(mDarkMean, mDarkSigma, mMeanThreshold, hits, maxExcess, maxX, maxY, hits >= minHits);
+        result.setScanTime(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the zero-suppressed excess of a frame over its dark mean: pixels above their
+     * threshold keep their excess (at least 1), all others and masked pixels become 0.
+     *
+     * @param buffer Receives the excess, at least width * height * bytes per sample
+     * @param out    Set to the plane over buffer
+     */
+    public FramePlane subtract(FramePlane plane, ByteBuffer buffer, FramePlane out)
+    {
+        char[] mean = mMean;
+        char[] threshold = mThreshold;
+        long[] hot = mHot;
+        int shift = mShift;
+        int cellsWidth = mCellsWidth;
+        int fractionBits = mFractionBits;
+        int half = 1 << (fractionBits - 1);
+
+        ByteBuffer input = plane.getBuffer();
+        int offset = plane.getOffset();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        boolean wide = mWide;
+        int bytesPerSample = wide ? 2 : 1;
+
+        int output = 0;
+        for (int y = 0; y < mHeight; y++)
+        {
+            int rowCell = (y >> shift) * cellsWidth;
+            int index = offset + y * rowStride;
+            for (int x = 0; x < mWidth; x++, index += pixelStride, output += bytesPerSample)
+            {
+                int value = wide ? input.getShort(index) & 0xffff : input.get(index) & 0xff;
+                int cell = rowCell + (x >> shift);
+                int excess = 0;
+                if (value > threshold[cell] && (hot[cell >> 6] & (1L << cell)) == 0)
+                {
+                    excess = Math.max(1, value - ((mean[cell] + half) >> fractionBits));
+                }
+
+                if (wide)
+                {
+                    buffer.putShort(output, (short) excess);
+                }
+                else
+                {
+                    buffer.put(output, (byte) excess);
+                }
+            }
+        }
+
+        return out.set(buffer, 0, mWidth, mHeight, mWidth * bytesPerSample, bytesPerSample, bytesPerSample);
+    }
+
+    private void allocate(FramePlane plane)
+    {
+        mWidth = plane.getWidth();
+        mHeight = plane.getHeight();
+        mWide = plane.isWide();
+        // 8 bit samples keep 8 fraction bits, up to 12 significant bits (RAW) keep 4
+        mFractionBits = mWide ? 4 : 8;
+        mMaxSample = Character.MAX_VALUE >> mFractionBits;
+
+        mShift = 0;
+        while (mShift < MAX_BINNING_SHIFT && (long) cells(mShift) * BYTES_PER_CELL > mMemoryBudget)
+        {
+            mShift++;
+        }
+        mCellsWidth = (mWidth + (1 << mShift) - 1) >> mShift;
+        mCellsHeight = (mHeight + (1 << mShift) - 1) >> mShift;
+
+        int cells = mCellsWidth * mCellsHeight;
+        if (mMean.length != cells)
+        {
+            mMean = new char[cells];
+            mVariance = new char[cells];
+            mThreshold = new char[cells];
+            mHot = new long[(cells + 63) >> 6];
+        }
+        else
+        {
+            Arrays.fill(mMean, (char) 0);
+            Arrays.fill(mVariance, (char) 0);
+        }
+    }
+
+    private int cells(int shift)
+    {
+        return ((mWidth + (1 << shift) - 1) >> shift) * ((mHeight + (1 << shift) - 1) >> shift);
+    }
+
+    /**
+     * Incremental mean and (population) variance with the count-th sample of a cell, or an
+     * exponential moving average with a window of count samples.
+     */
+    private void addSample(int cell, int value, int count)
+    {
+        int mean = mMean[cell];
+        int sample = Math.min(value, mMaxSample) << mFractionBits;
+        int delta = sample - mean;
+        int newMean = mean + delta / count;
+
+        int variance = mVariance[cell];
+        long product = ((long) delta * (sample - newMean)) >> mFractionBits;
+        long newVariance = variance + (product - variance) / count;
+
+        mMean[cell] = (char) newMean;
+        mVariance[cell] = (char) (newVariance < 0 ? 0 : newVariance > Character.MAX_VALUE ? Character.MAX_VALUE : newVariance);
+    }
+
+    /**
+     * Derives the thresholds and hot-pixel mask from the statistics.
+     */
+    private void refresh()
+    {
+        int cells = mCellsWidth * mCellsHeight;
+        float scale = 1f / (1 << mFractionBits);
+
+        double sumMeans = 0;
+        double sumSquareMeans = 0;
+        double sumSigmas = 0;
+        for (int cell = 0; cell < cells; cell++)
+        {
+            double mean = mMean[cell] * scale;
+            sumMeans += mean;
+            sumSquareMeans += mean * mean;
+            sumSigmas += Math.sqrt(mVariance[cell] * scale);
+        }
+
+        double average = sumMeans / cells;
+        double spread = Math.sqrt(Math.max(0, sumSquareMeans / cells - average * average));
+        double noise = sumSigmas / cells;
+        double hotMean = average + Math.max(mHotSigmas * spread, mMinExcess);
+        double hotSigma = mHotNoise * Math.max(noise, scale);
+        int maxValue = mWide ? Character.MAX_VALUE : 255;
+
+        // The mask is written a word at a time so a concurrent detect never sees a half cleared word
+        long[] hot = mHot;
+        long word = 0;
+        int hotCells = 0;
+        long sumThresholds = 0;
+        for (int cell = 0; cell < cells; cell++)
+        {
+            float mean = mMean[cell] * scale;
+            float sigma = (float) Math.sqrt(mVariance[cell] * scale);
+            int threshold = (int) Math.ceil(mean + Math.max(mSigmas * sigma, mMinExcess));
+            mThreshold[cell] = (char) Math.min(threshold, maxValue);
+            sumThresholds += threshold;
+
+            if (mean > hotMean || sigma > hotSigma)
+            {
+                word |= 1L << cell;
+                hotCells++;
+            }
+            if ((cell & 63) == 63 || cell == cells - 1)
+            {
+                hot[cell >> 6] = word;
+                word = 0;
+            }
+        }
+
+        mDarkMean = (float) average;
+        mDarkSigma = (float) noise;
+        mMeanThreshold = (int) (sumThresholds / cells);
+        mHotCells = hotCells;
+    }
+
+    /**
+     * @return Number of bytes {@link #writeTo(ByteBuffer)} writes
+     */
+    public synchronized int getSerializedSize()
+    {
+        return LAYOUT_SIZE + mCellsWidth * mCellsHeight * BYTES_PER_CELL + mHot.length * 8;
+    }
+
+    /**
+     * Writes the layout and statistics of a completed calibration at the buffer's position,
+     * in the buffer's byte order.
+     */
+    public synchronized void writeTo(ByteBuffer buffer)
+    {
+        if (!mCalibrated)
+        {
+            throw new IllegalStateException("Not calibrated");
+        }
+
+        int cells = mCellsWidth * mCellsHeight;
+        buffer.putInt(mWidth);
+        buffer.putInt(mHeight);
+        buffer.put((byte) (mWide ? 1 : 0));
+        buffer.put((byte) mShift);
+        buffer.put((byte) mFractionBits);
+        buffer.put((byte) 0);
+        buffer.putInt(mAccumulated);
+        buffer.putFloat(mDarkMean);
+        buffer.putFloat(mDarkSigma);
+        buffer.putInt(mMeanThreshold);
+        buffer.putInt(mHotCells);
+        buffer.putInt(cells);
+
+        CharBuffer chars = buffer.asCharBuffer();
+        chars.put(mMean);
+        chars.put(mVariance);
+        chars.put(mThreshold);
+        buffer.position(buffer.position() + cells * BYTES_PER_CELL);
+        buffer.asLongBuffer().put(mHot);
+        buffer.position(buffer.position() + mHot.length * 8);
+    }
+
+    /**
+     * Restores a calibration written by {@link #writeTo(ByteBuffer)} from the buffer's position.
+     *
+     * @return false if the buffer does not hold a valid calibration, the current one is kept
+     */
+    public synchronized boolean readFrom(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < LAYOUT_SIZE)
+        {
+            return false;
+        }
+
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        boolean wide = buffer.get() != 0;
+        int shift = buffer.get();
+        int fractionBits = buffer.get();
+        buffer.get();
+        int accumulated = buffer.getInt();
+        float darkMean = buffer.getFloat();
+        float darkSigma = buffer.getFloat();
+        int meanThreshold = buffer.getInt();
+        int hotCells = buffer.getInt();
+        int cells = buffer.getInt();
+
+        int cellsWidth = (width + (1 << shift) - 1) >> shift;
+        int cellsHeight = (height + (1 << shift) - 1) >> shift;
+        int hotWords = (cells + 63) >> 6;
+        if (width <= 0 || height <= 0 || shift < 0 || shift > MAX_BINNING_SHIFT
+                || fractionBits != (wide ? 4 : 8)
+                || cells != cellsWidth * cellsHeight
+                || buffer.remaining() < (long) cells * BYTES_PER_CELL + hotWords * 8L)
+        {
+            return false;
+        }
+
+        mCalibrated = false;
+        if (mMean.length != cells)
+        {
+            mMean = new char[cells];
+            mVariance = new char[cells];
+            mThreshold = new char[cells];
+            mHot = new long[hotWords];
+        }
+
+        CharBuffer chars = buffer.asCharBuffer();
+        chars.get(mMean);
+        chars.get(mVariance);
+        chars.get(mThreshold);
+        buffer.position(buffer.position() + cells * BYTES_PER_CELL);
+        buffer.asLongBuffer().get(mHot);
+        buffer.position(buffer.position() + hotWords * 8);
+
+        mWidth = width;
+        mHeight = height;
+        mWide = wide;
+        mShift = shift;
+        mCellsWidth = cellsWidth;
+        mCellsHeight = cellsHeight;
+        mFractionBits = fractionBits;
+        mMaxSample = Character.MAX_VALUE >> fractionBits;
+        mAccumulated = accumulated;
+        mUpdates = 0;
+        mDarkMean = darkMean;
+        mDarkSigma = darkSigma;
+        mMeanThreshold = meanThreshold;
+        mHotCells = hotCells;
+        mCalibrated = true;
+        return true;
+    }
+
+    public synchronized String report()
+    {
+        if (!mCalibrated)
+        {
+            return "Calibration: " + mAccumulated + "/" + mFrames + " frames";
+        }
+
+        int binning = 1 << mShift;
+        long bytes = (long) mCellsWidth * mCellsHeight * BYTES_PER_CELL + mHot.length * 8L;
+        return String.format(Locale.US,
+                "Calibration: %dx%d in %dx%d cells (%.1fMB), dark mean %.2f sigma %.2f, threshold avg %d, %d hot cells (%.3f%%), %d updates",
+                mWidth, mHeight, binning, binning, bytes / 1048576.0, mDarkMean, mDarkSigma, mMeanThreshold,
+                mHotCells, 100.0 * mHotCells / ((long) mCellsWidth * mCellsHeight), mUpdates);
+    }
+}
@@ -0,0 +1,135 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+/**
+ * The events (clusters of hit pixels) found in a frame, kept in primitive arrays so the
+ * records of a frame can be reused for the next frame without allocating.
+ *
+ * Each event has a bounding box, pixel count, summed intensity above the baseline, peak
+ * value, intensity weighted centroid and a small patch of raw pixel values around the peak.
+ */
+public class EventRecords
+{
+    private final int mMaxEvents;
+    private final int mMaxPatchSize;
+
+    private int mSize;
+    private boolean mOverflow;
+    private int mThreshold;
+    private int mBaseline;
+
+    final int[] mMinX;
+    final int[] mMinY;
+    final int[] mMaxX;
+    final int[] mMaxY;
+    final int[] mPixels;
+    final long[] mSum;
+    final int[] mPeak;
+    final float[] mCentroidX;
+    final float[] mCentroidY;
+    final int[] mPatchX;
+    final int[] mPatchY;
+    final int[] mPatchWidth;
+    final int[] mPatchHeight;
+    final short[] mPatchData;
+
+    /**
+     * @param maxEvents    Maximum number of events per frame
+     * @param maxPatchSize Maximum width and height of the pixel patch of an event
+     */
+    public EventRecords(int maxEvents, int maxPatchSize)
+    {
+        mMaxEvents = Math.max(1, maxEvents);
+        mMaxPatchSize = Math.max(1, maxPatchSize);
+
+        mMinX = new int[mMaxEvents];
+        mMinY = new int[mMaxEvents];
+        mMaxX = new int[mMaxEvents];
+        mMaxY = new int[mMaxEvents];
+        mPixels = new int[mMaxEvents];
+        mSum = new long[mMaxEvents];
+        mPeak = new int[mMaxEvents];
+        mCentroidX = new float[mMaxEvents];
+        mCentroidY = new float[mMaxEvents];
+        mPatchX = new int[mMaxEvents];
+        mPatchY = new int[mMaxEvents];
+        mPatchWidth = new int[mMaxEvents];
+        mPatchHeight = new int[mMaxEvents];
+        mPatchData = new short[mMaxEvents * mMaxPatchSize * mMaxPatchSize];
+    }
+
+    public void clear()
+    {
+        mSize = 0;
+        mOverflow = false;
+    }
+
+    void setLevels(int threshold, int baseline)
+    {
+        mThreshold = threshold;
+        mBaseline = baseline;
+    }
+
+    void setOverflow()
+    {
+        mOverflow = true;
+    }
+
+    /**
+     * @return Index of the new event, -1 if the records are full
+     */
+    int add()
+    {
+        if (mSize == mMaxEvents)
+        {
+            mOverflow = true;
+            return -1;
+        }
+        return mSize++;
+    }
+
+    public int size() { return mSize; }
+    public int getMaxEvents() { return mMaxEvents; }
+    public int getMaxPatchSize() { return mMaxPatchSize; }
+
+    /**
+     * @return true if there were more clusters than could be extracted
+     */
+    public boolean isOverflow() { return mOverflow; }
+
+    /**
+     * @return Pixels above this value were considered hits
+     */
+    public int getThreshold() { return mThreshold; }
+
+    /**
+     * @return Value the summed intensities and centroids are relative to
+     */
+    public int getBaseline() { return mBaseline; }
+
+    public int getMinX(int event) { return mMinX[event]; }
+    public int getMinY(int event) { return mMinY[event]; }
+    public int getMaxX(int event) { return mMaxX[event]; }
+    public int getMaxY(int event) { return mMaxY[event]; }
+    public int getPixels(int event) { return mPixels[event]; }
+    public long getSum(int event) { return mSum[event]; }
+    public int getPeak(int event) { return mPeak[event]; }
+    public float getCentroidX(int event) { return mCentroidX[event]; }
+    public float getCentroidY(int event) { return mCentroidY[event]; }
+    public int getPatchX(int event) { return mPatchX[event]; }
+    public int getPatchY(int event) { return mPatchY[event]; }
+    public int getPatchWidth(int event) { return mPatchWidth[event]; }
+    public int getPatchHeight(int event) { return mPatchHeight[event]; }
+
+    /**
+     * @return Raw value of the patch pixel at (x, y) relative to the patch origin
+     */
+    public int getPatchPixel(int event, int x, int y)
+    {
+        return mPatchData[getPatchOffset(event) + y * mPatchWidth[event] + x] & 0xffff;
+    }
+
+    int getPatchOffset(int event)
+    {
+        return event * mMaxPatchSize * mMaxPatchSize;
+    }
+}
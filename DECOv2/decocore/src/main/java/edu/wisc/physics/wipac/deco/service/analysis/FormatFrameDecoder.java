@@ -0,0 +1,24 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Decodes compressed frames with a platform specific decoder and scans uncompressed frames
+ * in place.
+ */
+public class FormatFrameDecoder implements FrameDecoder
+{
+    private final FrameDecoder mCompressedDecoder;
+    private final FrameDecoder mPlaneDecoder = new PlaneFrameDecoder();
+
+    public FormatFrameDecoder(FrameDecoder compressedDecoder)
+    {
+        mCompressedDecoder = compressedDecoder;
+    }
+
+    @Override
+    public FramePlane decode(Frame frame) throws Exception
+    {
+        return frame.getFormat().isCompressed() ? mCompressedDecoder.decode(frame) : mPlaneDecoder.decode(frame);
+    }
+}
@@ -0,0 +1,64 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePipeline;
+import edu.wisc.physics.wipac.deco.service.pipeline.OverflowPolicy;
+import edu.wisc.physics.wipac.deco.service.storage.FrameStatisticsLog;
+
+/**
+ * The analyze stages of the frame pipeline as configured by the deco.trigger.*,
+ * deco.calibration.* and deco.cluster.* settings: the trigger stage (with the dark-frame
+ * calibration, if enabled) followed by the cluster stage, if enabled.
+ *
+ * Shared by the camera and the off-device replay so both process frames the same way.
+ */
+public class FrameAnalysis
+{
+    private final DarkFrameCalibration mCalibration;
+    private final TriggerStage mTriggerStage;
+    private final ClusterStage mClusterStage;
+
+    /**
+     * @param compressedDecoder Decoder of JPEG frames, uncompressed frames are scanned in place
+     * @param statisticsLog     Receives the statistics of every scanned frame, may be null
+     */
+    public FrameAnalysis(DecoSettings settings, FrameDecoder compressedDecoder, FrameStatisticsLog statisticsLog)
+    {
+        FrameDecoder decoder = new FormatFrameDecoder(compressedDecoder);
+
+        mCalibration = settings.getBoolean("calibration.enabled", true) ? new DarkFrameCalibration(settings) : null;
+        mTriggerStage = new TriggerStage(new HitTrigger(settings), decoder, statisticsLog, mCalibration);
+        mClusterStage = settings.getBoolean("cluster.enabled", true) ? new ClusterStage(settings, decoder, mCalibration) : null;
+    }
+
+    /**
+     * @return false if frames are not analyzed at all (deco.trigger.enabled=false)
+     */
+    public static boolean isEnabled(DecoSettings settings)
+    {
+        return settings.getBoolean("trigger.enabled", true);
+    }
+
+    /**
+     * Appends the analyze stages to the pipeline: "Analyze" for the trigger and "Cluster".
+     */
+    public void addStages(FramePipeline pipeline)
+    {
+        pipeline.addStage("Analyze", 4, OverflowPolicy.DROP_OLDEST, mTriggerStage);
+        if (mClusterStage != null)
+        {
+            pipeline.addStage("Cluster", 4, OverflowPolicy.BLOCK, mClusterStage);
+        }
+    }
+
+    /**
+     * @return The calibration, null if disabled
+     */
+    public DarkFrameCalibration getCalibration() { return mCalibration; }
+    public TriggerStage getTriggerStage() { return mTriggerStage; }
+
+    /**
+     * @return The cluster stage, null if disabled
+     */
+    public ClusterStage getClusterStage() { return mClusterStage; }
+}
@@ -0,0 +1,15 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Turns the data of a frame into a plane of pixels the analysis can scan.
+ * Implementations must be safe to call from several analyze threads.
+ */
+public interface FrameDecoder
+{
+    /**
+     * @return The decoded plane, only valid until the next call from the same thread
+     */
+    FramePlane decode(Frame frame) throws Exception;
+}
@@ -0,0 +1,50 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stride aware view of one channel of a frame, 8 or 16 bits per sample. The pixel at (x, y)
+ * starts at offset + y * rowStride + x * pixelStride in the buffer, 16 bit samples are read
+ * in the buffer's byte order.
+ */
+public class FramePlane
+{
+    private ByteBuffer mBuffer;
+    private int mOffset;
+    private int mWidth;
+    private int mHeight;
+    private int mRowStride;
+    private int mPixelStride;
+    private int mBytesPerSample;
+
+    public FramePlane set(ByteBuffer buffer, int offset, int width, int height, int rowStride, int pixelStride, int bytesPerSample)
+    {
+        mBuffer = buffer;
+        mOffset = offset;
+        mWidth = width;
+        mHeight = height;
+        mRowStride = rowStride;
+        mPixelStride = pixelStride;
+        mBytesPerSample = bytesPerSample;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() { return mBuffer; }
+    public int getOffset() { return mOffset; }
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+    public int getRowStride() { return mRowStride; }
+    public int getPixelStride() { return mPixelStride; }
+    public int getBytesPerSample() { return mBytesPerSample; }
+
+    public boolean isWide()
+    {
+        return mBytesPerSample == 2;
+    }
+
+    public int getPixel(int x, int y)
+    {
+        int index = mOffset + y * mRowStride + x * mPixelStride;
+        return mBytesPerSample == 2 ? mBuffer.getShort(index) & 0xffff : mBuffer.get(index) & 0xff;
+    }
+}
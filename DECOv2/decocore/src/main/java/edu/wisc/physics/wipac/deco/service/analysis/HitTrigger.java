@@ -0,0 +1,110 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import java.nio.ByteBuffer;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+
+/**
+ * Looks for cosmic ray hit candidates in a dark frame: pixels sticking out of the frame's
+ * noise level by more than a configurable number of standard deviations.
+ *
+ * The noise level is estimated from a sub-sample of the frame, then a second pass counts
+ * the pixels above the threshold. Both passes read the plane in place and do not allocate.
+ */
+public class HitTrigger
+{
+    private final float mSigmas;
+    private final int mMinExcess;
+    private final int mMinHits;
+    private final int mSampleStep;
+
+    /**
+     * @param sigmas     Threshold above the frame mean, in standard deviations
+     * @param minExcess  Minimum threshold above the frame mean, for frames with little or no noise
+     * @param minHits    Number of pixels above threshold needed to trigger
+     * @param sampleStep Only every sampleStep-th pixel and row is used to estimate the noise level
+     */
+    public HitTrigger(float sigmas, int minExcess, int minHits, int sampleStep)
+    {
+        mSigmas = sigmas;
+        mMinExcess = minExcess;
+        mMinHits = Math.max(1, minHits);
+        mSampleStep = Math.max(1, sampleStep);
+    }
+
+    public HitTrigger(DecoSettings settings)
+    {
+        this(settings.getFloat("trigger.sigma", 5f),
+             settings.getInt("trigger.threshold.min", 10),
+             settings.getInt("trigger.pixels.min", 1),
+             settings.getInt("trigger.sample.step", 4));
+    }
+
+    public int getMinHits()
+    {
+        return mMinHits;
+    }
+
+    public void scan(FramePlane plane, TriggerResult result)
+    {
+        long start = System.nanoTime();
+
+        ByteBuffer buffer = plane.getBuffer();
+        int offset = plane.getOffset();
+        int width = plane.getWidth();
+        int height = plane.getHeight();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        boolean wide = plane.isWide();
+
+        // Noise level of the frame
+        long count = 0;
+        long sum = 0;
+        long sumSquares = 0;
+        int sampleStride = mSampleStep * pixelStride;
+        for (int y = 0; y < height; y += mSampleStep)
+        {
+            int index = offset + y * rowStride;
+            int end = index + width * pixelStride;
+            for (; index < end; index += sampleStride)
+            {
+                int value = wide ? buffer.getShort(index) & 0xffff : buffer.get(index) & 0xff;
+                sum += value;
+                sumSquares += (long) value * value;
+                count++;
+            }
+        }
+
+        double mean = count > 0 ? (double) sum / count : 0;
+        double variance = count > 0 ? Math.max(0, (double) sumSquares / count - mean * mean) : 0;
+        double sigma = Math.sqrt(variance);
+        int threshold = (int) (mean + Math.max(mSigmas * sigma, mMinExcess));
+
+        // Candidate pixels
+        int hits = 0;
+        int maxValue = -1;
+        int maxX = 0;
+        int maxY = 0;
+        for (int y = 0; y < height; y++)
+        {
+            int index = offset + y * rowStride;
+            for (int x = 0; x < width; x++, index += pixelStride)
+            {
+                int value = wide ? buffer.getShort(index) & 0xffff : buffer.get(index) & 0xff;
+                if (value > threshold)
+                {
+                    hits++;
+                }
+                if (value > maxValue)
+                {
+                    maxValue = value;
+                    maxX = x;
+                    maxY = y;
+                }
+            }
+        }
+
+        result.set((float) mean, (float) sigma, threshold, hits, maxValue, maxX, maxY, hits >= mMinHits);
+        result.setScanTime(System.nanoTime() - start);
+    }
+}
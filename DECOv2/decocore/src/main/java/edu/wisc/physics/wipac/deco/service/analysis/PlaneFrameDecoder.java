@@ -0,0 +1,33 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * "Decodes" uncompressed frames: the frame data already is the plane, this only describes
+ * its layout. Nothing is copied.
+ */
+public class PlaneFrameDecoder implements FrameDecoder
+{
+    private final ThreadLocal<FramePlane> mPlane =
+        new ThreadLocal<FramePlane>()
+        {
+            @Override
+            protected FramePlane initialValue()
+            {
+                return new FramePlane();
+            }
+        };
+
+    @Override
+    public FramePlane decode(Frame frame)
+    {
+        if (frame.getFormat().isCompressed())
+        {
+            throw new IllegalArgumentException("Frame " + frame.getNumber() + " is " + frame.getFormat());
+        }
+
+        return mPlane.get().set(frame.getData(), frame.getData().position(),
+                frame.getWidth(), frame.getHeight(), frame.getRowStride(), frame.getPixelStride(),
+                frame.getFormat().getBytesPerSample());
+    }
+}
@@ -0,0 +1,77 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+/**
+ * Outcome of scanning a frame with the {@link HitTrigger}.
+ */
+public class TriggerResult
+{
+    private float mMean;
+    private float mSigma;
+    private int mThreshold;
+    private int mHits;
+    private int mMaxValue;
+    private int mMaxX;
+    private int mMaxY;
+    private boolean mTriggered;
+    private long mScanTime;
+
+    void set(float mean, float sigma, int threshold, int hits, int maxValue, int maxX, int maxY, boolean triggered)
+    {
+        mMean = mean;
+        mSigma = sigma;
+        mThreshold = threshold;
+        mHits = hits;
+        mMaxValue = maxValue;
+        mMaxX = maxX;
+        mMaxY = maxY;
+        mTriggered = triggered;
+    }
+
+    /**
+     * Resets the result of a recycled frame, it is not triggered until it is scanned again.
+     */
+    public void clear()
+    {
+        set(0f, 0f, 0, 0, 0, 0, 0, false);
+        mScanTime = 0;
+    }
+
+    void setScanTime(long scanTime)
+    {
+        mScanTime = scanTime;
+    }
+
+    /**
+     * @return Mean pixel value of the frame
+     */
+    public float getMean() { return mMean; }
+
+    /**
+     * @return Noise level (standard deviation) of the frame
+     */
+    public float getSigma() { return mSigma; }
+
+    /**
+     * @return Pixels above this value are hit candidates
+     */
+    public int getThreshold() { return mThreshold; }
+
+    /**
+     * @return Number of pixels above the threshold
+     */
+    public int getHits() { return mHits; }
+
+    public int getMaxValue() { return mMaxValue; }
+    public int getMaxX() { return mMaxX; }
+    public int getMaxY() { return mMaxY; }
+
+    /**
+     * @return true if the frame has enough candidate pixels to be kept
+     */
+    public boolean isTriggered() { return mTriggered; }
+
+    /**
+     * @return Time it took to scan the frame, in nanoseconds
+     */
+    public long getScanTime() { return mScanTime; }
+}
@@ -0,0 +1,95 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePipeline;
+import edu.wisc.physics.wipac.deco.service.storage.FrameStatisticsLog;
+
+/**
+ * Analyze stage which only keeps frames with hit candidates. The statistics of every
+ * scanned frame are recorded, whether the frame is kept or not.
+ *
+ * With a {@link DarkFrameCalibration}, the first frames calibrate the sensor and are not
+ * kept. After that, frames are searched against the per-pixel thresholds and the calibration
+ * is updated every few frames.
+ */
+public class TriggerStage implements FramePipeline.FrameAnalyzer
+{
+    private final HitTrigger mTrigger;
+    private final FrameDecoder mDecoder;
+    private final FrameStatisticsLog mStatisticsLog;
+    private final DarkFrameCalibration mCalibration;
+    private final TriggerStatistics mStatistics = new TriggerStatistics();
+    private final AtomicLong mCalibrationFrames = new AtomicLong();
+    private final AtomicLong mCalibratedFrames = new AtomicLong();
+
+    public TriggerStage(HitTrigger trigger, FrameDecoder decoder, FrameStatisticsLog statisticsLog)
+    {
+        this(trigger, decoder, statisticsLog, null);
+    }
+
+    public TriggerStage(HitTrigger trigger, FrameDecoder decoder, FrameStatisticsLog statisticsLog, DarkFrameCalibration calibration)
+    {
+        mTrigger = trigger;
+        mDecoder = decoder;
+        mStatisticsLog = statisticsLog;
+        mCalibration = calibration;
+    }
+
+    @Override
+    public boolean analyze(Frame frame) throws Exception
+    {
+        FramePlane plane = mDecoder.decode(frame);
+        TriggerResult result = frame.getTriggerResult();
+
+        if (mCalibration == null)
+        {
+            mTrigger.scan(plane, result);
+        }
+        else if (!mCalibration.matches(plane))
+        {
+            mCalibration.accumulate(plane);
+            mCalibrationFrames.incrementAndGet();
+            return false;
+        }
+        else
+        {
+            mCalibration.detect(plane, mTrigger.getMinHits(), result);
+
+            // Updates are synchronized, other analyze threads keep detecting meanwhile
+            int interval = mCalibration.getUpdateInterval();
+            if (interval > 0 && mCalibratedFrames.incrementAndGet() % interval == 0)
+            {
+                mCalibration.update(plane);
+            }
+        }
+
+        mStatistics.onScanned(result);
+
+        if (mStatisticsLog != null)
+        {
+            mStatisticsLog.record(frame);
+        }
+
+        return result.isTriggered();
+    }
+
+    public TriggerStatistics getStatistics()
+    {
+        return mStatistics;
+    }
+
+    public DarkFrameCalibration getCalibration()
+    {
+        return mCalibration;
+    }
+
+    /**
+     * @return Number of frames used to calibrate the sensor
+     */
+    public long getCalibrationFrames()
+    {
+        return mCalibrationFrames.get();
+    }
+}
@@ -0,0 +1,71 @@
+package edu.wisc.physics.wipac.deco.service.analysis;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the trigger stage: frames scanned and triggered and the scan latency.
+ * Rates are computed over a window which is reset by {@link #report()}.
+ */
+public class TriggerStatistics
+{
+    private final AtomicLong mScanned = new AtomicLong();
+    private final AtomicLong mTriggered = new AtomicLong();
+    private final AtomicLong mTotalScanTime = new AtomicLong();
+    private final AtomicLong mMaxScanTime = new AtomicLong();
+
+    private long mWindowStart = System.nanoTime();
+    private long mWindowScanned;
+    private long mWindowTriggered;
+
+    public void onScanned(TriggerResult result)
+    {
+        mScanned.incrementAndGet();
+        if (result.isTriggered())
+        {
+            mTriggered.incrementAndGet();
+        }
+
+        long scanTime = result.getScanTime();
+        mTotalScanTime.addAndGet(scanTime);
+        long max;
+        while (scanTime > (max = mMaxScanTime.get()) && !mMaxScanTime.compareAndSet(max, scanTime))
+        {
+            // retry
+        }
+    }
+
+    public long getScanned() { return mScanned.get(); }
+    public long getTriggered() { return mTriggered.get(); }
+
+    public long getAverageScanTime()
+    {
+        long scanned = mScanned.get();
+        return scanned > 0 ? mTotalScanTime.get() / scanned : 0;
+    }
+
+    /**
+     * Formats the statistics and starts a new rate window.
+     */
+    public synchronized String report()
+    {
+        long now = System.nanoTime();
+        long scanned = mScanned.get();
+        long triggered = mTriggered.get();
+        long windowScanned = scanned - mWindowScanned;
+        long windowTriggered = triggered - mWindowTriggered;
+        double seconds = (now - mWindowStart) / 1e9;
+
+        String report = String.format(Locale.US,
+                "Trigger: %d scanned (%.2f frames/s), %d triggered (%.2f%% in window, %d total), scan avg %.2fms max %.2fms",
+                windowScanned, seconds > 0 ? windowScanned / seconds : 0,
+                windowTriggered, windowScanned > 0 ? 100.0 * windowTriggered / windowScanned : 0, triggered,
+                getAverageScanTime() / 1e6, mMaxScanTime.get() / 1e6);
+
+        mWindowStart = now;
+        mWindowScanned = scanned;
+        mWindowTriggered = triggered;
+
+        return report;
+    }
+}
@@ -0,0 +1,509 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log whose records are formatted and written on a thread of its own. Logging a record costs a
+ * level check, and if the level is kept a slot claimed in a ring buffer with one compare and
+ * set, so it neither locks nor waits for storage. Messages are templates whose "{}" are
+ * replaced by the arguments on the writer thread; nothing is formatted for levels which are
+ * not kept, and long arguments are not even boxed. Arguments have to stay unchanged until the
+ * record is written, pass values rather than objects which are reused.
+ *
+ * The writer takes whatever records are in the buffer as one batch and flushes the sink after
+ * it. Errors and warnings, and a buffer filling up, wake it up; other records are written
+ * within IDLE_WAIT. When the buffer is full records are dropped and counted, logging never
+ * blocks a capture thread.
+ */
+public class AsyncLog
+{
+    private static final String TAG = "AsyncLog";
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_ARGUMENTS = 3;
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private final class Record implements LogRecord
+    {
+        // Sequence of the record once it is published, written last
+        volatile long mPublished = -1;
+        long mSequence;
+
+        long mTime;
+        LogLevel mLevel;
+        String mTag;
+        String mTemplate;
+        Throwable mThrown;
+        int mCount;
+        // Bit per argument which is in mLongs rather than mArguments
+        int mLongMask;
+        final Object[] mArguments = new Object[MAX_ARGUMENTS];
+        final long[] mLongs = new long[MAX_ARGUMENTS];
+        Object[] mMore;
+        boolean mFormatted;
+
+        @Override public long getTime() { return mTime; }
+        @Override public LogLevel getLevel() { return mLevel; }
+        @Override public String getTag() { return mTag; }
+        @Override public String getTemplate() { return mTemplate; }
+        @Override public Throwable getThrown() { return mThrown; }
+
+        @Override
+        public int getArgumentCount()
+        {
+            return mMore != null ? mMore.length : mCount;
+        }
+
+        @Override
+        public boolean isLongArgument(int index)
+        {
+            return mMore == null && (mLongMask & (1 << index)) != 0;
+        }
+
+        @Override
+        public long getLongArgument(int index)
+        {
+            return mLongs[index];
+        }
+
+        @Override
+        public Object getArgument(int index)
+        {
+            return mMore != null ? mMore[index] : mArguments[index];
+        }
+
+        /**
+         * Formatted once per record, into the writer thread's builder.
+         */
+        @Override
+        public CharSequence getMessage()
+        {
+            if (!mFormatted)
+            {
+                mMessage.setLength(0);
+                LogFormatter.format(mMessage, this);
+                mFormatted = true;
+            }
+            return mMessage;
+        }
+
+        @Override
+        public String getStackTrace()
+        {
+            return mThrown != null ? LogFormatter.getStackTrace(mThrown) : null;
+        }
+    }
+
+    private final Record[] mRecords;
+    private final Record mDroppedRecord = new Record();
+    private final int mMask;
+    private final LogSink mSink;
+    private volatile LogLevel mLevel;
+
+    private final AtomicLong mClaimed = new AtomicLong();
+    private final AtomicLong mConsumed = new AtomicLong();
+    private volatile long mFlushed;
+
+    private final StringBuilder mMessage = new StringBuilder(256);
+    private volatile Thread mThread;
+    private volatile boolean mRunning;
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private long mWritten;
+    private long mBatches;
+    private long mMaxBatch;
+    private long mErrors;
+
+    /**
+     * @param capacity Records the buffer holds, rounded up to a power of two
+     * @param level    Most detailed level which is kept
+     */
+    public AsyncLog(int capacity, LogLevel level, LogSink sink)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mRecords = new Record[size];
+        for (int i = 0; i < size; i++)
+        {
+            mRecords[i] = new Record();
+        }
+        mMask = size - 1;
+        mLevel = level;
+        mSink = sink;
+    }
+
+    public LogLevel getLevel()
+    {
+        return mLevel;
+    }
+
+    public void setLevel(LogLevel level)
+    {
+        mLevel = level;
+    }
+
+    /**
+     * @return true if records of the level are kept, to skip work done only for logging
+     */
+    public boolean isLoggable(LogLevel level)
+    {
+        return mLevel.includes(level);
+    }
+
+    public synchronized void start()
+    {
+        if (mRunning)
+        {
+            return;
+        }
+
+        mRunning = true;
+        mThread = new Thread(
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    writeRecords();
+                }
+            },
+            "Log Writer Thread");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Writes the records logged so far and stops the writer thread.
+     */
+    public synchronized void stop()
+    {
+        mRunning = false;
+        if (mThread != null)
+        {
+            LockSupport.unpark(mThread);
+            try
+            {
+                mThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /**
+     * Waits until the records logged before the call are written and flushed.
+     *
+     * @return false if that took longer than the timeout or the log is not running
+     */
+    public boolean flush(long timeout)
+    {
+        long target = mClaimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        Thread thread = mThread;
+        while (mFlushed < target)
+        {
+            if (thread == null || !thread.isAlive() || System.nanoTime() > deadline)
+            {
+                return false;
+            }
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        return true;
+    }
+
+    public void log(LogLevel level, String tag, String message)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            publish(record, level, tag, message, null, 0);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String message, Throwable thrown)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            publish(record, level, tag, message, thrown, 0);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String template, Object a0)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mArguments[0] = a0;
+            publish(record, level, tag, template, null, 1);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String template, Object a0, Object a1)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mArguments[0] = a0;
+            record.mArguments[1] = a1;
+            publish(record, level, tag, template, null, 2);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String template, Object a0, Object a1, Object a2)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mArguments[0] = a0;
+            record.mArguments[1] = a1;
+            record.mArguments[2] = a2;
+            publish(record, level, tag, template, null, 3);
+        }
+    }
+
+    /**
+     * For more than three arguments, the array is kept until the record is written.
+     */
+    public void log(LogLevel level, String tag, String template, Object... arguments)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mMore = arguments != null ? arguments : NO_ARGUMENTS;
+            publish(record, level, tag, template, null, 0);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String template, long a0)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mLongs[0] = a0;
+            record.mLongMask = 1;
+            publish(record, level, tag, template, null, 1);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String template, long a0, long a1)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mLongs[0] = a0;
+            record.mLongs[1] = a1;
+            record.mLongMask = 3;
+            publish(record, level, tag, template, null, 2);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String template, Object a0, long a1)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mArguments[0] = a0;
+            record.mLongs[1] = a1;
+            record.mLongMask = 2;
+            publish(record, level, tag, template, null, 2);
+        }
+    }
+
+    public void log(LogLevel level, String tag, String template, long a0, Object a1)
+    {
+        Record record = claim(level);
+        if (record != null)
+        {
+            record.mLongs[0] = a0;
+            record.mArguments[1] = a1;
+            record.mLongMask = 1;
+            publish(record, level, tag, template, null, 2);
+        }
+    }
+
+    /**
+     * @return The record to fill, null if the level is not kept or the buffer is full
+     */
+    private Record claim(LogLevel level)
+    {
+        if (!mLevel.includes(level))
+        {
+            return null;
+        }
+
+        long sequence;
+        long queued;
+        do
+        {
+            sequence = mClaimed.get();
+            queued = sequence - mConsumed.get();
+            if (queued >= mRecords.length)
+            {
+                mDropped.incrementAndGet();
+                return null;
+            }
+        }
+        while (!mClaimed.compareAndSet(sequence, sequence + 1));
+
+        // Wake the writer early when the buffer fills up
+        if (queued == mRecords.length >> 1)
+        {
+            wakeWriter();
+        }
+
+        Record record = mRecords[(int) sequence & mMask];
+        // The slot is ours until it is published
+        record.mSequence = sequence;
+        return record;
+    }
+
+    private void publish(Record record, LogLevel level, String tag, String template, Throwable thrown, int count)
+    {
+        record.mTime = System.currentTimeMillis();
+        record.mLevel = level;
+        record.mTag = tag;
+        record.mTemplate = template;
+        record.mThrown = thrown;
+        record.mCount = count;
+        record.mPublished = record.mSequence;
+
+        if (level.ordinal() <= LogLevel.WARNING.ordinal())
+        {
+            wakeWriter();
+        }
+    }
+
+    private void wakeWriter()
+    {
+        Thread thread = mThread;
+        if (thread != null)
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void writeRecords()
+    {
+        long dropped = 0;
+        while (true)
+        {
+            boolean running = mRunning;
+            int count = writeBatch();
+            long lost = mDropped.get();
+            if (lost > dropped)
+            {
+                writeDropped(lost - dropped);
+                dropped = lost;
+            }
+            if (count > 0)
+            {
+                flushSink();
+            }
+            else if (!running)
+            {
+                break;
+            }
+            else
+            {
+                LockSupport.parkNanos(IDLE_WAIT);
+            }
+        }
+    }
+
+    private int writeBatch()
+    {
+        long next = mConsumed.get();
+        int count = 0;
+        while (count < MAX_BATCH)
+        {
+            Record record = mRecords[(int) next & mMask];
+            if (record.mPublished != next)
+            {
+                // Not logged yet, or claimed but still being filled
+                break;
+            }
+
+            record.mFormatted = false;
+            try
+            {
+                mSink.write(record);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                mErrors++;
+            }
+
+            record.mTag = null;
+            record.mTemplate = null;
+            record.mThrown = null;
+            record.mMore = null;
+            record.mLongMask = 0;
+            for (int i = 0; i < MAX_ARGUMENTS; i++)
+            {
+                record.mArguments[i] = null;
+            }
+            next++;
+            mConsumed.lazySet(next);
+            count++;
+        }
+
+        if (count > 0)
+        {
+            mWritten += count;
+            mBatches++;
+            mMaxBatch = Math.max(mMaxBatch, count);
+        }
+        return count;
+    }
+
+    private void writeDropped(long dropped)
+    {
+        Record record = mDroppedRecord;
+        record.mTime = System.currentTimeMillis();
+        record.mLevel = LogLevel.WARNING;
+        record.mTag = TAG;
+        record.mTemplate = "{} log records dropped, the log writer fell behind";
+        record.mCount = 1;
+        record.mLongs[0] = dropped;
+        record.mLongMask = 1;
+        record.mFormatted = false;
+        try
+        {
+            mSink.write(record);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            mErrors++;
+        }
+    }
+
+    private void flushSink()
+    {
+        // Everything consumed so far was written by this thread
+        long consumed = mConsumed.get();
+        try
+        {
+            mSink.flush();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            mErrors++;
+        }
+        mFlushed = consumed;
+    }
+
+    public String report()
+    {
+        long batches = mBatches;
+        return String.format(Locale.US, "Log: %d records in %d batches (avg %.1f, max %d), %d dropped, %d errors",
+                mWritten, batches, batches > 0 ? (double) mWritten / batches : 0, mMaxBatch, mDropped.get(), mErrors);
+    }
+}
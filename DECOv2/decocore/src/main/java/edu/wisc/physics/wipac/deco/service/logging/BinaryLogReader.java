@@ -0,0 +1,296 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the records of a log written by a {@link BinaryLogSink}, e.g. to expand it into text
+ * with a {@link TextLogSink}:
+ * <pre>
+ *   LogRecord record;
+ *   while ((record = reader.read()) != null)
+ *   {
+ *       sink.write(record);
+ *   }
+ * </pre>
+ */
+public class BinaryLogReader implements Closeable
+{
+    private static final int MAX_STRING = 1 << 24;
+
+    private final InputStream mInput;
+    private final List<String> mTags = new ArrayList<>();
+    private final List<String> mTemplates = new ArrayList<>();
+    private final Record mRecord = new Record();
+    private long mTime;
+    private boolean mStarted;
+    private byte[] mBytes = new byte[256];
+
+    private static final class Record implements LogRecord
+    {
+        long mTime;
+        LogLevel mLevel;
+        String mTag;
+        String mTemplate;
+        int mCount;
+        boolean[] mIsLong = new boolean[4];
+        long[] mLongs = new long[4];
+        Object[] mArguments = new Object[4];
+        String mStackTrace;
+        final StringBuilder mMessage = new StringBuilder(256);
+        boolean mFormatted;
+
+        @Override public long getTime() { return mTime; }
+        @Override public LogLevel getLevel() { return mLevel; }
+        @Override public String getTag() { return mTag; }
+        @Override public String getTemplate() { return mTemplate; }
+        @Override public int getArgumentCount() { return mCount; }
+        @Override public boolean isLongArgument(int index) { return mIsLong[index]; }
+        @Override public long getLongArgument(int index) { return mLongs[index]; }
+        @Override public Object getArgument(int index) { return mArguments[index]; }
+        @Override public Throwable getThrown() { return null; }
+        @Override public String getStackTrace() { return mStackTrace; }
+
+        @Override
+        public CharSequence getMessage()
+        {
+            if (!mFormatted)
+            {
+                mMessage.setLength(0);
+                LogFormatter.format(mMessage, this);
+                mFormatted = true;
+            }
+            return mMessage;
+        }
+
+        void setCount(int count)
+        {
+            if (count > mLongs.length)
+            {
+                int length = Math.max(count, mLongs.length * 2);
+                mIsLong = Arrays.copyOf(mIsLong, length);
+                mLongs = Arrays.copyOf(mLongs, length);
+                mArguments = Arrays.copyOf(mArguments, length);
+            }
+            mCount = count;
+        }
+    }
+
+    public BinaryLogReader(InputStream input)
+    {
+        mInput = new BufferedInputStream(input, 65536);
+    }
+
+    /**
+     * @return The next record, only valid until the next call, null at the end of the log
+     * @throws IOException If the log is not a binary log or is corrupt. A record cut short at
+     *                     the end, by a crash while it was written, is taken as the end.
+     */
+    public LogRecord read() throws IOException
+    {
+        while (true)
+        {
+            int type = mInput.read();
+            if (type < 0)
+            {
+                return null;
+            }
+            try
+            {
+                if (type == BinaryLogSink.SESSION)
+                {
+                    readSession();
+                    continue;
+                }
+                if (!mStarted)
+                {
+                    throw new IOException("Not a binary log");
+                }
+
+                switch (type)
+                {
+                    case    BinaryLogSink.TAG:
+                        define(mTags);
+                        break;
+
+                    case    BinaryLogSink.TEMPLATE:
+                        define(mTemplates);
+                        break;
+
+                    case    BinaryLogSink.RECORD:
+                        readRecord();
+                        return mRecord;
+
+                    default:
+                        throw new IOException("Unknown entry type " + type);
+                }
+            }
+            catch (EOFException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    private void readSession() throws IOException
+    {
+        for (byte b : BinaryLogSink.MAGIC)
+        {
+            if (readByte() != b)
+            {
+                throw new IOException("Not a binary log");
+            }
+        }
+        int version = (int) readVarint();
+        if (version != BinaryLogSink.VERSION)
+        {
+            throw new IOException("Unsupported binary log version " + version);
+        }
+        mTime = readVarint();
+        mTags.clear();
+        mTemplates.clear();
+        mStarted = true;
+    }
+
+    private void define(List<String> values) throws IOException
+    {
+        int id = (int) readVarint();
+        String value = readString();
+        if (id != values.size() + 1)
+        {
+            throw new IOException("Unexpected id " + id);
+        }
+        values.add(value);
+    }
+
+    private void readRecord() throws IOException
+    {
+        Record record = mRecord;
+        mTime += readSigned();
+        record.mTime = mTime;
+
+        int flags = readByte();
+        int level = flags & ~BinaryLogSink.STACK_TRACE;
+        if (level >= LogLevel.values().length)
+        {
+            throw new IOException("Unknown level " + level);
+        }
+        record.mLevel = LogLevel.values()[level];
+        record.mTag = lookup(mTags, (int) readVarint());
+        int template = (int) readVarint();
+        record.mTemplate = template == 0 ? readString() : lookup(mTemplates, template);
+
+        record.setCount((int) readVarint());
+        for (int i = 0; i < record.mCount; i++)
+        {
+            int type = readByte();
+            record.mIsLong[i] = false;
+            record.mArguments[i] = null;
+            switch (type)
+            {
+                case    BinaryLogSink.NULL:
+                    break;
+
+                case    BinaryLogSink.LONG:
+                    record.mIsLong[i] = true;
+                    record.mLongs[i] = readSigned();
+                    break;
+
+                case    BinaryLogSink.DOUBLE:
+                    long bits = 0;
+                    for (int b = 0; b < 8; b++)
+                    {
+                        bits = (bits << 8) | readByte();
+                    }
+                    record.mArguments[i] = Double.longBitsToDouble(bits);
+                    break;
+
+                case    BinaryLogSink.STRING:
+                    record.mArguments[i] = readString();
+                    break;
+
+                default:
+                    throw new IOException("Unknown argument type " + type);
+            }
+        }
+
+        record.mStackTrace = (flags & BinaryLogSink.STACK_TRACE) != 0 ? readString() : null;
+        record.mFormatted = false;
+    }
+
+    private static String lookup(List<String> values, int id) throws IOException
+    {
+        if (id < 1 || id > values.size())
+        {
+            throw new IOException("Undefined id " + id);
+        }
+        return values.get(id - 1);
+    }
+
+    private int readByte() throws IOException
+    {
+        int b = mInput.read();
+        if (b < 0)
+        {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private long readVarint() throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private long readSigned() throws IOException
+    {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private String readString() throws IOException
+    {
+        long length = readVarint();
+        if (length > MAX_STRING)
+        {
+            throw new IOException("Malformed string length " + length);
+        }
+        if (length > mBytes.length)
+        {
+            mBytes = new byte[(int) length];
+        }
+        int read = 0;
+        while (read < length)
+        {
+            int count = mInput.read(mBytes, read, (int) length - read);
+            if (count < 0)
+            {
+                throw new EOFException();
+            }
+            read += count;
+        }
+        return new String(mBytes, 0, (int) length, BinaryLogSink.UTF8);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mInput.close();
+    }
+}
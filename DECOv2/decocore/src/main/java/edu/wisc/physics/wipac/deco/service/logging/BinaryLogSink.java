@@ -0,0 +1,259 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes records in a compact binary form instead of formatting them: tags and templates are
+ * written once and then referred to by id, the time as the difference to the previous record,
+ * and long arguments as their value. A record logged with a template and a few numbers takes
+ * around a dozen bytes rather than the hundred of its line of text. {@link BinaryLogReader}
+ * reads the records back.
+ *
+ * Every sink starts a session, so a file may be appended to by several sinks in turn:
+ * <pre>
+ *   session  0 "DBLG" version time
+ *   tag      1 id string
+ *   template 2 id string
+ *   record   3 (time - previous time) (level | stack trace flag) tag id template id
+ *              [template] argument count (type value)... [stack trace]
+ * </pre>
+ * Numbers are unsigned varints, signed ones zigzag encoded, and strings a varint length and
+ * UTF-8. Argument types are NULL, LONG, DOUBLE (8 bytes) and STRING, anything but a number is
+ * written as its toString(). Ids start at 1; a template id of 0 means the template follows
+ * inline, which is how templates beyond MAX_TEMPLATES are written, e.g. messages which were
+ * concatenated rather than templated.
+ *
+ * Records are buffered whole and only written out between records, so a crash can only cut
+ * short the records of the last write. A file ending in a partial record cannot be appended
+ * to, the reader would take the next session for its rest; see {@link LogFormat#isAppendable()}.
+ */
+public class BinaryLogSink implements LogSink
+{
+    static final byte[] MAGIC = {'D', 'B', 'L', 'G'};
+    static final int VERSION = 1;
+
+    static final int SESSION = 0;
+    static final int TAG = 1;
+    static final int TEMPLATE = 2;
+    static final int RECORD = 3;
+
+    static final int NULL = 0;
+    static final int LONG = 1;
+    static final int DOUBLE = 2;
+    static final int STRING = 3;
+
+    static final int STACK_TRACE = 0x80;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_TAGS = 1024;
+    private static final int MAX_TEMPLATES = 4096;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream mOutput;
+    // Grows to hold a record larger than BUFFER_SIZE
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition;
+
+    private final Map<String, Integer> mTags = new HashMap<>();
+    private final Map<String, Integer> mTemplates = new HashMap<>();
+    private long mTime;
+    private boolean mStarted;
+
+    public BinaryLogSink(OutputStream output)
+    {
+        mOutput = output;
+    }
+
+    /**
+     * Appends to the file, which must not end in a partial record.
+     */
+    public BinaryLogSink(File file) throws IOException
+    {
+        this(new FileOutputStream(file, true));
+    }
+
+    @Override
+    public void write(LogRecord record) throws IOException
+    {
+        long time = record.getTime();
+        if (!mStarted)
+        {
+            mStarted = true;
+            writeByte(SESSION);
+            for (byte b : MAGIC)
+            {
+                writeByte(b);
+            }
+            writeVarint(VERSION);
+            writeVarint(time);
+            mTime = time;
+        }
+
+        int tag = define(TAG, mTags, MAX_TAGS, record.getTag());
+        String template = record.getTemplate();
+        int templateId = define(TEMPLATE, mTemplates, MAX_TEMPLATES, template);
+        String stackTrace = record.getStackTrace();
+
+        writeByte(RECORD);
+        writeSigned(time - mTime);
+        mTime = time;
+        writeByte(record.getLevel().ordinal() | (stackTrace != null ? STACK_TRACE : 0));
+        writeVarint(tag);
+        writeVarint(templateId);
+        if (templateId == 0)
+        {
+            writeString(template);
+        }
+
+        int count = record.getArgumentCount();
+        writeVarint(count);
+        for (int i = 0; i < count; i++)
+        {
+            if (record.isLongArgument(i))
+            {
+                writeByte(LONG);
+                writeSigned(record.getLongArgument(i));
+                continue;
+            }
+
+            Object argument = record.getArgument(i);
+            if (argument == null)
+            {
+                writeByte(NULL);
+            }
+            else if (argument instanceof Long || argument instanceof Integer
+                    || argument instanceof Short || argument instanceof Byte)
+            {
+                writeByte(LONG);
+                writeSigned(((Number) argument).longValue());
+            }
+            else if (argument instanceof Double)
+            {
+                writeByte(DOUBLE);
+                long bits = Double.doubleToRawLongBits((Double) argument);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                {
+                    writeByte((int) (bits >>> shift));
+                }
+            }
+            else
+            {
+                writeByte(STRING);
+                writeString(argument.toString());
+            }
+        }
+
+        if (stackTrace != null)
+        {
+            writeString(stackTrace);
+        }
+
+        if (mPosition >= BUFFER_SIZE)
+        {
+            drain();
+        }
+    }
+
+    /**
+     * @return Id of the string, written as a definition the first time, 0 once the table is full
+     */
+    private int define(int type, Map<String, Integer> ids, int max, String value) throws IOException
+    {
+        if (value == null)
+        {
+            value = "null";
+        }
+        Integer id = ids.get(value);
+        if (id != null)
+        {
+            return id;
+        }
+        if (ids.size() >= max)
+        {
+            return 0;
+        }
+
+        id = ids.size() + 1;
+        ids.put(value, id);
+        writeByte(type);
+        writeVarint(id);
+        writeString(value);
+        return id;
+    }
+
+    private void ensureCapacity(int length)
+    {
+        if (mPosition + length > mBuffer.length)
+        {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mPosition + length));
+        }
+    }
+
+    private void writeByte(int b)
+    {
+        ensureCapacity(1);
+        mBuffer[mPosition++] = (byte) b;
+    }
+
+    private void writeVarint(long value)
+    {
+        while ((value & ~0x7fL) != 0)
+        {
+            writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private void writeSigned(long value)
+    {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeString(String value)
+    {
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mPosition, bytes.length);
+        mPosition += bytes.length;
+    }
+
+    private void drain() throws IOException
+    {
+        mOutput.write(mBuffer, 0, mPosition);
+        mPosition = 0;
+        if (mBuffer.length > BUFFER_SIZE)
+        {
+            mBuffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        drain();
+        mOutput.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            drain();
+        }
+        finally
+        {
+            mOutput.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.OutputStream;
+
+/**
+ * How log files are encoded, the deco.logging.format setting.
+ */
+public enum LogFormat
+{
+    /**
+     * Lines of text, see {@link TextLogSink}.
+     */
+    TEXT(".txt", true),
+
+    /**
+     * Compact binary records, see {@link BinaryLogSink}. Expanded to text by DecodeLog.
+     */
+    BINARY(".dlog", false);
+
+    private final String mExtension;
+    private final boolean mAppendable;
+
+    LogFormat(String extension, boolean appendable)
+    {
+        mExtension = extension;
+        mAppendable = appendable;
+    }
+
+    /**
+     * @return Extension of files in the format, including the dot
+     */
+    public String getExtension()
+    {
+        return mExtension;
+    }
+
+    /**
+     * @return false if a file which a crash left ending in a partial record cannot be appended
+     *         to: a binary reader would take the next session for the rest of that record
+     */
+    public boolean isAppendable()
+    {
+        return mAppendable;
+    }
+
+    public LogSink createSink(OutputStream output)
+    {
+        switch (this)
+        {
+            case    BINARY:
+                return new BinaryLogSink(output);
+
+            default:
+                return new TextLogSink(output);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Formats the messages of {@link LogRecord}s, the same way whether they were just logged or
+ * decoded from a binary log.
+ */
+public class LogFormatter
+{
+    private LogFormatter()
+    {
+    }
+
+    /**
+     * Appends the template with its "{}" replaced by the arguments in order. Arguments without
+     * a "{}" are appended, a template without arguments is taken as it is.
+     */
+    public static void format(StringBuilder sb, LogRecord record)
+    {
+        String template = record.getTemplate();
+        if (template == null)
+        {
+            template = "null";
+        }
+        int count = record.getArgumentCount();
+        if (count == 0)
+        {
+            sb.append(template);
+            return;
+        }
+
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while (argument < count && (placeholder = template.indexOf("{}", start)) >= 0)
+        {
+            sb.append(template, start, placeholder);
+            appendArgument(sb, record, argument++);
+            start = placeholder + 2;
+        }
+        sb.append(template, start, template.length());
+        while (argument < count)
+        {
+            sb.append(' ');
+            appendArgument(sb, record, argument++);
+        }
+    }
+
+    private static void appendArgument(StringBuilder sb, LogRecord record, int argument)
+    {
+        if (record.isLongArgument(argument))
+        {
+            sb.append(record.getLongArgument(argument));
+        }
+        else
+        {
+            sb.append(record.getArgument(argument));
+        }
+    }
+
+    /**
+     * @return The stack trace as printed by {@link Throwable#printStackTrace()}
+     */
+    public static String getStackTrace(Throwable thrown)
+    {
+        StringWriter writer = new StringWriter();
+        PrintWriter printer = new PrintWriter(writer);
+        thrown.printStackTrace(printer);
+        printer.flush();
+        return writer.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+/**
+ * Levels in order of importance, a log keeps the levels up to its maximum.
+ */
+public enum LogLevel
+{
+    ERROR("E"), WARNING("W"), INFO("I"), DEBUG("D");
+
+    private final String mLetter;
+
+    LogLevel(String letter)
+    {
+        mLetter = letter;
+    }
+
+    /**
+     * @return true if a log with this maximum level keeps the level
+     */
+    public boolean includes(LogLevel level)
+    {
+        return level.ordinal() <= ordinal();
+    }
+
+    @Override
+    public String toString()
+    {
+        return mLetter;
+    }
+}
@@ -0,0 +1,48 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+/**
+ * A logged record as the sinks see it: the template and its arguments as they were logged,
+ * formatted only when a sink asks for the message. Only valid during {@link LogSink#write}.
+ */
+public interface LogRecord
+{
+    /**
+     * @return Milliseconds since the epoch the record was logged at
+     */
+    long getTime();
+
+    LogLevel getLevel();
+
+    String getTag();
+
+    /**
+     * @return The message, with a "{}" per argument if there are arguments
+     */
+    String getTemplate();
+
+    int getArgumentCount();
+
+    /**
+     * @return true if the argument is a long, see {@link #getLongArgument(int)}
+     */
+    boolean isLongArgument(int index);
+
+    long getLongArgument(int index);
+
+    Object getArgument(int index);
+
+    /**
+     * @return The template with the arguments filled in, see {@link LogFormatter#format}
+     */
+    CharSequence getMessage();
+
+    /**
+     * @return Throwable logged with the record, null if there is none or it was decoded
+     */
+    Throwable getThrown();
+
+    /**
+     * @return Stack trace of the throwable logged with the record, null if there is none
+     */
+    String getStackTrace();
+}
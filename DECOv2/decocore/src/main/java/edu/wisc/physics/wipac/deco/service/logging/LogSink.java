@@ -0,0 +1,20 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where an {@link AsyncLog} writes its records, called on the log's writer thread only.
+ */
+public interface LogSink extends Closeable
+{
+    /**
+     * @param record Only valid during the call
+     */
+    void write(LogRecord record) throws IOException;
+
+    /**
+     * Called after every batch of records.
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,143 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes to a file of at most about maxSize bytes, keeping maxFiles - 1 older ones: once the
+ * file reached the size it is renamed to name.1, name.1 to name.2 and so on, the oldest is
+ * deleted and a new file started. The size is checked after every batch, so a file exceeds
+ * it by at most a batch of records.
+ *
+ * Text files are appended to when the sink is created. A file in a format which is not
+ * {@link LogFormat#isAppendable() appendable} is rotated instead, so a record a crash cut
+ * short stays at the end of its file.
+ */
+public class RollingLogSink implements LogSink
+{
+    private final File mFile;
+    private final long mMaxSize;
+    private final int mMaxFiles;
+    private final LogFormat mFormat;
+
+    private CountingOutputStream mOutput;
+    private LogSink mSink;
+    private int mRotations;
+
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        long mCount;
+
+        CountingOutputStream(OutputStream output, long count)
+        {
+            super(output);
+            mCount = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException
+        {
+            out.write(b, offset, length);
+            mCount += length;
+        }
+    }
+
+    /**
+     * Appends to the file if it exists and the format allows it, rotates it otherwise.
+     *
+     * @param maxSize  Bytes after which the file is rotated
+     * @param maxFiles Files kept, including the one written to
+     */
+    public RollingLogSink(File file, long maxSize, int maxFiles, LogFormat format) throws IOException
+    {
+        mFile = file;
+        mMaxSize = Math.max(1, maxSize);
+        mMaxFiles = Math.max(1, maxFiles);
+        mFormat = format;
+        if (!format.isAppendable() && file.length() > 0)
+        {
+            shift();
+        }
+        open();
+    }
+
+    public File getFile()
+    {
+        return mFile;
+    }
+
+    /**
+     * @return How many times the file was rotated
+     */
+    public int getRotations()
+    {
+        return mRotations;
+    }
+
+    private void open() throws IOException
+    {
+        mOutput = new CountingOutputStream(new FileOutputStream(mFile, true), mFile.length());
+        mSink = mFormat.createSink(mOutput);
+    }
+
+    @Override
+    public void write(LogRecord record) throws IOException
+    {
+        mSink.write(record);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        mSink.flush();
+        if (mOutput.mCount >= mMaxSize)
+        {
+            rotate();
+        }
+    }
+
+    private void rotate() throws IOException
+    {
+        mSink.close();
+        shift();
+        mRotations++;
+        open();
+    }
+
+    /**
+     * Renames the file to name.1 and the older ones up, deleting the oldest.
+     */
+    private void shift()
+    {
+        String path = mFile.getPath();
+        if (mMaxFiles > 1)
+        {
+            new File(path + "." + (mMaxFiles - 1)).delete();
+            for (int i = mMaxFiles - 2; i >= 1; i--)
+            {
+                new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+            }
+            mFile.renameTo(new File(path + ".1"));
+        }
+        else
+        {
+            mFile.delete();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mSink.close();
+    }
+}
@@ -0,0 +1,104 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+
+/**
+ * Writes records as lines of text, "yyyy-MM-dd HH:mm:ss.SSS L/tag: message", followed by the
+ * stack trace of a logged throwable. Lines are buffered until the log flushes after a batch.
+ *
+ * The date and time are formatted by hand once per second, only the milliseconds per line.
+ */
+public class TextLogSink implements LogSink
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Writer mWriter;
+    private final Calendar mCalendar = Calendar.getInstance();
+    private final char[] mTimestamp = "yyyy-MM-dd HH:mm:ss.SSS ".toCharArray();
+    private long mSecond = Long.MIN_VALUE;
+
+    public TextLogSink(Writer writer)
+    {
+        mWriter = writer;
+    }
+
+    /**
+     * Writes UTF-8 to the stream.
+     */
+    public TextLogSink(OutputStream output)
+    {
+        this(new BufferedWriter(new OutputStreamWriter(output, UTF8), 8192));
+    }
+
+    /**
+     * Appends to the file.
+     */
+    public TextLogSink(File file) throws IOException
+    {
+        this(new FileOutputStream(file, true));
+    }
+
+    @Override
+    public void write(LogRecord record) throws IOException
+    {
+        formatTimestamp(record.getTime());
+        mWriter.write(mTimestamp);
+        mWriter.write(record.getLevel().toString());
+        mWriter.write('/');
+        mWriter.write(String.valueOf(record.getTag()));
+        mWriter.write(": ");
+        mWriter.append(record.getMessage());
+        mWriter.write('\n');
+        String stackTrace = record.getStackTrace();
+        if (stackTrace != null)
+        {
+            mWriter.write(stackTrace);
+        }
+    }
+
+    private void formatTimestamp(long time)
+    {
+        long second = time / 1000;
+        if (second != mSecond)
+        {
+            mSecond = second;
+            mCalendar.setTimeInMillis(second * 1000);
+            put(0, 4, mCalendar.get(Calendar.YEAR));
+            put(5, 2, mCalendar.get(Calendar.MONTH) + 1);
+            put(8, 2, mCalendar.get(Calendar.DAY_OF_MONTH));
+            put(11, 2, mCalendar.get(Calendar.HOUR_OF_DAY));
+            put(14, 2, mCalendar.get(Calendar.MINUTE));
+            put(17, 2, mCalendar.get(Calendar.SECOND));
+        }
+        put(20, 3, (int) (time - second * 1000));
+    }
+
+    private void put(int position, int digits, int value)
+    {
+        for (int i = position + digits - 1; i >= position; i--)
+        {
+            mTimestamp[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        mWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mWriter.close();
+    }
+}
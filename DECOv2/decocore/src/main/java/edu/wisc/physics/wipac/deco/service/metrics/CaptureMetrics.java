@@ -0,0 +1,159 @@
+package edu.wisc.physics.wipac.deco.service.metrics;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.LatencyHistogram;
+
+/**
+ * The metrics of the capture path, from the request to the camera to the frame being stored:
+ * <pre>
+ *   capture.request    request, or capture start for repeating requests, to capture completed
+ *   capture.delivery   capture completed to the image being available to the reader
+ *   persist            frame acquired from the image to persisted
+ *   end_to_end         request to persisted
+ * </pre>
+ * and counters of the frames completed, acquired, persisted and dropped, the bytes persisted
+ * and the errors anywhere on the way.
+ *
+ * Captures are matched to their images by sensor timestamp in a ring of the last SLOTS
+ * captures; images which arrive before their capture result, or long after, only count
+ * towards the latencies which do not need the match.
+ */
+public class CaptureMetrics
+{
+    public static final String CAPTURE_REQUEST = "capture.request";
+    public static final String CAPTURE_DELIVERY = "capture.delivery";
+    public static final String PERSIST = "persist";
+    public static final String END_TO_END = "end_to_end";
+
+    public static final String FRAMES_COMPLETED = "frames.completed";
+    public static final String FRAMES_ACQUIRED = "frames.acquired";
+    public static final String FRAMES_PERSISTED = "frames.persisted";
+    public static final String FRAMES_DROPPED = "frames.dropped";
+    public static final String BYTES_PERSISTED = "bytes.persisted";
+    public static final String ERRORS = "errors";
+
+    private static final int SLOTS = 64;
+
+    private final LatencyHistogram mCaptureRequest;
+    private final LatencyHistogram mCaptureDelivery;
+    private final LatencyHistogram mPersist;
+    private final LatencyHistogram mEndToEnd;
+
+    private final Counter mCompleted;
+    private final Counter mAcquired;
+    private final Counter mPersisted;
+    private final Counter mDropped;
+    private final Counter mBytes;
+    private final Counter mErrors;
+
+    // Last captures by frame number, written on the capture thread and read on the reader's
+    private final long[] mFrameNumbers = new long[SLOTS];
+    private final long[] mSensorTimestamps = new long[SLOTS];
+    private final long[] mRequestTimes = new long[SLOTS];
+    private final long[] mCompletedTimes = new long[SLOTS];
+    private int mLastSlot;
+
+    public CaptureMetrics(MetricsRegistry registry)
+    {
+        mCaptureRequest = registry.histogram(CAPTURE_REQUEST);
+        mCaptureDelivery = registry.histogram(CAPTURE_DELIVERY);
+        mPersist = registry.histogram(PERSIST);
+        mEndToEnd = registry.histogram(END_TO_END);
+        mCompleted = registry.counter(FRAMES_COMPLETED);
+        mAcquired = registry.counter(FRAMES_ACQUIRED);
+        mPersisted = registry.counter(FRAMES_PERSISTED);
+        mDropped = registry.counter(FRAMES_DROPPED);
+        mBytes = registry.counter(BYTES_PERSISTED);
+        mErrors = registry.counter(ERRORS);
+    }
+
+    /**
+     * @param frameNumber     Camera frame number of the capture
+     * @param sensorTimestamp Timestamp the image of the capture will have
+     * @param requestTime     System.nanoTime() the capture was requested
+     */
+    public synchronized void onCaptureStarted(long frameNumber, long sensorTimestamp, long requestTime)
+    {
+        int slot = (int) (frameNumber & (SLOTS - 1));
+        mFrameNumbers[slot] = frameNumber;
+        mSensorTimestamps[slot] = sensorTimestamp;
+        mRequestTimes[slot] = requestTime;
+        mCompletedTimes[slot] = 0;
+        mLastSlot = slot;
+    }
+
+    public void onCaptureCompleted(long frameNumber, long now)
+    {
+        mCompleted.increment();
+        long requestTime;
+        synchronized (this)
+        {
+            int slot = (int) (frameNumber & (SLOTS - 1));
+            if (mFrameNumbers[slot] != frameNumber || mRequestTimes[slot] == 0)
+            {
+                return;
+            }
+            mCompletedTimes[slot] = now;
+            requestTime = mRequestTimes[slot];
+        }
+        mCaptureRequest.record(now - requestTime);
+    }
+
+    /**
+     * Sets the frame's capture, if it is one of the last captures, from its sensor timestamp.
+     *
+     * @param now System.nanoTime() the image became available
+     */
+    public void onImageAvailable(Frame frame, long now)
+    {
+        mAcquired.increment();
+        long sensorTimestamp = frame.getTimestamp();
+        long frameNumber = -1;
+        long requestTime = 0;
+        long completedTime = 0;
+        synchronized (this)
+        {
+            // Images arrive in capture order, so usually within a few of the latest capture
+            for (int i = 0; i < SLOTS; i++)
+            {
+                int slot = (mLastSlot - i) & (SLOTS - 1);
+                if (mSensorTimestamps[slot] == sensorTimestamp && mRequestTimes[slot] != 0)
+                {
+                    frameNumber = mFrameNumbers[slot];
+                    requestTime = mRequestTimes[slot];
+                    completedTime = mCompletedTimes[slot];
+                    break;
+                }
+            }
+        }
+        if (completedTime != 0)
+        {
+            mCaptureDelivery.record(now - completedTime);
+        }
+        frame.setCapture(frameNumber, requestTime);
+    }
+
+    /**
+     * @param bytes Bytes the frame took in storage
+     */
+    public void onPersisted(Frame frame, long bytes, long now)
+    {
+        mPersisted.increment();
+        mBytes.add(bytes);
+        mPersist.record(now - frame.getAcquireTime());
+        if (frame.getRequestTime() != 0)
+        {
+            mEndToEnd.record(now - frame.getRequestTime());
+        }
+    }
+
+    public void onDropped()
+    {
+        mDropped.increment();
+    }
+
+    public void onError()
+    {
+        mErrors.increment();
+    }
+}
@@ -0,0 +1,26 @@
+package edu.wisc.physics.wipac.deco.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count which only grows, e.g. frames or bytes, incremented without locking.
+ */
+public class Counter
+{
+    private final AtomicLong mValue = new AtomicLong();
+
+    public void increment()
+    {
+        mValue.incrementAndGet();
+    }
+
+    public void add(long delta)
+    {
+        mValue.addAndGet(delta);
+    }
+
+    public long get()
+    {
+        return mValue.get();
+    }
+}
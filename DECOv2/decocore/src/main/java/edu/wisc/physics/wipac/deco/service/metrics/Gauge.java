@@ -0,0 +1,10 @@
+package edu.wisc.physics.wipac.deco.service.metrics;
+
+/**
+ * Value read when a snapshot is taken, e.g. a queue depth. Called on the thread taking the
+ * snapshot, so it has to be safe to call from any thread.
+ */
+public interface Gauge
+{
+    long getValue();
+}
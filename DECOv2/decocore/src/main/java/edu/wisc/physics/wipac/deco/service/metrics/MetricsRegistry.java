@@ -0,0 +1,88 @@
+package edu.wisc.physics.wipac.deco.service.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.LatencyHistogram;
+
+/**
+ * Named counters, gauges and latency histograms. Metrics are looked up once, when a component
+ * is set up, and recorded to directly from then on, so recording costs what the metric costs:
+ * an atomic increment for a {@link Counter}, a few for a {@link LatencyHistogram}.
+ *
+ * {@link #snapshot()} reads every metric while they are being recorded to, from any thread.
+ * Looking up a name again returns the same metric, so totals carry on when a component is
+ * recreated, e.g. the camera after it was closed; a gauge registered again replaces the old one.
+ */
+public class MetricsRegistry
+{
+    private final Map<String, Counter> mCounters = new LinkedHashMap<>();
+    private final Map<String, Gauge> mGauges = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> mHistograms = new LinkedHashMap<>();
+
+    public synchronized Counter counter(String name)
+    {
+        Counter counter = mCounters.get(name);
+        if (counter == null)
+        {
+            counter = new Counter();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * @return Histogram of nanoseconds
+     */
+    public synchronized LatencyHistogram histogram(String name)
+    {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null)
+        {
+            histogram = new LatencyHistogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized void gauge(String name, Gauge gauge)
+    {
+        mGauges.put(name, gauge);
+    }
+
+    public synchronized void removeGauge(String name)
+    {
+        mGauges.remove(name);
+    }
+
+    /**
+     * @return The current value of every metric, taken without stopping recording
+     */
+    public synchronized MetricsSnapshot snapshot()
+    {
+        MetricsSnapshot snapshot = new MetricsSnapshot(System.nanoTime());
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet())
+        {
+            snapshot.putCounter(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet())
+        {
+            long value;
+            try
+            {
+                value = entry.getValue().getValue();
+            }
+            catch (RuntimeException e)
+            {
+                // The component behind the gauge is going away
+                continue;
+            }
+            snapshot.putGauge(entry.getKey(), value);
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet())
+        {
+            snapshot.putHistogram(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshot;
+    }
+}
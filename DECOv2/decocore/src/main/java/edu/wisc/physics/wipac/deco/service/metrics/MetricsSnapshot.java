@@ -0,0 +1,182 @@
+package edu.wisc.physics.wipac.deco.service.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.LatencyHistogram;
+
+/**
+ * Values of the metrics of a {@link MetricsRegistry} at one point in time, or over the interval
+ * between two snapshots, see {@link #diff}. For periodic reporting keep the previous snapshot:
+ * <pre>
+ *   MetricsSnapshot snapshot = registry.snapshot();
+ *   Logger.i(TAG, snapshot.diff(mPrevious).report());
+ *   mPrevious = snapshot;
+ * </pre>
+ */
+public class MetricsSnapshot
+{
+    private final long mTime;
+    private final long mInterval;
+    private final Map<String, Long> mCounters = new LinkedHashMap<>();
+    private final Map<String, Long> mGauges = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram.Snapshot> mHistograms = new LinkedHashMap<>();
+
+    MetricsSnapshot(long time)
+    {
+        this(time, 0);
+    }
+
+    private MetricsSnapshot(long time, long interval)
+    {
+        mTime = time;
+        mInterval = interval;
+    }
+
+    void putCounter(String name, long value)
+    {
+        mCounters.put(name, value);
+    }
+
+    void putGauge(String name, long value)
+    {
+        mGauges.put(name, value);
+    }
+
+    void putHistogram(String name, LatencyHistogram.Snapshot histogram)
+    {
+        mHistograms.put(name, histogram);
+    }
+
+    /**
+     * @return System.nanoTime() the snapshot was taken at
+     */
+    public long getTime()
+    {
+        return mTime;
+    }
+
+    /**
+     * @return Nanoseconds the snapshot covers if it is a difference, 0 otherwise
+     */
+    public long getInterval()
+    {
+        return mInterval;
+    }
+
+    /**
+     * @return What was recorded since the earlier snapshot: counters and histograms are the
+     *         differences, gauges the current values. Metrics the earlier one lacks count from 0.
+     *         A null earlier snapshot returns this one.
+     */
+    public MetricsSnapshot diff(MetricsSnapshot earlier)
+    {
+        if (earlier == null)
+        {
+            return this;
+        }
+
+        MetricsSnapshot diff = new MetricsSnapshot(mTime, mTime - earlier.mTime);
+        for (Map.Entry<String, Long> entry : mCounters.entrySet())
+        {
+            Long previous = earlier.mCounters.get(entry.getKey());
+            diff.mCounters.put(entry.getKey(), entry.getValue() - (previous != null ? previous : 0));
+        }
+        diff.mGauges.putAll(mGauges);
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : mHistograms.entrySet())
+        {
+            LatencyHistogram.Snapshot previous = earlier.mHistograms.get(entry.getKey());
+            diff.mHistograms.put(entry.getKey(), previous != null ? entry.getValue().minus(previous) : entry.getValue());
+        }
+        return diff;
+    }
+
+    /**
+     * @return The counter's value, 0 if there is no such counter
+     */
+    public long getCounter(String name)
+    {
+        Long value = mCounters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * @return The counter's increase per second over the interval, 0 if this is no difference
+     */
+    public double getRate(String name)
+    {
+        return mInterval > 0 ? getCounter(name) * 1e9 / mInterval : 0;
+    }
+
+    /**
+     * @return The gauge's value, 0 if there is no such gauge
+     */
+    public long getGauge(String name)
+    {
+        Long value = mGauges.get(name);
+        return value != null ? value : 0;
+    }
+
+    /**
+     * @return The histogram, null if there is no such histogram
+     */
+    public LatencyHistogram.Snapshot getHistogram(String name)
+    {
+        return mHistograms.get(name);
+    }
+
+    public Map<String, Long> getCounters()
+    {
+        return Collections.unmodifiableMap(mCounters);
+    }
+
+    public Map<String, Long> getGauges()
+    {
+        return Collections.unmodifiableMap(mGauges);
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getHistograms()
+    {
+        return Collections.unmodifiableMap(mHistograms);
+    }
+
+    /**
+     * @return Every metric on one line, counters with their rate if this is a difference
+     */
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder("Metrics");
+        if (mInterval > 0)
+        {
+            sb.append(String.format(Locale.US, " over %.1fs", mInterval / 1e9));
+        }
+        String separator = ": ";
+        for (Map.Entry<String, Long> entry : mCounters.entrySet())
+        {
+            sb.append(separator).append(entry.getKey()).append(' ').append(entry.getValue());
+            if (mInterval > 0)
+            {
+                sb.append(String.format(Locale.US, " (%.1f/s)", getRate(entry.getKey())));
+            }
+            separator = ", ";
+        }
+        for (Map.Entry<String, Long> entry : mGauges.entrySet())
+        {
+            sb.append(separator).append(entry.getKey()).append(' ').append(entry.getValue());
+            separator = ", ";
+        }
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : mHistograms.entrySet())
+        {
+            LatencyHistogram.Snapshot histogram = entry.getValue();
+            sb.append(separator).append(entry.getKey()).append(' ').append(histogram.getCount());
+            if (histogram.getCount() > 0)
+            {
+                sb.append(' ').append(histogram.report());
+            }
+            separator = ", ";
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,187 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import edu.wisc.physics.wipac.deco.service.analysis.EventRecords;
+import edu.wisc.physics.wipac.deco.service.analysis.TriggerResult;
+
+/**
+ * A frame handed from the ImageReader to the processing pipeline. The pixel data is copied
+ * out of the Image into a direct buffer so the Image can be closed as soon as it has been
+ * acquired. Frames and their buffers are recycled through a {@link FramePool}.
+ */
+public class Frame
+{
+    private final FramePool mPool;
+
+    private long mNumber;
+    private long mTimestamp;
+    private long mCaptureTime;
+    private long mAcquireTime;
+    private long mCaptureId = -1;
+    private long mRequestTime;
+    private float mLatitude = Float.NaN;
+    private float mLongitude = Float.NaN;
+    private ByteBuffer mData;
+    private FrameFormat mFormat = FrameFormat.JPEG;
+    private int mWidth;
+    private int mHeight;
+    private int mRowStride;
+    private int mPixelStride;
+    private final TriggerResult mTriggerResult = new TriggerResult();
+    private EventRecords mEvents;
+
+    Frame(FramePool pool)
+    {
+        mPool = pool;
+    }
+
+    /**
+     * @param number      Sequence number of the frame
+     * @param timestamp   Sensor timestamp of the frame, in nanoseconds
+     * @param captureTime Wall clock time the frame was acquired, in milliseconds
+     * @param acquireTime System.nanoTime() when the frame was acquired
+     */
+    public Frame set(long number, long timestamp, long captureTime, long acquireTime)
+    {
+        mNumber = number;
+        mTimestamp = timestamp;
+        mCaptureTime = captureTime;
+        mAcquireTime = acquireTime;
+        mCaptureId = -1;
+        mRequestTime = 0;
+        mLatitude = Float.NaN;
+        mLongitude = Float.NaN;
+        mTriggerResult.clear();
+        if (mEvents != null)
+        {
+            mEvents.clear();
+        }
+        return this;
+    }
+
+    /**
+     * @param captureId   Camera frame number of the capture the frame came from
+     * @param requestTime System.nanoTime() when the frame was requested from the camera
+     */
+    public Frame setCapture(long captureId, long requestTime)
+    {
+        mCaptureId = captureId;
+        mRequestTime = requestTime;
+        return this;
+    }
+
+    /**
+     * Records where the frame was taken, in degrees.
+     */
+    public Frame setLocation(float latitude, float longitude)
+    {
+        mLatitude = latitude;
+        mLongitude = longitude;
+        return this;
+    }
+
+    /**
+     * Describes the layout of the frame data. For uncompressed formats the sample at (x, y)
+     * starts at position + y * rowStride + x * pixelStride.
+     */
+    public Frame setLayout(FrameFormat format, int width, int height, int rowStride, int pixelStride)
+    {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mRowStride = rowStride;
+        mPixelStride = pixelStride;
+        return this;
+    }
+
+    public long getNumber() { return mNumber; }
+    public long getTimestamp() { return mTimestamp; }
+    public long getCaptureTime() { return mCaptureTime; }
+    public long getAcquireTime() { return mAcquireTime; }
+
+    /**
+     * @return Camera frame number of the frame's capture, -1 if that is unknown
+     */
+    public long getCaptureId() { return mCaptureId; }
+
+    /**
+     * @return System.nanoTime() when the frame was requested, 0 if that is unknown
+     */
+    public long getRequestTime() { return mRequestTime; }
+
+    /**
+     * @return Latitude in degrees, NaN if the location is unknown
+     */
+    public float getLatitude() { return mLatitude; }
+
+    /**
+     * @return Longitude in degrees, NaN if the location is unknown
+     */
+    public float getLongitude() { return mLongitude; }
+    public FrameFormat getFormat() { return mFormat; }
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+    public int getRowStride() { return mRowStride; }
+    public int getPixelStride() { return mPixelStride; }
+
+    /**
+     * @return The frame data, between position and limit
+     */
+    public ByteBuffer getData() { return mData; }
+
+    /**
+     * @return Result of the trigger scan, filled in by the analyze stage
+     */
+    public TriggerResult getTriggerResult() { return mTriggerResult; }
+
+    /**
+     * @return Events extracted by the cluster stage, null if the frame never went through it
+     */
+    public EventRecords getEvents() { return mEvents; }
+
+    /**
+     * Attaches the event records to the frame, they stay with the frame when it is recycled.
+     */
+    public void setEvents(EventRecords events) { mEvents = events; }
+
+    /**
+     * @return true if the analyze stage kept the frame, false with the trigger off
+     */
+    public boolean isTriggered() { return mTriggerResult.isTriggered(); }
+
+    public boolean hasEvents()
+    {
+        return mEvents != null && mEvents.size() > 0;
+    }
+
+    /**
+     * Makes sure the data buffer can hold at least capacity bytes and clears it.
+     *
+     * @return true if a new buffer had to be allocated
+     */
+    boolean ensureCapacity(int capacity)
+    {
+        boolean allocated = false;
+        if (mData == null || mData.capacity() < capacity)
+        {
+            // 16 bit samples come from the camera in native byte order
+            mData = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            allocated = true;
+        }
+        mData.clear();
+        return allocated;
+    }
+
+    /**
+     * Returns the frame to its pool. The frame must not be used afterwards.
+     */
+    public void release()
+    {
+        if (mPool != null)
+        {
+            mPool.release(this);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+/**
+ * Format of the data held by a {@link Frame}.
+ */
+public enum FrameFormat
+{
+    /**
+     * Compressed JPEG, has to be decoded before it can be analyzed.
+     */
+    JPEG(".jpg", 0),
+
+    /**
+     * Luma (Y) plane of a YUV_420_888 image, 8 bits per pixel.
+     */
+    YUV(".raw", 1),
+
+    /**
+     * Bayer RAW_SENSOR data, 16 bits per pixel in native byte order.
+     */
+    RAW(".raw", 2);
+
+    private final String mExtension;
+    private final int mBytesPerSample;
+
+    FrameFormat(String extension, int bytesPerSample)
+    {
+        mExtension = extension;
+        mBytesPerSample = bytesPerSample;
+    }
+
+    /**
+     * @return Extension of the files frames of this format are stored in
+     */
+    public String getExtension()
+    {
+        return mExtension;
+    }
+
+    /**
+     * @return Bytes per pixel sample of the uncompressed plane, 0 for compressed formats
+     */
+    public int getBytesPerSample()
+    {
+        return mBytesPerSample;
+    }
+
+    public boolean isCompressed()
+    {
+        return mBytesPerSample == 0;
+    }
+}
@@ -0,0 +1,257 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+
+/**
+ * Processes frames behind the ImageReader in stages connected by bounded queues:
+ * <ul>
+ *     <li>acquire - runs on the ImageReader thread, copies the frame and closes the Image</li>
+ *     <li>analyze stages - each decides whether a frame is worth keeping, in the order they
+ *     were added (e.g. trigger, then cluster extraction)</li>
+ *     <li>persist - writes the frames worth keeping to storage</li>
+ * </ul>
+ * Queue sizes, thread counts and overflow policies of every stage come from the
+ * "deco.pipeline.&lt;stage&gt;.*" settings so slow storage never stalls the camera.
+ *
+ * The pipeline owns the frames it is handed and releases them once they are rejected by an
+ * analyzer or dropped; the {@link FramePersister} takes over the frames it is handed. The
+ * camera never waits when it {@link #offer offers} frames: blocking stages only hold back
+ * frames between stages.
+ */
+public class FramePipeline
+{
+    private static final long IDLE_POLL_INTERVAL = 10; // milliseconds
+
+    public interface FrameAnalyzer
+    {
+        /**
+         * @return true if the frame should be handed to the next stage
+         */
+        boolean analyze(Frame frame) throws Exception;
+    }
+
+    public interface FramePersister
+    {
+        /**
+         * Takes over the frame, which must be released once written, e.g. by a writer thread.
+         * If this throws the pipeline releases the frame.
+         */
+        void persist(Frame frame) throws Exception;
+    }
+
+    public interface Listener
+    {
+        void onFrameDropped(String stage, Frame frame);
+        void onFrameError(String stage, Frame frame, Exception e);
+    }
+
+    private final DecoSettings mSettings;
+    private final StageStatistics mAcquireStatistics = new StageStatistics("Acquire");
+    private final List<PipelineStage<Frame>> mAnalyzeStages = new ArrayList<>();
+    private final PipelineStage<Frame> mPersistStage;
+    private final PipelineStage.Listener<Frame> mStageListener;
+    private final Listener mListener;
+
+    public FramePipeline(DecoSettings settings, final FramePersister persister, Listener listener)
+    {
+        mSettings = settings;
+        mListener = listener;
+
+        mStageListener =
+            new PipelineStage.Listener<Frame>()
+            {
+                @Override
+                public void onDropped(PipelineStage<Frame> stage, Frame frame)
+                {
+                    mListener.onFrameDropped(stage.getName(), frame);
+                    frame.release();
+                }
+
+                @Override
+                public void onError(PipelineStage<Frame> stage, Frame frame, Exception e)
+                {
+                    mListener.onFrameError(stage.getName(), frame, e);
+                    frame.release();
+                }
+            };
+
+        mPersistStage = createStage("Persist", 8, OverflowPolicy.BLOCK,
+                new PipelineStage.Processor<Frame>()
+                {
+                    @Override
+                    public void process(Frame frame) throws Exception
+                    {
+                        persister.persist(frame);
+                    }
+                });
+    }
+
+    /**
+     * Appends an analyze stage. Must be called before {@link #start()}.
+     *
+     * @param name          Name of the stage, its settings are "deco.pipeline.&lt;name in lower case&gt;.*"
+     * @param queueCapacity Default queue capacity of the stage
+     * @param policy        Default overflow policy of the stage
+     */
+    public FramePipeline addStage(String name, int queueCapacity, OverflowPolicy policy, final FrameAnalyzer analyzer)
+    {
+        final int next = mAnalyzeStages.size() + 1;
+        mAnalyzeStages.add(createStage(name, queueCapacity, policy,
+                new PipelineStage.Processor<Frame>()
+                {
+                    @Override
+                    public void process(Frame frame) throws Exception
+                    {
+                        if (analyzer.analyze(frame))
+                        {
+                            submitToStage(next, frame);
+                        }
+                        else
+                        {
+                            frame.release();
+                        }
+                    }
+                }));
+        return this;
+    }
+
+    private PipelineStage<Frame> createStage(String name, int queueCapacity, OverflowPolicy policy, PipelineStage.Processor<Frame> processor)
+    {
+        String prefix = "pipeline." + name.toLowerCase(Locale.US) + ".";
+        return new PipelineStage<>(name,
+                mSettings.getInt(prefix + "queue", queueCapacity),
+                mSettings.getEnum(prefix + "policy", OverflowPolicy.class, policy),
+                mSettings.getInt(prefix + "threads", 1),
+                processor,
+                mStageListener);
+    }
+
+    private void submitToStage(int index, Frame frame)
+    {
+        getStage(index).submit(frame);
+    }
+
+    private PipelineStage<Frame> getStage(int index)
+    {
+        return index < mAnalyzeStages.size() ? mAnalyzeStages.get(index) : mPersistStage;
+    }
+
+    public void start()
+    {
+        // Downstream first so nothing is submitted to a stage which is not running
+        mPersistStage.start();
+        for (int i = mAnalyzeStages.size() - 1; i >= 0; i--)
+        {
+            mAnalyzeStages.get(i).start();
+        }
+    }
+
+    public void stop()
+    {
+        // Upstream first so nothing blocks on a stopped stage
+        for (PipelineStage<Frame> stage : mAnalyzeStages)
+        {
+            stage.stop();
+        }
+        mPersistStage.stop();
+    }
+
+    /**
+     * Waits until every frame submitted so far has been persisted, rejected or dropped.
+     * Frames must not be submitted meanwhile.
+     */
+    public void awaitIdle() throws InterruptedException
+    {
+        // A stage only hands frames downstream before it becomes idle, so checking the
+        // stages in order sees every frame
+        for (PipelineStage<Frame> stage : mAnalyzeStages)
+        {
+            awaitIdle(stage);
+        }
+        awaitIdle(mPersistStage);
+    }
+
+    private static void awaitIdle(PipelineStage<Frame> stage) throws InterruptedException
+    {
+        while (!stage.isIdle())
+        {
+            Thread.sleep(IDLE_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Hands an acquired frame to the first analyze stage. Called from the acquire stage.
+     *
+     * @param frame       The acquired frame
+     * @param acquireTime Time it took to acquire the frame, in nanoseconds
+     * @param backlog     Number of images waiting in the ImageReader
+     */
+    public void submit(Frame frame, long acquireTime, int backlog)
+    {
+        mAcquireStatistics.onSubmitted(backlog);
+        mAcquireStatistics.onProcessed(acquireTime);
+        getStage(0).submit(frame);
+    }
+
+    /**
+     * Like {@link #submit(Frame, long, int)} but never waits for the first stage, the frame is
+     * dropped if that stage is full even if it blocks. For the camera callbacks.
+     */
+    public void offer(Frame frame, long acquireTime, int backlog)
+    {
+        mAcquireStatistics.onSubmitted(backlog);
+        mAcquireStatistics.onProcessed(acquireTime);
+        getStage(0).offer(frame);
+    }
+
+    /**
+     * Records an Image which could not be acquired.
+     */
+    public void onAcquireError()
+    {
+        mAcquireStatistics.onError();
+    }
+
+    /**
+     * @return Frames waiting in the queues of all stages
+     */
+    public int getQueueDepth()
+    {
+        int depth = mPersistStage.getQueueDepth();
+        for (PipelineStage<Frame> stage : mAnalyzeStages)
+        {
+            depth += stage.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public StageStatistics getAcquireStatistics() { return mAcquireStatistics; }
+    public StageStatistics getPersistStatistics() { return mPersistStage.getStatistics(); }
+
+    public List<StageStatistics> getStageStatistics()
+    {
+        List<StageStatistics> statistics = new ArrayList<>();
+        statistics.add(mAcquireStatistics);
+        for (PipelineStage<Frame> stage : mAnalyzeStages)
+        {
+            statistics.add(stage.getStatistics());
+        }
+        statistics.add(mPersistStage.getStatistics());
+        return statistics;
+    }
+
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder(mAcquireStatistics.report(0));
+        for (PipelineStage<Frame> stage : mAnalyzeStages)
+        {
+            sb.append("; ").append(stage.report());
+        }
+        sb.append("; ").append(mPersistStage.report());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles frames and their direct buffers so the steady state of the pipeline does not
+ * allocate. The number of frames in flight is bounded by the pipeline queues, the pool only
+ * bounds how many idle frames are kept around.
+ */
+public class FramePool
+{
+    private final BlockingQueue<Frame> mFree;
+    private final AtomicLong mBufferAllocations = new AtomicLong();
+    private final AtomicLong mBufferBytes = new AtomicLong();
+    private volatile Listener mListener;
+
+    public interface Listener
+    {
+        /**
+         * Called on the releasing thread before the frame is reused, whatever ended its way
+         * through the pipeline: stored, rejected, dropped or failed.
+         */
+        void onReleased(Frame frame);
+    }
+
+    public FramePool(int maxIdleFrames)
+    {
+        mFree = new ArrayBlockingQueue<>(Math.max(1, maxIdleFrames));
+    }
+
+    /**
+     * @param capacity Number of bytes the frame has to hold
+     * @return A cleared frame with room for at least capacity bytes
+     */
+    public Frame acquire(int capacity)
+    {
+        Frame frame = mFree.poll();
+        if (frame == null)
+        {
+            frame = new Frame(this);
+        }
+
+        if (frame.ensureCapacity(capacity))
+        {
+            mBufferAllocations.incrementAndGet();
+            mBufferBytes.addAndGet(capacity);
+        }
+
+        return frame;
+    }
+
+    public void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    void release(Frame frame)
+    {
+        Listener listener = mListener;
+        if (listener != null)
+        {
+            listener.onReleased(frame);
+        }
+
+        // If the pool is full the frame is simply left to the garbage collector
+        mFree.offer(frame);
+    }
+
+    /**
+     * @return Number of direct buffers allocated so far
+     */
+    public long getBufferAllocations()
+    {
+        return mBufferAllocations.get();
+    }
+
+    public String report()
+    {
+        return "Frame pool: " + mFree.size() + " idle, " + mBufferAllocations.get() + " buffers allocated (" + (mBufferBytes.get() >> 20) + "MB)";
+    }
+}
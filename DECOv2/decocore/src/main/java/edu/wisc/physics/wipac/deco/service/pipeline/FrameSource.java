@@ -0,0 +1,18 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where frames come from when they do not come from the camera, e.g. archives replayed
+ * through the pipeline.
+ */
+public interface FrameSource extends Closeable
+{
+    /**
+     * Reads the next frame into a frame acquired from the pool.
+     *
+     * @return The frame, owned by the caller, or null once there are no more frames
+     */
+    Frame next(FramePool pool) throws IOException;
+}
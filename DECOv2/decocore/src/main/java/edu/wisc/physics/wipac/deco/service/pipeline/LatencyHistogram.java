@@ -0,0 +1,195 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds, precise to 1/8 of the value: every power
+ * of two is split into 8 linear buckets. Recording is a couple of atomic increments, so it can
+ * sit on hot paths; percentiles are computed when reported. Its memory is fixed, 4KB of counts.
+ *
+ * A {@link Snapshot} copies the counts while recording goes on, and the difference of two
+ * snapshots is the histogram of what was recorded in between.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+
+        mCounts.incrementAndGet(getIndex(value));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(value);
+
+        long max;
+        while (value > (max = mMax.get()))
+        {
+            if (mMax.compareAndSet(max, value))
+            {
+                break;
+            }
+        }
+    }
+
+    static int getIndex(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return The largest value of the bucket
+     */
+    static long getUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift) - 1;
+    }
+
+    public long getCount() { return mCount.get(); }
+    public long getMax() { return mMax.get(); }
+
+    public long getAverage()
+    {
+        long count = mCount.get();
+        return count > 0 ? mTotal.get() / count : 0;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return Upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        return snapshot().getPercentile(percentile);
+    }
+
+    /**
+     * @return "p50 p90 p99 max" in milliseconds
+     */
+    public String report()
+    {
+        return snapshot().report();
+    }
+
+    /**
+     * Copies the histogram without stopping recording. Values recorded during the copy may be
+     * in some of the snapshot's figures but not in others.
+     */
+    public Snapshot snapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotal.get(), mMax.get());
+    }
+
+    /**
+     * Counts of a histogram at one point in time, or between two, see {@link #minus}.
+     */
+    public static class Snapshot
+    {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        private Snapshot(long[] counts, long count, long total, long max)
+        {
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        /**
+         * @return What was recorded since the earlier snapshot of the same histogram. Its max is
+         *         the upper bound of the highest bucket recorded to, capped by the overall max.
+         */
+        public Snapshot minus(Snapshot earlier)
+        {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            long max = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                counts[i] = Math.max(0, mCounts[i] - earlier.mCounts[i]);
+                count += counts[i];
+                if (counts[i] > 0)
+                {
+                    max = Math.min(getUpperBound(i), mMax);
+                }
+            }
+            return new Snapshot(counts, count, Math.max(0, mTotal - earlier.mTotal), max);
+        }
+
+        public long getCount() { return mCount; }
+        public long getMax() { return mMax; }
+
+        public long getAverage()
+        {
+            return mCount > 0 ? mTotal / mCount : 0;
+        }
+
+        /**
+         * @param percentile Between 0 and 100
+         * @return Upper bound of the bucket holding the percentile, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile)
+        {
+            if (mCount == 0)
+            {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                seen += mCounts[i];
+                if (seen >= rank)
+                {
+                    return Math.min(getUpperBound(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * @return "p50 p90 p99 max" in milliseconds
+         */
+        public String report()
+        {
+            return String.format(Locale.US, "p50 %.2fms p90 %.2fms p99 %.2fms max %.2fms",
+                    getPercentile(50) / 1e6, getPercentile(90) / 1e6, getPercentile(99) / 1e6, getMax() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+/**
+ * What a {@link PipelineStage} does with a new item when its queue is full.
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Discard the oldest queued item to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new item.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Block the submitting thread until there is room in the queue.
+     */
+    BLOCK
+}
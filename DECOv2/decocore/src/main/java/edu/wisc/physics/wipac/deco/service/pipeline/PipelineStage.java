@@ -0,0 +1,264 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pipeline stage: a bounded queue drained by one or more worker threads.
+ *
+ * Items which cannot be queued are handed to the {@link Listener} according to the stage's
+ * {@link OverflowPolicy}, so the owner can recycle them.
+ */
+public class PipelineStage<T>
+{
+    private static final long POLL_TIMEOUT = 100; // milliseconds
+
+    public interface Processor<T>
+    {
+        void process(T item) throws Exception;
+    }
+
+    public interface Listener<T>
+    {
+        void onDropped(PipelineStage<T> stage, T item);
+        void onError(PipelineStage<T> stage, T item, Exception e);
+    }
+
+    private final String mName;
+    private final BlockingQueue<T> mQueue;
+    private final OverflowPolicy mOverflowPolicy;
+    private final int mNumThreads;
+    private final Processor<T> mProcessor;
+    private final Listener<T> mListener;
+    private final StageStatistics mStatistics;
+
+    private final List<Thread> mThreads = new ArrayList<>();
+    private volatile boolean mRunning;
+
+    // Items queued or being processed
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    public PipelineStage(String name, int queueCapacity, OverflowPolicy overflowPolicy, int numThreads,
+                         Processor<T> processor, Listener<T> listener)
+    {
+        mName = name;
+        mQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        mOverflowPolicy = overflowPolicy;
+        mNumThreads = Math.max(1, numThreads);
+        mProcessor = processor;
+        mListener = listener;
+        mStatistics = new StageStatistics(name);
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public StageStatistics getStatistics()
+    {
+        return mStatistics;
+    }
+
+    public int getQueueDepth()
+    {
+        return mQueue.size();
+    }
+
+    public synchronized void start()
+    {
+        if (mRunning)
+        {
+            return;
+        }
+
+        mRunning = true;
+        for (int i = 0; i < mNumThreads; i++)
+        {
+            Thread thread = new Thread(
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        processItems();
+                    }
+                },
+                mName + " Stage Thread " + i);
+            thread.start();
+            mThreads.add(thread);
+        }
+    }
+
+    /**
+     * Stops the worker threads once they finish the item at hand. Items still queued are
+     * handed to the listener as dropped. Stop upstream stages first so nothing blocks on a
+     * stopped stage.
+     */
+    public synchronized void stop()
+    {
+        mRunning = false;
+        for (Thread thread : mThreads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        mThreads.clear();
+
+        T item;
+        while ((item = mQueue.poll()) != null)
+        {
+            mPending.decrementAndGet();
+            drop(item);
+        }
+    }
+
+    /**
+     * Queues an item for processing.
+     *
+     * @return false if the item itself was dropped
+     */
+    public boolean submit(T item)
+    {
+        return submit(item, true);
+    }
+
+    /**
+     * Queues an item without ever waiting: with the BLOCK policy the item is dropped if the
+     * queue is full. For callers which must not stall, e.g. the camera callbacks.
+     *
+     * @return false if the item itself was dropped
+     */
+    public boolean offer(T item)
+    {
+        return submit(item, false);
+    }
+
+    private boolean submit(T item, boolean wait)
+    {
+        if (!mRunning)
+        {
+            drop(item);
+            return false;
+        }
+
+        mPending.incrementAndGet();
+        switch (mOverflowPolicy)
+        {
+            case    DROP_OLDEST:
+                while (!mQueue.offer(item))
+                {
+                    T oldest = mQueue.poll();
+                    if (oldest != null)
+                    {
+                        mPending.decrementAndGet();
+                        drop(oldest);
+                    }
+                }
+                break;
+
+            case    DROP_NEWEST:
+                if (!mQueue.offer(item))
+                {
+                    mPending.decrementAndGet();
+                    drop(item);
+                    return false;
+                }
+                break;
+
+            case    BLOCK:
+                if (!wait)
+                {
+                    if (!mQueue.offer(item))
+                    {
+                        mPending.decrementAndGet();
+                        drop(item);
+                        return false;
+                    }
+                    break;
+                }
+                try
+                {
+                    mQueue.put(item);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    mPending.decrementAndGet();
+                    drop(item);
+                    return false;
+                }
+                break;
+        }
+
+        mStatistics.onSubmitted(mQueue.size());
+        return true;
+    }
+
+    private void processItems()
+    {
+        while (mRunning)
+        {
+            T item;
+            try
+            {
+                item = mQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+
+            if (item == null)
+            {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            try
+            {
+                mProcessor.process(item);
+                mStatistics.onProcessed(System.nanoTime() - start);
+            }
+            catch (Exception e)
+            {
+                mStatistics.onError();
+                mListener.onError(this, item, e);
+            }
+            finally
+            {
+                mPending.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return true if no item is queued or being processed
+     */
+    public boolean isIdle()
+    {
+        return mPending.get() == 0;
+    }
+
+    private void drop(T item)
+    {
+        mStatistics.onDropped();
+        mListener.onDropped(this, item);
+    }
+
+    public String report()
+    {
+        return mStatistics.report(mQueue.size());
+    }
+}
@@ -0,0 +1,91 @@
+package edu.wisc.physics.wipac.deco.service.pipeline;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a single pipeline stage. Updated lock free from the stage threads and
+ * readable at any time from any thread.
+ */
+public class StageStatistics
+{
+    private final String mName;
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    private final AtomicLong mMaxQueueDepth = new AtomicLong();
+    private final AtomicLong mTotalLatency = new AtomicLong();
+    private final AtomicLong mMaxLatency = new AtomicLong();
+
+    public StageStatistics(String name)
+    {
+        mName = name;
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public void onSubmitted(int queueDepth)
+    {
+        mSubmitted.incrementAndGet();
+        updateMax(mMaxQueueDepth, queueDepth);
+    }
+
+    public void onDropped()
+    {
+        mDropped.incrementAndGet();
+    }
+
+    public void onError()
+    {
+        mErrors.incrementAndGet();
+    }
+
+    /**
+     * @param latency Time it took to process an item, in nanoseconds
+     */
+    public void onProcessed(long latency)
+    {
+        mProcessed.incrementAndGet();
+        mTotalLatency.addAndGet(latency);
+        updateMax(mMaxLatency, latency);
+    }
+
+    public long getSubmitted() { return mSubmitted.get(); }
+    public long getProcessed() { return mProcessed.get(); }
+    public long getDropped() { return mDropped.get(); }
+    public long getErrors() { return mErrors.get(); }
+    public long getMaxQueueDepth() { return mMaxQueueDepth.get(); }
+    public long getMaxLatency() { return mMaxLatency.get(); }
+
+    public long getAverageLatency()
+    {
+        long processed = mProcessed.get();
+        return processed > 0 ? mTotalLatency.get() / processed : 0;
+    }
+
+    public String report(int queueDepth)
+    {
+        return String.format(Locale.US,
+                "%s: %d submitted %d processed %d dropped %d errors, queue %d (max %d), latency avg %.1fms max %.1fms",
+                mName, getSubmitted(), getProcessed(), getDropped(), getErrors(), queueDepth, getMaxQueueDepth(),
+                getAverageLatency() / 1e6, getMaxLatency() / 1e6);
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current;
+        while (value > (current = max.get()))
+        {
+            if (max.compareAndSet(current, value))
+            {
+                break;
+            }
+        }
+    }
+}
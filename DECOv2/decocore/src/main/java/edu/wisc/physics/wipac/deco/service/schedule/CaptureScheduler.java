@@ -0,0 +1,352 @@
+package edu.wisc.physics.wipac.deco.service.schedule;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+
+/**
+ * Decides when the camera captures from the state of the device, so an unattended phone
+ * captures flat-out while it is charging and cool, and saves its battery otherwise. The duty
+ * cycle, the fraction of every period spent capturing, is the smallest one allowed by:
+ * <ul>
+ *   <li>power: 1 while charging, battery.duty on battery, 0 once the battery fell to
+ *       battery.min percent until it is back at battery.resume</li>
+ *   <li>temperature: 1 up to thermal.throttle degrees Celsius, falling linearly to
+ *       thermal.duty.min at thermal.max, 0 above thermal.max until it cooled to
+ *       thermal.resume</li>
+ *   <li>time of day: 1 within the window.start to window.end window (HH:mm, local time, may
+ *       wrap past midnight, equal for all day), 0 outside</li>
+ * </ul>
+ * Within a period of period seconds the camera captures first, then pauses.
+ *
+ * The scheduler does nothing on its own: {@link #update()} evaluates the inputs and tells the
+ * listener to pause or resume, and returns when it wants to be called again. The device state
+ * and the clock are interfaces, so the policy runs on a JVM with a fake clock.
+ *
+ * Its efficiency metric is the number of frames captured per percent of battery used, counted
+ * only while the device runs on battery.
+ *
+ * Configured by the deco.schedule.* settings. Not thread safe except for
+ * {@link #onFrameCaptured()}, call the rest on one thread.
+ */
+public class CaptureScheduler
+{
+    private static final long MAX_DELAY = 60 * 1000; // milliseconds
+
+    public interface Clock
+    {
+        long currentTimeMillis();
+    }
+
+    public interface DeviceState
+    {
+        boolean isCharging();
+
+        /**
+         * @return Battery level in percent
+         */
+        float getBatteryLevel();
+
+        /**
+         * @return Temperature in degrees Celsius, NaN if unknown
+         */
+        float getTemperature();
+    }
+
+    public interface Listener
+    {
+        void onResume();
+
+        /**
+         * @param state Why capture pauses
+         */
+        void onPause(State state);
+    }
+
+    /**
+     * What the camera is doing and why, the time spent in each is reported.
+     */
+    public enum State
+    {
+        CAPTURING("capturing"),
+        DUTY_CYCLE("duty cycle pause"),
+        BATTERY_LOW("battery low"),
+        OVERHEATED("overheated"),
+        OUTSIDE_WINDOW("outside window");
+
+        private final String mName;
+
+        State(String name)
+        {
+            mName = name;
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+    }
+
+    private final DeviceState mDevice;
+    private final Clock mClock;
+    private final Calendar mCalendar;
+    private final Listener mListener;
+
+    private final long mPeriod;
+    private final float mBatteryDuty;
+    private final float mBatteryMin;
+    private final float mBatteryResume;
+    private final float mThermalThrottle;
+    private final float mThermalMax;
+    private final float mThermalResume;
+    private final float mThermalDutyMin;
+    private final int mWindowStart;
+    private final int mWindowEnd;
+
+    private final long mCycleStart;
+    private State mState;
+    private boolean mBatteryLow;
+    private boolean mOverheated;
+    private float mDuty;
+
+    private final long[] mStateTime = new long[State.values().length];
+    private long mStateSince;
+    private long mPauses;
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private long mLastFrames;
+    private float mLastLevel = Float.NaN;
+    private long mBatteryFrames;
+    private float mBatteryUsed;
+
+    public CaptureScheduler(DecoSettings settings, DeviceState device, Clock clock, TimeZone timeZone, Listener listener)
+    {
+        mDevice = device;
+        mClock = clock;
+        mCalendar = Calendar.getInstance(timeZone, Locale.US);
+        mListener = listener;
+
+        mPeriod = Math.max(1, settings.getLong("schedule.period", 600)) * 1000;
+        mBatteryDuty = clamp(settings.getFloat("schedule.battery.duty", 1));
+        mBatteryMin = settings.getFloat("schedule.battery.min", 20);
+        mBatteryResume = Math.max(mBatteryMin, settings.getFloat("schedule.battery.resume", 30));
+        mThermalThrottle = settings.getFloat("schedule.thermal.throttle", 40);
+        mThermalMax = Math.max(mThermalThrottle, settings.getFloat("schedule.thermal.max", 45));
+        mThermalResume = Math.min(mThermalMax, settings.getFloat("schedule.thermal.resume", 40));
+        mThermalDutyMin = clamp(settings.getFloat("schedule.thermal.duty.min", 0.25f));
+        mWindowStart = parseTimeOfDay(settings, "schedule.window.start");
+        mWindowEnd = parseTimeOfDay(settings, "schedule.window.end");
+
+        mCycleStart = clock.currentTimeMillis();
+        mStateSince = mCycleStart;
+    }
+
+    private static float clamp(float duty)
+    {
+        return Math.max(0, Math.min(1, duty));
+    }
+
+    /**
+     * @return Minutes since midnight
+     */
+    private static int parseTimeOfDay(DecoSettings settings, String name)
+    {
+        String value = settings.getString(name, "00:00");
+        int separator = value.indexOf(':');
+        try
+        {
+            int hours = Integer.parseInt(value.substring(0, separator));
+            int minutes = Integer.parseInt(value.substring(separator + 1));
+            if (hours >= 0 && hours < 24 && minutes >= 0 && minutes < 60)
+            {
+                return hours * 60 + minutes;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid value \"" + value + "\" for property \"" + DecoSettings.PREFIX + name + "\", expected HH:mm");
+    }
+
+    /**
+     * Counts a captured frame, called from the capture thread.
+     */
+    public void onFrameCaptured()
+    {
+        mFrames.incrementAndGet();
+    }
+
+    /**
+     * Evaluates the inputs, pausing or resuming capture through the listener when the state
+     * changes. Call again after the returned delay, or earlier when an input changed.
+     *
+     * @return Milliseconds until the state may change
+     */
+    public long update()
+    {
+        long now = mClock.currentTimeMillis();
+        boolean charging = mDevice.isCharging();
+        float level = mDevice.getBatteryLevel();
+        float temperature = mDevice.getTemperature();
+        updateEfficiency(charging, level);
+
+        // Hysteresis, so a level or temperature at a threshold does not toggle capture
+        mBatteryLow = !charging && (mBatteryLow ? level < mBatteryResume : level <= mBatteryMin);
+        mOverheated = !Float.isNaN(temperature) && (mOverheated ? temperature > mThermalResume : temperature > mThermalMax);
+
+        State state;
+        long delay = MAX_DELAY;
+        if (!isInWindow(now))
+        {
+            state = State.OUTSIDE_WINDOW;
+            mDuty = 0;
+        }
+        else if (mOverheated)
+        {
+            state = State.OVERHEATED;
+            mDuty = 0;
+        }
+        else if (mBatteryLow)
+        {
+            state = State.BATTERY_LOW;
+            mDuty = 0;
+        }
+        else
+        {
+            mDuty = Math.min(charging ? 1 : mBatteryDuty, getThermalDuty(temperature));
+            if (mDuty >= 1)
+            {
+                state = State.CAPTURING;
+            }
+            else
+            {
+                long position = (now - mCycleStart) % mPeriod;
+                long capturing = (long) (mDuty * mPeriod);
+                state = position < capturing ? State.CAPTURING : State.DUTY_CYCLE;
+                delay = Math.min(delay, position < capturing ? capturing - position : mPeriod - position);
+            }
+        }
+
+        setState(state, now);
+        return Math.max(1, delay);
+    }
+
+    private float getThermalDuty(float temperature)
+    {
+        if (Float.isNaN(temperature) || temperature <= mThermalThrottle)
+        {
+            return 1;
+        }
+        if (mThermalMax <= mThermalThrottle)
+        {
+            return mThermalDutyMin;
+        }
+        float fraction = Math.min(1, (temperature - mThermalThrottle) / (mThermalMax - mThermalThrottle));
+        return 1 - fraction * (1 - mThermalDutyMin);
+    }
+
+    private boolean isInWindow(long now)
+    {
+        if (mWindowStart == mWindowEnd)
+        {
+            return true;
+        }
+        mCalendar.setTimeInMillis(now);
+        int minute = mCalendar.get(Calendar.HOUR_OF_DAY) * 60 + mCalendar.get(Calendar.MINUTE);
+        return mWindowStart < mWindowEnd
+                ? minute >= mWindowStart && minute < mWindowEnd
+                : minute >= mWindowStart || minute < mWindowEnd;
+    }
+
+    private void setState(State state, long now)
+    {
+        State previous = mState;
+        if (previous != null)
+        {
+            mStateTime[previous.ordinal()] += now - mStateSince;
+        }
+        mStateSince = now;
+        if (state == previous)
+        {
+            return;
+        }
+
+        mState = state;
+        if (state == State.CAPTURING)
+        {
+            mListener.onResume();
+        }
+        else if (previous == null || previous == State.CAPTURING)
+        {
+            mPauses++;
+            mListener.onPause(state);
+        }
+    }
+
+    /**
+     * Frames and battery used are only counted between two updates on battery, a level rising
+     * while charging is not a negative cost.
+     */
+    private void updateEfficiency(boolean charging, float level)
+    {
+        long frames = mFrames.get();
+        if (!charging && !Float.isNaN(mLastLevel))
+        {
+            mBatteryFrames += frames - mLastFrames;
+            mBatteryUsed += Math.max(0, mLastLevel - level);
+        }
+        mLastFrames = frames;
+        mLastLevel = charging ? Float.NaN : level;
+    }
+
+    public State getState()
+    {
+        return mState;
+    }
+
+    public boolean isCapturing()
+    {
+        return mState == State.CAPTURING;
+    }
+
+    /**
+     * @return Fraction of the period captured by the last update
+     */
+    public float getDutyCycle()
+    {
+        return mDuty;
+    }
+
+    /**
+     * @return Frames captured on battery per percent of battery used, NaN before a percent was used
+     */
+    public double getFramesPerPercent()
+    {
+        return mBatteryUsed > 0 ? mBatteryFrames / mBatteryUsed : Double.NaN;
+    }
+
+    /**
+     * @return Milliseconds spent in the state until the last update
+     */
+    public long getStateTime(State state)
+    {
+        return mStateTime[state.ordinal()];
+    }
+
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "Schedule: %s, duty %.2f, %d pauses, %d frames on battery using %.1f%% (%.1f frames/%%)",
+                mState != null ? mState.getName() : "not started", mDuty, mPauses, mBatteryFrames, mBatteryUsed,
+                getFramesPerPercent()));
+        for (State state : State.values())
+        {
+            sb.append(String.format(Locale.US, ", %s %.1fmin", state.getName(), mStateTime[state.ordinal()] / 60000.0));
+        }
+        return sb.toString();
+    }
+}
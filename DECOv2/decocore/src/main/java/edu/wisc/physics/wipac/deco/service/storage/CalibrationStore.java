@@ -0,0 +1,216 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.analysis.DarkFrameCalibration;
+
+/**
+ * Keeps completed {@link DarkFrameCalibration}s on storage so a restarted service can take
+ * data right away instead of calibrating again.
+ *
+ * Each calibration is a file named after its key: camera id, output size and format, and a hash
+ * of the capture request settings of camera-settings.properties. Changing any setting applied by
+ * DecoCameraCharacteristics changes the hash, so the stale calibration is no longer found and is
+ * deleted on the next load or save of the same camera, size and format. Each capture profile has
+ * settings of its own, so the calibrations of every hash still in use are kept.
+ *
+ * Files are memory-mapped in both directions; loading only bulk-copies the arrays out of the
+ * mapping. Layout, in the byte order given by the header:
+ * <pre>
+ *   int   MAGIC "DCAL"
+ *   short VERSION
+ *   byte  1 if little endian
+ *   byte  reserved
+ *   long  settings hash
+ *   long  creation time, milliseconds since the epoch
+ *   ...   calibration, see {@link DarkFrameCalibration#writeTo(ByteBuffer)}
+ * </pre>
+ */
+public class CalibrationStore
+{
+    public static final int MAGIC = 0x4443414c; // "DCAL"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+
+    private static final String PREFIX = "calibration_";
+    private static final String EXTENSION = ".cal";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    public CalibrationStore(File directory)
+    {
+        mDirectory = directory;
+    }
+
+    public File getDirectory()
+    {
+        return mDirectory;
+    }
+
+    /**
+     * Hashes the capture request settings (all but the deco.* ones) independently of their order
+     * in the file, 64-bit FNV-1a over the sorted "key=value" lines.
+     */
+    public static long hashCaptureSettings(Properties properties)
+    {
+        List<String> lines = new ArrayList<>();
+        for (String name : properties.stringPropertyNames())
+        {
+            if (!DecoSettings.isDecoProperty(name))
+            {
+                lines.add(name + "=" + properties.getProperty(name).trim());
+            }
+        }
+        Collections.sort(lines);
+
+        long hash = 0xcbf29ce484222325L;
+        for (String line : lines)
+        {
+            for (byte b : (line + "\n").getBytes(UTF8))
+            {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return The name of the calibration file for this key
+     */
+    public static String getName(String cameraId, int width, int height, String format, long settingsHash)
+    {
+        return String.format(Locale.US, "%s%s_%dx%d_%s_%016x%s",
+                PREFIX, cameraId.replaceAll("[^A-Za-z0-9]", "-"), width, height, format.toLowerCase(Locale.US),
+                settingsHash, EXTENSION);
+    }
+
+    /**
+     * Restores a calibration. Calibrations with the same camera, size and format but settings
+     * no longer in use are stale and deleted.
+     *
+     * @param settingsHashes Hashes of the capture settings in use, e.g. one per capture profile
+     * @return false if there is no valid calibration for this key
+     */
+    public boolean load(String name, Collection<Long> settingsHashes, DarkFrameCalibration calibration) throws IOException
+    {
+        deleteStale(name, settingsHashes);
+
+        File file = new File(mDirectory, name);
+        if (!file.isFile())
+        {
+            return false;
+        }
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getShort() != VERSION)
+            {
+                return false;
+            }
+            buffer.order(buffer.get() != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            buffer.get();
+            buffer.getLong(); // settings hash, already part of the name
+            buffer.getLong(); // creation time
+            return calibration.readFrom(buffer);
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Saves a completed calibration, replacing the previous one atomically.
+     *
+     * @param settingsHashes Hashes of the capture settings in use, see {@link #load}
+     * @return Size of the file in bytes
+     */
+    public long save(String name, long settingsHash, Collection<Long> settingsHashes, DarkFrameCalibration calibration) throws IOException
+    {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+        {
+            throw new FileNotFoundException("Failed to create " + mDirectory);
+        }
+
+        File file = new File(mDirectory, name);
+        File temporary = new File(mDirectory, name + ".tmp");
+        long size = HEADER_SIZE + calibration.getSerializedSize();
+
+        RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+        try
+        {
+            output.setLength(size);
+            MappedByteBuffer buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.putShort(VERSION);
+            buffer.put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+            buffer.put((byte) 0);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putLong(settingsHash);
+            buffer.putLong(System.currentTimeMillis());
+            calibration.writeTo(buffer);
+            buffer.force();
+        }
+        finally
+        {
+            output.close();
+        }
+
+        if (!temporary.renameTo(file))
+        {
+            temporary.delete();
+            throw new IOException("Failed to rename " + temporary + " to " + file);
+        }
+
+        deleteStale(name, settingsHashes);
+        return size;
+    }
+
+    private void deleteStale(String name, Collection<Long> settingsHashes)
+    {
+        // Everything up to the settings hash
+        String prefix = name.substring(0, name.lastIndexOf('_') + 1);
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        Set<String> keep = new HashSet<>();
+        keep.add(name);
+        for (Long hash : settingsHashes)
+        {
+            keep.add(String.format(Locale.US, "%s%016x%s", prefix, hash, EXTENSION));
+        }
+        for (File file : files)
+        {
+            String fileName = file.getName();
+            if (fileName.startsWith(prefix) && !keep.contains(fileName))
+            {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * What the service needs to know about the camera it captures with, taken once from the camera
+ * characteristics and kept on storage so later starts neither ask the camera service again nor
+ * reflect on every capture request key: the camera id, the type of every capture request key,
+ * the output sizes per image format, the capabilities and ranges such as the exposure time.
+ *
+ * Snapshots are only valid for the build they were taken on, a system update may change the
+ * camera HAL. The file is named after a hash of the build fingerprint, and snapshots of other
+ * builds are deleted when one is saved. It is a properties file:
+ * <pre>
+ *   version=1
+ *   fingerprint=&lt;build fingerprint&gt;
+ *   camera=&lt;camera id&gt;
+ *   capabilities=0,1,3
+ *   key.&lt;capture request key&gt;=&lt;type name, e.g. int&gt;
+ *   output.&lt;image format&gt;=4032x3024,1920x1080
+ *   range.&lt;name&gt;=&lt;lower&gt;,&lt;upper&gt;
+ * </pre>
+ */
+public class CameraSnapshot
+{
+    public static final int VERSION = 1;
+
+    private static final String PREFIX = "camera_";
+    private static final String EXTENSION = ".properties";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String mCameraId;
+    private final String mFingerprint;
+    private final Map<String, String> mKeyTypes = new TreeMap<>();
+    private final Map<Integer, List<int[]>> mOutputSizes = new TreeMap<>();
+    private final Map<String, long[]> mRanges = new LinkedHashMap<>();
+    private int[] mCapabilities = new int[0];
+
+    public CameraSnapshot(String cameraId, String fingerprint)
+    {
+        mCameraId = cameraId;
+        mFingerprint = fingerprint;
+    }
+
+    public String getCameraId()
+    {
+        return mCameraId;
+    }
+
+    public String getFingerprint()
+    {
+        return mFingerprint;
+    }
+
+    /**
+     * @param type Name of the key's value type, Class.getName()
+     */
+    public void putKeyType(String key, String type)
+    {
+        mKeyTypes.put(key, type);
+    }
+
+    /**
+     * @return Name of the key's value type, null if the camera does not support the key
+     */
+    public String getKeyType(String key)
+    {
+        return mKeyTypes.get(key);
+    }
+
+    public Set<String> getKeys()
+    {
+        return Collections.unmodifiableSet(mKeyTypes.keySet());
+    }
+
+    public void addOutputSize(int format, int width, int height)
+    {
+        List<int[]> sizes = mOutputSizes.get(format);
+        if (sizes == null)
+        {
+            sizes = new ArrayList<>();
+            mOutputSizes.put(format, sizes);
+        }
+        sizes.add(new int[] {width, height});
+    }
+
+    /**
+     * @return Widths and heights of the format's output sizes, empty if it is not supported
+     */
+    public List<int[]> getOutputSizes(int format)
+    {
+        List<int[]> sizes = mOutputSizes.get(format);
+        return sizes != null ? Collections.unmodifiableList(sizes) : Collections.<int[]>emptyList();
+    }
+
+    public Set<Integer> getOutputFormats()
+    {
+        return Collections.unmodifiableSet(mOutputSizes.keySet());
+    }
+
+    public boolean isOutputFormatSupported(int format)
+    {
+        return mOutputSizes.containsKey(format);
+    }
+
+    public void setCapabilities(int[] capabilities)
+    {
+        mCapabilities = capabilities != null ? capabilities.clone() : new int[0];
+    }
+
+    public boolean hasCapability(int capability)
+    {
+        for (int c : mCapabilities)
+        {
+            if (c == capability)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void putRange(String name, long lower, long upper)
+    {
+        mRanges.put(name, new long[] {lower, upper});
+    }
+
+    /**
+     * @return Lower and upper bound, null if the camera does not report the range
+     */
+    public long[] getRange(String name)
+    {
+        long[] range = mRanges.get(name);
+        return range != null ? range.clone() : null;
+    }
+
+    /**
+     * @return Name of the snapshot file for a build
+     */
+    public static String getName(String fingerprint)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : fingerprint.getBytes(UTF8))
+        {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return String.format(Locale.US, "%s%016x%s", PREFIX, hash, EXTENSION);
+    }
+
+    /**
+     * @return The snapshot taken on this build, null if there is none or it cannot be read
+     */
+    public static CameraSnapshot load(File directory, String fingerprint)
+    {
+        File file = new File(directory, getName(fingerprint));
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try
+        {
+            InputStream input = new FileInputStream(file);
+            try
+            {
+                properties.load(input);
+            }
+            finally
+            {
+                input.close();
+            }
+
+            if (!String.valueOf(VERSION).equals(properties.getProperty("version"))
+                    || !fingerprint.equals(properties.getProperty("fingerprint"))
+                    || properties.getProperty("camera") == null)
+            {
+                return null;
+            }
+
+            CameraSnapshot snapshot = new CameraSnapshot(properties.getProperty("camera"), fingerprint);
+            snapshot.setCapabilities(parseInts(properties.getProperty("capabilities", "")));
+            for (String name : properties.stringPropertyNames())
+            {
+                String value = properties.getProperty(name);
+                if (name.startsWith("key."))
+                {
+                    snapshot.putKeyType(name.substring(4), value);
+                }
+                else if (name.startsWith("output."))
+                {
+                    int format = Integer.parseInt(name.substring(7));
+                    for (String size : value.split(","))
+                    {
+                        int separator = size.indexOf('x');
+                        snapshot.addOutputSize(format, Integer.parseInt(size.substring(0, separator)),
+                                Integer.parseInt(size.substring(separator + 1)));
+                    }
+                }
+                else if (name.startsWith("range."))
+                {
+                    String[] bounds = value.split(",");
+                    snapshot.putRange(name.substring(6), Long.parseLong(bounds[0]), Long.parseLong(bounds[1]));
+                }
+            }
+            return snapshot;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // Taken again and overwritten
+            return null;
+        }
+    }
+
+    private static int[] parseInts(String value)
+    {
+        if (value.isEmpty())
+        {
+            return new int[0];
+        }
+        String[] values = value.split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            ints[i] = Integer.parseInt(values[i]);
+        }
+        return ints;
+    }
+
+    /**
+     * Saves the snapshot atomically and deletes the snapshots of other builds.
+     *
+     * @return The snapshot file
+     */
+    public File save(File directory) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new FileNotFoundException("Failed to create " + directory);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("version=").append(VERSION).append('\n');
+        sb.append("fingerprint=").append(escape(mFingerprint)).append('\n');
+        sb.append("camera=").append(escape(mCameraId)).append('\n');
+        sb.append("capabilities=");
+        for (int i = 0; i < mCapabilities.length; i++)
+        {
+            sb.append(i > 0 ? "," : "").append(mCapabilities[i]);
+        }
+        sb.append('\n');
+        for (Map.Entry<String, String> entry : mKeyTypes.entrySet())
+        {
+            sb.append("key.").append(escape(entry.getKey())).append('=').append(escape(entry.getValue())).append('\n');
+        }
+        for (Map.Entry<Integer, List<int[]>> entry : mOutputSizes.entrySet())
+        {
+            sb.append("output.").append(entry.getKey()).append('=');
+            String separator = "";
+            for (int[] size : entry.getValue())
+            {
+                sb.append(separator).append(size[0]).append('x').append(size[1]);
+                separator = ",";
+            }
+            sb.append('\n');
+        }
+        for (Map.Entry<String, long[]> entry : mRanges.entrySet())
+        {
+            sb.append("range.").append(escape(entry.getKey())).append('=')
+              .append(entry.getValue()[0]).append(',').append(entry.getValue()[1]).append('\n');
+        }
+
+        String name = getName(mFingerprint);
+        File file = new File(directory, name);
+        File temporary = new File(directory, name + ".tmp");
+        OutputStream output = new FileOutputStream(temporary);
+        try
+        {
+            output.write(sb.toString().getBytes(UTF8));
+        }
+        finally
+        {
+            output.close();
+        }
+        if (!temporary.renameTo(file))
+        {
+            temporary.delete();
+            throw new IOException("Failed to rename " + temporary + " to " + file);
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File other : files)
+            {
+                String otherName = other.getName();
+                if (otherName.startsWith(PREFIX) && otherName.endsWith(EXTENSION) && !otherName.equals(name))
+                {
+                    other.delete();
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Escapes for a properties file written as UTF-8 and read back as ISO 8859-1 with
+     * unicode escapes.
+     */
+    private static String escape(String value)
+    {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '=' || c == ':' || c == '#' || c == '!' || c == ' ')
+            {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20 || c > 0x7e)
+            {
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            }
+            else
+            {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,294 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameSource;
+
+/**
+ * Reads frames back from the {@link StorageLayout}: JPEG files as they are, raw dumps through
+ * their {@link FrameHeader}, and the frame records of {@link EventLog} segments, decoding
+ * zero suppressed ones. Accepts the app
+ * directory (all hour directories and the log), a single directory or single files, and returns
+ * the frames in capture order.
+ *
+ * The capture time of a frame file comes from its file name, JPEG frames get it as their sensor
+ * timestamp too. The file data is read straight into the frame's direct buffer.
+ */
+public class DirectoryFrameSource implements FrameSource
+{
+    private final List<File> mFiles = new ArrayList<>();
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("yyyyMMdd_HHmmss.SSS");
+    private final ByteBuffer mHeader = ByteBuffer.allocate(FrameHeader.SIZE);
+    private final int mRepeat;
+    private final ZeroSuppressionCodec mCodec = new ZeroSuppressionCodec(0);
+
+    private EventLogReader mSegment;
+    private int mIndex;
+    private long mNumber;
+    private long mSkipped;
+
+    /**
+     * @param inputs Directories or files to replay
+     * @param repeat Number of times the inputs are replayed
+     */
+    public DirectoryFrameSource(List<File> inputs, int repeat)
+    {
+        for (File input : inputs)
+        {
+            collect(input, mFiles);
+        }
+        mRepeat = Math.max(1, repeat);
+    }
+
+    private static void collect(File file, List<File> files)
+    {
+        if (file.isDirectory())
+        {
+            // Names sort in capture order, both hour directories and frame files
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                Arrays.sort(children);
+                for (File child : children)
+                {
+                    collect(child, files);
+                }
+            }
+        }
+        else if (isFrame(file.getName()))
+        {
+            files.add(file);
+        }
+    }
+
+    private static boolean isFrame(String name)
+    {
+        if (name.endsWith(EventLog.EXTENSION))
+        {
+            return true;
+        }
+        for (FrameFormat format : FrameFormat.values())
+        {
+            if (name.endsWith(format.getExtension()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of frame files and log segments in one pass over the inputs
+     */
+    public int getFileCount()
+    {
+        return mFiles.size();
+    }
+
+    /**
+     * @return Number of files which were not valid frames
+     */
+    public long getSkipped()
+    {
+        return mSkipped;
+    }
+
+    @Override
+    public Frame next(FramePool pool) throws IOException
+    {
+        while (true)
+        {
+            if (mSegment != null)
+            {
+                Frame frame = read(mSegment, pool);
+                if (frame != null)
+                {
+                    return frame;
+                }
+                mSegment.close();
+                mSegment = null;
+            }
+
+            if (mIndex >= mFiles.size() * mRepeat)
+            {
+                return null;
+            }
+
+            File file = mFiles.get(mIndex++ % mFiles.size());
+            if (file.getName().endsWith(EventLog.EXTENSION))
+            {
+                try
+                {
+                    mSegment = new EventLogReader(file);
+                }
+                catch (IOException e)
+                {
+                    mSkipped++;
+                }
+                continue;
+            }
+
+            Frame frame = read(file, pool);
+            if (frame != null)
+            {
+                return frame;
+            }
+            mSkipped++;
+        }
+    }
+
+    /**
+     * @return The next frame record of the segment, null after the last one
+     */
+    private Frame read(EventLogReader segment, FramePool pool)
+    {
+        while (segment.next())
+        {
+            if (segment.getType() != EventLog.TYPE_FRAME || segment.getFormat() == null)
+            {
+                continue;
+            }
+
+            ByteBuffer payload = segment.getPayload();
+            boolean zeroSuppressed = !segment.getFormat().isCompressed() && FrameHeader.isZeroSuppressed(payload);
+            Frame frame = pool.acquire(zeroSuppressed ? FrameHeader.getPlaneSize(payload) : payload.remaining());
+            if (segment.getFormat().isCompressed())
+            {
+                frame.set(++mNumber, segment.getCaptureTime() * 1000000L, segment.getCaptureTime(), System.nanoTime());
+                frame.setLayout(segment.getFormat(), 0, 0, 0, 0);
+            }
+            else if (!FrameHeader.read(payload, frame, ++mNumber, segment.getCaptureTime()))
+            {
+                frame.release();
+                mSkipped++;
+                continue;
+            }
+
+            ByteBuffer data = frame.getData();
+            if (zeroSuppressed)
+            {
+                if (!mCodec.decode(payload, data, frame.getWidth(), frame.getHeight(), frame.getFormat().getBytesPerSample()))
+                {
+                    frame.release();
+                    mSkipped++;
+                    continue;
+                }
+                data.limit(data.position() + frame.getRowStride() * frame.getHeight());
+                return frame;
+            }
+            data.put(payload);
+            data.flip();
+            return frame;
+        }
+        return null;
+    }
+
+    private Frame read(File file, FramePool pool) throws IOException
+    {
+        long captureTime = getCaptureTime(file);
+
+        FileInputStream input = new FileInputStream(file);
+        Frame frame = null;
+        try
+        {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            boolean compressed = file.getName().endsWith(FrameFormat.JPEG.getExtension());
+
+            if (!compressed)
+            {
+                mHeader.clear();
+                readFully(channel, mHeader);
+                mHeader.flip();
+                size -= FrameHeader.SIZE;
+            }
+
+            frame = pool.acquire((int) size);
+            if (compressed)
+            {
+                frame.set(++mNumber, captureTime * 1000000L, captureTime, System.nanoTime());
+                frame.setLayout(FrameFormat.JPEG, 0, 0, 0, 0);
+            }
+            else if (!FrameHeader.read(mHeader, frame, ++mNumber, captureTime))
+            {
+                frame.release();
+                return null;
+            }
+
+            ByteBuffer data = frame.getData();
+            data.limit((int) size);
+            readFully(channel, data);
+            data.flip();
+            return frame;
+        }
+        catch (EOFException e)
+        {
+            if (frame != null)
+            {
+                frame.release();
+            }
+            return null;
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * @return The time in the "&lt;deviceId&gt;_yyyyMMdd_HHmmss.SSS&lt;extension&gt;" file name,
+     * or the modification time of files named otherwise
+     */
+    private long getCaptureTime(File file)
+    {
+        String name = file.getName();
+        int start = name.indexOf('_') + 1;
+        if (start > 0 && name.length() >= start + 19)
+        {
+            try
+            {
+                return mTimeFormat.parse(name.substring(start, start + 19)).getTime();
+            }
+            catch (ParseException e)
+            {
+                // Not named by the storage layout
+            }
+        }
+        return file.lastModified();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mFiles.clear();
+        if (mSegment != null)
+        {
+            mSegment.close();
+            mSegment = null;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sparse index of one {@link EventLog} segment, kept next to it as "&lt;segment name&gt;.didx".
+ * Consecutive records in the same time bucket and geo cell share one entry, so the index of
+ * a segment stays a few kilobytes and finding a time range is a binary search over its
+ * mapping instead of a scan of the segment.
+ *
+ * <pre>
+ *   header:
+ *     int   magic "DIDX"
+ *     short version
+ *     short reserved
+ *     long  segment sequence number
+ *     long  bucket length (ms)
+ *     float cell size (degrees)
+ *     int   reserved
+ *   per entry:
+ *     long  earliest capture time of its records (ms)
+ *     long  latest capture time of the segment up to and including its records (ms)
+ *     int   geo cell, NO_CELL if the location was unknown
+ *     int   number of records
+ *     int   offset of the first record in the segment
+ *     int   length of the records
+ * </pre>
+ * Big endian. The latest capture time never decreases from entry to entry even if the pipeline
+ * persisted frames a little out of order, which is what makes the binary search valid.
+ *
+ * The index is only written when the log is flushed and is not synced: the segment is the
+ * truth, and {@link EventLog#open()} rebuilds any index which does not cover its segment.
+ */
+public class EventIndex implements Closeable
+{
+    public static final int MAGIC = 0x44494458; // "DIDX"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int ENTRY_SIZE = 32;
+    public static final String EXTENSION = ".didx";
+    public static final int NO_CELL = -1;
+
+    private static final float MIN_CELL_SIZE = 0.01f;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mBucketLength;
+    private final float mCellSize;
+    private final ByteBuffer mEntry = ByteBuffer.allocateDirect(ENTRY_SIZE);
+
+    private int mEntries;
+    private boolean mPending;
+    private long mBucket = Long.MIN_VALUE;
+    private int mCell;
+    private long mMinTime;
+    private long mMaxTime = Long.MIN_VALUE;
+    private int mRecords;
+    private long mOffset;
+    private long mLength;
+
+    /**
+     * Creates an empty index, replacing the file if there is one.
+     *
+     * @param bucketLength Milliseconds of capture time one entry covers at most
+     * @param cellSize     Size of a geo cell in degrees of latitude and longitude
+     */
+    public EventIndex(File file, long sequence, long bucketLength, float cellSize) throws IOException
+    {
+        mBucketLength = Math.max(1, bucketLength);
+        mCellSize = Math.max(MIN_CELL_SIZE, cellSize);
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mFile.setLength(0);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC)
+              .putShort(VERSION)
+              .putShort((short) 0)
+              .putLong(sequence)
+              .putLong(mBucketLength)
+              .putFloat(mCellSize)
+              .putInt(0);
+        header.flip();
+        write(header, 0);
+    }
+
+    public static File getFile(File segment)
+    {
+        return new File(segment.getParentFile(), segment.getName() + EXTENSION);
+    }
+
+    /**
+     * @return The cell of a location on a grid of cellSize degrees, NO_CELL for an unknown one
+     */
+    public static int getCell(float latitude, float longitude, float cellSize)
+    {
+        if (Float.isNaN(latitude) || Float.isNaN(longitude))
+        {
+            return NO_CELL;
+        }
+        return getRow(latitude, cellSize) * getColumns(cellSize) + getColumn(longitude, cellSize);
+    }
+
+    static int getRow(double latitude, float cellSize)
+    {
+        return (int) Math.floor((Math.max(-90, Math.min(90, latitude)) + 90) / cellSize);
+    }
+
+    static int getColumn(double longitude, float cellSize)
+    {
+        return (int) Math.floor((Math.max(-180, Math.min(180, longitude)) + 180) / cellSize);
+    }
+
+    static int getColumns(float cellSize)
+    {
+        return (int) Math.ceil(360 / cellSize) + 1;
+    }
+
+    /**
+     * Adds a record appended to the segment.
+     */
+    public void add(long time, float latitude, float longitude, long offset, int length) throws IOException
+    {
+        long bucket = time / mBucketLength;
+        int cell = getCell(latitude, longitude, mCellSize);
+        if (!mPending || bucket != mBucket || cell != mCell)
+        {
+            writePending();
+            mEntries += mPending ? 1 : 0;
+            mPending = true;
+            mBucket = bucket;
+            mCell = cell;
+            mMinTime = time;
+            mRecords = 0;
+            mOffset = offset;
+            mLength = 0;
+        }
+
+        mMinTime = Math.min(mMinTime, time);
+        mMaxTime = Math.max(mMaxTime, time);
+        mRecords++;
+        mLength = offset + length - mOffset;
+    }
+
+    /**
+     * Writes the entry still being added to, it is rewritten as more records join it.
+     */
+    public void flush() throws IOException
+    {
+        writePending();
+    }
+
+    private void writePending() throws IOException
+    {
+        if (!mPending)
+        {
+            return;
+        }
+
+        mEntry.clear();
+        mEntry.putLong(mMinTime)
+              .putLong(mMaxTime)
+              .putInt(mCell)
+              .putInt(mRecords)
+              .putInt((int) mOffset)
+              .putInt((int) mLength);
+        mEntry.flip();
+        write(mEntry, HEADER_SIZE + (long) mEntries * ENTRY_SIZE);
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Writes the last entry and syncs the index, once per segment.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            writePending();
+            mChannel.force(true);
+        }
+        finally
+        {
+            mFile.close();
+        }
+    }
+
+    /**
+     * @return true if the index file is intact and covers the segment up to its end
+     */
+    public static boolean covers(File index, long segmentEnd)
+    {
+        long length = index.length();
+        if (length < HEADER_SIZE || (length - HEADER_SIZE) % ENTRY_SIZE != 0)
+        {
+            return false;
+        }
+
+        try
+        {
+            Entries entries = new Entries(index);
+            try
+            {
+                int count = entries.size();
+                long end = count > 0 ? entries.getOffset(count - 1) + entries.getLength(count - 1) : EventLog.SEGMENT_HEADER_SIZE;
+                return end == segmentEnd;
+            }
+            finally
+            {
+                entries.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Read-only mapping of the entries of an index.
+     */
+    public static class Entries implements Closeable
+    {
+        private final RandomAccessFile mFile;
+        private final MappedByteBuffer mBuffer;
+        private final int mSize;
+        private final long mSequence;
+        private final long mBucketLength;
+        private final float mCellSize;
+
+        public Entries(File index) throws IOException
+        {
+            mFile = new RandomAccessFile(index, "r");
+            try
+            {
+                long length = mFile.length();
+                if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+                {
+                    throw new IOException("Not an event index: " + index);
+                }
+                mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                if (mBuffer.getInt(0) != MAGIC || mBuffer.getShort(4) != VERSION)
+                {
+                    throw new IOException("Not an event index: " + index);
+                }
+                mSequence = mBuffer.getLong(8);
+                mBucketLength = mBuffer.getLong(16);
+                mCellSize = mBuffer.getFloat(24);
+                mSize = (int) ((length - HEADER_SIZE) / ENTRY_SIZE);
+            }
+            catch (IOException e)
+            {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        public int size() { return mSize; }
+        public long getSequence() { return mSequence; }
+        public long getBucketLength() { return mBucketLength; }
+        public float getCellSize() { return mCellSize; }
+
+        public long getMinTime(int entry) { return mBuffer.getLong(HEADER_SIZE + entry * ENTRY_SIZE); }
+        public long getMaxTime(int entry) { return mBuffer.getLong(HEADER_SIZE + entry * ENTRY_SIZE + 8); }
+        public int getCell(int entry) { return mBuffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 16); }
+        public int getRecords(int entry) { return mBuffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 20); }
+        public int getOffset(int entry) { return mBuffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 24); }
+        public int getLength(int entry) { return mBuffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 28); }
+
+        /**
+         * @return The first entry which may hold records captured at or after the time,
+         * size() if there is none
+         */
+        public int search(long time)
+        {
+            int low = 0;
+            int high = mSize;
+            while (low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if (getMaxTime(middle) < time)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            mFile.close();
+        }
+    }
+}
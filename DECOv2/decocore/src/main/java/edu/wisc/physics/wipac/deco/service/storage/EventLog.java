@@ -0,0 +1,764 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.analysis.EventRecords;
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Append-only log of event records and frames, replacing one file per frame. The log is a
+ * sequence of segment files "&lt;deviceId&gt;_&lt;sequence&gt;.dlog" which are extended to their
+ * full size when created, so appending never changes the file size and a sync does not have
+ * to update it. A segment is rolled over once the next record does not fit or it gets older
+ * than the segment duration, and is then truncated to the records it holds.
+ *
+ * Records are length-prefixed and CRC-checked, and appended in batches by the
+ * {@link EventLogWriter}, which also decides when they are synced. After a crash the last
+ * segment is scanned on {@link #open()} and cut after its last intact record, so at most what
+ * was appended since the last {@link #flush()} is lost.
+ *
+ * Every segment has an {@link EventIndex} by capture time and location, written along with
+ * it and rebuilt from the segment on {@link #open()} if it does not match it.
+ *
+ * Each {@link StorageTier} has a log of its own in the same directory, see
+ * {@link #getName(String, StorageTier)}, so a {@link StorageBudget} can evict the segments of
+ * one tier before those of the next.
+ *
+ * <pre>
+ *   segment header:
+ *     int   magic "DLOG"
+ *     short version
+ *     short reserved
+ *     long  sequence number
+ *     long  creation time (ms)
+ *   per record:
+ *     int   payload length
+ *     int   CRC32 of the rest of the record header and the payload
+ *     byte  type, TYPE_EVENTS or TYPE_FRAME
+ *     byte  frame format (FrameFormat ordinal)
+ *     short reserved
+ *     long  frame number
+ *     long  capture time (ms)
+ *     float latitude, longitude (degrees, NaN if unknown)
+ *     ...   payload: an {@link EventRecordWriter} record, or the frame as {@link FrameWriter}
+ *           writes it (uncompressed frames with their {@link FrameHeader}, zero suppressed by
+ *           the {@link ZeroSuppressionCodec} if one is set and it makes them smaller)
+ * </pre>
+ * Headers are big endian. The unused, zeroed tail of a segment reads as a zero length,
+ * which ends it.
+ */
+public class EventLog implements Closeable
+{
+    public static final int MAGIC = 0x444c4f47; // "DLOG"
+    public static final short VERSION = 2;
+    public static final int SEGMENT_HEADER_SIZE = 24;
+    public static final int RECORD_HEADER_SIZE = 36;
+    public static final String EXTENSION = ".dlog";
+
+    public static final byte TYPE_EVENTS = 1;
+    public static final byte TYPE_FRAME = 2;
+
+    // Part of the record header covered by the CRC
+    static final int CRC_OFFSET = 8;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    public interface Listener
+    {
+        /**
+         * Called with the log's lock held once a segment is sealed, its records and index
+         * synced and its preallocated space given back. The segment is not changed again.
+         */
+        void onSegmentClosed(EventLog log, File segment);
+    }
+
+    private final File mDirectory;
+    private final String mDeviceId;
+    private final long mSegmentSize;
+    private final long mSegmentDuration;
+    private final long mIndexBucket;
+    private final float mIndexCell;
+
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mScratch = new byte[8192];
+    private final Frame[] mOne = new Frame[1];
+    private final byte[] mOneType = new byte[1];
+
+    // Per record of a batch: headers, encoded events and the gathering write of all of them
+    private int[] mLengths = new int[0];
+    private int[] mPositions = new int[0];
+    private ByteBuffer[] mGather = new ByteBuffer[0];
+    private ByteBuffer[] mRecordHeaders = new ByteBuffer[0];
+    private ByteBuffer[] mFrameHeaders = new ByteBuffer[0];
+    private ByteBuffer[] mEventBuffers = new ByteBuffer[0];
+    private ByteBuffer[] mEncodedBuffers = new ByteBuffer[0];
+
+    private ZeroSuppressionCodec mCodec;
+    private final FramePlane mPlane = new FramePlane();
+    private long mEncoded;
+    private long mEncodedRaw;
+    private long mEncodedBytes;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private EventIndex mIndex;
+    private StorageBudget mBudget;
+    private StorageTier mTier;
+    private StorageBudget.Entry mBudgetEntry;
+    private Listener mListener;
+    private File mSegment;
+    private long mSequence;
+    private long mSegmentCreated;
+    private long mSegmentCapacity;
+    private long mEnd;
+
+    private int mUnflushed;
+
+    private long mRecords;
+    private long mBytes;
+    private long mSegments;
+    private long mFlushes;
+    private long mFlushTime;
+    private long mRecovered;
+    private long mDiscarded;
+
+    /**
+     * @param segmentSize     Preallocated size of a segment in bytes, larger records get a
+     *                        segment of their own
+     * @param segmentDuration Milliseconds after which a segment is rolled over, 0 for no limit
+     * @param indexBucket     Milliseconds of capture time an index entry covers at most
+     * @param indexCell       Size of the index's geo cells in degrees
+     */
+    public EventLog(File directory, String deviceId, long segmentSize, long segmentDuration, long indexBucket, float indexCell)
+    {
+        mDirectory = directory;
+        mDeviceId = deviceId;
+        mSegmentSize = segmentSize;
+        mSegmentDuration = segmentDuration;
+        mIndexBucket = indexBucket;
+        mIndexCell = indexCell;
+    }
+
+    /**
+     * Configured by the deco.log.* settings: segment.size in megabytes, segment.duration in
+     * seconds, index.bucket in seconds, index.cell in degrees, and codec.enabled and
+     * codec.floor for the {@link ZeroSuppressionCodec}, 0 (lossless) unless set.
+     */
+    public EventLog(File directory, String deviceId, DecoSettings settings)
+    {
+        this(directory, deviceId,
+                settings.getLong("log.segment.size", 64) * 1024 * 1024,
+                settings.getLong("log.segment.duration", 3600) * 1000,
+                settings.getLong("log.index.bucket", 60) * 1000,
+                settings.getFloat("log.index.cell", 0.1f));
+        if (settings.getBoolean("log.codec.enabled", true))
+        {
+            setCodec(new ZeroSuppressionCodec(settings.getInt("log.codec.floor", 0)));
+        }
+    }
+
+    /**
+     * Zero suppresses the uncompressed frames appended from now on, null to store them as they are.
+     */
+    public synchronized void setCodec(ZeroSuppressionCodec codec)
+    {
+        mCodec = codec;
+    }
+
+    /**
+     * @return One log per {@link StorageTier} in the directory, indexed by the tier's ordinal
+     */
+    public static EventLog[] createTiers(File directory, String deviceId, DecoSettings settings)
+    {
+        EventLog[] logs = new EventLog[StorageTier.values().length];
+        for (StorageTier tier : StorageTier.values())
+        {
+            logs[tier.ordinal()] = new EventLog(directory, getName(deviceId, tier), settings);
+        }
+        return logs;
+    }
+
+    public File getDirectory()
+    {
+        return mDirectory;
+    }
+
+    /**
+     * @return The name the segments of the tier's log start with, the device id for the
+     * events and "&lt;deviceId&gt;-&lt;tier&gt;" for the others
+     */
+    public static String getName(String deviceId, StorageTier tier)
+    {
+        return tier == StorageTier.EVENTS ? deviceId : deviceId + "-" + tier.getName();
+    }
+
+    /**
+     * Adds the segments created from now on to the budget, with their preallocated size
+     * until they are closed.
+     */
+    public synchronized void setStorageBudget(StorageBudget budget, StorageTier tier)
+    {
+        mBudget = budget;
+        mTier = tier;
+    }
+
+    /**
+     * Notifies the listener of the segments sealed from now on, e.g. to upload them.
+     */
+    public synchronized void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * @return The segments of the log in the directory, oldest first
+     */
+    public static File[] listSegments(File directory, final String deviceId)
+    {
+        File[] segments = directory.listFiles(
+            new FileFilter()
+            {
+                @Override
+                public boolean accept(File file)
+                {
+                    String name = file.getName();
+                    return name.startsWith(deviceId + "_") && name.endsWith(EXTENSION);
+                }
+            });
+        if (segments == null)
+        {
+            return new File[0];
+        }
+
+        // The sequence is zero padded, names sort in log order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Recovers the last segment left by a previous run and rebuilds the indexes which do not
+     * match their segments, then continues the sequence in a new segment.
+     */
+    public synchronized void open() throws IOException
+    {
+        mDirectory.mkdirs();
+        File[] segments = listSegments(mDirectory, mDeviceId);
+        for (int i = 0; i < segments.length; i++)
+        {
+            File segment = segments[i];
+            if (i == segments.length - 1)
+            {
+                mSequence = getSequence(segment);
+                recover(segment);
+            }
+            else if (!EventIndex.covers(EventIndex.getFile(segment), segment.length()))
+            {
+                rebuildIndex(segment);
+            }
+        }
+    }
+
+    private static long getSequence(File segment)
+    {
+        String name = segment.getName();
+        try
+        {
+            return Long.parseLong(name.substring(name.lastIndexOf('_') + 1, name.length() - EXTENSION.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Cuts a segment which was not closed after its last intact record. Records behind a torn
+     * one are dropped too, they may have reached the flash out of order.
+     */
+    private void recover(File segment) throws IOException
+    {
+        long end = rebuildIndex(segment);
+
+        long length = segment.length();
+        if (length > end)
+        {
+            mDiscarded += length - end;
+            if (end <= SEGMENT_HEADER_SIZE)
+            {
+                segment.delete();
+                EventIndex.getFile(segment).delete();
+                return;
+            }
+
+            RandomAccessFile file = new RandomAccessFile(segment, "rw");
+            try
+            {
+                file.setLength(end);
+                file.getChannel().force(true);
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Indexes the intact records of a segment.
+     *
+     * @return Offset behind the last intact record, 0 if the segment has no valid header
+     */
+    private long rebuildIndex(File segment) throws IOException
+    {
+        EventLogReader reader;
+        try
+        {
+            reader = new EventLogReader(segment);
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+
+        try
+        {
+            EventIndex index = new EventIndex(EventIndex.getFile(segment), reader.getSequence(), mIndexBucket, mIndexCell);
+            try
+            {
+                while (reader.next())
+                {
+                    index.add(reader.getCaptureTime(), reader.getLatitude(), reader.getLongitude(),
+                            reader.getOffset(), (int) (reader.getEnd() - reader.getOffset()));
+                    mRecovered++;
+                }
+            }
+            finally
+            {
+                index.close();
+            }
+            return reader.getEnd();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Appends the events of a frame.
+     *
+     * @return Number of bytes appended
+     */
+    public synchronized int appendEvents(Frame frame) throws IOException
+    {
+        return appendOne(frame, TYPE_EVENTS);
+    }
+
+    /**
+     * Appends the frame data, the frame data's position is left unchanged.
+     *
+     * @return Number of bytes appended
+     */
+    public synchronized int appendFrame(Frame frame) throws IOException
+    {
+        return appendOne(frame, TYPE_FRAME);
+    }
+
+    private int appendOne(Frame frame, byte type) throws IOException
+    {
+        mOne[0] = frame;
+        mOneType[0] = type;
+        try
+        {
+            return append(mOne, mOneType, 1);
+        }
+        finally
+        {
+            mOne[0] = null;
+        }
+    }
+
+    /**
+     * Appends a batch of records in one gathering write, or one per segment if the batch rolls
+     * the segment over. Frame data positions are left unchanged. Nothing is synced, see
+     * {@link #flush()}.
+     *
+     * @param frames Frame of each record, a frame is listed twice to append its events and its data
+     * @param types  {@link #TYPE_EVENTS} or {@link #TYPE_FRAME} for each record
+     * @param count  Number of records
+     * @return Number of bytes appended
+     */
+    public synchronized int append(Frame[] frames, byte[] types, int count) throws IOException
+    {
+        return append(frames, types, count, null);
+    }
+
+    /**
+     * Same as {@link #append(Frame[], byte[], int)}, also reporting the size of each record.
+     *
+     * @param lengths Receives the bytes appended for each record, header included
+     */
+    public synchronized int append(Frame[] frames, byte[] types, int count, int[] lengths) throws IOException
+    {
+        ensureSlots(count);
+
+        long now = System.currentTimeMillis();
+        int appended = 0;
+        int first = 0;
+        long pending = 0;
+        for (int i = 0; i < count; i++)
+        {
+            int length = prepare(i, frames[i], types[i]);
+            if (lengths != null)
+            {
+                lengths[i] = length;
+            }
+            if (mChannel == null
+                    || mEnd + pending + length > mSegmentCapacity
+                    || (pending == 0 && mSegmentDuration > 0 && now - mSegmentCreated >= mSegmentDuration))
+            {
+                appended += write(frames, first, i);
+                rollover(now, length);
+                first = i;
+                pending = 0;
+            }
+            pending += length;
+        }
+        appended += write(frames, first, count);
+        return appended;
+    }
+
+    private void ensureSlots(int count)
+    {
+        if (mLengths.length >= count)
+        {
+            return;
+        }
+
+        int slots = Math.max(count, mLengths.length * 2);
+        mLengths = new int[slots];
+        mPositions = new int[slots];
+        mGather = new ByteBuffer[slots * 3];
+        mRecordHeaders = Arrays.copyOf(mRecordHeaders, slots);
+        mFrameHeaders = Arrays.copyOf(mFrameHeaders, slots);
+        mEventBuffers = Arrays.copyOf(mEventBuffers, slots);
+        mEncodedBuffers = Arrays.copyOf(mEncodedBuffers, slots);
+    }
+
+    /**
+     * Encodes the record header, and the events or frame header, of a record into its slot.
+     *
+     * @return Length of the record
+     */
+    private int prepare(int slot, Frame frame, byte type)
+    {
+        ByteBuffer header = null;
+        ByteBuffer payload;
+        if (type == TYPE_EVENTS)
+        {
+            EventRecords events = frame.getEvents();
+            int capacity = EventRecordWriter.getCapacity(events);
+            payload = mEventBuffers[slot];
+            if (payload == null || payload.capacity() < capacity)
+            {
+                payload = ByteBuffer.allocateDirect(capacity);
+                mEventBuffers[slot] = payload;
+            }
+            payload.clear();
+            EventRecordWriter.encode(payload, frame, events);
+        }
+        else
+        {
+            payload = frame.getData();
+            if (!frame.getFormat().isCompressed())
+            {
+                header = mFrameHeaders[slot];
+                if (header == null)
+                {
+                    header = FrameHeader.allocate();
+                    mFrameHeaders[slot] = header;
+                }
+                ByteBuffer encoded = mCodec != null ? encode(slot, frame) : null;
+                FrameHeader.write(header, frame, encoded != null);
+                if (encoded != null)
+                {
+                    payload = encoded;
+                }
+            }
+        }
+
+        int length = (header != null ? header.remaining() : 0) + payload.remaining();
+        ByteBuffer recordHeader = mRecordHeaders[slot];
+        if (recordHeader == null)
+        {
+            recordHeader = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE);
+            mRecordHeaders[slot] = recordHeader;
+        }
+        recordHeader.clear();
+        recordHeader.putInt(length)
+                    .putInt(0)
+                    .put(type)
+                    .put((byte) frame.getFormat().ordinal())
+                    .putShort((short) 0)
+                    .putLong(frame.getNumber())
+                    .putLong(frame.getCaptureTime())
+                    .putFloat(frame.getLatitude())
+                    .putFloat(frame.getLongitude());
+
+        mCrc.reset();
+        update(mCrc, recordHeader, CRC_OFFSET, RECORD_HEADER_SIZE, mScratch);
+        if (header != null)
+        {
+            update(mCrc, header, header.position(), header.limit(), mScratch);
+        }
+        update(mCrc, payload, payload.position(), payload.limit(), mScratch);
+        recordHeader.putInt(4, (int) mCrc.getValue());
+        recordHeader.flip();
+
+        mGather[slot * 3] = recordHeader;
+        mGather[slot * 3 + 1] = header != null ? header : EMPTY;
+        mGather[slot * 3 + 2] = payload;
+        mPositions[slot] = payload.position();
+        mLengths[slot] = RECORD_HEADER_SIZE + length;
+        return mLengths[slot];
+    }
+
+    /**
+     * @return The zero suppressed frame in the slot's buffer, null if it is not smaller
+     */
+    private ByteBuffer encode(int slot, Frame frame)
+    {
+        ByteBuffer data = frame.getData();
+        ByteBuffer encoded = mEncodedBuffers[slot];
+        if (encoded == null || encoded.capacity() < data.remaining())
+        {
+            encoded = ByteBuffer.allocateDirect(data.remaining());
+            mEncodedBuffers[slot] = encoded;
+        }
+        encoded.clear();
+        encoded.limit(data.remaining());
+
+        mPlane.set(data, data.position(), frame.getWidth(), frame.getHeight(), frame.getRowStride(),
+                frame.getPixelStride(), frame.getFormat().getBytesPerSample());
+        if (mCodec.encode(mPlane, encoded) < 0)
+        {
+            return null;
+        }
+        encoded.flip();
+
+        mEncoded++;
+        mEncodedRaw += data.remaining();
+        mEncodedBytes += encoded.remaining();
+        return encoded;
+    }
+
+    /**
+     * Writes the prepared records from up to to at the end of the segment, in one gathering write.
+     */
+    private int write(Frame[] frames, int from, int to) throws IOException
+    {
+        long length = 0;
+        for (int i = from; i < to; i++)
+        {
+            length += mLengths[i];
+        }
+        if (length == 0)
+        {
+            return 0;
+        }
+
+        try
+        {
+            mChannel.position(mEnd);
+            long remaining = length;
+            while (remaining > 0)
+            {
+                remaining -= mChannel.write(mGather, from * 3, (to - from) * 3);
+            }
+        }
+        finally
+        {
+            for (int i = from; i < to; i++)
+            {
+                mGather[i * 3 + 2].position(mPositions[i]);
+                mGather[i * 3 + 2] = null;
+            }
+        }
+
+        for (int i = from; i < to; i++)
+        {
+            Frame frame = frames[i];
+            mIndex.add(frame.getCaptureTime(), frame.getLatitude(), frame.getLongitude(), mEnd, mLengths[i]);
+            mEnd += mLengths[i];
+        }
+        mRecords += to - from;
+        mBytes += length;
+        mUnflushed += to - from;
+        return (int) length;
+    }
+
+    /**
+     * Feeds the bytes between from and to to the CRC without moving the buffer's position.
+     */
+    static void update(CRC32 crc, ByteBuffer buffer, int from, int to, byte[] scratch)
+    {
+        if (buffer.hasArray())
+        {
+            crc.update(buffer.array(), buffer.arrayOffset() + from, to - from);
+            return;
+        }
+
+        int position = buffer.position();
+        buffer.position(from);
+        while (from < to)
+        {
+            int length = Math.min(scratch.length, to - from);
+            buffer.get(scratch, 0, length);
+            crc.update(scratch, 0, length);
+            from += length;
+        }
+        buffer.position(position);
+    }
+
+    private void rollover(long now, int recordLength) throws IOException
+    {
+        closeSegment();
+
+        mSequence++;
+        mSegment = new File(mDirectory, String.format(Locale.US, "%s_%010d%s", mDeviceId, mSequence, EXTENSION));
+        mSegmentCreated = now;
+        mSegmentCapacity = Math.max(mSegmentSize, SEGMENT_HEADER_SIZE + recordLength);
+
+        mFile = new RandomAccessFile(mSegment, "rw");
+        mChannel = mFile.getChannel();
+        mFile.setLength(mSegmentCapacity);
+        mIndex = new EventIndex(EventIndex.getFile(mSegment), mSequence, mIndexBucket, mIndexCell);
+        if (mBudget != null)
+        {
+            mBudgetEntry = mBudget.add(mTier, new File[] { mSegment, EventIndex.getFile(mSegment) }, mSegmentCapacity, true);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(MAGIC)
+              .putShort(VERSION)
+              .putShort((short) 0)
+              .putLong(mSequence)
+              .putLong(mSegmentCreated);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining())
+        {
+            position += mChannel.write(header, position);
+        }
+        mEnd = SEGMENT_HEADER_SIZE;
+
+        // The new file and its size have to survive a crash before any record does
+        mChannel.force(true);
+        mSegments++;
+    }
+
+    /**
+     * Syncs the records appended since the last flush.
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (mChannel != null && mUnflushed > 0)
+        {
+            long start = System.nanoTime();
+            mIndex.flush();
+            mChannel.force(false);
+            mFlushTime += System.nanoTime() - start;
+            mFlushes++;
+            mUnflushed = 0;
+        }
+    }
+
+    private void closeSegment() throws IOException
+    {
+        if (mChannel == null)
+        {
+            return;
+        }
+
+        try
+        {
+            flush();
+            // Give back the preallocated space the segment did not use
+            mFile.setLength(mEnd);
+            mChannel.force(true);
+        }
+        finally
+        {
+            try
+            {
+                mIndex.close();
+            }
+            finally
+            {
+                mFile.close();
+                mFile = null;
+                mChannel = null;
+                mIndex = null;
+                if (mBudgetEntry != null)
+                {
+                    mBudget.close(mBudgetEntry, mSegment.length() + EventIndex.getFile(mSegment).length());
+                    mBudgetEntry = null;
+                }
+            }
+        }
+
+        if (mListener != null)
+        {
+            mListener.onSegmentClosed(this, mSegment);
+        }
+    }
+
+    /**
+     * @return The segment records are currently appended to, null before the first record
+     */
+    public synchronized File getSegment()
+    {
+        return mSegment;
+    }
+
+    public synchronized long getRecords()
+    {
+        return mRecords;
+    }
+
+    public synchronized long getBytes()
+    {
+        return mBytes;
+    }
+
+    public synchronized String report()
+    {
+        String report = String.format(Locale.US, "Event log: %d records (%d bytes) in %d segments, %d flushes avg %.2fms, %d records recovered, %d bytes discarded",
+                mRecords, mBytes, mSegments, mFlushes, mFlushes > 0 ? mFlushTime / 1e6 / mFlushes : 0, mRecovered, mDiscarded);
+        if (mEncoded > 0)
+        {
+            report += String.format(Locale.US, ", %d frames zero suppressed to %.1f%%", mEncoded, 100.0 * mEncodedBytes / mEncodedRaw);
+        }
+        return report;
+    }
+
+    /**
+     * Syncs and closes the current segment, the next append starts a new one.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        closeSegment();
+    }
+}
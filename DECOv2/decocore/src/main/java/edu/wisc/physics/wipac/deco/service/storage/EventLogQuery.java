@@ -0,0 +1,302 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Finds the records of an {@link EventLog} captured in a time range, optionally within a
+ * distance of a location. Each segment's {@link EventIndex} is binary searched for the start
+ * of the range and only the records of the entries in range (and near the location) are read.
+ * Segments without a usable index are scanned in full.
+ *
+ * Records are appended in about capture order; the entries are followed until they start more
+ * than one index bucket after the end of the range, so frames persisted up to a bucket late
+ * are still found. Records appended since the log was last flushed are not indexed yet.
+ */
+public class EventLogQuery implements Closeable
+{
+    private static final double EARTH_RADIUS = 6371; // km
+    private static final double KM_PER_DEGREE = 111.32;
+
+    private final File[] mSegments;
+    private final long mFrom;
+    private final long mTo;
+    private final boolean mNear;
+    private final double mLatitude;
+    private final double mLongitude;
+    private final double mRadius;
+
+    private int mSegment = -1;
+    private EventLogReader mReader;
+    private EventIndex.Entries mEntries;
+    private int mEntry;
+    private long mRangeEnd;
+    private int mMinRow, mMaxRow, mMinColumn, mMaxColumn, mColumns;
+
+    private long mSegmentsRead;
+    private long mEntriesRead;
+    private long mRecordsRead;
+    private long mMatches;
+
+    /**
+     * Records captured between from and to, inclusive, in milliseconds.
+     */
+    public EventLogQuery(File directory, String deviceId, long from, long to)
+    {
+        this(directory, deviceId, from, to, false, 0, 0, 0);
+    }
+
+    /**
+     * Records captured between from and to, inclusive, no further than radius kilometers from
+     * the location. Records without a location never match.
+     */
+    public EventLogQuery(File directory, String deviceId, long from, long to, double latitude, double longitude, double radius)
+    {
+        this(directory, deviceId, from, to, true, latitude, longitude, radius);
+    }
+
+    private EventLogQuery(File directory, String deviceId, long from, long to, boolean near, double latitude, double longitude, double radius)
+    {
+        mSegments = EventLog.listSegments(directory, deviceId);
+        mFrom = from;
+        mTo = to;
+        mNear = near;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mRadius = radius;
+    }
+
+    /**
+     * Moves to the next matching record, read through {@link #getReader()}.
+     *
+     * @return false once there are no more
+     */
+    public boolean next() throws IOException
+    {
+        while (true)
+        {
+            if (mReader == null && !openSegment())
+            {
+                return false;
+            }
+
+            while (mReader.getEnd() < mRangeEnd && mReader.next())
+            {
+                mRecordsRead++;
+                if (matches())
+                {
+                    mMatches++;
+                    return true;
+                }
+            }
+
+            if (!nextRange())
+            {
+                closeSegment();
+            }
+        }
+    }
+
+    /**
+     * @return Reader positioned on the matching record
+     */
+    public EventLogReader getReader()
+    {
+        return mReader;
+    }
+
+    private boolean openSegment() throws IOException
+    {
+        while (++mSegment < mSegments.length)
+        {
+            File segment = mSegments[mSegment];
+            try
+            {
+                mEntries = new EventIndex.Entries(EventIndex.getFile(segment));
+            }
+            catch (IOException e)
+            {
+                // No index, read the whole segment
+                mEntries = null;
+            }
+
+            if (mEntries != null)
+            {
+                mEntry = mEntries.search(mFrom);
+                if (mEntry == mEntries.size() || mEntries.getMinTime(mEntry) > getLast())
+                {
+                    // Nothing in range, the segment itself is not even opened
+                    mEntries.close();
+                    mEntries = null;
+                    continue;
+                }
+                mEntry--;
+                mRangeEnd = 0;
+            }
+            else
+            {
+                mRangeEnd = Long.MAX_VALUE;
+            }
+
+            try
+            {
+                mReader = new EventLogReader(segment);
+            }
+            catch (IOException e)
+            {
+                closeSegment();
+                continue;
+            }
+            mSegmentsRead++;
+
+            if (mNear && mEntries != null)
+            {
+                float cellSize = mEntries.getCellSize();
+                double latitudeRange = mRadius / KM_PER_DEGREE;
+                double longitudeRange = mRadius / (KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(mLatitude))));
+                mMinRow = EventIndex.getRow(mLatitude - latitudeRange, cellSize);
+                mMaxRow = EventIndex.getRow(mLatitude + latitudeRange, cellSize);
+                mMinColumn = EventIndex.getColumn(mLongitude - longitudeRange, cellSize);
+                mMaxColumn = EventIndex.getColumn(mLongitude + longitudeRange, cellSize);
+                mColumns = EventIndex.getColumns(cellSize);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Latest capture time an entry may start at and still hold records in range
+     */
+    private long getLast()
+    {
+        long bucket = mEntries.getBucketLength();
+        return mTo > Long.MAX_VALUE - bucket ? Long.MAX_VALUE : mTo + bucket;
+    }
+
+    /**
+     * Seeks to the records of the next index entry which may hold matches.
+     *
+     * @return false if the segment has none left
+     */
+    private boolean nextRange()
+    {
+        if (mEntries == null)
+        {
+            return false;
+        }
+
+        long last = getLast();
+        while (++mEntry < mEntries.size())
+        {
+            if (mEntries.getMinTime(mEntry) > last)
+            {
+                return false;
+            }
+            mEntriesRead++;
+            if (mNear && !isNear(mEntries.getCell(mEntry)))
+            {
+                continue;
+            }
+
+            int offset = mEntries.getOffset(mEntry);
+            mReader.seek(offset);
+            mRangeEnd = offset + mEntries.getLength(mEntry);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isNear(int cell)
+    {
+        if (cell == EventIndex.NO_CELL)
+        {
+            return false;
+        }
+
+        int row = cell / mColumns;
+        int column = cell % mColumns;
+        return row >= mMinRow && row <= mMaxRow && column >= mMinColumn && column <= mMaxColumn;
+    }
+
+    private boolean matches()
+    {
+        long time = mReader.getCaptureTime();
+        if (time < mFrom || time > mTo)
+        {
+            return false;
+        }
+        if (!mNear)
+        {
+            return true;
+        }
+
+        float latitude = mReader.getLatitude();
+        float longitude = mReader.getLongitude();
+        if (Float.isNaN(latitude) || Float.isNaN(longitude))
+        {
+            return false;
+        }
+        return distance(mLatitude, mLongitude, latitude, longitude) <= mRadius;
+    }
+
+    /**
+     * @return Great circle distance between two locations in kilometers
+     */
+    static double distance(double latitude1, double longitude1, double latitude2, double longitude2)
+    {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private void closeSegment() throws IOException
+    {
+        try
+        {
+            if (mEntries != null)
+            {
+                mEntries.close();
+            }
+        }
+        finally
+        {
+            mEntries = null;
+            if (mReader != null)
+            {
+                mReader.close();
+                mReader = null;
+            }
+        }
+    }
+
+    /**
+     * @return Segments opened so far, segments the index rules out are not counted
+     */
+    public long getSegmentsRead() { return mSegmentsRead; }
+
+    /**
+     * @return Records read so far, matching or not
+     */
+    public long getRecordsRead() { return mRecordsRead; }
+
+    public long getMatches() { return mMatches; }
+
+    public String report()
+    {
+        return String.format(Locale.US, "Query: %d matches, %d records read in %d segments, %d index entries",
+                mMatches, mRecordsRead, mSegmentsRead, mEntriesRead);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closeSegment();
+        mSegment = mSegments.length;
+    }
+}
@@ -0,0 +1,152 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+
+/**
+ * Reads the records of one {@link EventLog} segment through a read-only mapping. Reading stops
+ * at the end of the segment or at the first record which is cut short or fails its CRC.
+ */
+public class EventLogReader implements Closeable
+{
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final long mSequence;
+    private final long mCreated;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mScratch = new byte[8192];
+
+    private int mEnd = EventLog.SEGMENT_HEADER_SIZE;
+    private byte mType;
+    private FrameFormat mFormat;
+    private long mFrameNumber;
+    private long mCaptureTime;
+    private float mLatitude;
+    private float mLongitude;
+    private int mOffset;
+    private ByteBuffer mPayload;
+
+    /**
+     * @throws IOException If the file does not start with a segment header
+     */
+    public EventLogReader(File segment) throws IOException
+    {
+        mFile = new RandomAccessFile(segment, "r");
+        try
+        {
+            long length = mFile.length();
+            if (length < EventLog.SEGMENT_HEADER_SIZE || length > Integer.MAX_VALUE)
+            {
+                throw new IOException("Not an event log segment: " + segment);
+            }
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (mBuffer.getInt(0) != EventLog.MAGIC || mBuffer.getShort(4) != EventLog.VERSION)
+            {
+                throw new IOException("Not an event log segment: " + segment);
+            }
+            mSequence = mBuffer.getLong(8);
+            mCreated = mBuffer.getLong(16);
+        }
+        catch (IOException e)
+        {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public long getSequence() { return mSequence; }
+    public long getCreated() { return mCreated; }
+
+    /**
+     * Moves to the next intact record.
+     *
+     * @return false at the end of the segment or of its intact records
+     */
+    public boolean next()
+    {
+        mPayload = null;
+        int start = mEnd;
+        if (start + EventLog.RECORD_HEADER_SIZE > mBuffer.capacity())
+        {
+            return false;
+        }
+
+        int length = mBuffer.getInt(start);
+        int payload = start + EventLog.RECORD_HEADER_SIZE;
+        if (length <= 0 || length > mBuffer.capacity() - payload)
+        {
+            return false;
+        }
+
+        mCrc.reset();
+        EventLog.update(mCrc, mBuffer, start + EventLog.CRC_OFFSET, payload + length, mScratch);
+        if ((int) mCrc.getValue() != mBuffer.getInt(start + 4))
+        {
+            return false;
+        }
+
+        int format = mBuffer.get(start + 9);
+        mType = mBuffer.get(start + 8);
+        mFormat = format >= 0 && format < FrameFormat.values().length ? FrameFormat.values()[format] : null;
+        mFrameNumber = mBuffer.getLong(start + 12);
+        mCaptureTime = mBuffer.getLong(start + 20);
+        mLatitude = mBuffer.getFloat(start + 28);
+        mLongitude = mBuffer.getFloat(start + 32);
+        mOffset = start;
+
+        ByteBuffer view = mBuffer.duplicate();
+        view.limit(payload + length).position(payload);
+        mPayload = view.slice();
+        mEnd = payload + length;
+        return true;
+    }
+
+    /**
+     * @return {@link EventLog#TYPE_EVENTS} or {@link EventLog#TYPE_FRAME}
+     */
+    public byte getType() { return mType; }
+    public FrameFormat getFormat() { return mFormat; }
+    public long getFrameNumber() { return mFrameNumber; }
+    public long getCaptureTime() { return mCaptureTime; }
+    public float getLatitude() { return mLatitude; }
+    public float getLongitude() { return mLongitude; }
+
+    /**
+     * @return Offset of the current record in the segment
+     */
+    public long getOffset() { return mOffset; }
+
+    /**
+     * @return The payload of the current record, a view of the mapping valid until the reader
+     * is closed
+     */
+    public ByteBuffer getPayload() { return mPayload; }
+
+    /**
+     * @return Offset behind the last record read
+     */
+    public long getEnd() { return mEnd; }
+
+    /**
+     * Continues reading at a record offset, e.g. one taken from the segment's {@link EventIndex}.
+     */
+    public void seek(long offset)
+    {
+        mPayload = null;
+        mEnd = (int) Math.max(EventLog.SEGMENT_HEADER_SIZE, Math.min(offset, mBuffer.capacity()));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        mFile.close();
+    }
+}
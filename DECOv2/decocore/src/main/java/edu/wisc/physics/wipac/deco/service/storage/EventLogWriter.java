@@ -0,0 +1,392 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.LatencyHistogram;
+
+/**
+ * Writes frames to the {@link EventLog}s of the {@link StorageTier}s on a thread of its own:
+ * events to the events log, and the frame data to the frames log if the trigger kept the frame
+ * or to the sampled log if it did not, e.g. with the trigger off. Frames are queued, and
+ * whatever has piled up while the previous batch was written goes out as the next batch in a
+ * single gathering write per log, synced according to the {@link Durability}.
+ *
+ * The queue is bounded: when storage stalls, {@link #submit(Frame)} blocks the persist stage,
+ * which then backs up the analysis stages until their overflow policies drop frames. The
+ * camera callbacks never wait for storage.
+ *
+ * Configured by the deco.writer.* settings: queue (frames), batch.records, batch.size (MB),
+ * durability and sync.interval (ms).
+ */
+public class EventLogWriter
+{
+    private static final long POLL_TIMEOUT = 100; // milliseconds
+
+    public enum Durability
+    {
+        /**
+         * Sync after every batch, a crash loses at most the batch being written.
+         */
+        BATCH,
+
+        /**
+         * Sync once the sync interval has passed since the last sync.
+         */
+        INTERVAL,
+
+        /**
+         * Leave it to the kernel, sync only when a segment is closed.
+         */
+        NEVER
+    }
+
+    public interface Listener
+    {
+        /**
+         * Called on the writer thread before the frame is released.
+         *
+         * @param segment Segment holding the frame's events, or its data if it has none
+         * @param bytes   Bytes appended for the frame, events and data
+         */
+        void onWritten(Frame frame, File segment, int bytes);
+
+        void onError(Frame frame, Exception e);
+    }
+
+    private final EventLog[] mLogs;
+    private final boolean mPersistFrames;
+    private final Durability mDurability;
+    private final long mSyncInterval;
+    private final int mMaxBatchRecords;
+    private final long mMaxBatchBytes;
+    private final Listener mListener;
+    private final BlockingQueue<Frame> mQueue;
+
+    private final Frame[] mBatch;
+    private final Frame[][] mRecords;
+    private final byte[][] mTypes;
+    private final int[][] mSlots;
+    private final int[][] mLengths;
+    private final int[] mCounts;
+    private final int[] mFrameBytes;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private long mLastSync;
+
+    private final AtomicLong mMaxQueueDepth = new AtomicLong();
+    private final AtomicLong mBlocked = new AtomicLong();
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+    private final AtomicLong mMaxBatch = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram();
+    private final LatencyHistogram mSyncLatency = new LatencyHistogram();
+    private final LatencyHistogram mFrameLatency = new LatencyHistogram();
+
+    private long mReportTime = System.nanoTime();
+    private long mReportBytes;
+
+    /**
+     * @param logs          One log per tier, see {@link EventLog#createTiers}
+     * @param persistFrames Append the frame data of frames with events too, not only the events
+     */
+    public EventLogWriter(EventLog[] logs, boolean persistFrames, DecoSettings settings, Listener listener)
+    {
+        mLogs = logs;
+        mPersistFrames = persistFrames;
+        mDurability = settings.getEnum("writer.durability", Durability.class, Durability.BATCH);
+        mSyncInterval = settings.getLong("writer.sync.interval", 1000);
+        mMaxBatchRecords = Math.max(1, settings.getInt("writer.batch.records", 16));
+        mMaxBatchBytes = settings.getLong("writer.batch.size", 8) * 1024 * 1024;
+        mListener = listener;
+        mQueue = new ArrayBlockingQueue<>(Math.max(1, settings.getInt("writer.queue", 32)));
+
+        mBatch = new Frame[mMaxBatchRecords];
+        mRecords = new Frame[logs.length][mMaxBatchRecords];
+        mTypes = new byte[logs.length][mMaxBatchRecords];
+        mSlots = new int[logs.length][mMaxBatchRecords];
+        mLengths = new int[logs.length][mMaxBatchRecords];
+        mCounts = new int[logs.length];
+        mFrameBytes = new int[mMaxBatchRecords];
+    }
+
+    public Durability getDurability()
+    {
+        return mDurability;
+    }
+
+    public synchronized void start()
+    {
+        if (mRunning)
+        {
+            return;
+        }
+
+        mRunning = true;
+        mLastSync = System.nanoTime();
+        mThread = new Thread(
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    writeFrames();
+                }
+            },
+            "Event Log Writer Thread");
+        mThread.start();
+    }
+
+    /**
+     * Writes what is still queued, syncs and stops the writer thread. Stop the pipeline first
+     * so nothing is submitted meanwhile.
+     */
+    public synchronized void stop()
+    {
+        mRunning = false;
+        if (mThread != null)
+        {
+            try
+            {
+                mThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /**
+     * Queues a frame, waiting for room while storage is behind. The writer owns the frame from
+     * here on and releases it once written.
+     */
+    public void submit(Frame frame) throws InterruptedException
+    {
+        if (!mQueue.offer(frame))
+        {
+            mBlocked.incrementAndGet();
+            mQueue.put(frame);
+        }
+
+        long depth = mQueue.size();
+        long max;
+        while (depth > (max = mMaxQueueDepth.get()))
+        {
+            if (mMaxQueueDepth.compareAndSet(max, depth))
+            {
+                break;
+            }
+        }
+    }
+
+    public int getQueueDepth()
+    {
+        return mQueue.size();
+    }
+
+    private void writeFrames()
+    {
+        while (mRunning || !mQueue.isEmpty())
+        {
+            Frame first;
+            try
+            {
+                first = mQueue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+
+            if (first == null)
+            {
+                syncIfDue();
+                continue;
+            }
+
+            // Everything that piled up during the last write, within the batch limits
+            int count = 0;
+            long bytes = 0;
+            Frame frame = first;
+            do
+            {
+                mBatch[count++] = frame;
+                bytes += frame.getData().remaining();
+            }
+            while (count < mMaxBatchRecords && bytes < mMaxBatchBytes && (frame = mQueue.poll()) != null);
+
+            write(count);
+        }
+
+        try
+        {
+            flushLogs();
+        }
+        catch (IOException e)
+        {
+            mErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param slot Index of the frame in the batch
+     */
+    private void addRecord(StorageTier tier, int slot, byte type)
+    {
+        int log = tier.ordinal();
+        mRecords[log][mCounts[log]] = mBatch[slot];
+        mSlots[log][mCounts[log]] = slot;
+        mTypes[log][mCounts[log]++] = type;
+    }
+
+    private void write(int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Frame frame = mBatch[i];
+            if (frame.hasEvents())
+            {
+                addRecord(StorageTier.EVENTS, i, EventLog.TYPE_EVENTS);
+            }
+            if (mPersistFrames || !frame.hasEvents())
+            {
+                addRecord(StorageTier.ofFrame(frame.isTriggered()), i, EventLog.TYPE_FRAME);
+            }
+        }
+
+        Exception error = null;
+        int bytes = 0;
+        long start = System.nanoTime();
+        try
+        {
+            for (int log = 0; log < mLogs.length; log++)
+            {
+                if (mCounts[log] > 0)
+                {
+                    bytes += mLogs[log].append(mRecords[log], mTypes[log], mCounts[log], mLengths[log]);
+                    for (int i = 0; i < mCounts[log]; i++)
+                    {
+                        mFrameBytes[mSlots[log][i]] += mLengths[log][i];
+                    }
+                }
+            }
+            long written = System.nanoTime();
+            mWriteLatency.record(written - start);
+
+            if (mDurability == Durability.BATCH)
+            {
+                sync();
+            }
+            else
+            {
+                syncIfDue();
+            }
+        }
+        catch (IOException e)
+        {
+            error = e;
+            mErrors.incrementAndGet();
+        }
+
+        long end = System.nanoTime();
+        mBatches.incrementAndGet();
+        mFrames.addAndGet(count);
+        mBytes.addAndGet(bytes);
+        if (count > mMaxBatch.get())
+        {
+            mMaxBatch.set(count);
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            Frame frame = mBatch[i];
+            int frameBytes = mFrameBytes[i];
+            mBatch[i] = null;
+            mFrameBytes[i] = 0;
+            if (error == null)
+            {
+                // From acquisition until on storage
+                mFrameLatency.record(end - frame.getAcquireTime());
+                StorageTier tier = frame.hasEvents() ? StorageTier.EVENTS : StorageTier.ofFrame(frame.isTriggered());
+                mListener.onWritten(frame, mLogs[tier.ordinal()].getSegment(), frameBytes);
+            }
+            else
+            {
+                mListener.onError(frame, error);
+            }
+            frame.release();
+        }
+        for (int log = 0; log < mLogs.length; log++)
+        {
+            for (int i = 0; i < mCounts[log]; i++)
+            {
+                mRecords[log][i] = null;
+            }
+            mCounts[log] = 0;
+        }
+    }
+
+    private void syncIfDue()
+    {
+        if (mDurability == Durability.INTERVAL && System.nanoTime() - mLastSync >= mSyncInterval * 1000000)
+        {
+            try
+            {
+                sync();
+            }
+            catch (IOException e)
+            {
+                mErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private void sync() throws IOException
+    {
+        long start = System.nanoTime();
+        flushLogs();
+        mLastSync = System.nanoTime();
+        mSyncLatency.record(mLastSync - start);
+    }
+
+    private void flushLogs() throws IOException
+    {
+        for (EventLog log : mLogs)
+        {
+            log.flush();
+        }
+    }
+
+    /**
+     * @return Statistics since the writer started, the write rate since the previous report
+     */
+    public synchronized String report()
+    {
+        long now = System.nanoTime();
+        long bytes = mBytes.get();
+        double seconds = (now - mReportTime) / 1e9;
+        double rate = seconds > 0 ? (bytes - mReportBytes) / seconds : 0;
+        mReportTime = now;
+        mReportBytes = bytes;
+
+        long batches = mBatches.get();
+        return String.format(Locale.US,
+                "Writer (%s): %d frames in %d batches (avg %.1f, max %d), %d bytes, %.1fKB/s, queue %d (max %d), %d blocked, %d errors; "
+                        + "write %s; sync %s; acquire to stored %s",
+                mDurability, mFrames.get(), batches, batches > 0 ? (double) mFrames.get() / batches : 0, mMaxBatch.get(),
+                bytes, rate / 1024, mQueue.size(), mMaxQueueDepth.get(), mBlocked.get(), mErrors.get(),
+                mWriteLatency.report(), mSyncLatency.report(), mFrameLatency.report());
+    }
+}
@@ -0,0 +1,153 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.wisc.physics.wipac.deco.service.analysis.EventRecords;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Writes the events of a frame to a compact binary file, a few kilobytes per event instead
+ * of the megabytes of the full frame.
+ *
+ * <pre>
+ *   int   magic "DEVT"
+ *   short version
+ *   short number of events
+ *   long  frame number
+ *   long  sensor timestamp (ns)
+ *   long  capture time (ms)
+ *   byte  frame format (FrameFormat ordinal)
+ *   byte  1 if events were left out because there were too many
+ *   short reserved
+ *   int   frame width
+ *   int   frame height
+ *   int   threshold
+ *   int   baseline
+ *   per event:
+ *     short min x, min y, max x, max y
+ *     int   pixels
+ *     long  summed intensity above baseline
+ *     int   peak value
+ *     float centroid x, centroid y
+ *     short patch x, patch y, patch width, patch height
+ *     short patch pixels, row by row
+ * </pre>
+ * Everything is big endian.
+ */
+public class EventRecordWriter
+{
+    public static final int MAGIC = 0x44455654; // "DEVT"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 52;
+    public static final int EVENT_SIZE = 40;
+
+    private final ThreadLocal<ByteBuffer> mBuffer = new ThreadLocal<>();
+
+    /**
+     * @return Number of bytes written
+     */
+    public int write(File file, Frame frame) throws IOException
+    {
+        ByteBuffer buffer = encode(frame);
+        int length = buffer.remaining();
+        FileOutputStream output = new FileOutputStream(file);
+        try
+        {
+            FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+
+        return length;
+    }
+
+    /**
+     * Encodes the events of the frame into a buffer of the calling thread, valid until its
+     * next call.
+     */
+    public ByteBuffer encode(Frame frame)
+    {
+        EventRecords events = frame.getEvents();
+        ByteBuffer buffer = getBuffer(events);
+        encode(buffer, frame, events);
+        return buffer;
+    }
+
+    private ByteBuffer getBuffer(EventRecords events)
+    {
+        int capacity = getCapacity(events);
+        ByteBuffer buffer = mBuffer.get();
+        if (buffer == null || buffer.capacity() < capacity)
+        {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            mBuffer.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return Size of the largest record the events can be encoded to
+     */
+    static int getCapacity(EventRecords events)
+    {
+        return HEADER_SIZE + events.getMaxEvents() * (EVENT_SIZE + 2 * events.getMaxPatchSize() * events.getMaxPatchSize());
+    }
+
+    static void encode(ByteBuffer buffer, Frame frame, EventRecords events)
+    {
+        buffer.putInt(MAGIC)
+              .putShort(VERSION)
+              .putShort((short) events.size())
+              .putLong(frame.getNumber())
+              .putLong(frame.getTimestamp())
+              .putLong(frame.getCaptureTime())
+              .put((byte) frame.getFormat().ordinal())
+              .put((byte) (events.isOverflow() ? 1 : 0))
+              .putShort((short) 0)
+              .putInt(frame.getWidth())
+              .putInt(frame.getHeight())
+              .putInt(events.getThreshold())
+              .putInt(events.getBaseline());
+
+        for (int event = 0; event < events.size(); event++)
+        {
+            int patchWidth = events.getPatchWidth(event);
+            int patchHeight = events.getPatchHeight(event);
+
+            buffer.putShort((short) events.getMinX(event))
+                  .putShort((short) events.getMinY(event))
+                  .putShort((short) events.getMaxX(event))
+                  .putShort((short) events.getMaxY(event))
+                  .putInt(events.getPixels(event))
+                  .putLong(events.getSum(event))
+                  .putInt(events.getPeak(event))
+                  .putFloat(events.getCentroidX(event))
+                  .putFloat(events.getCentroidY(event))
+                  .putShort((short) events.getPatchX(event))
+                  .putShort((short) events.getPatchY(event))
+                  .putShort((short) patchWidth)
+                  .putShort((short) patchHeight);
+
+            for (int y = 0; y < patchHeight; y++)
+            {
+                for (int x = 0; x < patchWidth; x++)
+                {
+                    buffer.putShort((short) events.getPatchPixel(event, x, y));
+                }
+            }
+        }
+
+        buffer.flip();
+    }
+}
@@ -0,0 +1,120 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+
+/**
+ * Header written in front of uncompressed frame data so raw dumps can be read back without
+ * knowing the camera that produced them. JPEG frames are stored as plain JPEG files.
+ *
+ * <pre>
+ *   int   magic "DECO"
+ *   short version
+ *   byte  frame format (FrameFormat ordinal)
+ *   byte  flags: FLAG_LITTLE_ENDIAN if 16 bit samples are little endian,
+ *         FLAG_ZERO_SUPPRESSED if the data is encoded by the {@link ZeroSuppressionCodec}
+ *   int   width
+ *   int   height
+ *   int   row stride
+ *   int   pixel stride
+ *   long  sensor timestamp (ns)
+ * </pre>
+ * The header itself is big endian. Zero suppressed data decodes to a packed plane, the
+ * header then holds its row and pixel stride.
+ */
+public class FrameHeader
+{
+    public static final int MAGIC = 0x4445434f; // "DECO"
+    public static final short VERSION = 1;
+    public static final int SIZE = 32;
+
+    public static final int FLAG_LITTLE_ENDIAN = 1;
+    public static final int FLAG_ZERO_SUPPRESSED = 2;
+
+    private static final int FLAGS_OFFSET = 7;
+
+    public static ByteBuffer allocate()
+    {
+        return ByteBuffer.allocateDirect(SIZE);
+    }
+
+    /**
+     * Encodes the header of the frame into the buffer and flips it, ready to be written.
+     */
+    public static void write(ByteBuffer header, Frame frame)
+    {
+        write(header, frame, false);
+    }
+
+    /**
+     * @param zeroSuppressed true if the data following the header is the frame encoded by the
+     *                       {@link ZeroSuppressionCodec}
+     */
+    public static void write(ByteBuffer header, Frame frame, boolean zeroSuppressed)
+    {
+        int bytesPerSample = frame.getFormat().getBytesPerSample();
+        header.clear();
+        header.putInt(MAGIC)
+              .putShort(VERSION)
+              .put((byte) frame.getFormat().ordinal())
+              .put((byte) ((frame.getData().order() == ByteOrder.LITTLE_ENDIAN ? FLAG_LITTLE_ENDIAN : 0)
+                      | (zeroSuppressed ? FLAG_ZERO_SUPPRESSED : 0)))
+              .putInt(frame.getWidth())
+              .putInt(frame.getHeight())
+              .putInt(zeroSuppressed ? frame.getWidth() * bytesPerSample : frame.getRowStride())
+              .putInt(zeroSuppressed ? bytesPerSample : frame.getPixelStride())
+              .putLong(frame.getTimestamp());
+        header.flip();
+    }
+
+    /**
+     * @return true if the header at the buffer's position is followed by zero suppressed data
+     */
+    public static boolean isZeroSuppressed(ByteBuffer header)
+    {
+        return header.remaining() >= SIZE && header.getInt(header.position()) == MAGIC
+                && (header.get(header.position() + FLAGS_OFFSET) & FLAG_ZERO_SUPPRESSED) != 0;
+    }
+
+    /**
+     * @return Size of the plane described by the header at the buffer's position
+     */
+    public static int getPlaneSize(ByteBuffer header)
+    {
+        return header.getInt(header.position() + 16) * header.getInt(header.position() + 12);
+    }
+
+    /**
+     * Decodes a header written by {@link #write(ByteBuffer, Frame)} and applies it to the frame:
+     * layout, sensor timestamp and byte order of the data.
+     *
+     * @return false if the buffer does not start with a header of this version
+     */
+    public static boolean read(ByteBuffer header, Frame frame, long number, long captureTime)
+    {
+        if (header.remaining() < SIZE || header.getInt() != MAGIC || header.getShort() != VERSION)
+        {
+            return false;
+        }
+
+        int format = header.get();
+        if (format < 0 || format >= FrameFormat.values().length)
+        {
+            return false;
+        }
+        ByteOrder order = (header.get() & FLAG_LITTLE_ENDIAN) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        int width = header.getInt();
+        int height = header.getInt();
+        int rowStride = header.getInt();
+        int pixelStride = header.getInt();
+        long timestamp = header.getLong();
+
+        frame.getData().order(order);
+        frame.set(number, timestamp, captureTime, System.nanoTime());
+        frame.setLayout(FrameFormat.values()[format], width, height, rowStride, pixelStride);
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import edu.wisc.physics.wipac.deco.service.analysis.TriggerResult;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Records the trigger statistics of every scanned frame, one CSV line per frame, in a
+ * "&lt;deviceId&gt;_statistics.csv" file in the hourly frame directory. Frames without hit
+ * candidates are discarded, so this is all that is left of them.
+ */
+public class FrameStatisticsLog
+{
+    private static final String HEADER = "frame,timestamp,time,mean,sigma,threshold,max,max_x,max_y,hits,triggered,scan_us\n";
+    private static final int FLUSH_LINES = 100;
+
+    private final StorageLayout mLayout;
+    private final StringBuilder mLine = new StringBuilder(128);
+    private char[] mChars = new char[128];
+
+    private File mDirectory;
+    private Writer mWriter;
+    private int mUnflushed;
+
+    public FrameStatisticsLog(StorageLayout layout)
+    {
+        mLayout = layout;
+    }
+
+    public synchronized void record(Frame frame) throws IOException
+    {
+        File directory = mLayout.getDirectory(frame.getCaptureTime());
+        if (directory != mDirectory || mWriter == null)
+        {
+            close();
+            File file = new File(directory, mLayout.getDeviceId() + "_statistics.csv");
+            boolean exists = file.exists();
+            mWriter = new BufferedWriter(new FileWriter(file, true));
+            mDirectory = directory;
+            if (!exists)
+            {
+                mWriter.write(HEADER);
+            }
+        }
+
+        TriggerResult result = frame.getTriggerResult();
+        mLine.setLength(0);
+        mLine.append(frame.getNumber()).append(',')
+             .append(frame.getTimestamp()).append(',')
+             .append(frame.getCaptureTime()).append(',')
+             .append(result.getMean()).append(',')
+             .append(result.getSigma()).append(',')
+             .append(result.getThreshold()).append(',')
+             .append(result.getMaxValue()).append(',')
+             .append(result.getMaxX()).append(',')
+             .append(result.getMaxY()).append(',')
+             .append(result.getHits()).append(',')
+             .append(result.isTriggered() ? 1 : 0).append(',')
+             .append(result.getScanTime() / 1000).append('\n');
+
+        int length = mLine.length();
+        if (mChars.length < length)
+        {
+            mChars = new char[length];
+        }
+        mLine.getChars(0, length, mChars, 0);
+        mWriter.write(mChars, 0, length);
+
+        if (++mUnflushed >= FLUSH_LINES)
+        {
+            flush();
+        }
+    }
+
+    public synchronized void flush() throws IOException
+    {
+        if (mWriter != null)
+        {
+            mWriter.flush();
+            mUnflushed = 0;
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (mWriter != null)
+        {
+            try
+            {
+                mWriter.close();
+            }
+            finally
+            {
+                mWriter = null;
+                mDirectory = null;
+                mUnflushed = 0;
+            }
+        }
+    }
+}
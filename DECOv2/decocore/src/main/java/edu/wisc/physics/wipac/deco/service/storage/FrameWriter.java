@@ -0,0 +1,116 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Writes frame buffers to files. Uncompressed frames get a {@link FrameHeader} in front of
+ * their data.
+ */
+public class FrameWriter
+{
+    private final boolean mHeapCopy;
+
+    private final ThreadLocal<ByteBuffer[]> mBuffers =
+        new ThreadLocal<ByteBuffer[]>()
+        {
+            @Override
+            protected ByteBuffer[] initialValue()
+            {
+                return new ByteBuffer[] { FrameHeader.allocate(), null };
+            }
+        };
+
+    /**
+     * @param heapCopy Copy the buffer into a new byte array before writing it, the way frames
+     *                 used to be saved. Only useful to compare allocations against.
+     */
+    public FrameWriter(boolean heapCopy)
+    {
+        mHeapCopy = heapCopy;
+    }
+
+    /**
+     * Writes the frame to the file, the frame data's position is left unchanged.
+     *
+     * @return Number of bytes written
+     */
+    public int write(File file, Frame frame) throws IOException
+    {
+        ByteBuffer data = frame.getData();
+        if (frame.getFormat().isCompressed())
+        {
+            return write(file, data);
+        }
+
+        ByteBuffer[] buffers = mBuffers.get();
+        FrameHeader.write(buffers[0], frame);
+        buffers[1] = data;
+
+        int position = data.position();
+        int length = FrameHeader.SIZE + data.remaining();
+
+        FileOutputStream output = new FileOutputStream(file);
+        try
+        {
+            // Header and data in a single gathering write
+            FileChannel channel = output.getChannel();
+            while (data.hasRemaining())
+            {
+                channel.write(buffers);
+            }
+        }
+        finally
+        {
+            buffers[1] = null;
+            data.position(position);
+            output.close();
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes the bytes between the buffer's position and limit to the file. The buffer's
+     * position is left unchanged.
+     *
+     * @return Number of bytes written
+     */
+    public int write(File file, ByteBuffer data) throws IOException
+    {
+        int position = data.position();
+        int length = data.remaining();
+
+        FileOutputStream output = new FileOutputStream(file);
+        try
+        {
+            if (mHeapCopy)
+            {
+                byte[] bytes = new byte[length];
+                data.get(bytes);
+                output.write(bytes);
+            }
+            else
+            {
+                // Direct buffers go straight to the file, no copy on the Java heap
+                FileChannel channel = output.getChannel();
+                while (data.hasRemaining())
+                {
+                    channel.write(data);
+                }
+            }
+        }
+        finally
+        {
+            data.position(position);
+            output.close();
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,281 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+
+/**
+ * Keeps what the persist path stores within a byte budget. Every file (or event log segment
+ * with its index) is added with its {@link StorageTier} once written, so the usage is a
+ * running total and the directories are only walked once, by {@link #scan}.
+ *
+ * Each tier is a queue in the order files were added. When the usage exceeds the budget the
+ * oldest file of the lowest tier is deleted, so one eviction is a poll and a delete: sampled
+ * frames go first, then full frames the trigger kept, event records last. An
+ * event log segment still being appended to is {@link Entry#isOpen() open} and is counted
+ * with its preallocated size but never evicted.
+ *
+ * Thread safe, entries are added from the persist stage and the event log writer.
+ */
+public class StorageBudget
+{
+    private static final String EVENT_FILE_EXTENSION = ".evt";
+
+    public interface Listener
+    {
+        /**
+         * Called on the thread whose addition exceeded the budget.
+         */
+        void onEvicted(StorageTier tier, File file, long bytes);
+    }
+
+    /**
+     * Files stored together and evicted together, e.g. a segment and its index.
+     */
+    public static class Entry
+    {
+        private final StorageTier mTier;
+        private final File[] mFiles;
+        private long mSize;
+        private boolean mOpen;
+
+        private Entry(StorageTier tier, File[] files, long size, boolean open)
+        {
+            mTier = tier;
+            mFiles = files;
+            mSize = size;
+            mOpen = open;
+        }
+
+        public StorageTier getTier() { return mTier; }
+        public long getSize() { return mSize; }
+        public boolean isOpen() { return mOpen; }
+    }
+
+    private final long mBudget;
+    private final Listener mListener;
+    private final ArrayDeque<Entry>[] mQueues;
+    private final long[] mUsage = new long[StorageTier.values().length];
+    private final long[] mEvictedFiles = new long[StorageTier.values().length];
+    private final long[] mEvictedBytes = new long[StorageTier.values().length];
+
+    private long mTotal;
+    private long mFailed;
+
+    /**
+     * @param budget Bytes the stored files may take, 0 for no limit
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public StorageBudget(long budget, Listener listener)
+    {
+        mBudget = budget;
+        mListener = listener;
+        mQueues = new ArrayDeque[StorageTier.values().length];
+        for (int i = 0; i < mQueues.length; i++)
+        {
+            mQueues[i] = new ArrayDeque<>();
+        }
+    }
+
+    public long getBudget() { return mBudget; }
+    public synchronized long getUsage() { return mTotal; }
+
+    /**
+     * Adds a closed file, evicting older ones if it exceeds the budget.
+     */
+    public Entry add(StorageTier tier, File file, long size)
+    {
+        return add(tier, new File[] { file }, size, false);
+    }
+
+    /**
+     * Adds files which are evicted together, e.g. an event log segment and its index.
+     *
+     * @param open true if the files are still being written, they are not evicted before
+     *             {@link #close(Entry, long)}
+     */
+    public synchronized Entry add(StorageTier tier, File[] files, long size, boolean open)
+    {
+        Entry entry = new Entry(tier, files, size, open);
+        mQueues[tier.ordinal()].addLast(entry);
+        mUsage[tier.ordinal()] += size;
+        mTotal += size;
+        evict();
+        return entry;
+    }
+
+    /**
+     * Updates the size of an open entry once it is closed, after which it may be evicted.
+     */
+    public synchronized void close(Entry entry, long size)
+    {
+        mUsage[entry.mTier.ordinal()] += size - entry.mSize;
+        mTotal += size - entry.mSize;
+        entry.mSize = size;
+        entry.mOpen = false;
+        evict();
+    }
+
+    private void evict()
+    {
+        if (mBudget <= 0)
+        {
+            return;
+        }
+
+        // Only the newest entry of a tier can be open, so the oldest one is evictable unless
+        // it is the only one
+        int tier = 0;
+        while (mTotal > mBudget && tier < mQueues.length)
+        {
+            Entry oldest = mQueues[tier].peekFirst();
+            if (oldest == null || oldest.mOpen)
+            {
+                tier++;
+                continue;
+            }
+
+            mQueues[tier].pollFirst();
+            mUsage[tier] -= oldest.mSize;
+            mTotal -= oldest.mSize;
+            mEvictedFiles[tier]++;
+            mEvictedBytes[tier] += oldest.mSize;
+            for (File file : oldest.mFiles)
+            {
+                if (!file.delete() && file.exists())
+                {
+                    mFailed++;
+                }
+            }
+
+            // The hourly directories of single files go once they are empty
+            File parent = oldest.mFiles[0].getParentFile();
+            if (oldest.mFiles.length == 1 && parent != null)
+            {
+                parent.delete();
+            }
+
+            if (mListener != null)
+            {
+                mListener.onEvicted(oldest.mTier, oldest.mFiles[0], oldest.mSize);
+            }
+        }
+    }
+
+    /**
+     * Adds what a previous run stored: the segments of the tiers' event logs in the log
+     * directory, and the event and frame files of the hourly directories of the layout. A
+     * frame file is a {@link StorageTier#FRAMES} one if there is an event file of the same name,
+     * or if frames were stored with the trigger on: the pipeline drops the frames it does not
+     * keep, so every frame file then passed the trigger. The files do not record the trigger
+     * setting they were written with, frames of a run with a different setting are misplaced.
+     * Other files, like the statistics log, are not counted.
+     *
+     * @param triggered true if frames are stored with the trigger on
+     */
+    public void scan(StorageLayout layout, File logDirectory, boolean triggered)
+    {
+        for (StorageTier tier : StorageTier.values())
+        {
+            for (File segment : EventLog.listSegments(logDirectory, EventLog.getName(layout.getDeviceId(), tier)))
+            {
+                File index = EventIndex.getFile(segment);
+                add(tier, new File[] { segment, index }, segment.length() + index.length(), false);
+            }
+        }
+
+        File[] directories = layout.getRoot().listFiles();
+        if (directories == null)
+        {
+            return;
+        }
+        Arrays.sort(directories);
+        for (File directory : directories)
+        {
+            if (directory.isDirectory() && directory.getName().endsWith("_" + layout.getDeviceId()))
+            {
+                scanDirectory(directory, triggered);
+            }
+        }
+    }
+
+    private void scanDirectory(File directory, boolean triggered)
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        // Names are times, they sort in the order the files were written
+        Arrays.sort(files);
+
+        Set<String> frameExtensions = new HashSet<>();
+        for (FrameFormat format : FrameFormat.values())
+        {
+            frameExtensions.add(format.getExtension());
+        }
+
+        Set<String> events = new HashSet<>();
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.endsWith(EVENT_FILE_EXTENSION))
+            {
+                events.add(getBaseName(name));
+            }
+        }
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!file.isFile())
+            {
+                continue;
+            }
+            if (name.endsWith(EVENT_FILE_EXTENSION))
+            {
+                add(StorageTier.EVENTS, file, file.length());
+            }
+            else if (frameExtensions.contains(getExtension(name)))
+            {
+                add(StorageTier.ofFrame(triggered || events.contains(getBaseName(name))), file, file.length());
+            }
+        }
+    }
+
+    private static String getBaseName(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static String getExtension(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot) : "";
+    }
+
+    public synchronized String report()
+    {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "Storage: %.1fMB used", mTotal / 1048576.0));
+        if (mBudget > 0)
+        {
+            sb.append(String.format(Locale.US, " of %.1fMB (%.0f%%)", mBudget / 1048576.0, 100.0 * mTotal / mBudget));
+        }
+        for (StorageTier tier : StorageTier.values())
+        {
+            int i = tier.ordinal();
+            sb.append(String.format(Locale.US, ", %s %d files %.1fMB (evicted %d files %.1fMB)",
+                    tier.getName(), mQueues[i].size(), mUsage[i] / 1048576.0, mEvictedFiles[i], mEvictedBytes[i] / 1048576.0));
+        }
+        if (mFailed > 0)
+        {
+            sb.append(", ").append(mFailed).append(" files failed to delete");
+        }
+        return sb.toString();
+    }
+}
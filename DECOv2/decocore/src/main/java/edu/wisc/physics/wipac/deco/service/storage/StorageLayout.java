@@ -0,0 +1,115 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+/**
+ * Names the files frames are stored in: one directory per hour and device,
+ * "yyyyMMdd_HH_&lt;deviceId&gt;", holding files named "&lt;deviceId&gt;_yyyyMMdd_HHmmss.SSS&lt;extension&gt;".
+ *
+ * The directory of the current hour is cached and only created once, and file names are
+ * built from the offset within the hour so no date formatting happens per frame.
+ */
+public class StorageLayout
+{
+    private final File mRoot;
+    private final String mDeviceId;
+    private final SimpleDateFormat mHourFormat = new SimpleDateFormat("yyyyMMdd_HH");
+    private final Calendar mCalendar = Calendar.getInstance();
+    private final StringBuilder mName = new StringBuilder(64);
+
+    private long mHourStart = Long.MAX_VALUE;
+    private long mHourEnd = Long.MIN_VALUE;
+    private String mHourPrefix;
+    private File mDirectory;
+
+    public StorageLayout(File root, String deviceId)
+    {
+        mRoot = root;
+        mDeviceId = deviceId;
+    }
+
+    public File getRoot()
+    {
+        return mRoot;
+    }
+
+    public String getDeviceId()
+    {
+        return mDeviceId;
+    }
+
+    /**
+     * @param time Wall clock time in milliseconds
+     * @return The directory for the given time, created if needed
+     */
+    public synchronized File getDirectory(long time)
+    {
+        updateHour(time);
+        return mDirectory;
+    }
+
+    /**
+     * Creates the directory for the given time again, e.g. when it was removed by an upload.
+     */
+    public synchronized File createDirectory(long time)
+    {
+        updateHour(time);
+        mDirectory.mkdirs();
+        return mDirectory;
+    }
+
+    /**
+     * @param time      Wall clock time in milliseconds
+     * @param extension File extension including the dot
+     * @return The file name for the given time
+     */
+    public synchronized String getFileName(long time, String extension)
+    {
+        updateHour(time);
+
+        long offset = time - mHourStart;
+        mName.setLength(0);
+        mName.append(mDeviceId).append('_').append(mHourPrefix);
+        appendPadded(mName, (int) (offset / 60000), 2);
+        appendPadded(mName, (int) (offset / 1000 % 60), 2);
+        mName.append('.');
+        appendPadded(mName, (int) (offset % 1000), 3);
+        mName.append(extension);
+
+        return mName.toString();
+    }
+
+    private void updateHour(long time)
+    {
+        if (time >= mHourStart && time < mHourEnd)
+        {
+            return;
+        }
+
+        mCalendar.setTimeInMillis(time);
+        mCalendar.set(Calendar.MINUTE, 0);
+        mCalendar.set(Calendar.SECOND, 0);
+        mCalendar.set(Calendar.MILLISECOND, 0);
+        mHourStart = mCalendar.getTimeInMillis();
+        mHourPrefix = mHourFormat.format(mCalendar.getTime());
+        mCalendar.add(Calendar.HOUR_OF_DAY, 1);
+        mHourEnd = mCalendar.getTimeInMillis();
+
+        mDirectory = new File(mRoot, mHourPrefix + "_" + mDeviceId);
+        mDirectory.mkdirs();
+    }
+
+    private static void appendPadded(StringBuilder sb, int value, int digits)
+    {
+        for (int limit = 10; digits > 1; digits--, limit *= 10)
+        {
+            if (value < limit)
+            {
+                sb.append('0');
+            }
+        }
+        sb.append(value);
+    }
+}
@@ -0,0 +1,45 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+/**
+ * What stored data is worth, in the order the {@link StorageBudget} evicts it.
+ */
+public enum StorageTier
+{
+    /**
+     * Frames the trigger did not keep, e.g. with the trigger off.
+     */
+    SAMPLED("sampled"),
+
+    /**
+     * Full frames the trigger kept, whether or not events were extracted from them.
+     */
+    FRAMES("frames"),
+
+    /**
+     * Event records, evicted last.
+     */
+    EVENTS("events");
+
+    private final String mName;
+
+    StorageTier(String name)
+    {
+        mName = name;
+    }
+
+    /**
+     * @return Lower case name, e.g. for the event log of the tier
+     */
+    public String getName()
+    {
+        return mName;
+    }
+
+    /**
+     * @return The tier a frame record is stored in
+     */
+    public static StorageTier ofFrame(boolean triggered)
+    {
+        return triggered ? FRAMES : SAMPLED;
+    }
+}
@@ -0,0 +1,295 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+
+/**
+ * Compresses uncompressed dark frames, which are mostly pedestal plus noise. Only the pixels
+ * which differ from the pedestal by more than the noise floor are kept, each as the gap to the
+ * previous kept pixel and its difference to the pedestal, both as varints. Kept pixels come
+ * back exactly, the others as the pedestal; with a floor of 0 the frame comes back bit for bit.
+ *
+ * <pre>
+ *   int   pedestal
+ *   int   floor
+ *   int   number of kept pixels
+ *   per kept pixel:
+ *     varint  pixels skipped since the previous kept pixel
+ *     varint  zigzag encoded pixel value - pedestal
+ * </pre>
+ * Pixels are counted row by row over the width, whatever the strides of the encoded plane.
+ * The header is big endian. The pedestal is the median of a sample of the frame.
+ *
+ * Not thread safe, every thread encoding or decoding needs a codec of its own.
+ */
+public class ZeroSuppressionCodec
+{
+    public static final int HEADER_SIZE = 12;
+
+    // Every SAMPLE_STEP-th pixel of every SAMPLE_STEP-th row goes into the pedestal estimate
+    private static final int SAMPLE_STEP = 8;
+    private static final int MAX_VARINTS_SIZE = 10;
+
+    private final int mFloor;
+    private byte[] mRow = new byte[0];
+    private byte[] mOut = new byte[0];
+    private int[] mHistogram = new int[0];
+
+    /**
+     * @param floor Pixels differing from the pedestal by at most this much are not kept
+     */
+    public ZeroSuppressionCodec(int floor)
+    {
+        mFloor = Math.max(0, floor);
+    }
+
+    public int getFloor()
+    {
+        return mFloor;
+    }
+
+    /**
+     * Encodes the plane between the position and the limit of the output buffer and advances
+     * its position.
+     *
+     * @return Number of bytes written, -1 if the encoded plane would not fit, in which case
+     * the output is left unchanged
+     */
+    public int encode(FramePlane plane, ByteBuffer out)
+    {
+        int width = plane.getWidth();
+        int height = plane.getHeight();
+        int pixelStride = plane.getPixelStride();
+        boolean wide = plane.isWide();
+        boolean littleEndian = plane.getBuffer().order() == ByteOrder.LITTLE_ENDIAN;
+        int rowBytes = (width - 1) * pixelStride + plane.getBytesPerSample();
+
+        int limit = out.remaining();
+        if (limit < HEADER_SIZE)
+        {
+            return -1;
+        }
+        if (mRow.length < rowBytes)
+        {
+            mRow = new byte[rowBytes];
+        }
+        if (mOut.length < limit)
+        {
+            mOut = new byte[limit];
+        }
+
+        int pedestal = estimatePedestal(plane);
+        int floor = mFloor;
+        byte[] row = mRow;
+        byte[] output = mOut;
+        ByteBuffer source = plane.getBuffer().duplicate();
+
+        int position = HEADER_SIZE;
+        int count = 0;
+        int previous = -1;
+        for (int y = 0, index = 0; y < height; y++)
+        {
+            source.limit(plane.getOffset() + y * plane.getRowStride() + rowBytes);
+            source.position(plane.getOffset() + y * plane.getRowStride());
+            source.get(row, 0, rowBytes);
+
+            for (int x = 0, i = 0; x < width; x++, i += pixelStride, index++)
+            {
+                int value;
+                if (!wide)
+                {
+                    value = row[i] & 0xff;
+                }
+                else if (littleEndian)
+                {
+                    value = (row[i] & 0xff) | (row[i + 1] & 0xff) << 8;
+                }
+                else
+                {
+                    value = (row[i] & 0xff) << 8 | (row[i + 1] & 0xff);
+                }
+
+                int residual = value - pedestal;
+                if (residual > floor || residual < -floor)
+                {
+                    if (position + MAX_VARINTS_SIZE > limit)
+                    {
+                        return -1;
+                    }
+                    position = putVarint(output, position, index - previous - 1);
+                    position = putVarint(output, position, (residual << 1) ^ (residual >> 31));
+                    previous = index;
+                    count++;
+                }
+            }
+        }
+
+        putInt(output, 0, pedestal);
+        putInt(output, 4, floor);
+        putInt(output, 8, count);
+        out.put(output, 0, position);
+        return position;
+    }
+
+    /**
+     * @return Median of a sample of the plane
+     */
+    private int estimatePedestal(FramePlane plane)
+    {
+        int values = plane.isWide() ? 1 << 16 : 1 << 8;
+        if (mHistogram.length != values)
+        {
+            mHistogram = new int[values];
+        }
+        else
+        {
+            Arrays.fill(mHistogram, 0);
+        }
+
+        int samples = 0;
+        for (int y = 0; y < plane.getHeight(); y += SAMPLE_STEP)
+        {
+            for (int x = y / SAMPLE_STEP % SAMPLE_STEP; x < plane.getWidth(); x += SAMPLE_STEP)
+            {
+                mHistogram[plane.getPixel(x, y)]++;
+                samples++;
+            }
+        }
+
+        int seen = 0;
+        for (int value = 0; value < values; value++)
+        {
+            seen += mHistogram[value];
+            if (seen * 2 >= samples)
+            {
+                return value;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes an encoded plane from the position of the input into a packed plane at the
+     * position of the output: rows of width samples, 16 bit samples in the output's byte
+     * order. Advances the input's position, the output's is left unchanged.
+     *
+     * @return false if the encoded plane is corrupt or does not fit the output
+     */
+    public boolean decode(ByteBuffer in, ByteBuffer out, int width, int height, int bytesPerSample)
+    {
+        int pixels = width * height;
+        int base = out.position();
+        if (in.remaining() < HEADER_SIZE || out.remaining() < pixels * bytesPerSample)
+        {
+            return false;
+        }
+
+        int pedestal = in.getInt(in.position());
+        int floor = in.getInt(in.position() + 4);
+        int count = in.getInt(in.position() + 8);
+        int maxValue = bytesPerSample == 1 ? 0xff : 0xffff;
+        if (pedestal < 0 || pedestal > maxValue || floor < 0 || count < 0 || count > pixels)
+        {
+            return false;
+        }
+        in.position(in.position() + HEADER_SIZE);
+
+        // Everything not kept is the pedestal
+        int rowBytes = width * bytesPerSample;
+        if (mRow.length < rowBytes)
+        {
+            mRow = new byte[rowBytes];
+        }
+        if (bytesPerSample == 1)
+        {
+            Arrays.fill(mRow, 0, rowBytes, (byte) pedestal);
+        }
+        else
+        {
+            boolean littleEndian = out.order() == ByteOrder.LITTLE_ENDIAN;
+            byte high = (byte) (pedestal >> 8);
+            byte low = (byte) pedestal;
+            for (int i = 0; i < rowBytes; i += 2)
+            {
+                mRow[i] = littleEndian ? low : high;
+                mRow[i + 1] = littleEndian ? high : low;
+            }
+        }
+        ByteBuffer target = out.duplicate();
+        for (int y = 0; y < height; y++)
+        {
+            target.put(mRow, 0, rowBytes);
+        }
+
+        int index = -1;
+        for (int i = 0; i < count; i++)
+        {
+            long gap = getVarint(in);
+            long zigzag = getVarint(in);
+            if (gap < 0 || zigzag < 0)
+            {
+                return false;
+            }
+            index += (int) gap + 1;
+            if (index >= pixels || index < 0)
+            {
+                return false;
+            }
+
+            int value = pedestal + (int) ((zigzag >>> 1) ^ -(zigzag & 1));
+            if (value < 0 || value > maxValue)
+            {
+                return false;
+            }
+            if (bytesPerSample == 1)
+            {
+                out.put(base + index, (byte) value);
+            }
+            else
+            {
+                out.putShort(base + index * 2, (short) value);
+            }
+        }
+        return true;
+    }
+
+    private static int putVarint(byte[] buffer, int position, int value)
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * @return The value, -1 if it is cut short or too long
+     */
+    private static long getVarint(ByteBuffer buffer)
+    {
+        long value = 0;
+        for (int shift = 0; shift < 35 && buffer.hasRemaining(); shift += 7)
+        {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+            {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static void putInt(byte[] buffer, int position, int value)
+    {
+        buffer[position] = (byte) (value >> 24);
+        buffer[position + 1] = (byte) (value >> 16);
+        buffer[position + 2] = (byte) (value >> 8);
+        buffer[position + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,121 @@
+package edu.wisc.physics.wipac.deco.service.synthetic;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import edu.wisc.physics.wipac.deco.service.analysis.EventRecords;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Matches the frames which made it through the pipeline against the events injected by a
+ * {@link SyntheticFrameSource}. An injected event is detected when the bounding box of an
+ * extracted event overlaps its own, extracted events matching nothing are false events.
+ * Without a cluster stage only whole frames are matched: a kept frame detects all its events.
+ */
+public class DetectionEfficiency
+{
+    private final SyntheticFrameSource mSource;
+    private final int mMargin;
+
+    private final long[] mDetected = new long[EventShape.values().length];
+    private long mFramesKept;
+    private long mFramesKeptWithEvents;
+    private long mFalseEvents;
+    private boolean[] mMatched = new boolean[16];
+
+    /**
+     * @param margin Pixels the bounding boxes may be apart and still match
+     */
+    public DetectionEfficiency(SyntheticFrameSource source, int margin)
+    {
+        mSource = source;
+        mMargin = margin;
+    }
+
+    /**
+     * Matches a frame kept by the pipeline, before it is released.
+     */
+    public synchronized void match(Frame frame)
+    {
+        List<InjectedEvent> injected = mSource.getInjected(frame.getNumber());
+        mFramesKept++;
+        if (!injected.isEmpty())
+        {
+            mFramesKeptWithEvents++;
+        }
+
+        EventRecords events = frame.getEvents();
+        if (events == null)
+        {
+            for (InjectedEvent event : injected)
+            {
+                mDetected[event.getShape().ordinal()]++;
+            }
+            return;
+        }
+
+        if (mMatched.length < injected.size())
+        {
+            mMatched = new boolean[injected.size()];
+        }
+        Arrays.fill(mMatched, false);
+
+        for (int i = 0; i < events.size(); i++)
+        {
+            boolean matched = false;
+            for (int j = 0; j < injected.size(); j++)
+            {
+                if (injected.get(j).overlaps(events.getMinX(i), events.getMinY(i), events.getMaxX(i), events.getMaxY(i), mMargin))
+                {
+                    mMatched[j] = true;
+                    matched = true;
+                }
+            }
+            if (!matched)
+            {
+                mFalseEvents++;
+            }
+        }
+
+        for (int j = 0; j < injected.size(); j++)
+        {
+            if (mMatched[j])
+            {
+                mDetected[injected.get(j).getShape().ordinal()]++;
+            }
+        }
+    }
+
+    public synchronized long getDetected(EventShape shape)
+    {
+        return mDetected[shape.ordinal()];
+    }
+
+    public synchronized long getFalseEvents()
+    {
+        return mFalseEvents;
+    }
+
+    public synchronized String report()
+    {
+        long framesWithEvents = mSource.getFramesWithEvents();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Efficiency: %d of %d frames with events kept (%.1f%%), %d kept without, %d false events",
+                mFramesKeptWithEvents, framesWithEvents, percent(mFramesKeptWithEvents, framesWithEvents),
+                mFramesKept - mFramesKeptWithEvents, mFalseEvents));
+        for (EventShape shape : EventShape.values())
+        {
+            long injected = mSource.getInjectedCount(shape);
+            long detected = mDetected[shape.ordinal()];
+            sb.append(String.format(Locale.US, ", %s %d/%d (%.1f%%, %d missed)",
+                    shape.name().toLowerCase(Locale.US), detected, injected, percent(detected, injected), injected - detected));
+        }
+        return sb.toString();
+    }
+
+    private static double percent(long count, long total)
+    {
+        return total > 0 ? 100.0 * count / total : 0;
+    }
+}
@@ -0,0 +1,14 @@
+package edu.wisc.physics.wipac.deco.service.synthetic;
+
+/**
+ * Shapes of the events injected into synthetic frames.
+ */
+public enum EventShape
+{
+    /** Compact blob of a few pixels, like a low energy electron or gamma */
+    SPOT,
+    /** Short curly path, like a multiply scattered electron */
+    WORM,
+    /** Long straight line, like a muon crossing the sensor at a shallow angle */
+    TRACK
+}
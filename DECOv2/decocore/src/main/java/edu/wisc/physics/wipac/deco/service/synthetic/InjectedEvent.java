@@ -0,0 +1,50 @@
+package edu.wisc.physics.wipac.deco.service.synthetic;
+
+/**
+ * Ground truth of an event injected into a synthetic frame.
+ */
+public class InjectedEvent
+{
+    private final EventShape mShape;
+    private final int mMinX;
+    private final int mMinY;
+    private final int mMaxX;
+    private final int mMaxY;
+    private final int mPixels;
+    private final int mAmplitude;
+
+    public InjectedEvent(EventShape shape, int minX, int minY, int maxX, int maxY, int pixels, int amplitude)
+    {
+        mShape = shape;
+        mMinX = minX;
+        mMinY = minY;
+        mMaxX = maxX;
+        mMaxY = maxY;
+        mPixels = pixels;
+        mAmplitude = amplitude;
+    }
+
+    public EventShape getShape() { return mShape; }
+    public int getMinX() { return mMinX; }
+    public int getMinY() { return mMinY; }
+    public int getMaxX() { return mMaxX; }
+    public int getMaxY() { return mMaxY; }
+
+    /**
+     * @return Number of pixels the event was drawn on
+     */
+    public int getPixels() { return mPixels; }
+
+    /**
+     * @return Peak value added to the pedestal
+     */
+    public int getAmplitude() { return mAmplitude; }
+
+    /**
+     * @return true if the bounding boxes overlap, allowing for margin pixels between them
+     */
+    public boolean overlaps(int minX, int minY, int maxX, int maxY, int margin)
+    {
+        return minX <= mMaxX + margin && maxX >= mMinX - margin && minY <= mMaxY + margin && maxY >= mMinY - margin;
+    }
+}
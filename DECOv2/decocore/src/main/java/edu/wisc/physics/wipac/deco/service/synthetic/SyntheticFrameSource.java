@@ -0,0 +1,373 @@
+package edu.wisc.physics.wipac.deco.service.synthetic;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameSource;
+
+/**
+ * Generates dark frames with a known ground truth: a pedestal with gaussian read noise, a
+ * fixed population of hot pixels and randomly injected spots, worms and tracks. Frames are
+ * uncompressed (YUV luma or 16 bit RAW) and handed out at a configurable rate, or as fast as
+ * they can be generated to saturate the pipeline.
+ *
+ * Configured by the deco.synthetic.* settings. To keep generation cheaper than analysis, the
+ * noise is drawn once into a table a little larger than a frame, and every frame copies it
+ * from a random offset. The noise of consecutive frames is therefore correlated, which does
+ * not matter to the trigger or to cluster extraction.
+ *
+ * The first deco.synthetic.warmup frames (by default as many as the dark-frame calibration
+ * takes) are left without events, so the calibration learns the noise alone.
+ *
+ * The injected events of recent frames are kept so {@link DetectionEfficiency} can match
+ * them against the events extracted by the pipeline.
+ */
+public class SyntheticFrameSource implements FrameSource
+{
+    private static final int NOISE_SLACK = 65536;
+    private static final int TRUTH_FRAMES = 4096;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final FrameFormat mFormat;
+    private final int mBytesPerSample;
+    private final int mMaxValue;
+    private final long mFrames;
+    private final long mWarmup;
+    private final float mRate;
+    private final float[] mEventsPerFrame = new float[EventShape.values().length];
+    private final int mAmplitude;
+    private final int mHotValue;
+
+    private final Random mRandom;
+    private final ByteBuffer mNoise;
+    private final int[] mHotPixels;
+
+    // Ground truth, per frame number modulo TRUTH_FRAMES
+    private final List<List<InjectedEvent>> mTruth = new ArrayList<>(TRUTH_FRAMES);
+    private final long[] mInjected = new long[EventShape.values().length];
+    private long mFramesWithEvents;
+
+    private long mNumber;
+    private long mStart;
+
+    public SyntheticFrameSource(DecoSettings settings)
+    {
+        mWidth = settings.getInt("synthetic.width", 1920);
+        mHeight = settings.getInt("synthetic.height", 1080);
+        mFormat = settings.getEnum("synthetic.format", FrameFormat.class, FrameFormat.YUV);
+        if (mFormat.isCompressed())
+        {
+            throw new IllegalArgumentException("Synthetic frames are uncompressed, not " + mFormat);
+        }
+        mBytesPerSample = mFormat.getBytesPerSample();
+        mMaxValue = mBytesPerSample == 2 ? 1023 : 255;
+        mFrames = settings.getLong("synthetic.frames", 1000);
+        mRate = settings.getFloat("synthetic.rate", 0);
+        mWarmup = settings.getLong("synthetic.warmup", settings.getInt("calibration.frames", 50));
+        mEventsPerFrame[EventShape.SPOT.ordinal()] = settings.getFloat("synthetic.spots", 0.5f);
+        mEventsPerFrame[EventShape.WORM.ordinal()] = settings.getFloat("synthetic.worms", 0.2f);
+        mEventsPerFrame[EventShape.TRACK.ordinal()] = settings.getFloat("synthetic.tracks", 0.1f);
+        mAmplitude = settings.getInt("synthetic.amplitude", 60);
+        mHotValue = settings.getInt("synthetic.hot.value", 200);
+        mRandom = new Random(settings.getLong("synthetic.seed", 1));
+
+        mNoise = createNoise(settings.getInt("synthetic.pedestal", 10), settings.getFloat("synthetic.noise", 2f));
+
+        int hotPixels = (int) (mWidth * (long) mHeight * settings.getFloat("synthetic.hot.fraction", 1e-5f));
+        mHotPixels = new int[hotPixels];
+        for (int i = 0; i < hotPixels; i++)
+        {
+            mHotPixels[i] = mRandom.nextInt(mWidth * mHeight);
+        }
+
+        for (int i = 0; i < TRUTH_FRAMES; i++)
+        {
+            mTruth.add(Collections.<InjectedEvent>emptyList());
+        }
+    }
+
+    private ByteBuffer createNoise(int pedestal, float noise)
+    {
+        int samples = mWidth * mHeight + NOISE_SLACK;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(samples * mBytesPerSample).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < samples; i++)
+        {
+            int value = clamp((int) Math.round(pedestal + mRandom.nextGaussian() * noise));
+            if (mBytesPerSample == 2)
+            {
+                buffer.putShort((short) value);
+            }
+            else
+            {
+                buffer.put((byte) value);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getWidth() { return mWidth; }
+    public int getHeight() { return mHeight; }
+
+    @Override
+    public Frame next(FramePool pool) throws InterruptedIOException
+    {
+        if (mFrames > 0 && mNumber >= mFrames)
+        {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if (mNumber == 0)
+        {
+            mStart = now;
+        }
+        else if (mRate > 0)
+        {
+            pace(mStart + (long) (mNumber * 1e9 / mRate) - now);
+        }
+
+        int size = mWidth * mHeight * mBytesPerSample;
+        Frame frame = pool.acquire(size);
+        ByteBuffer data = frame.getData();
+        data.order(ByteOrder.nativeOrder());
+
+        // Noise from a random offset in the table
+        ByteBuffer noise = mNoise.duplicate();
+        noise.position(mRandom.nextInt(NOISE_SLACK) * mBytesPerSample);
+        noise.limit(noise.position() + size);
+        data.put(noise);
+        data.flip();
+
+        for (int hotPixel : mHotPixels)
+        {
+            set(data, hotPixel, mHotValue);
+        }
+
+        List<InjectedEvent> events = mNumber >= mWarmup ? inject(data) : Collections.<InjectedEvent>emptyList();
+
+        mNumber++;
+        synchronized (mTruth)
+        {
+            mTruth.set((int) (mNumber % TRUTH_FRAMES), events);
+            if (!events.isEmpty())
+            {
+                mFramesWithEvents++;
+            }
+            for (InjectedEvent event : events)
+            {
+                mInjected[event.getShape().ordinal()]++;
+            }
+        }
+
+        frame.set(mNumber, System.nanoTime(), System.currentTimeMillis(), System.nanoTime());
+        frame.setLayout(mFormat, mWidth, mHeight, mWidth * mBytesPerSample, mBytesPerSample);
+        return frame;
+    }
+
+    private void pace(long delay) throws InterruptedIOException
+    {
+        if (delay <= 0)
+        {
+            return;
+        }
+
+        try
+        {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while pacing frames");
+        }
+    }
+
+    private List<InjectedEvent> inject(ByteBuffer data)
+    {
+        List<InjectedEvent> events = null;
+        for (EventShape shape : EventShape.values())
+        {
+            int count = poisson(mEventsPerFrame[shape.ordinal()]);
+            for (int i = 0; i < count; i++)
+            {
+                if (events == null)
+                {
+                    events = new ArrayList<>();
+                }
+                events.add(draw(data, shape));
+            }
+        }
+        return events != null ? events : Collections.<InjectedEvent>emptyList();
+    }
+
+    private InjectedEvent draw(ByteBuffer data, EventShape shape)
+    {
+        Bounds bounds = new Bounds();
+        int amplitude = (int) (mAmplitude * (0.5 + mRandom.nextDouble()));
+        double x = mRandom.nextInt(mWidth);
+        double y = mRandom.nextInt(mHeight);
+
+        switch (shape)
+        {
+            case    SPOT:
+                double sigma = 0.6 + mRandom.nextDouble();
+                for (int dy = -3; dy <= 3; dy++)
+                {
+                    for (int dx = -3; dx <= 3; dx++)
+                    {
+                        int value = (int) (amplitude * Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma)));
+                        if (value > 0)
+                        {
+                            add(data, (int) x + dx, (int) y + dy, value, bounds);
+                        }
+                    }
+                }
+                break;
+
+            case    WORM:
+                double direction = mRandom.nextDouble() * 2 * Math.PI;
+                int steps = 10 + mRandom.nextInt(50);
+                for (int i = 0; i < steps; i++)
+                {
+                    add(data, (int) x, (int) y, (int) (amplitude * (0.5 + 0.7 * mRandom.nextDouble())), bounds);
+                    direction += mRandom.nextGaussian() * 0.5;
+                    x += Math.cos(direction);
+                    y += Math.sin(direction);
+                }
+                break;
+
+            case    TRACK:
+                double angle = mRandom.nextDouble() * 2 * Math.PI;
+                int length = 30 + mRandom.nextInt(270);
+                for (int i = 0; i < length; i++)
+                {
+                    // Energy deposits fluctuate along the track
+                    add(data, (int) x, (int) y, (int) (amplitude * (0.6 + 0.4 * mRandom.nextDouble())), bounds);
+                    x += Math.cos(angle);
+                    y += Math.sin(angle);
+                }
+                break;
+        }
+
+        return new InjectedEvent(shape, bounds.minX, bounds.minY, bounds.maxX, bounds.maxY, bounds.pixels, amplitude);
+    }
+
+    private static class Bounds
+    {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = -1;
+        int maxY = -1;
+        int pixels;
+    }
+
+    private void add(ByteBuffer data, int x, int y, int value, Bounds bounds)
+    {
+        if (x < 0 || x >= mWidth || y < 0 || y >= mHeight)
+        {
+            return;
+        }
+
+        int pixel = y * mWidth + x;
+        set(data, pixel, get(data, pixel) + value);
+        bounds.minX = Math.min(bounds.minX, x);
+        bounds.minY = Math.min(bounds.minY, y);
+        bounds.maxX = Math.max(bounds.maxX, x);
+        bounds.maxY = Math.max(bounds.maxY, y);
+        bounds.pixels++;
+    }
+
+    private int get(ByteBuffer data, int pixel)
+    {
+        return mBytesPerSample == 2 ? data.getShort(pixel * 2) & 0xffff : data.get(pixel) & 0xff;
+    }
+
+    private void set(ByteBuffer data, int pixel, int value)
+    {
+        if (mBytesPerSample == 2)
+        {
+            data.putShort(pixel * 2, (short) clamp(value));
+        }
+        else
+        {
+            data.put(pixel, (byte) clamp(value));
+        }
+    }
+
+    private int clamp(int value)
+    {
+        return value < 0 ? 0 : value > mMaxValue ? mMaxValue : value;
+    }
+
+    private int poisson(float mean)
+    {
+        if (mean <= 0)
+        {
+            return 0;
+        }
+
+        double limit = Math.exp(-mean);
+        double product = mRandom.nextDouble();
+        int count = 0;
+        while (product > limit)
+        {
+            product *= mRandom.nextDouble();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The events injected into a recent frame, empty if none (or if the frame is too old)
+     */
+    public List<InjectedEvent> getInjected(long number)
+    {
+        synchronized (mTruth)
+        {
+            return number > mNumber - TRUTH_FRAMES ? mTruth.get((int) (number % TRUTH_FRAMES)) : Collections.<InjectedEvent>emptyList();
+        }
+    }
+
+    /**
+     * @return Number of events of the shape injected so far
+     */
+    public long getInjectedCount(EventShape shape)
+    {
+        synchronized (mTruth)
+        {
+            return mInjected[shape.ordinal()];
+        }
+    }
+
+    /**
+     * @return Number of frames generated with at least one event
+     */
+    public long getFramesWithEvents()
+    {
+        synchronized (mTruth)
+        {
+            return mFramesWithEvents;
+        }
+    }
+
+    public long getFrameCount()
+    {
+        return mNumber;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
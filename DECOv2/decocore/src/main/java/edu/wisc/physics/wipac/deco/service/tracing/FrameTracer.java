@@ -0,0 +1,292 @@
+package edu.wisc.physics.wipac.deco.service.tracing;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records when each frame passes the phases of its way from the camera request to its release,
+ * keyed by capture id (the camera frame number), into a preallocated ring of the last events.
+ * Recording claims a slot with one atomic increment and never allocates or blocks; once the
+ * ring is full the oldest events are overwritten. Only every sample'th capture is traced.
+ *
+ * {@link #export} writes the events in the ring as Chrome trace-event JSON, which Perfetto
+ * (ui.perfetto.dev) and chrome://tracing load: every frame is an async track with a slice per
+ * step between consecutive phases, and every phase an instant event on the thread recording it,
+ * so a stalled frame shows both which step took long and what its thread was doing.
+ */
+public class FrameTracer
+{
+    public enum Phase
+    {
+        /**
+         * Only recorded for one shot captures, repeating requests are not issued per frame.
+         */
+        REQUEST_ISSUED("request issued"),
+        CAPTURE_COMPLETED("capture completed"),
+        IMAGE_AVAILABLE("image available"),
+        ACQUIRED("acquired"),
+        ANALYZED("analyzed"),
+        PERSISTED("persisted"),
+        CLOSED("closed");
+
+        private final String mName;
+
+        Phase(String name)
+        {
+            mName = name;
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final int mMask;
+    private final int mSample;
+    private final AtomicLong mNext = new AtomicLong();
+    // Sequence + 1 of the event in the slot once it is complete, -1 while it is written
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mIds;
+    private final AtomicLongArray mTimes;
+    private final AtomicLongArray mThreads;
+    private final AtomicIntegerArray mPhases;
+
+    /**
+     * @param capacity Events the ring holds, rounded up to a power of two, 32 bytes each
+     * @param sample   Traces captures whose id is a multiple of it, 1 for every capture
+     */
+    public FrameTracer(int capacity, int sample)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mSample = Math.max(1, sample);
+        mSequences = new AtomicLongArray(size);
+        mIds = new AtomicLongArray(size);
+        mTimes = new AtomicLongArray(size);
+        mThreads = new AtomicLongArray(size);
+        mPhases = new AtomicIntegerArray(size);
+    }
+
+    public int getCapacity()
+    {
+        return mMask + 1;
+    }
+
+    /**
+     * @param id   Capture id, events of negative (unknown) ids are ignored
+     * @param time System.nanoTime() the frame passed the phase
+     */
+    public void record(long id, Phase phase, long time)
+    {
+        if (id < 0 || id % mSample != 0)
+        {
+            return;
+        }
+
+        long sequence = mNext.getAndIncrement();
+        int slot = (int) sequence & mMask;
+        // Readers skip the slot until it is complete
+        mSequences.set(slot, -1);
+        mIds.lazySet(slot, id);
+        mTimes.lazySet(slot, time);
+        mThreads.lazySet(slot, Thread.currentThread().getId());
+        mPhases.lazySet(slot, phase.ordinal());
+        mSequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * @return Events recorded since the tracer was created, including overwritten ones
+     */
+    public long getRecorded()
+    {
+        return mNext.get();
+    }
+
+    /**
+     * Writes the events currently in the ring as a Chrome trace-event JSON object, while
+     * recording goes on. Events overwritten during the export are left out.
+     *
+     * @return Number of phase events written
+     */
+    public synchronized int export(Writer writer) throws IOException
+    {
+        long end = mNext.get();
+        long start = Math.max(0, end - getCapacity());
+        int count = (int) (end - start);
+        final long[] ids = new long[count];
+        final long[] times = new long[count];
+        long[] threads = new long[count];
+        int[] phases = new int[count];
+        int events = 0;
+        for (long sequence = start; sequence < end; sequence++)
+        {
+            int slot = (int) sequence & mMask;
+            long published = mSequences.get(slot);
+            if (published != sequence + 1)
+            {
+                continue;
+            }
+            ids[events] = mIds.get(slot);
+            times[events] = mTimes.get(slot);
+            threads[events] = mThreads.get(slot);
+            phases[events] = mPhases.get(slot);
+            if (mSequences.get(slot) == published)
+            {
+                events++;
+            }
+        }
+
+        // By capture, then by time
+        Integer[] order = new Integer[events];
+        long base = Long.MAX_VALUE;
+        for (int i = 0; i < events; i++)
+        {
+            order[i] = i;
+            base = Math.min(base, times[i]);
+        }
+        Arrays.sort(order,
+            new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer a, Integer b)
+                {
+                    if (ids[a] != ids[b])
+                    {
+                        return ids[a] < ids[b] ? -1 : 1;
+                    }
+                    return times[a] < times[b] ? -1 : times[a] == times[b] ? 0 : 1;
+                }
+            });
+
+        StringBuilder sb = new StringBuilder(256);
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        boolean first = true;
+        Set<Long> threadIds = new HashSet<>();
+        for (int i = 0; i < events; )
+        {
+            int from = i;
+            long id = ids[order[i]];
+            while (i < events && ids[order[i]] == id)
+            {
+                i++;
+            }
+
+            long frameStart = times[order[from]] - base;
+            long frameEnd = times[order[i - 1]] - base;
+            if (i - from > 1)
+            {
+                appendAsync(sb, "b", "Frame " + id, id, frameStart);
+                for (int j = from + 1; j < i; j++)
+                {
+                    String name = PHASES[phases[order[j - 1]]].getName() + " \u2192 " + PHASES[phases[order[j]]].getName();
+                    appendAsync(sb, "b", name, id, times[order[j - 1]] - base);
+                    appendAsync(sb, "e", name, id, times[order[j]] - base);
+                }
+                appendAsync(sb, "e", "Frame " + id, id, frameEnd);
+            }
+            for (int j = from; j < i; j++)
+            {
+                int event = order[j];
+                threadIds.add(threads[event]);
+                sb.append("{\"name\":\"").append(PHASES[phases[event]].getName())
+                  .append("\",\"cat\":\"phase\",\"ph\":\"i\",\"s\":\"t\",\"pid\":1,\"tid\":").append(threads[event])
+                  .append(",\"ts\":");
+                appendMicroseconds(sb, times[event] - base);
+                sb.append(",\"args\":{\"capture\":").append(id).append("}},\n");
+            }
+
+            first = writeEvents(writer, sb, first);
+        }
+
+        Map<Long, String> names = getThreadNames();
+        for (Long thread : threadIds)
+        {
+            String name = names.get(thread);
+            sb.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(thread)
+              .append(",\"args\":{\"name\":\"").append(escape(name != null ? name : "Thread " + thread)).append("\"}},\n");
+        }
+        sb.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"DECO\"}},\n");
+        writeEvents(writer, sb, first);
+        writer.write("\n]}\n");
+        writer.flush();
+        return events;
+    }
+
+    private static void appendAsync(StringBuilder sb, String type, String name, long id, long time)
+    {
+        sb.append("{\"name\":\"").append(name).append("\",\"cat\":\"frame\",\"ph\":\"").append(type)
+          .append("\",\"id\":").append(id).append(",\"pid\":1,\"tid\":0,\"ts\":");
+        appendMicroseconds(sb, time);
+        sb.append("},\n");
+    }
+
+    private static void appendMicroseconds(StringBuilder sb, long nanoseconds)
+    {
+        sb.append(nanoseconds / 1000).append('.');
+        long fraction = nanoseconds % 1000;
+        if (fraction < 100)
+        {
+            sb.append('0');
+        }
+        if (fraction < 10)
+        {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    /**
+     * Writes the buffered events, each followed by ",\n", with the separators JSON allows.
+     *
+     * @return Whether nothing has been written yet
+     */
+    private static boolean writeEvents(Writer writer, StringBuilder sb, boolean first) throws IOException
+    {
+        if (sb.length() == 0)
+        {
+            return first;
+        }
+        if (!first)
+        {
+            writer.write(",\n");
+        }
+        writer.write(sb.toString(), 0, sb.length() - 2);
+        sb.setLength(0);
+        return false;
+    }
+
+    private static Map<Long, String> getThreadNames()
+    {
+        Map<Long, String> names = new HashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            names.put(thread.getId(), thread.getName());
+        }
+        return names;
+    }
+
+    private static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    public String report()
+    {
+        long recorded = mNext.get();
+        return String.format(Locale.US, "Trace: %d events recorded, %d in the ring of %d, 1 in %d captures traced",
+                recorded, Math.min(recorded, getCapacity()), getCapacity(), mSample);
+    }
+}
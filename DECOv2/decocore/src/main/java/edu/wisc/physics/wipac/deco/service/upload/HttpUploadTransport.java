@@ -0,0 +1,153 @@
+package edu.wisc.physics.wipac.deco.service.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+
+/**
+ * Uploads to "&lt;url&gt;/&lt;device id&gt;/&lt;name&gt;". HEAD answers the bytes the server
+ * holds in the Upload-Offset header, 404 if it has none. PUT sends a chunk with the
+ * Upload-Offset it starts at and the Upload-Length of the file, and is answered with the new
+ * Upload-Offset; 409 if the offset is not the one the server holds, again with its offset.
+ * Any other 4xx status rejects the file, see {@link UploadRejectedException}.
+ */
+public class HttpUploadTransport implements UploadTransport
+{
+    public static final String HEADER_OFFSET = "Upload-Offset";
+    public static final String HEADER_LENGTH = "Upload-Length";
+
+    private final String mUrl;
+    private final int mTimeout;
+
+    /**
+     * @param timeout Milliseconds to wait for connecting and for every read
+     */
+    public HttpUploadTransport(String url, String deviceId, int timeout) throws IOException
+    {
+        mUrl = (url.endsWith("/") ? url : url + "/") + URLEncoder.encode(deviceId, "UTF-8") + "/";
+        mTimeout = timeout;
+    }
+
+    /**
+     * Configured by the deco.upload.* settings: url and timeout (s).
+     */
+    public HttpUploadTransport(String deviceId, DecoSettings settings) throws IOException
+    {
+        this(settings.getString("upload.url", ""), deviceId, settings.getInt("upload.timeout", 30) * 1000);
+    }
+
+    private HttpURLConnection connect(String name, String method) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl + URLEncoder.encode(name, "UTF-8")).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(mTimeout);
+        connection.setReadTimeout(mTimeout);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    @Override
+    public long getOffset(String name) throws IOException
+    {
+        HttpURLConnection connection = connect(name, "HEAD");
+        try
+        {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND)
+            {
+                return 0;
+            }
+            return getOffset(connection, status);
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public long send(String name, byte[] chunk, int length, long offset, long total) throws IOException
+    {
+        HttpURLConnection connection = connect(name, "PUT");
+        try
+        {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty(HEADER_OFFSET, Long.toString(offset));
+            connection.setRequestProperty(HEADER_LENGTH, Long.toString(total));
+            OutputStream output = connection.getOutputStream();
+            try
+            {
+                output.write(chunk, 0, length);
+            }
+            finally
+            {
+                output.close();
+            }
+            return getOffset(connection, connection.getResponseCode());
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+
+    private static long getOffset(HttpURLConnection connection, int status) throws IOException
+    {
+        // A 409 carries the offset to continue from like a success does
+        if (status / 100 != 2 && status != HttpURLConnection.HTTP_CONFLICT)
+        {
+            drain(connection.getErrorStream());
+            String message = "Upload failed with HTTP " + status + " " + connection.getResponseMessage();
+            if (status / 100 == 4)
+            {
+                throw new UploadRejectedException(message);
+            }
+            throw new IOException(message);
+        }
+        drain(status == HttpURLConnection.HTTP_CONFLICT ? connection.getErrorStream() : connection.getInputStream());
+
+        String offset = connection.getHeaderField(HEADER_OFFSET);
+        if (offset == null)
+        {
+            throw new IOException("Upload response without " + HEADER_OFFSET);
+        }
+        try
+        {
+            return Long.parseLong(offset.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid " + HEADER_OFFSET + " " + offset);
+        }
+    }
+
+    /**
+     * Reads the body so the connection can be reused.
+     */
+    private static void drain(InputStream input) throws IOException
+    {
+        if (input == null)
+        {
+            return;
+        }
+        try
+        {
+            byte[] buffer = new byte[1024];
+            while (input.read(buffer) >= 0)
+            {
+                // Discard
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package edu.wisc.physics.wipac.deco.service.upload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import edu.wisc.physics.wipac.deco.service.storage.EventLog;
+import edu.wisc.physics.wipac.deco.service.storage.StorageTier;
+
+/**
+ * Durable queue of the files waiting to be uploaded from one directory, e.g. the sealed
+ * segments of the {@link EventLog}s, and of how far each one got. Every change is appended to
+ * a journal and synced before it is acted on, so after a restart uploads resume at the last
+ * acknowledged chunk and completed files are never sent again:
+ * <pre>
+ *   add &lt;tier&gt; &lt;length&gt; &lt;time added (ms)&gt; &lt;name&gt;
+ *   ack &lt;offset&gt; &lt;name&gt;
+ *   done &lt;name&gt;
+ *   fail &lt;name&gt;
+ * </pre>
+ * The journal is rewritten with only the current state when it is opened and once it has
+ * grown by COMPACT_LINES lines. Completed and failed files are remembered as long as they
+ * exist, a failed file is not queued again.
+ *
+ * Files are handed out by tier, events first, and in the order they were added within a tier.
+ */
+public class UploadOutbox
+{
+    public static final String JOURNAL_NAME = "outbox.journal";
+
+    private static final int COMPACT_LINES = 4096;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static class Item
+    {
+        private final String mName;
+        private final StorageTier mTier;
+        private final long mLength;
+        private final long mAdded;
+        private long mOffset;
+
+        private Item(String name, StorageTier tier, long length, long added)
+        {
+            mName = name;
+            mTier = tier;
+            mLength = length;
+            mAdded = added;
+        }
+
+        public String getName() { return mName; }
+        public StorageTier getTier() { return mTier; }
+        public long getLength() { return mLength; }
+        public long getAdded() { return mAdded; }
+
+        /**
+         * @return Bytes acknowledged by the server
+         */
+        public synchronized long getOffset() { return mOffset; }
+    }
+
+    private final File mDirectory;
+    private final File mJournal;
+    private final Map<String, Item> mPending = new HashMap<>();
+    private final ArrayDeque<Item>[] mQueues;
+    private final Set<String> mDone = new HashSet<>();
+    private final Set<String> mFailed = new HashSet<>();
+
+    private FileOutputStream mOutput;
+    private int mLines;
+    private long mPendingBytes;
+    private long mCompleted;
+    private long mMissing;
+    private long mFailures;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public UploadOutbox(File directory)
+    {
+        mDirectory = directory;
+        mJournal = new File(directory, JOURNAL_NAME);
+        mQueues = new ArrayDeque[StorageTier.values().length];
+        for (int i = 0; i < mQueues.length; i++)
+        {
+            mQueues[i] = new ArrayDeque<>();
+        }
+    }
+
+    public File getDirectory()
+    {
+        return mDirectory;
+    }
+
+    /**
+     * Reads the journal left by a previous run, ignoring a torn last line, and compacts it.
+     */
+    public synchronized void open() throws IOException
+    {
+        mDirectory.mkdirs();
+        if (mJournal.exists())
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournal), UTF8));
+            try
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    replay(line);
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        compact();
+    }
+
+    private void replay(String line)
+    {
+        String[] fields = line.split(" ", 5);
+        try
+        {
+            if (fields[0].equals("add") && fields.length == 5)
+            {
+                Item item = new Item(fields[4], StorageTier.valueOf(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                if (!mPending.containsKey(item.mName) && !mDone.contains(item.mName) && !mFailed.contains(item.mName))
+                {
+                    enqueue(item);
+                }
+            }
+            else if (fields[0].equals("ack") && fields.length == 3)
+            {
+                Item item = mPending.get(fields[2]);
+                if (item != null)
+                {
+                    setOffset(item, Long.parseLong(fields[1]));
+                }
+            }
+            else if (fields[0].equals("done") && fields.length == 2)
+            {
+                Item item = mPending.get(fields[1]);
+                if (item != null)
+                {
+                    dequeue(item);
+                }
+                mDone.add(fields[1]);
+            }
+            else if (fields[0].equals("fail") && fields.length == 2)
+            {
+                Item item = mPending.get(fields[1]);
+                if (item != null)
+                {
+                    dequeue(item);
+                }
+                mFailed.add(fields[1]);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            // A line cut short by a crash, what it recorded is redone
+        }
+    }
+
+    /**
+     * Rewrites the journal with the pending files and the completed and failed ones which
+     * still exist.
+     */
+    private void compact() throws IOException
+    {
+        if (mOutput != null)
+        {
+            mOutput.close();
+        }
+
+        File temporary = new File(mDirectory, JOURNAL_NAME + ".tmp");
+        FileOutputStream output = new FileOutputStream(temporary);
+        try
+        {
+            StringBuilder sb = new StringBuilder();
+            for (ArrayDeque<Item> queue : mQueues)
+            {
+                for (Item item : queue)
+                {
+                    appendAdd(sb, item);
+                    if (item.mOffset > 0)
+                    {
+                        appendAck(sb, item);
+                    }
+                }
+            }
+            for (String name : mDone.toArray(new String[mDone.size()]))
+            {
+                if (new File(mDirectory, name).exists())
+                {
+                    sb.append("done ").append(name).append('\n');
+                }
+                else
+                {
+                    mDone.remove(name);
+                }
+            }
+            for (String name : mFailed.toArray(new String[mFailed.size()]))
+            {
+                if (new File(mDirectory, name).exists())
+                {
+                    sb.append("fail ").append(name).append('\n');
+                }
+                else
+                {
+                    mFailed.remove(name);
+                }
+            }
+            output.write(sb.toString().getBytes(UTF8));
+            output.getFD().sync();
+        }
+        finally
+        {
+            output.close();
+        }
+        if (!temporary.renameTo(mJournal))
+        {
+            throw new IOException("Failed to replace " + mJournal);
+        }
+
+        mOutput = new FileOutputStream(mJournal, true);
+        mLines = 0;
+    }
+
+    private void append(String line) throws IOException
+    {
+        mOutput.write(line.getBytes(UTF8));
+        mOutput.getFD().sync();
+        if (++mLines >= COMPACT_LINES)
+        {
+            compact();
+        }
+    }
+
+    private static void appendAdd(StringBuilder sb, Item item)
+    {
+        sb.append("add ").append(item.mTier.name()).append(' ').append(item.mLength).append(' ')
+          .append(item.mAdded).append(' ').append(item.mName).append('\n');
+    }
+
+    private static void appendAck(StringBuilder sb, Item item)
+    {
+        sb.append("ack ").append(item.mOffset).append(' ').append(item.mName).append('\n');
+    }
+
+    /**
+     * Queues a closed file of the directory unless it is queued, was uploaded already or failed.
+     */
+    public synchronized void add(File file, StorageTier tier) throws IOException
+    {
+        String name = file.getName();
+        if (mPending.containsKey(name) || mDone.contains(name) || mFailed.contains(name) || !file.isFile())
+        {
+            return;
+        }
+
+        Item item = new Item(name, tier, file.length(), System.currentTimeMillis());
+        StringBuilder sb = new StringBuilder();
+        appendAdd(sb, item);
+        append(sb.toString());
+        enqueue(item);
+        notifyAll();
+    }
+
+    /**
+     * Queues the segments of the tiers' event logs which are neither queued nor uploaded, e.g.
+     * the ones sealed before the outbox was used. Call after the logs were opened.
+     */
+    public void addSegments(String deviceId) throws IOException
+    {
+        for (StorageTier tier : StorageTier.values())
+        {
+            for (File segment : EventLog.listSegments(mDirectory, EventLog.getName(deviceId, tier)))
+            {
+                add(segment, tier);
+            }
+        }
+    }
+
+    /**
+     * Records that the server holds the first offset bytes of the file.
+     */
+    public synchronized void acknowledge(Item item, long offset) throws IOException
+    {
+        if (!mPending.containsKey(item.mName))
+        {
+            return;
+        }
+        setOffset(item, offset);
+        StringBuilder sb = new StringBuilder();
+        appendAck(sb, item);
+        append(sb.toString());
+    }
+
+    /**
+     * Records that the file was uploaded completely, or vanished before it was, e.g. evicted
+     * by the storage budget.
+     */
+    public synchronized void complete(Item item, boolean missing) throws IOException
+    {
+        if (!mPending.containsKey(item.mName))
+        {
+            return;
+        }
+        append("done " + item.mName + "\n");
+        dequeue(item);
+        mDone.add(item.mName);
+        if (missing)
+        {
+            mMissing++;
+        }
+        else
+        {
+            mCompleted++;
+        }
+    }
+
+    /**
+     * Records that the file cannot be uploaded, e.g. because the server rejected it, so it is
+     * not tried again.
+     */
+    public synchronized void fail(Item item) throws IOException
+    {
+        if (!mPending.containsKey(item.mName))
+        {
+            return;
+        }
+        append("fail " + item.mName + "\n");
+        dequeue(item);
+        mFailed.add(item.mName);
+        mFailures++;
+    }
+
+    /**
+     * Moves the file behind the others of its tier, e.g. after failing to send it repeatedly,
+     * so they are tried first. Only lasts until the outbox is opened again.
+     */
+    public synchronized void defer(Item item)
+    {
+        ArrayDeque<Item> queue = mQueues[item.mTier.ordinal()];
+        if (mPending.containsKey(item.mName) && queue.remove(item))
+        {
+            queue.addLast(item);
+        }
+    }
+
+    private void enqueue(Item item)
+    {
+        mPending.put(item.mName, item);
+        mQueues[item.mTier.ordinal()].addLast(item);
+        mPendingBytes += item.mLength;
+    }
+
+    private void dequeue(Item item)
+    {
+        mPending.remove(item.mName);
+        mQueues[item.mTier.ordinal()].remove(item);
+        mPendingBytes -= item.mLength - item.mOffset;
+    }
+
+    private void setOffset(Item item, long offset)
+    {
+        offset = Math.max(0, Math.min(offset, item.mLength));
+        synchronized (item)
+        {
+            mPendingBytes -= offset - item.mOffset;
+            item.mOffset = offset;
+        }
+    }
+
+    /**
+     * @return The next file to upload: the oldest of the most valuable tier, null if there is none
+     */
+    public synchronized Item peek()
+    {
+        for (int tier = mQueues.length - 1; tier >= 0; tier--)
+        {
+            Item item = mQueues[tier].peekFirst();
+            if (item != null)
+            {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until a file is queued or the timeout passed.
+     *
+     * @return The next file to upload, null if there is none
+     */
+    public synchronized Item await(long timeout) throws InterruptedException
+    {
+        Item item = peek();
+        if (item == null && timeout > 0)
+        {
+            wait(timeout);
+            item = peek();
+        }
+        return item;
+    }
+
+    /**
+     * @return The file's current location, it may have been deleted
+     */
+    public File getFile(Item item)
+    {
+        return new File(mDirectory, item.mName);
+    }
+
+    public synchronized int getPendingFiles()
+    {
+        return mPending.size();
+    }
+
+    /**
+     * @return Bytes not yet acknowledged by the server
+     */
+    public synchronized long getPendingBytes()
+    {
+        return mPendingBytes;
+    }
+
+    /**
+     * @return Milliseconds the oldest pending file has been waiting, 0 if there is none
+     */
+    public synchronized long getLag()
+    {
+        long oldest = Long.MAX_VALUE;
+        for (ArrayDeque<Item> queue : mQueues)
+        {
+            Item item = queue.peekFirst();
+            if (item != null)
+            {
+                oldest = Math.min(oldest, item.mAdded);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    public synchronized String report()
+    {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "Outbox: %d files (%.1fMB) pending, lag %.1fs",
+                mPending.size(), mPendingBytes / 1048576.0, getLag() / 1000.0));
+        for (StorageTier tier : StorageTier.values())
+        {
+            sb.append(", ").append(tier.getName()).append(' ').append(mQueues[tier.ordinal()].size());
+        }
+        sb.append(String.format(Locale.US, ", %d uploaded, %d missing, %d failed", mCompleted, mMissing, mFailures));
+        return sb.toString();
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (mOutput != null)
+        {
+            mOutput.close();
+            mOutput = null;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package edu.wisc.physics.wipac.deco.service.upload;
+
+import java.io.IOException;
+
+/**
+ * The server refused a file for good, e.g. with a 4xx status or by holding more of it than
+ * there is, so sending it again would fail the same way.
+ */
+public class UploadRejectedException extends IOException
+{
+    public UploadRejectedException(String detailMessage)
+    {
+        super(detailMessage);
+    }
+}
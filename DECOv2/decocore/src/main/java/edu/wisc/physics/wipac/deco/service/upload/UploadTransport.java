@@ -0,0 +1,26 @@
+package edu.wisc.physics.wipac.deco.service.upload;
+
+import java.io.IOException;
+
+/**
+ * Sends files to the ingest server in chunks. The server keeps how many bytes of each file it
+ * holds, so an upload interrupted anywhere resumes with the first byte the server is missing.
+ * A server refusing a file for good is reported with an {@link UploadRejectedException}, other
+ * failures are retried.
+ */
+public interface UploadTransport
+{
+    /**
+     * @return Bytes of the file the server holds, 0 if it has none
+     */
+    long getOffset(String name) throws IOException;
+
+    /**
+     * Sends bytes of a file starting at the offset. A server holding a different number of bytes
+     * refuses the chunk and answers with its offset.
+     *
+     * @param total Length of the whole file, the server completes it once it holds all of it
+     * @return Bytes of the file the server holds now
+     */
+    long send(String name, byte[] chunk, int length, long offset, long total) throws IOException;
+}
@@ -0,0 +1,360 @@
+package edu.wisc.physics.wipac.deco.service.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.pipeline.LatencyHistogram;
+import edu.wisc.physics.wipac.deco.service.storage.EventLog;
+import edu.wisc.physics.wipac.deco.service.storage.StorageTier;
+
+/**
+ * Uploads the files of an {@link UploadOutbox} on a thread of its own, one sealed event log
+ * segment being one batch of records. A file is sent in chunks, each acknowledged in the
+ * outbox once the server has it, so an upload cut short by a crash, a lost connection or
+ * {@link #stop()} resumes with the missing chunks. Before resuming a file the server is asked
+ * what it holds, which also covers chunks it got but whose acknowledgement was lost.
+ *
+ * Between chunks the uploader switches to a file of a more valuable tier if one was added,
+ * and pauses while the capture pipeline has frames queued, so uploading never competes with
+ * capture for the CPU or storage. Failed requests are retried with exponential backoff, a
+ * file failing attempts times in a row is moved behind the others of its tier so it does not
+ * hold them up. A file the server rejects for good is marked failed in the outbox and skipped.
+ *
+ * Configured by the deco.upload.* settings: chunk (KB), busy.queue (frames), busy.backoff (s),
+ * retry.min and retry.max (s), attempts and timeout (s).
+ */
+public class Uploader
+{
+    private static final long POLL_TIMEOUT = 1000; // milliseconds
+
+    public interface Backlog
+    {
+        /**
+         * @return Frames waiting to be analyzed or stored, called before every chunk
+         */
+        int getQueueDepth();
+    }
+
+    private final UploadOutbox mOutbox;
+    private final UploadTransport mTransport;
+    private final Backlog mBacklog;
+    private final byte[] mChunk;
+    private final int mBusyQueue;
+    private final long mBusyBackoff;
+    private final long mRetryMin;
+    private final long mRetryMax;
+    private final int mAttempts;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private UploadOutbox.Item mCurrent;
+    private long mRetryDelay;
+    private UploadOutbox.Item mFailing;
+    private int mFailures;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mChunks = new AtomicLong();
+    private final AtomicLong mFiles = new AtomicLong();
+    private final AtomicLong mResumed = new AtomicLong();
+    private final AtomicLong mConflicts = new AtomicLong();
+    private final AtomicLong mPreempted = new AtomicLong();
+    private final AtomicLong mBusy = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mDeferred = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final LatencyHistogram mChunkLatency = new LatencyHistogram();
+
+    private long mReportTime = System.nanoTime();
+    private long mReportBytes;
+
+    /**
+     * @param backlog Backlog of the capture pipeline, null to never pause
+     */
+    public Uploader(UploadOutbox outbox, UploadTransport transport, DecoSettings settings, Backlog backlog)
+    {
+        mOutbox = outbox;
+        mTransport = transport;
+        mBacklog = backlog;
+        mChunk = new byte[Math.max(1, settings.getInt("upload.chunk", 256)) * 1024];
+        mBusyQueue = settings.getInt("upload.busy.queue", 2);
+        mBusyBackoff = settings.getLong("upload.busy.backoff", 5) * 1000;
+        mRetryMin = Math.max(1, settings.getLong("upload.retry.min", 1)) * 1000;
+        mRetryMax = Math.max(mRetryMin, settings.getLong("upload.retry.max", 300) * 1000);
+        mAttempts = Math.max(1, settings.getInt("upload.attempts", 5));
+        mRetryDelay = mRetryMin;
+    }
+
+    /**
+     * Queues the segments of the logs in the outbox once they are sealed. The outbox has to
+     * be for the logs' directory.
+     *
+     * @param logs One log per tier, see {@link EventLog#createTiers}
+     */
+    public static void watch(final UploadOutbox outbox, EventLog[] logs)
+    {
+        for (final StorageTier tier : StorageTier.values())
+        {
+            logs[tier.ordinal()].setListener(
+                new EventLog.Listener()
+                {
+                    @Override
+                    public void onSegmentClosed(EventLog log, File segment)
+                    {
+                        try
+                        {
+                            outbox.add(segment, tier);
+                        }
+                        catch (IOException e)
+                        {
+                            // Queued again by UploadOutbox.addSegments on the next start
+                        }
+                    }
+                });
+        }
+    }
+
+    public UploadOutbox getOutbox()
+    {
+        return mOutbox;
+    }
+
+    public synchronized void start()
+    {
+        if (mRunning)
+        {
+            return;
+        }
+
+        mRunning = true;
+        mThread = new Thread(
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    uploadFiles();
+                }
+            },
+            "Upload Thread");
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stops after the chunk being sent, the rest of the file is sent after the next start.
+     */
+    public synchronized void stop()
+    {
+        mRunning = false;
+        if (mThread != null)
+        {
+            mThread.interrupt();
+            try
+            {
+                mThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    private void uploadFiles()
+    {
+        while (mRunning)
+        {
+            try
+            {
+                UploadOutbox.Item item = mOutbox.await(POLL_TIMEOUT);
+                if (item == null)
+                {
+                    continue;
+                }
+                if (isBusy())
+                {
+                    mBusy.incrementAndGet();
+                    Thread.sleep(mBusyBackoff);
+                    continue;
+                }
+
+                try
+                {
+                    upload(item);
+                    mRetryDelay = mRetryMin;
+                    mFailing = null;
+                }
+                catch (UploadRejectedException e)
+                {
+                    mCurrent = null;
+                    mRejected.incrementAndGet();
+                    mOutbox.fail(item);
+                }
+                catch (IOException e)
+                {
+                    mCurrent = null;
+                    if (!mOutbox.getFile(item).exists())
+                    {
+                        mOutbox.complete(item, true);
+                        continue;
+                    }
+                    mErrors.incrementAndGet();
+                    if (item != mFailing)
+                    {
+                        mFailing = item;
+                        mFailures = 0;
+                    }
+                    if (++mFailures >= mAttempts)
+                    {
+                        // Retried after the rest of its tier
+                        mDeferred.incrementAndGet();
+                        mOutbox.defer(item);
+                        mFailing = null;
+                    }
+                    Thread.sleep(mRetryDelay);
+                    mRetryDelay = Math.min(mRetryMax, mRetryDelay * 2);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // Stopping
+            }
+            catch (IOException e)
+            {
+                // The outbox journal failed, nothing can be acknowledged
+                mErrors.incrementAndGet();
+                try
+                {
+                    Thread.sleep(mRetryMax);
+                }
+                catch (InterruptedException ignored)
+                {
+                    // Stopping
+                }
+            }
+        }
+    }
+
+    private boolean isBusy()
+    {
+        return mBacklog != null && mBacklog.getQueueDepth() >= mBusyQueue;
+    }
+
+    /**
+     * Sends the file's chunks until it is complete, the uploader is busy or stopped, or a more
+     * valuable file is queued.
+     */
+    private void upload(UploadOutbox.Item item) throws IOException
+    {
+        File file = mOutbox.getFile(item);
+        if (!file.isFile())
+        {
+            mOutbox.complete(item, true);
+            return;
+        }
+
+        long length = item.getLength();
+        long offset = item.getOffset();
+        if (item != mCurrent)
+        {
+            // What the server holds wins over what the outbox knows
+            long server = mTransport.getOffset(item.getName());
+            if (server > length)
+            {
+                throw new UploadRejectedException("Server holds " + server + " bytes of " + item.getName() + " of " + length);
+            }
+            if (server != offset)
+            {
+                mOutbox.acknowledge(item, server);
+                offset = server;
+            }
+            if (offset > 0)
+            {
+                mResumed.incrementAndGet();
+            }
+            mCurrent = item;
+        }
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try
+        {
+            while (offset < length)
+            {
+                if (!mRunning || isBusy())
+                {
+                    return;
+                }
+                if (mOutbox.peek() != item)
+                {
+                    mPreempted.incrementAndGet();
+                    return;
+                }
+
+                int count = (int) Math.min(mChunk.length, length - offset);
+                input.seek(offset);
+                input.readFully(mChunk, 0, count);
+
+                long start = System.nanoTime();
+                long acknowledged = mTransport.send(item.getName(), mChunk, count, offset, length);
+                mChunkLatency.record(System.nanoTime() - start);
+                if (acknowledged > length)
+                {
+                    throw new UploadRejectedException("Server holds " + acknowledged + " bytes of " + item.getName() + " of " + length);
+                }
+                if (acknowledged < 0)
+                {
+                    throw new IOException("Server holds " + acknowledged + " bytes of " + item.getName() + " of " + length);
+                }
+                if (acknowledged == offset + count)
+                {
+                    mChunks.incrementAndGet();
+                    mBytes.addAndGet(count);
+                }
+                else if (acknowledged == offset)
+                {
+                    throw new IOException("Server refused " + item.getName() + " at " + offset);
+                }
+                else
+                {
+                    // The server held a different part, continue from there
+                    mConflicts.incrementAndGet();
+                }
+
+                mOutbox.acknowledge(item, acknowledged);
+                offset = acknowledged;
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+
+        mOutbox.complete(item, false);
+        mCurrent = null;
+        mFiles.incrementAndGet();
+    }
+
+    /**
+     * @return Statistics since the uploader started, the throughput since the previous report
+     */
+    public synchronized String report()
+    {
+        long now = System.nanoTime();
+        long bytes = mBytes.get();
+        double seconds = (now - mReportTime) / 1e9;
+        double rate = seconds > 0 ? (bytes - mReportBytes) / seconds : 0;
+        mReportTime = now;
+        mReportBytes = bytes;
+
+        return String.format(Locale.US,
+                "Upload: %d files, %d chunks, %d bytes, %.1fKB/s, %d resumed, %d conflicts, %d preempted, %d busy, %d errors, "
+                + "%d deferred, %d rejected; chunk %s; %s",
+                mFiles.get(), mChunks.get(), bytes, rate / 1024, mResumed.get(), mConflicts.get(), mPreempted.get(),
+                mBusy.get(), mErrors.get(), mDeferred.get(), mRejected.get(), mChunkLatency.report(), mOutbox.report());
+    }
+}
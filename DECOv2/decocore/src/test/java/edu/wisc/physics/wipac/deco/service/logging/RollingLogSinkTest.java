@@ -0,0 +1,158 @@
+package edu.wisc.physics.wipac.deco.service.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RollingLogSinkTest
+{
+    private static final long MAX_SIZE = 1 << 20;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class Record implements LogRecord
+    {
+        private final long mTime;
+        private final long mValue;
+
+        Record(long time, long value)
+        {
+            mTime = time;
+            mValue = value;
+        }
+
+        @Override public long getTime() { return mTime; }
+        @Override public LogLevel getLevel() { return LogLevel.INFO; }
+        @Override public String getTag() { return "Test"; }
+        @Override public String getTemplate() { return "Record {}"; }
+        @Override public int getArgumentCount() { return 1; }
+        @Override public boolean isLongArgument(int index) { return true; }
+        @Override public long getLongArgument(int index) { return mValue; }
+        @Override public Object getArgument(int index) { return null; }
+        @Override public CharSequence getMessage() { return "Record " + mValue; }
+        @Override public Throwable getThrown() { return null; }
+        @Override public String getStackTrace() { return null; }
+    }
+
+    @Test
+    public void startsNewBinaryFileAfterTornRecord() throws IOException
+    {
+        File file = new File(mFolder.getRoot(), "log.dlog");
+        writeSession(file, LogFormat.BINARY, 0, 50);
+
+        // A crash in the middle of the last record
+        RandomAccessFile torn = new RandomAccessFile(file, "rw");
+        try
+        {
+            torn.setLength(torn.length() - 5);
+        }
+        finally
+        {
+            torn.close();
+        }
+
+        writeSession(file, LogFormat.BINARY, 1000, 50);
+
+        File previous = new File(file.getPath() + ".1");
+        assertTrue(previous.isFile());
+        assertEquals(49, countRecords(previous, 0));
+        assertEquals(50, countRecords(file, 1000));
+    }
+
+    @Test
+    public void appendsToTextFile() throws IOException
+    {
+        File file = new File(mFolder.getRoot(), "log.txt");
+        writeSession(file, LogFormat.TEXT, 0, 10);
+        long length = file.length();
+        writeSession(file, LogFormat.TEXT, 1000, 10);
+
+        assertFalse(new File(file.getPath() + ".1").exists());
+        assertTrue(file.length() > length);
+    }
+
+    @Test
+    public void keepsLargeRecordsWhole() throws IOException
+    {
+        File file = new File(mFolder.getRoot(), "log.dlog");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+        {
+            sb.append("at edu.wisc.Frame.line").append(i).append('\n');
+        }
+        RollingLogSink sink = new RollingLogSink(file, MAX_SIZE, 2, LogFormat.BINARY);
+        try
+        {
+            sink.write(new Record(0, 0)
+            {
+                @Override public String getStackTrace() { return sb.toString(); }
+            });
+            sink.write(new Record(1, 1));
+        }
+        finally
+        {
+            sink.close();
+        }
+
+        BinaryLogReader reader = new BinaryLogReader(new FileInputStream(file));
+        try
+        {
+            assertEquals(sb.toString(), reader.read().getStackTrace());
+            assertEquals(1, reader.read().getLongArgument(0));
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static void writeSession(File file, LogFormat format, long first, int count) throws IOException
+    {
+        RollingLogSink sink = new RollingLogSink(file, MAX_SIZE, 3, format);
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                sink.write(new Record(1000000 + first + i, first + i));
+            }
+            sink.flush();
+        }
+        finally
+        {
+            sink.close();
+        }
+    }
+
+    /**
+     * @return Records read until the end or the torn record, checking their values
+     */
+    private static int countRecords(File file, long first) throws IOException
+    {
+        BinaryLogReader reader = new BinaryLogReader(new FileInputStream(file));
+        try
+        {
+            int count = 0;
+            LogRecord record;
+            while ((record = reader.read()) != null)
+            {
+                assertEquals(first + count, record.getLongArgument(0));
+                count++;
+            }
+            return count;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package edu.wisc.physics.wipac.deco.service.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.schedule.CaptureScheduler.State;
+
+public class CaptureSchedulerTest implements CaptureScheduler.Clock, CaptureScheduler.DeviceState, CaptureScheduler.Listener
+{
+    private static final long SECOND = 1000;
+    private static final long HOUR = 3600 * SECOND;
+
+    private final Properties mProperties = new Properties();
+    private final List<String> mEvents = new ArrayList<>();
+    private long mNow;
+    private boolean mCharging;
+    private float mLevel = 80;
+    private float mTemperature = 30;
+
+    @Override
+    public long currentTimeMillis()
+    {
+        return mNow;
+    }
+
+    @Override
+    public boolean isCharging()
+    {
+        return mCharging;
+    }
+
+    @Override
+    public float getBatteryLevel()
+    {
+        return mLevel;
+    }
+
+    @Override
+    public float getTemperature()
+    {
+        return mTemperature;
+    }
+
+    @Override
+    public void onResume()
+    {
+        mEvents.add("resume");
+    }
+
+    @Override
+    public void onPause(State state)
+    {
+        mEvents.add("pause " + state.getName());
+    }
+
+    private CaptureScheduler create()
+    {
+        return new CaptureScheduler(new DecoSettings(mProperties), this, this, TimeZone.getTimeZone("UTC"), this);
+    }
+
+    private void set(String name, String value)
+    {
+        mProperties.setProperty(DecoSettings.PREFIX + name, value);
+    }
+
+    private State update(CaptureScheduler scheduler, long time)
+    {
+        mNow = time;
+        scheduler.update();
+        return scheduler.getState();
+    }
+
+    @Test
+    public void capturesThenPausesWithinPeriod()
+    {
+        set("schedule.period", "100");
+        set("schedule.battery.duty", "0.5");
+        CaptureScheduler scheduler = create();
+
+        assertEquals(50 * SECOND, scheduler.update());
+        assertEquals(State.CAPTURING, scheduler.getState());
+        assertEquals(0.5f, scheduler.getDutyCycle(), 1e-6f);
+        assertEquals(State.CAPTURING, update(scheduler, 49 * SECOND));
+        assertEquals(State.DUTY_CYCLE, update(scheduler, 50 * SECOND));
+        assertEquals(State.DUTY_CYCLE, update(scheduler, 99 * SECOND));
+        assertEquals(State.CAPTURING, update(scheduler, 100 * SECOND));
+        assertEquals(State.DUTY_CYCLE, update(scheduler, 175 * SECOND));
+
+        assertEquals(Arrays.asList("resume", "pause duty cycle pause", "resume", "pause duty cycle pause"), mEvents);
+        assertEquals(125 * SECOND, scheduler.getStateTime(State.CAPTURING));
+        assertEquals(50 * SECOND, scheduler.getStateTime(State.DUTY_CYCLE));
+    }
+
+    @Test
+    public void capturesFullTimeWhileCharging()
+    {
+        set("schedule.period", "100");
+        set("schedule.battery.duty", "0.5");
+        mCharging = true;
+        CaptureScheduler scheduler = create();
+
+        assertEquals(State.CAPTURING, update(scheduler, 0));
+        assertEquals(State.CAPTURING, update(scheduler, 75 * SECOND));
+        assertEquals(1f, scheduler.getDutyCycle(), 1e-6f);
+        assertEquals(Arrays.asList("resume"), mEvents);
+    }
+
+    @Test
+    public void batteryLowDoesNotFlapAtThreshold()
+    {
+        CaptureScheduler scheduler = create();
+
+        mLevel = 21;
+        assertEquals(State.CAPTURING, update(scheduler, 0));
+        mLevel = 20;
+        assertEquals(State.BATTERY_LOW, update(scheduler, SECOND));
+        // Readings around the minimum or below the resume level keep it paused
+        for (float level : new float[] { 20.5f, 20, 21, 25, 29.9f })
+        {
+            mLevel = level;
+            assertEquals(State.BATTERY_LOW, update(scheduler, mNow + SECOND));
+        }
+        mLevel = 30;
+        assertEquals(State.CAPTURING, update(scheduler, mNow + SECOND));
+        mLevel = 21;
+        assertEquals(State.CAPTURING, update(scheduler, mNow + SECOND));
+
+        mLevel = 15;
+        assertEquals(State.BATTERY_LOW, update(scheduler, mNow + SECOND));
+        mCharging = true;
+        assertEquals(State.CAPTURING, update(scheduler, mNow + SECOND));
+
+        assertEquals(Arrays.asList("resume", "pause battery low", "resume", "pause battery low", "resume"), mEvents);
+    }
+
+    @Test
+    public void throttlesAndOverheatsWithHysteresis()
+    {
+        mCharging = true;
+        CaptureScheduler scheduler = create();
+
+        mTemperature = 40;
+        assertEquals(State.CAPTURING, update(scheduler, 0));
+        assertEquals(1f, scheduler.getDutyCycle(), 1e-6f);
+
+        // Linear from thermal.throttle to thermal.duty.min at thermal.max
+        mTemperature = 43;
+        update(scheduler, SECOND);
+        assertEquals(0.55f, scheduler.getDutyCycle(), 1e-6f);
+        mTemperature = 45;
+        update(scheduler, 2 * SECOND);
+        assertEquals(0.25f, scheduler.getDutyCycle(), 1e-6f);
+
+        mTemperature = 45.5f;
+        assertEquals(State.OVERHEATED, update(scheduler, 3 * SECOND));
+        for (float temperature : new float[] { 45, 44, 45.5f, 40.5f })
+        {
+            mTemperature = temperature;
+            assertEquals(State.OVERHEATED, update(scheduler, mNow + SECOND));
+        }
+        mTemperature = 40;
+        assertEquals(State.CAPTURING, update(scheduler, mNow + SECOND));
+        assertEquals(1f, scheduler.getDutyCycle(), 1e-6f);
+
+        // An unknown temperature neither throttles nor overheats
+        mTemperature = Float.NaN;
+        assertEquals(State.CAPTURING, update(scheduler, mNow + SECOND));
+        assertTrue(mEvents.contains("pause overheated"));
+        assertEquals("resume", mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void windowWrapsPastMidnight()
+    {
+        set("schedule.window.start", "22:00");
+        set("schedule.window.end", "06:00");
+        mCharging = true;
+        CaptureScheduler scheduler = create();
+
+        long midnight = 24 * HOUR;
+        assertEquals(State.OUTSIDE_WINDOW, update(scheduler, midnight - 2 * HOUR - SECOND));
+        assertEquals(State.CAPTURING, update(scheduler, midnight - 2 * HOUR));
+        assertEquals(State.CAPTURING, update(scheduler, midnight - SECOND));
+        assertEquals(State.CAPTURING, update(scheduler, midnight + HOUR / 2));
+        assertEquals(State.CAPTURING, update(scheduler, midnight + 6 * HOUR - SECOND));
+        assertEquals(State.OUTSIDE_WINDOW, update(scheduler, midnight + 6 * HOUR));
+        assertEquals(State.OUTSIDE_WINDOW, update(scheduler, midnight + 12 * HOUR));
+        assertEquals(0f, scheduler.getDutyCycle(), 1e-6f);
+
+        assertEquals(Arrays.asList("pause outside window", "resume", "pause outside window"), mEvents);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidTimeOfDay()
+    {
+        set("schedule.window.end", "25:00");
+        create();
+    }
+
+    @Test
+    public void countsFramesPerPercentOnBattery()
+    {
+        CaptureScheduler scheduler = create();
+
+        update(scheduler, 0);
+        assertTrue(Double.isNaN(scheduler.getFramesPerPercent()));
+
+        capture(scheduler, 200);
+        mLevel = 79;
+        update(scheduler, SECOND);
+        assertEquals(200, scheduler.getFramesPerPercent(), 1e-6);
+
+        // Neither the frames nor the level rising while charging count
+        mCharging = true;
+        capture(scheduler, 500);
+        mLevel = 85;
+        update(scheduler, 2 * SECOND);
+        mCharging = false;
+        update(scheduler, 3 * SECOND);
+        assertEquals(200, scheduler.getFramesPerPercent(), 1e-6);
+
+        capture(scheduler, 100);
+        mLevel = 84.5f;
+        update(scheduler, 4 * SECOND);
+        assertEquals(200, scheduler.getFramesPerPercent(), 1e-6);
+    }
+
+    private static void capture(CaptureScheduler scheduler, int frames)
+    {
+        for (int i = 0; i < frames; i++)
+        {
+            scheduler.onFrameCaptured();
+        }
+    }
+}
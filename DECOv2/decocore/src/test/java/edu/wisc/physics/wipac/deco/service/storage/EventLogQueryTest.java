@@ -0,0 +1,212 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+
+public class EventLogQueryTest
+{
+    private static final String DEVICE_ID = "test";
+    private static final long BASE = 1000000;
+    private static final long BUCKET = 1000;
+    private static final float CELL = 0.1f;
+    private static final int PAYLOAD = 64;
+
+    // Segment header and four records of EventLog.RECORD_HEADER_SIZE + PAYLOAD bytes
+    private static final long SMALL_SEGMENT = 512;
+    private static final long LARGE_SEGMENT = 1 << 20;
+
+    private static final float MADISON_LATITUDE = 43.0731f;
+    private static final float MADISON_LONGITUDE = -89.4012f;
+    // About 9 km west of Madison, in the next geo cell
+    private static final float MIDDLETON_LATITUDE = 43.0972f;
+    private static final float MIDDLETON_LONGITUDE = -89.5043f;
+    private static final float POLE_LATITUDE = -89.99f;
+    private static final float POLE_LONGITUDE = 0f;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FramePool mPool = new FramePool(1);
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDirectory = mFolder.newFolder("log");
+    }
+
+    @Test
+    public void findsRangeAcrossSegmentRollover() throws IOException
+    {
+        EventLog log = open(SMALL_SEGMENT);
+        for (int i = 0; i < 20; i++)
+        {
+            append(log, i, BASE + i * 500, Float.NaN, Float.NaN);
+        }
+        log.close();
+        assertEquals(5, EventLog.listSegments(mDirectory, DEVICE_ID).length);
+
+        EventLogQuery query = new EventLogQuery(mDirectory, DEVICE_ID, BASE + 4000, BASE + 6000);
+        assertEquals(Arrays.asList(8L, 9L, 10L, 11L, 12L), numbers(query));
+
+        // The index rules out the segments before the range and the one after it
+        assertEquals(2, query.getSegmentsRead());
+        assertTrue(query.getRecordsRead() < 20);
+    }
+
+    @Test
+    public void findsRecordPersistedLate() throws IOException
+    {
+        EventLog log = open(LARGE_SEGMENT);
+        for (int i = 0; i < 10; i++)
+        {
+            append(log, i, BASE + i * 200, Float.NaN, Float.NaN);
+        }
+        // Less than a bucket behind the records appended before it
+        append(log, 100, BASE + 300, Float.NaN, Float.NaN);
+        for (int i = 10; i < 20; i++)
+        {
+            append(log, i, BASE + i * 200, Float.NaN, Float.NaN);
+        }
+        log.close();
+
+        assertEquals(Arrays.asList(100L), numbers(new EventLogQuery(mDirectory, DEVICE_ID, BASE + 250, BASE + 350)));
+        assertEquals(Arrays.asList(1L, 2L, 100L),
+                numbers(new EventLogQuery(mDirectory, DEVICE_ID, BASE + 200, BASE + 400)));
+    }
+
+    @Test
+    public void filtersByLocation() throws IOException
+    {
+        EventLog log = open(LARGE_SEGMENT);
+        for (int i = 0; i < 12; i++)
+        {
+            switch (i % 4)
+            {
+                case 0:
+                    append(log, i, BASE + i * 10, MADISON_LATITUDE, MADISON_LONGITUDE);
+                    break;
+                case 1:
+                    append(log, i, BASE + i * 10, MIDDLETON_LATITUDE, MIDDLETON_LONGITUDE);
+                    break;
+                case 2:
+                    append(log, i, BASE + i * 10, POLE_LATITUDE, POLE_LONGITUDE);
+                    break;
+                default:
+                    append(log, i, BASE + i * 10, Float.NaN, Float.NaN);
+                    break;
+            }
+        }
+        log.close();
+
+        EventLogQuery query = new EventLogQuery(mDirectory, DEVICE_ID, BASE, BASE + 1000,
+                MADISON_LATITUDE, MADISON_LONGITUDE, 5);
+        assertEquals(Arrays.asList(0L, 4L, 8L), numbers(query));
+
+        // Entries of other cells are not read, neither are those without a location
+        query = new EventLogQuery(mDirectory, DEVICE_ID, BASE, BASE + 1000, MADISON_LATITUDE, MADISON_LONGITUDE, 20);
+        assertEquals(Arrays.asList(0L, 1L, 4L, 5L, 8L, 9L), numbers(query));
+        assertEquals(6, query.getRecordsRead());
+
+        query = new EventLogQuery(mDirectory, DEVICE_ID, BASE, BASE + 1000, POLE_LATITUDE, POLE_LONGITUDE, 5);
+        assertEquals(Arrays.asList(2L, 6L, 10L), numbers(query));
+    }
+
+    @Test
+    public void rebuildsIndexesAfterRollover() throws IOException
+    {
+        EventLog log = open(SMALL_SEGMENT);
+        for (int i = 0; i < 12; i++)
+        {
+            append(log, i, BASE + i * 500, MADISON_LATITUDE, MADISON_LONGITUDE);
+        }
+        log.close();
+
+        File[] segments = EventLog.listSegments(mDirectory, DEVICE_ID);
+        assertEquals(3, segments.length);
+        assertTrue(EventIndex.getFile(segments[0]).delete());
+        RandomAccessFile index = new RandomAccessFile(EventIndex.getFile(segments[1]), "rw");
+        try
+        {
+            index.setLength(EventIndex.HEADER_SIZE + EventIndex.ENTRY_SIZE);
+        }
+        finally
+        {
+            index.close();
+        }
+        assertFalse(EventIndex.covers(EventIndex.getFile(segments[1]), segments[1].length()));
+
+        log = open(SMALL_SEGMENT);
+        log.close();
+        for (File segment : segments)
+        {
+            assertTrue(segment.getName(), EventIndex.covers(EventIndex.getFile(segment), segment.length()));
+        }
+
+        EventLogQuery query = new EventLogQuery(mDirectory, DEVICE_ID, BASE + 1500, BASE + 2500,
+                MADISON_LATITUDE, MADISON_LONGITUDE, 1);
+        assertEquals(Arrays.asList(3L, 4L, 5L), numbers(query));
+        assertEquals(2, query.getSegmentsRead());
+    }
+
+    private EventLog open(long segmentSize) throws IOException
+    {
+        EventLog log = new EventLog(mDirectory, DEVICE_ID, segmentSize, 0, BUCKET, CELL);
+        log.open();
+        return log;
+    }
+
+    private void append(EventLog log, long number, long time, float latitude, float longitude) throws IOException
+    {
+        Frame frame = mPool.acquire(PAYLOAD);
+        ByteBuffer data = frame.getData();
+        for (int i = 0; i < PAYLOAD; i++)
+        {
+            data.put((byte) (number + i));
+        }
+        data.flip();
+        frame.set(number, 0, time, 0).setLocation(latitude, longitude);
+        try
+        {
+            log.appendFrame(frame);
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    private static List<Long> numbers(EventLogQuery query) throws IOException
+    {
+        List<Long> numbers = new ArrayList<>();
+        try
+        {
+            while (query.next())
+            {
+                numbers.add(query.getReader().getFrameNumber());
+            }
+        }
+        finally
+        {
+            query.close();
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,219 @@
+package edu.wisc.physics.wipac.deco.service.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+
+public class ZeroSuppressionCodecTest
+{
+    private static final int PADDING = 0xab;
+    private static final int HEADER_AND_SLACK = 64;
+
+    /**
+     * Dark frame: pedestal plus noise, a few hits, and padding at the end of every row.
+     */
+    private static FramePlane darkFrame(int width, int height, int rowStride, int bytesPerSample, ByteOrder order,
+            int pedestal, int noise, long seed)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(rowStride * height).order(order);
+        for (int i = 0; i < buffer.capacity(); i++)
+        {
+            buffer.put(i, (byte) PADDING);
+        }
+
+        int maxValue = bytesPerSample == 1 ? 0xff : 0xffff;
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int value = pedestal + random.nextInt(2 * noise + 1) - noise;
+                if (random.nextInt(200) == 0)
+                {
+                    value = pedestal + 20 * noise + random.nextInt(maxValue - pedestal - 20 * noise);
+                }
+                int position = y * rowStride + x * bytesPerSample;
+                if (bytesPerSample == 1)
+                {
+                    buffer.put(position, (byte) value);
+                }
+                else
+                {
+                    buffer.putShort(position, (short) value);
+                }
+            }
+        }
+        return new FramePlane().set(buffer, 0, width, height, rowStride, bytesPerSample, bytesPerSample);
+    }
+
+    private static ByteBuffer encode(ZeroSuppressionCodec codec, FramePlane plane)
+    {
+        ByteBuffer encoded = ByteBuffer.allocate(HEADER_AND_SLACK + plane.getWidth() * plane.getHeight() * 12);
+        int size = codec.encode(plane, encoded);
+        assertTrue("encoded", size > 0);
+        assertEquals(size, encoded.position());
+        encoded.flip();
+        return encoded;
+    }
+
+    private static ByteBuffer decode(ZeroSuppressionCodec codec, ByteBuffer encoded, FramePlane plane, ByteOrder order)
+    {
+        ByteBuffer decoded = ByteBuffer.allocate(plane.getWidth() * plane.getHeight() * plane.getBytesPerSample()).order(order);
+        assertTrue("decoded", codec.decode(encoded, decoded, plane.getWidth(), plane.getHeight(), plane.getBytesPerSample()));
+        assertFalse("input consumed", encoded.hasRemaining());
+        return decoded;
+    }
+
+    /**
+     * Checks every pixel: kept pixels come back exactly, the others as the pedestal.
+     */
+    private static void assertRoundTrip(FramePlane plane, int floor, ByteOrder order)
+    {
+        ZeroSuppressionCodec codec = new ZeroSuppressionCodec(floor);
+        ByteBuffer encoded = encode(codec, plane);
+        int pedestal = encoded.getInt(0);
+        assertEquals(floor, encoded.getInt(4));
+        ByteBuffer decoded = decode(codec, encoded, plane, order);
+
+        int width = plane.getWidth();
+        for (int y = 0; y < plane.getHeight(); y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int original = plane.getPixel(x, y);
+                int expected = Math.abs(original - pedestal) > floor ? original : pedestal;
+                int actual = plane.isWide()
+                        ? decoded.getShort((y * width + x) * 2) & 0xffff
+                        : decoded.get(y * width + x) & 0xff;
+                assertEquals("pixel (" + x + ", " + y + ")", expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void floorZeroIsBitExact8Bit()
+    {
+        assertRoundTrip(darkFrame(64, 48, 64, 1, ByteOrder.BIG_ENDIAN, 16, 3, 1), 0, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void floorZeroIsBitExact16BitLittleEndian()
+    {
+        assertRoundTrip(darkFrame(64, 48, 128, 2, ByteOrder.LITTLE_ENDIAN, 64, 6, 2), 0, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void nonZeroFloor8Bit()
+    {
+        assertRoundTrip(darkFrame(64, 48, 64, 1, ByteOrder.BIG_ENDIAN, 16, 3, 3), 4, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void nonZeroFloor16BitLittleEndian()
+    {
+        assertRoundTrip(darkFrame(64, 48, 128, 2, ByteOrder.LITTLE_ENDIAN, 64, 6, 4), 8, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void rowStrideWiderThanWidth8Bit()
+    {
+        assertRoundTrip(darkFrame(61, 33, 80, 1, ByteOrder.BIG_ENDIAN, 16, 3, 5), 0, ByteOrder.BIG_ENDIAN);
+        assertRoundTrip(darkFrame(61, 33, 80, 1, ByteOrder.BIG_ENDIAN, 16, 3, 6), 4, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Test
+    public void rowStrideWiderThanWidth16BitLittleEndian()
+    {
+        assertRoundTrip(darkFrame(61, 33, 160, 2, ByteOrder.LITTLE_ENDIAN, 64, 6, 7), 0, ByteOrder.LITTLE_ENDIAN);
+        assertRoundTrip(darkFrame(61, 33, 160, 2, ByteOrder.LITTLE_ENDIAN, 64, 6, 8), 8, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void outputTooSmallLeavesItUnchanged()
+    {
+        FramePlane plane = darkFrame(64, 48, 64, 1, ByteOrder.BIG_ENDIAN, 16, 3, 9);
+        ByteBuffer output = ByteBuffer.allocate(100);
+        output.position(10);
+        assertEquals(-1, new ZeroSuppressionCodec(0).encode(plane, output));
+        assertEquals(10, output.position());
+    }
+
+    @Test
+    public void truncatedInputIsRejected()
+    {
+        FramePlane plane = darkFrame(64, 48, 64, 1, ByteOrder.BIG_ENDIAN, 16, 3, 10);
+        ZeroSuppressionCodec codec = new ZeroSuppressionCodec(0);
+        ByteBuffer encoded = encode(codec, plane);
+        ByteBuffer decoded = ByteBuffer.allocate(64 * 48);
+
+        for (int length : new int[] {0, ZeroSuppressionCodec.HEADER_SIZE - 1, ZeroSuppressionCodec.HEADER_SIZE, encoded.limit() - 1})
+        {
+            ByteBuffer truncated = encoded.duplicate();
+            truncated.limit(length);
+            assertFalse("truncated to " + length, codec.decode(truncated, decoded, 64, 48, 1));
+        }
+    }
+
+    @Test
+    public void outputTooSmallForDecodeIsRejected()
+    {
+        FramePlane plane = darkFrame(64, 48, 64, 1, ByteOrder.BIG_ENDIAN, 16, 3, 11);
+        ZeroSuppressionCodec codec = new ZeroSuppressionCodec(0);
+        ByteBuffer encoded = encode(codec, plane);
+        assertFalse(codec.decode(encoded, ByteBuffer.allocate(64 * 48 - 1), 64, 48, 1));
+    }
+
+    @Test
+    public void corruptInputIsRejected()
+    {
+        ZeroSuppressionCodec codec = new ZeroSuppressionCodec(0);
+        ByteBuffer decoded = ByteBuffer.allocate(16 * 16);
+
+        // Negative and impossible counts
+        assertFalse(codec.decode(header(16, 0, -1), decoded, 16, 16, 1));
+        assertFalse(codec.decode(header(16, 0, 16 * 16 + 1), decoded, 16, 16, 1));
+
+        // Pedestal outside the sample range
+        assertFalse(codec.decode(header(256, 0, 0), decoded, 16, 16, 1));
+
+        // A gap past the last pixel
+        ByteBuffer beyond = ByteBuffer.allocate(32);
+        beyond.put(header(16, 0, 1));
+        beyond.put((byte) (256 & 0x7f | 0x80)).put((byte) (256 >> 7)).put((byte) 2);
+        beyond.flip();
+        assertFalse(codec.decode(beyond, decoded, 16, 16, 1));
+
+        // A value outside the sample range
+        ByteBuffer overflow = ByteBuffer.allocate(32);
+        overflow.put(header(16, 0, 1));
+        overflow.put((byte) 0).put((byte) (250 * 2 & 0x7f | 0x80)).put((byte) (250 * 2 >> 7));
+        overflow.flip();
+        assertFalse(codec.decode(overflow, decoded, 16, 16, 1));
+
+        // A varint which never ends
+        ByteBuffer endless = ByteBuffer.allocate(32);
+        endless.put(header(16, 0, 1));
+        for (int i = 0; i < 8; i++)
+        {
+            endless.put((byte) 0xff);
+        }
+        endless.flip();
+        assertFalse(codec.decode(endless, decoded, 16, 16, 1));
+    }
+
+    private static ByteBuffer header(int pedestal, int floor, int count)
+    {
+        ByteBuffer header = ByteBuffer.allocate(ZeroSuppressionCodec.HEADER_SIZE);
+        header.putInt(pedestal).putInt(floor).putInt(count);
+        header.flip();
+        return header;
+    }
+}
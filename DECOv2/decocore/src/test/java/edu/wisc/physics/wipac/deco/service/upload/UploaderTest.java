@@ -0,0 +1,152 @@
+package edu.wisc.physics.wipac.deco.service.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.storage.StorageTier;
+
+public class UploaderTest implements UploadTransport
+{
+    private static final long TIMEOUT = 10000; // milliseconds
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Properties mProperties = new Properties();
+    private final Map<String, Long> mHeld = new HashMap<>();
+    private final Set<String> mRejected = new HashSet<>();
+    private final Set<String> mUnreachable = new HashSet<>();
+    private File mDirectory;
+
+    @Override
+    public synchronized long getOffset(String name) throws IOException
+    {
+        check(name);
+        Long held = mHeld.get(name);
+        return held == null ? 0 : held;
+    }
+
+    @Override
+    public synchronized long send(String name, byte[] chunk, int length, long offset, long total) throws IOException
+    {
+        check(name);
+        long held = getOffset(name);
+        if (held != offset)
+        {
+            return held;
+        }
+        mHeld.put(name, offset + length);
+        return offset + length;
+    }
+
+    private void check(String name) throws IOException
+    {
+        if (mRejected.contains(name))
+        {
+            throw new UploadRejectedException("Upload failed with HTTP 403 Forbidden");
+        }
+        if (mUnreachable.contains(name))
+        {
+            throw new IOException("Connection reset");
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mDirectory = mFolder.newFolder("log");
+        mProperties.setProperty(DecoSettings.PREFIX + "upload.chunk", "1");
+        mProperties.setProperty(DecoSettings.PREFIX + "upload.retry.min", "1");
+        mProperties.setProperty(DecoSettings.PREFIX + "upload.retry.max", "1");
+    }
+
+    @Test
+    public void skipsRejectedFile() throws Exception
+    {
+        mRejected.add("a");
+        UploadOutbox outbox = open("a", "b");
+        upload(outbox, 0);
+        outbox.close();
+
+        assertEquals(Long.valueOf(3000), mHeld.get("b"));
+        assertTrue(outbox.report(), outbox.report().endsWith("1 uploaded, 0 missing, 1 failed"));
+
+        // Neither the journal nor adding it again queues the failed file
+        outbox = new UploadOutbox(mDirectory);
+        outbox.open();
+        outbox.add(new File(mDirectory, "a"), StorageTier.EVENTS);
+        assertEquals(0, outbox.getPendingFiles());
+        outbox.close();
+    }
+
+    @Test
+    public void defersFileFailingRepeatedly() throws Exception
+    {
+        mProperties.setProperty(DecoSettings.PREFIX + "upload.attempts", "2");
+        mUnreachable.add("a");
+        UploadOutbox outbox = open("a", "b");
+        upload(outbox, 1);
+        outbox.close();
+
+        assertEquals(Long.valueOf(3000), mHeld.get("b"));
+        assertEquals(null, mHeld.get("a"));
+    }
+
+    private UploadOutbox open(String... names) throws IOException
+    {
+        UploadOutbox outbox = new UploadOutbox(mDirectory);
+        outbox.open();
+        for (String name : names)
+        {
+            File file = new File(mDirectory, name);
+            FileOutputStream output = new FileOutputStream(file);
+            try
+            {
+                output.write(new byte[3000]);
+            }
+            finally
+            {
+                output.close();
+            }
+            outbox.add(file, StorageTier.EVENTS);
+        }
+        return outbox;
+    }
+
+    /**
+     * Uploads until only the given number of files are pending.
+     */
+    private void upload(UploadOutbox outbox, int pending) throws InterruptedException
+    {
+        Uploader uploader = new Uploader(outbox, this, new DecoSettings(mProperties), null);
+        uploader.start();
+        try
+        {
+            long start = System.currentTimeMillis();
+            while (outbox.getPendingFiles() > pending && System.currentTimeMillis() - start < TIMEOUT)
+            {
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            uploader.stop();
+        }
+        assertEquals(pending, outbox.getPendingFiles());
+    }
+}
@@ -0,0 +1,54 @@
+package edu.wisc.physics.wipac.deco.replay;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import edu.wisc.physics.wipac.deco.service.logging.BinaryLogReader;
+import edu.wisc.physics.wipac.deco.service.logging.LogRecord;
+import edu.wisc.physics.wipac.deco.service.logging.TextLogSink;
+
+/**
+ * Expands binary logs, deco.logging.format=BINARY, into the text the service writes otherwise:
+ * <pre>
+ *   DecodeLog DecoCameraService.dlog.2 DecoCameraService.dlog.1 DecoCameraService.dlog &gt; log.txt
+ * </pre>
+ * Files are decoded in the order given, oldest first for rotated files.
+ */
+public class DecodeLog
+{
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: DecodeLog file...");
+            System.exit(1);
+        }
+
+        TextLogSink sink = new TextLogSink(System.out);
+        long records = 0;
+        for (String file : args)
+        {
+            BinaryLogReader reader = new BinaryLogReader(new FileInputStream(file));
+            try
+            {
+                LogRecord record;
+                while ((record = reader.read()) != null)
+                {
+                    sink.write(record);
+                    records++;
+                }
+            }
+            catch (IOException e)
+            {
+                sink.flush();
+                System.err.println(file + ": " + e.getMessage());
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        sink.flush();
+        System.err.println(records + " records");
+    }
+}
@@ -0,0 +1,112 @@
+package edu.wisc.physics.wipac.deco.replay;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import edu.wisc.physics.wipac.deco.service.ByteBufferInputStream;
+import edu.wisc.physics.wipac.deco.service.analysis.FrameDecoder;
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Decodes JPEG frames with ImageIO, the JVM counterpart of the service's BitmapFactory
+ * decoder. The green channel is used as the luma plane, like on the phone.
+ */
+public class ImageIoJpegDecoder implements FrameDecoder
+{
+    private final int mSampleSize;
+
+    private final ThreadLocal<DecodeState> mDecodeState =
+        new ThreadLocal<DecodeState>()
+        {
+            @Override
+            protected DecodeState initialValue()
+            {
+                return new DecodeState();
+            }
+        };
+
+    private static class DecodeState
+    {
+        public final ImageReader reader;
+        public final ByteBufferInputStream input = new ByteBufferInputStream();
+        public final FramePlane plane = new FramePlane();
+        public ByteBuffer pixels;
+
+        public DecodeState()
+        {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+            if (!readers.hasNext())
+            {
+                throw new IllegalStateException("No JPEG reader available");
+            }
+            reader = readers.next();
+        }
+    }
+
+    /**
+     * @param sampleSize Decode every sampleSize-th pixel and row only
+     */
+    public ImageIoJpegDecoder(int sampleSize)
+    {
+        mSampleSize = Math.max(1, sampleSize);
+    }
+
+    @Override
+    public FramePlane decode(Frame frame) throws IOException
+    {
+        DecodeState state = mDecodeState.get();
+        ByteBuffer data = frame.getData();
+        int position = data.position();
+
+        BufferedImage image;
+        ImageInputStream input = ImageIO.createImageInputStream(state.input.setBuffer(data));
+        try
+        {
+            state.reader.setInput(input, true, true);
+            ImageReadParam param = state.reader.getDefaultReadParam();
+            param.setSourceSubsampling(mSampleSize, mSampleSize, 0, 0);
+            image = state.reader.read(0, param);
+        }
+        finally
+        {
+            state.reader.setInput(null);
+            input.close();
+            data.position(position);
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        // 3 byte BGR and gray images expose their pixels, anything else is converted
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR || image.getType() == BufferedImage.TYPE_BYTE_GRAY)
+        {
+            int pixelStride = image.getType() == BufferedImage.TYPE_3BYTE_BGR ? 3 : 1;
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            return state.plane.set(ByteBuffer.wrap(pixels), pixelStride == 3 ? 1 : 0,
+                    width, height, width * pixelStride, pixelStride, 1);
+        }
+
+        int size = width * height;
+        if (state.pixels == null || state.pixels.capacity() < size)
+        {
+            state.pixels = ByteBuffer.allocateDirect(size);
+        }
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                state.pixels.put(y * width + x, (byte) (image.getRGB(x, y) >> 8));
+            }
+        }
+        return state.plane.set(state.pixels, 0, width, height, width, 1, 1);
+    }
+}
@@ -0,0 +1,251 @@
+package edu.wisc.physics.wipac.deco.replay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.wisc.physics.wipac.deco.service.upload.HttpUploadTransport;
+
+/**
+ * Stand-in for the ingest server, to test uploads end to end on one machine:
+ * <pre>
+ *   IngestServer [--port 8080] [--fail fraction] directory
+ * </pre>
+ * Implements the protocol of {@link HttpUploadTransport}. A file is stored as
+ * directory/&lt;device id&gt;/&lt;name&gt;.part while it is incomplete and renamed once all of
+ * it arrived. With --fail that fraction of the chunks fails after half of it was stored, so
+ * clients have to resume from an offset they did not send.
+ */
+public class IngestServer implements HttpHandler
+{
+    private static final String PART_EXTENSION = ".part";
+
+    private final File mDirectory;
+    private final double mFailFraction;
+    private final Random mRandom = new Random();
+
+    private long mChunks;
+    private long mBytes;
+    private long mFiles;
+    private long mConflicts;
+    private long mFailed;
+
+    public IngestServer(File directory, double failFraction)
+    {
+        mDirectory = directory;
+        mFailFraction = failFraction;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = 8080;
+        double fail = 0;
+        File directory = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("--port") && i + 1 < args.length)
+            {
+                port = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--fail") && i + 1 < args.length)
+            {
+                fail = Double.parseDouble(args[++i]);
+            }
+            else if (arg.startsWith("--") || directory != null)
+            {
+                usage("Unknown option " + arg);
+            }
+            else
+            {
+                directory = new File(arg);
+            }
+        }
+        if (directory == null)
+        {
+            usage("No directory");
+        }
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", new IngestServer(directory, fail));
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        System.out.println("Ingesting to " + directory.getAbsolutePath() + " on port " + port
+                + (fail > 0 ? ", failing " + fail + " of the chunks" : ""));
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            // "/<device id>/<name>", decoded
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            if (path.length != 3 || !isValidName(path[1]) || !isValidName(path[2]))
+            {
+                respond(exchange, 404, -1);
+                return;
+            }
+            File directory = new File(mDirectory, path[1]);
+            File file = new File(directory, path[2]);
+
+            // One request at a time, chunks of a file have to be appended in order anyway
+            synchronized (this)
+            {
+                String method = exchange.getRequestMethod();
+                if (method.equals("HEAD"))
+                {
+                    // The JDK server drops kept alive connections after a HEAD, have the client
+                    // open a new one
+                    exchange.getResponseHeaders().set("Connection", "close");
+                    long offset = getOffset(file);
+                    respond(exchange, offset < 0 ? 404 : 200, offset);
+                }
+                else if (method.equals("PUT"))
+                {
+                    directory.mkdirs();
+                    put(exchange, file);
+                }
+                else
+                {
+                    respond(exchange, 405, -1);
+                }
+            }
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void put(HttpExchange exchange, File file) throws IOException
+    {
+        byte[] chunk = read(exchange.getRequestBody());
+        long offset;
+        long total;
+        try
+        {
+            offset = Long.parseLong(exchange.getRequestHeaders().getFirst(HttpUploadTransport.HEADER_OFFSET));
+            total = Long.parseLong(exchange.getRequestHeaders().getFirst(HttpUploadTransport.HEADER_LENGTH));
+        }
+        catch (NumberFormatException e)
+        {
+            respond(exchange, 400, -1);
+            return;
+        }
+
+        long current = Math.max(0, getOffset(file));
+        if (offset != current || file.exists())
+        {
+            mConflicts++;
+            respond(exchange, 409, current);
+            return;
+        }
+        if (offset + chunk.length > total)
+        {
+            respond(exchange, 400, -1);
+            return;
+        }
+
+        int length = chunk.length;
+        boolean fail = mFailFraction > 0 && mRandom.nextDouble() < mFailFraction;
+        if (fail)
+        {
+            length /= 2;
+        }
+
+        File part = new File(file.getPath() + PART_EXTENSION);
+        FileOutputStream output = new FileOutputStream(part, true);
+        try
+        {
+            output.write(chunk, 0, length);
+            // Stored before it is acknowledged
+            output.getFD().sync();
+        }
+        finally
+        {
+            output.close();
+        }
+        if (fail)
+        {
+            mFailed++;
+            respond(exchange, 503, -1);
+            return;
+        }
+
+        mChunks++;
+        mBytes += length;
+        current = offset + length;
+        if (current == total)
+        {
+            if (!part.renameTo(file))
+            {
+                respond(exchange, 500, -1);
+                return;
+            }
+            mFiles++;
+            System.out.println(String.format("Received %s/%s (%d bytes); %d files, %d chunks, %d bytes, %d conflicts, %d failed",
+                    file.getParentFile().getName(), file.getName(), total, mFiles, mChunks, mBytes, mConflicts, mFailed));
+        }
+        respond(exchange, 200, current);
+    }
+
+    /**
+     * @return Bytes of the file held, -1 if there are none
+     */
+    private static long getOffset(File file)
+    {
+        if (file.exists())
+        {
+            return file.length();
+        }
+        File part = new File(file.getPath() + PART_EXTENSION);
+        return part.exists() ? part.length() : -1;
+    }
+
+    private static boolean isValidName(String name)
+    {
+        return !name.isEmpty() && !name.startsWith(".") && !name.endsWith(PART_EXTENSION);
+    }
+
+    private static byte[] read(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int count;
+        while ((count = input.read(buffer)) >= 0)
+        {
+            bytes.write(buffer, 0, count);
+        }
+        input.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param offset Upload-Offset to answer, -1 for none
+     */
+    private static void respond(HttpExchange exchange, int status, long offset) throws IOException
+    {
+        if (offset >= 0)
+        {
+            exchange.getResponseHeaders().set(HttpUploadTransport.HEADER_OFFSET, Long.toString(offset));
+        }
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static void usage(String error)
+    {
+        System.err.println(error);
+        System.err.println("Usage: IngestServer [--port 8080] [--fail fraction] directory");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,249 @@
+package edu.wisc.physics.wipac.deco.replay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameSource;
+import edu.wisc.physics.wipac.deco.service.storage.DirectoryFrameSource;
+import edu.wisc.physics.wipac.deco.service.storage.EventLog;
+import edu.wisc.physics.wipac.deco.service.storage.EventLogQuery;
+import edu.wisc.physics.wipac.deco.service.storage.EventLogReader;
+import edu.wisc.physics.wipac.deco.service.storage.StorageTier;
+import edu.wisc.physics.wipac.deco.service.synthetic.DetectionEfficiency;
+import edu.wisc.physics.wipac.deco.service.synthetic.SyntheticFrameSource;
+
+/**
+ * Command line entry point of the replay:
+ * <pre>
+ *   Replay [--settings camera-settings.properties] [--set deco.key=value]... [--output dir]
+ *          [--device-id id] [--repeat n] [--allow-drops] (--synthetic | input...)
+ *   Replay --query from,to [--near latitude,longitude,km] [--device-id id] log-directory...
+ * </pre>
+ * Inputs are app directories, hour or log directories, frame files or log segments. With --synthetic frames come
+ * from a {@link SyntheticFrameSource} configured by the deco.synthetic.* settings instead,
+ * and the injected events are matched against the detected ones. Unless --allow-drops is
+ * given, every stage blocks instead of dropping frames, so all frames are analyzed and the
+ * replay rate is the highest rate the pipeline sustains.
+ *
+ * With --query nothing is replayed: the records of the device's event logs captured between
+ * from and to (milliseconds, inclusive) are listed through their indexes, one line per record
+ * with its tier, type, frame number, capture time and location.
+ */
+public class Replay
+{
+    private static final String[] STAGES = { "analyze", "cluster", "persist" };
+
+    public static void main(String[] args) throws Exception
+    {
+        Properties properties = new Properties();
+        List<File> inputs = new ArrayList<>();
+        File output = null;
+        String deviceId = "replay";
+        int repeat = 1;
+        boolean allowDrops = false;
+        boolean synthetic = false;
+        long[] query = null;
+        double[] near = null;
+        List<String> overrides = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("--settings") && i + 1 < args.length)
+            {
+                load(properties, new File(args[++i]));
+            }
+            else if (arg.equals("--set") && i + 1 < args.length)
+            {
+                overrides.add(args[++i]);
+            }
+            else if (arg.equals("--output") && i + 1 < args.length)
+            {
+                output = new File(args[++i]);
+            }
+            else if (arg.equals("--device-id") && i + 1 < args.length)
+            {
+                deviceId = args[++i];
+            }
+            else if (arg.equals("--repeat") && i + 1 < args.length)
+            {
+                repeat = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--allow-drops"))
+            {
+                allowDrops = true;
+            }
+            else if (arg.equals("--synthetic"))
+            {
+                synthetic = true;
+            }
+            else if (arg.equals("--query") && i + 1 < args.length)
+            {
+                String[] range = args[++i].split(",");
+                if (range.length != 2)
+                {
+                    usage("Invalid query range " + args[i]);
+                    return;
+                }
+                query = new long[] { Long.parseLong(range[0].trim()), Long.parseLong(range[1].trim()) };
+            }
+            else if (arg.equals("--near") && i + 1 < args.length)
+            {
+                String[] location = args[++i].split(",");
+                if (location.length != 3)
+                {
+                    usage("Invalid location " + args[i]);
+                    return;
+                }
+                near = new double[3];
+                for (int j = 0; j < near.length; j++)
+                {
+                    near[j] = Double.parseDouble(location[j].trim());
+                }
+            }
+            else if (arg.startsWith("--"))
+            {
+                usage("Unknown option " + arg);
+                return;
+            }
+            else
+            {
+                inputs.add(new File(arg));
+            }
+        }
+
+        if (near != null && query == null)
+        {
+            usage("--near needs --query");
+            return;
+        }
+        if (query != null)
+        {
+            if (inputs.isEmpty() || synthetic)
+            {
+                usage("--query needs log directories");
+                return;
+            }
+            query(inputs, deviceId, query[0], query[1], near);
+            return;
+        }
+        if (inputs.isEmpty() && !synthetic)
+        {
+            usage("No input");
+            return;
+        }
+        if (!inputs.isEmpty() && synthetic)
+        {
+            usage("Inputs and --synthetic exclude each other");
+            return;
+        }
+
+        if (!allowDrops)
+        {
+            for (String stage : STAGES)
+            {
+                properties.setProperty(DecoSettings.PREFIX + "pipeline." + stage + ".policy", "BLOCK");
+            }
+        }
+        for (String override : overrides)
+        {
+            int separator = override.indexOf('=');
+            if (separator <= 0)
+            {
+                usage("Invalid setting " + override);
+                return;
+            }
+            properties.setProperty(override.substring(0, separator), override.substring(separator + 1));
+        }
+
+        DecoSettings settings = new DecoSettings(properties);
+        ReplayEngine engine = new ReplayEngine(settings, output, deviceId);
+        FrameSource source;
+        if (synthetic)
+        {
+            SyntheticFrameSource syntheticSource = new SyntheticFrameSource(settings);
+            engine.setEfficiency(new DetectionEfficiency(syntheticSource, settings.getInt("synthetic.match.margin", 2)));
+            System.out.println("Generating synthetic " + syntheticSource.getWidth() + "x" + syntheticSource.getHeight() + " frames");
+            source = syntheticSource;
+        }
+        else
+        {
+            DirectoryFrameSource directorySource = new DirectoryFrameSource(inputs, repeat);
+            System.out.println("Replaying " + directorySource.getFileCount() + " files" + (repeat > 1 ? " " + repeat + " times" : ""));
+            source = directorySource;
+        }
+
+        try
+        {
+            engine.run(source);
+        }
+        finally
+        {
+            source.close();
+        }
+
+        System.out.println(engine.report());
+        if (source instanceof DirectoryFrameSource && ((DirectoryFrameSource) source).getSkipped() > 0)
+        {
+            System.out.println("Skipped " + ((DirectoryFrameSource) source).getSkipped() + " invalid files");
+        }
+    }
+
+    private static void query(List<File> directories, String deviceId, long from, long to, double[] near) throws IOException
+    {
+        for (File directory : directories)
+        {
+            for (StorageTier tier : StorageTier.values())
+            {
+                String name = EventLog.getName(deviceId, tier);
+                EventLogQuery query = near != null
+                        ? new EventLogQuery(directory, name, from, to, near[0], near[1], near[2])
+                        : new EventLogQuery(directory, name, from, to);
+                try
+                {
+                    while (query.next())
+                    {
+                        EventLogReader reader = query.getReader();
+                        System.out.println(String.format(Locale.US, "%s %s %d %d %.5f %.5f",
+                                tier.getName(), reader.getType() == EventLog.TYPE_EVENTS ? "events" : "frame",
+                                reader.getFrameNumber(), reader.getCaptureTime(), reader.getLatitude(), reader.getLongitude()));
+                    }
+                }
+                finally
+                {
+                    query.close();
+                }
+                System.err.println(directory + " " + tier.getName() + ": " + query.report());
+            }
+        }
+    }
+
+    private static void load(Properties properties, File file) throws IOException
+    {
+        InputStream input = new FileInputStream(file);
+        try
+        {
+            properties.load(input);
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private static void usage(String error)
+    {
+        System.err.println(error);
+        System.err.println("Usage: Replay [--settings camera-settings.properties] [--set deco.key=value]... [--output dir]");
+        System.err.println("              [--device-id id] [--repeat n] [--allow-drops] (--synthetic | input...)");
+        System.err.println("       Replay --query from,to [--near latitude,longitude,km] [--device-id id] log-directory...");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,324 @@
+package edu.wisc.physics.wipac.deco.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.analysis.FrameAnalysis;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePipeline;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameSource;
+import edu.wisc.physics.wipac.deco.service.pipeline.StageStatistics;
+import edu.wisc.physics.wipac.deco.service.storage.EventLog;
+import edu.wisc.physics.wipac.deco.service.storage.EventLogWriter;
+import edu.wisc.physics.wipac.deco.service.storage.EventRecordWriter;
+import edu.wisc.physics.wipac.deco.service.storage.FrameStatisticsLog;
+import edu.wisc.physics.wipac.deco.service.storage.FrameWriter;
+import edu.wisc.physics.wipac.deco.service.storage.StorageBudget;
+import edu.wisc.physics.wipac.deco.service.storage.StorageLayout;
+import edu.wisc.physics.wipac.deco.service.storage.StorageTier;
+import edu.wisc.physics.wipac.deco.service.synthetic.DetectionEfficiency;
+
+/**
+ * Pushes frames from a {@link FrameSource} through the same trigger, cluster and persist
+ * stages as the camera, as fast as the source can read them.
+ *
+ * Without an output directory frames which pass the analysis are counted and discarded, which
+ * measures the analysis alone. With one, they are written like on the phone: events, and
+ * frames if deco.persist.frames is set, appended to the event log in its "log" directory (or
+ * as .evt and frame files with deco.persist.log=false), and the per-frame statistics log,
+ * within the deco.storage.budget.
+ */
+public class ReplayEngine
+{
+    private static final String EVENT_FILE_EXTENSION = ".evt";
+
+    private final FramePool mFramePool;
+    private final FramePipeline mFramePipeline;
+    private final FrameAnalysis mAnalysis;
+
+    private StorageLayout mStorageLayout;
+    private FrameWriter mFrameWriter;
+    private EventRecordWriter mEventRecordWriter;
+    private EventLog[] mEventLogs;
+    private EventLogWriter mEventLogWriter;
+    private StorageBudget mStorageBudget;
+    private File mLogDirectory;
+    private FrameStatisticsLog mFrameStatisticsLog;
+    private boolean mPersistFrames;
+    private DetectionEfficiency mEfficiency;
+
+    private final AtomicLong mPersisted = new AtomicLong();
+    private final AtomicLong mPersistedBytes = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private long mFrames;
+    private long mElapsed;
+
+    /**
+     * @param output   Directory frames are written to, null to discard them
+     * @param deviceId Device id of the written files
+     */
+    public ReplayEngine(DecoSettings settings, File output, String deviceId)
+    {
+        mFramePool = new FramePool(settings.getInt("pipeline.pool.size", 16));
+
+        if (output != null)
+        {
+            mStorageLayout = new StorageLayout(output, deviceId);
+            mFrameWriter = new FrameWriter(settings.getBoolean("persist.heapcopy", false));
+            mEventRecordWriter = new EventRecordWriter();
+            mFrameStatisticsLog = new FrameStatisticsLog(mStorageLayout);
+            mStorageBudget = new StorageBudget(settings.getLong("storage.budget", 4096) * 1024 * 1024, null);
+            mLogDirectory = new File(output, "log");
+            if (settings.getBoolean("persist.log", true))
+            {
+                mEventLogs = EventLog.createTiers(mLogDirectory, deviceId, settings);
+            }
+        }
+
+        mFramePipeline = new FramePipeline(settings,
+                new FramePipeline.FramePersister()
+                {
+                    @Override
+                    public void persist(Frame frame) throws Exception
+                    {
+                        ReplayEngine.this.persist(frame);
+                    }
+                },
+                new FramePipeline.Listener()
+                {
+                    @Override
+                    public void onFrameDropped(String stage, Frame frame)
+                    {
+                        mDropped.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onFrameError(String stage, Frame frame, Exception e)
+                    {
+                        if (mErrors.incrementAndGet() == 1)
+                        {
+                            System.err.println(stage + " stage failed to process frame " + frame.getNumber() + ": " + e);
+                        }
+                    }
+                });
+
+        if (FrameAnalysis.isEnabled(settings))
+        {
+            mAnalysis = new FrameAnalysis(settings,
+                    new ImageIoJpegDecoder(settings.getInt("trigger.jpeg.samplesize", 1)), mFrameStatisticsLog);
+            mAnalysis.addStages(mFramePipeline);
+        }
+        else
+        {
+            mAnalysis = null;
+        }
+        mPersistFrames = settings.getBoolean("persist.frames", mAnalysis == null || mAnalysis.getClusterStage() == null);
+
+        if (mEventLogs != null)
+        {
+            mEventLogWriter = new EventLogWriter(mEventLogs, mPersistFrames, settings,
+                    new EventLogWriter.Listener()
+                    {
+                        @Override
+                        public void onWritten(Frame frame, File segment, int bytes)
+                        {
+                            mPersisted.incrementAndGet();
+                            mPersistedBytes.addAndGet(bytes);
+                        }
+
+                        @Override
+                        public void onError(Frame frame, Exception e)
+                        {
+                            if (mErrors.incrementAndGet() == 1)
+                            {
+                                System.err.println("Failed to append frame " + frame.getNumber() + ": " + e);
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Matches every frame which passes the analysis against the injected events of a
+     * synthetic source.
+     */
+    public void setEfficiency(DetectionEfficiency efficiency)
+    {
+        mEfficiency = efficiency;
+    }
+
+    /**
+     * Replays every frame of the source and waits until the pipeline has processed them.
+     */
+    public void run(FrameSource source) throws IOException, InterruptedException
+    {
+        if (mEventLogs != null)
+        {
+            for (EventLog log : mEventLogs)
+            {
+                log.open();
+            }
+        }
+        if (mStorageBudget != null)
+        {
+            mStorageBudget.scan(mStorageLayout, mLogDirectory, mAnalysis != null);
+        }
+        if (mEventLogs != null)
+        {
+            for (StorageTier tier : StorageTier.values())
+            {
+                mEventLogs[tier.ordinal()].setStorageBudget(mStorageBudget, tier);
+            }
+            mEventLogWriter.start();
+        }
+
+        long start = System.nanoTime();
+        mFramePipeline.start();
+        try
+        {
+            while (true)
+            {
+                long acquireStart = System.nanoTime();
+                Frame frame = source.next(mFramePool);
+                if (frame == null)
+                {
+                    break;
+                }
+                mFrames++;
+                mFramePipeline.submit(frame, System.nanoTime() - acquireStart, 0);
+            }
+            mFramePipeline.awaitIdle();
+        }
+        finally
+        {
+            mFramePipeline.stop();
+            if (mEventLogWriter != null)
+            {
+                mEventLogWriter.stop();
+            }
+            mElapsed = System.nanoTime() - start;
+            if (mFrameStatisticsLog != null)
+            {
+                mFrameStatisticsLog.close();
+            }
+            if (mEventLogs != null)
+            {
+                for (EventLog log : mEventLogs)
+                {
+                    log.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes over the frame from the persist stage, see {@link FramePipeline.FramePersister}.
+     */
+    private void persist(Frame frame) throws IOException, InterruptedException
+    {
+        if (mEfficiency != null)
+        {
+            mEfficiency.match(frame);
+        }
+
+        if (mEventLogWriter != null)
+        {
+            mEventLogWriter.submit(frame);
+            return;
+        }
+
+        try
+        {
+            persistFiles(frame);
+        }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    private void persistFiles(Frame frame) throws IOException
+    {
+        if (mStorageLayout == null)
+        {
+            mPersisted.incrementAndGet();
+            return;
+        }
+
+        int size = 0;
+        long time = frame.getCaptureTime();
+        File directory = mStorageLayout.getDirectory(time);
+        if (frame.hasEvents())
+        {
+            File file = new File(directory, mStorageLayout.getFileName(time, EVENT_FILE_EXTENSION));
+            int length = mEventRecordWriter.write(file, frame);
+            mStorageBudget.add(StorageTier.EVENTS, file, length);
+            size += length;
+        }
+        if (mPersistFrames || !frame.hasEvents())
+        {
+            File file = new File(directory, mStorageLayout.getFileName(time, frame.getFormat().getExtension()));
+            int length = mFrameWriter.write(file, frame);
+            mStorageBudget.add(StorageTier.ofFrame(frame.isTriggered()), file, length);
+            size += length;
+        }
+
+        mPersisted.incrementAndGet();
+        mPersistedBytes.addAndGet(size);
+    }
+
+    public String report()
+    {
+        double seconds = mElapsed / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Replayed %d frames in %.2fs: %.1f frames/s, %d persisted (%d bytes), %d dropped, %d errors%n",
+                mFrames, seconds, seconds > 0 ? mFrames / seconds : 0,
+                mPersisted.get(), mPersistedBytes.get(), mDropped.get(), mErrors.get()));
+
+        // Wall clock rate of each stage, and the rate one of its threads sustains while busy
+        for (StageStatistics statistics : mFramePipeline.getStageStatistics())
+        {
+            long latency = statistics.getAverageLatency();
+            sb.append(String.format(Locale.US, "  %-8s %8d frames %10.1f frames/s %10.3fms/frame %10.1f frames/s per busy thread%n",
+                    statistics.getName(), statistics.getProcessed(),
+                    seconds > 0 ? statistics.getProcessed() / seconds : 0,
+                    latency / 1e6, latency > 0 ? 1e9 / latency : 0));
+        }
+
+        if (mAnalysis != null)
+        {
+            sb.append("  ").append(mAnalysis.getTriggerStage().getStatistics().report()).append(String.format("%n"));
+            if (mAnalysis.getCalibration() != null)
+            {
+                sb.append("  ").append(mAnalysis.getCalibration().report()).append(String.format("%n"));
+            }
+            if (mAnalysis.getClusterStage() != null)
+            {
+                sb.append("  ").append(mAnalysis.getClusterStage().report()).append(String.format("%n"));
+            }
+        }
+        if (mEfficiency != null)
+        {
+            sb.append("  ").append(mEfficiency.report()).append(String.format("%n"));
+        }
+        if (mEventLogs != null)
+        {
+            for (StorageTier tier : StorageTier.values())
+            {
+                sb.append("  ").append(tier.getName()).append(' ').append(mEventLogs[tier.ordinal()].report()).append(String.format("%n"));
+            }
+            sb.append("  ").append(mEventLogWriter.report()).append(String.format("%n"));
+        }
+        if (mStorageBudget != null)
+        {
+            sb.append("  ").append(mStorageBudget.report()).append(String.format("%n"));
+        }
+        sb.append("  ").append(mFramePool.report());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package edu.wisc.physics.wipac.deco.replay;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import edu.wisc.physics.wipac.deco.service.DecoSettings;
+import edu.wisc.physics.wipac.deco.service.upload.HttpUploadTransport;
+import edu.wisc.physics.wipac.deco.service.upload.UploadOutbox;
+import edu.wisc.physics.wipac.deco.service.upload.Uploader;
+
+/**
+ * Uploads the sealed event log segments of a log directory, e.g. the output of a replay, the
+ * way the service does:
+ * <pre>
+ *   Upload [--settings camera-settings.properties] [--set deco.key=value]... [--device-id id]
+ *          [--timeout seconds] url directory
+ * </pre>
+ * Progress is kept in the directory's outbox journal, so an interrupted upload continues where
+ * it stopped when run again. Reports every few seconds until the outbox is empty.
+ */
+public class Upload
+{
+    private static final long POLL_INTERVAL = 100; // milliseconds
+    private static final long REPORT_INTERVAL = 5000; // milliseconds
+
+    public static void main(String[] args) throws Exception
+    {
+        Properties properties = new Properties();
+        String deviceId = "replay";
+        long timeout = 0;
+        String url = null;
+        File directory = null;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("--settings") && i + 1 < args.length)
+            {
+                InputStream input = new FileInputStream(args[++i]);
+                try
+                {
+                    properties.load(input);
+                }
+                finally
+                {
+                    input.close();
+                }
+            }
+            else if (arg.equals("--set") && i + 1 < args.length)
+            {
+                String override = args[++i];
+                int separator = override.indexOf('=');
+                if (separator <= 0)
+                {
+                    usage("Invalid setting " + override);
+                }
+                properties.setProperty(override.substring(0, separator), override.substring(separator + 1));
+            }
+            else if (arg.equals("--device-id") && i + 1 < args.length)
+            {
+                deviceId = args[++i];
+            }
+            else if (arg.equals("--timeout") && i + 1 < args.length)
+            {
+                timeout = Long.parseLong(args[++i]) * 1000;
+            }
+            else if (arg.startsWith("--"))
+            {
+                usage("Unknown option " + arg);
+            }
+            else if (url == null)
+            {
+                url = arg;
+            }
+            else if (directory == null)
+            {
+                directory = new File(arg);
+            }
+            else
+            {
+                usage("Too many arguments");
+            }
+        }
+        if (directory == null)
+        {
+            usage("No url or directory");
+        }
+
+        DecoSettings settings = new DecoSettings(properties);
+        UploadOutbox outbox = new UploadOutbox(directory);
+        outbox.open();
+        outbox.addSegments(deviceId);
+        System.out.println(outbox.report());
+
+        Uploader uploader = new Uploader(outbox,
+                new HttpUploadTransport(url, deviceId, settings.getInt("upload.timeout", 30) * 1000), settings, null);
+        long start = System.currentTimeMillis();
+        uploader.start();
+        try
+        {
+            long report = start;
+            while (outbox.getPendingFiles() > 0 && (timeout <= 0 || System.currentTimeMillis() - start < timeout))
+            {
+                Thread.sleep(POLL_INTERVAL);
+                if (System.currentTimeMillis() - report >= REPORT_INTERVAL)
+                {
+                    report = System.currentTimeMillis();
+                    System.out.println(uploader.report());
+                }
+            }
+        }
+        finally
+        {
+            uploader.stop();
+            outbox.close();
+        }
+        System.out.println(String.format("Done in %.1fs", (System.currentTimeMillis() - start) / 1000.0));
+        System.out.println(uploader.report());
+    }
+
+    private static void usage(String error)
+    {
+        System.err.println(error);
+        System.err.println("Usage: Upload [--settings camera-settings.properties] [--set deco.key=value]... [--device-id id]");
+        System.err.println("              [--timeout seconds] url directory");
+        System.exit(1);
+    }
+}
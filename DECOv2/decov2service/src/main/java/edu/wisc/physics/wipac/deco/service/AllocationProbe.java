@@ -0,0 +1,109 @@
+package edu.wisc.physics.wipac.deco.service;
+
+import android.os.Debug;
+
+import java.lang.reflect.Method;
+
+/**
+ * Logs the number of allocations and garbage collections per 1,000 frames.
+ *
+ * Allocation counting slows down every allocation in the process, so the probe is only
+ * enabled with deco.debug.allocations=true. GC time is only available from Android 6.0
+ * (Debug.getRuntimeStat), older releases report the GC count alone.
+ */
+public class AllocationProbe
+{
+    private static final String TAG = "AllocationProbe";
+    private static final int FRAMES_PER_SAMPLE = 1000;
+
+    private final boolean mEnabled;
+    private Method mGetRuntimeStat;
+
+    private long mFrames;
+    private int mAllocCount;
+    private int mAllocSize;
+    private int mGcCount;
+    private long mGcTime;
+    private long mBlockingGcTime;
+
+    public AllocationProbe(boolean enabled)
+    {
+        mEnabled = enabled;
+        if (enabled)
+        {
+            try
+            {
+                mGetRuntimeStat = Debug.class.getMethod("getRuntimeStat", String.class);
+            }
+            catch (NoSuchMethodException e)
+            {
+                mGetRuntimeStat = null;
+            }
+        }
+    }
+
+    public void start()
+    {
+        if (mEnabled)
+        {
+            Debug.resetAllCounts();
+            Debug.startAllocCounting();
+            sample();
+            Logger.i(TAG, "Counting allocations per " + FRAMES_PER_SAMPLE + " frames");
+        }
+    }
+
+    public void stop()
+    {
+        if (mEnabled)
+        {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    public synchronized void onFrame()
+    {
+        if (!mEnabled || ++mFrames % FRAMES_PER_SAMPLE != 0)
+        {
+            return;
+        }
+
+        int allocCount = mAllocCount;
+        int allocSize = mAllocSize;
+        int gcCount = mGcCount;
+        long gcTime = mGcTime;
+        long blockingGcTime = mBlockingGcTime;
+        sample();
+
+        Logger.i(TAG, "Per " + FRAMES_PER_SAMPLE + " frames: "
+                + (mAllocCount - allocCount) + " allocations, "
+                + (mAllocSize - allocSize) + " bytes, "
+                + (mGcCount - gcCount) + " GCs"
+                + (mGetRuntimeStat != null ? ", GC time " + (mGcTime - gcTime) + "ms (blocking " + (mBlockingGcTime - blockingGcTime) + "ms)" : ""));
+    }
+
+    private void sample()
+    {
+        mAllocCount = Debug.getGlobalAllocCount();
+        mAllocSize = Debug.getGlobalAllocSize();
+        mGcCount = Debug.getGlobalGcInvocationCount();
+        mGcTime = getRuntimeStat("art.gc.gc-time");
+        mBlockingGcTime = getRuntimeStat("art.gc.blocking-gc-time");
+    }
+
+    private long getRuntimeStat(String name)
+    {
+        if (mGetRuntimeStat != null)
+        {
+            try
+            {
+                return Long.parseLong((String) mGetRuntimeStat.invoke(null, name));
+            }
+            catch (Exception e)
+            {
+                Logger.d(TAG, "Runtime stat {} not available", name);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,92 @@
+package edu.wisc.physics.wipac.deco.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+import edu.wisc.physics.wipac.deco.service.schedule.CaptureScheduler;
+
+/**
+ * Battery state for the {@link CaptureScheduler}, kept from the sticky ACTION_BATTERY_CHANGED
+ * broadcast. The device counts as charging while it is plugged in, even once the battery is
+ * full.
+ */
+public class BatteryMonitor extends BroadcastReceiver implements CaptureScheduler.DeviceState
+{
+    private final Runnable mOnChanged;
+    private volatile boolean mCharging;
+    private volatile float mLevel = 100;
+    private volatile float mTemperature = Float.NaN;
+
+    /**
+     * @param onChanged Run on the main thread when the battery state changed
+     */
+    public BatteryMonitor(Runnable onChanged)
+    {
+        mOnChanged = onChanged;
+    }
+
+    public void register(Context context)
+    {
+        Intent sticky = context.registerReceiver(this, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (sticky != null)
+        {
+            update(sticky);
+        }
+    }
+
+    public void unregister(Context context)
+    {
+        context.unregisterReceiver(this);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+        boolean charging = mCharging;
+        float level = mLevel;
+        update(intent);
+        // The broadcast comes with every voltage change; temperature is picked up by the
+        // scheduler's periodic update
+        if (charging != mCharging || level != mLevel)
+        {
+            mOnChanged.run();
+        }
+    }
+
+    private void update(Intent intent)
+    {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0)
+        {
+            mLevel = level * 100f / scale;
+        }
+        mCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+        mTemperature = temperature != Integer.MIN_VALUE ? temperature / 10f : Float.NaN;
+    }
+
+    @Override
+    public boolean isCharging()
+    {
+        return mCharging;
+    }
+
+    @Override
+    public float getBatteryLevel()
+    {
+        return mLevel;
+    }
+
+    /**
+     * @return Battery temperature, the device temperature available without extra permissions
+     */
+    @Override
+    public float getTemperature()
+    {
+        return mTemperature;
+    }
+}
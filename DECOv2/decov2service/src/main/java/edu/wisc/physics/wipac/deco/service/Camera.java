@@ -8,36 +8,74 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.location.Criteria;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.FileObserver;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Process;
 import android.telephony.TelephonyManager;
 import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
+import edu.wisc.physics.wipac.deco.service.analysis.ClusterStage;
+import edu.wisc.physics.wipac.deco.service.analysis.DarkFrameCalibration;
+import edu.wisc.physics.wipac.deco.service.analysis.FrameAnalysis;
+import edu.wisc.physics.wipac.deco.service.analysis.TriggerStage;
+import edu.wisc.physics.wipac.deco.service.metrics.CaptureMetrics;
+import edu.wisc.physics.wipac.deco.service.metrics.Gauge;
+import edu.wisc.physics.wipac.deco.service.metrics.MetricsRegistry;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+import edu.wisc.physics.wipac.deco.service.pipeline.FrameFormat;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePipeline;
+import edu.wisc.physics.wipac.deco.service.pipeline.FramePool;
+import edu.wisc.physics.wipac.deco.service.storage.CalibrationStore;
+import edu.wisc.physics.wipac.deco.service.storage.CameraSnapshot;
+import edu.wisc.physics.wipac.deco.service.storage.EventLog;
+import edu.wisc.physics.wipac.deco.service.storage.EventLogWriter;
+import edu.wisc.physics.wipac.deco.service.storage.EventRecordWriter;
+import edu.wisc.physics.wipac.deco.service.storage.FrameStatisticsLog;
+import edu.wisc.physics.wipac.deco.service.storage.FrameWriter;
+import edu.wisc.physics.wipac.deco.service.storage.StorageBudget;
+import edu.wisc.physics.wipac.deco.service.storage.StorageLayout;
+import edu.wisc.physics.wipac.deco.service.storage.StorageTier;
+import edu.wisc.physics.wipac.deco.service.tracing.FrameTracer;
+import edu.wisc.physics.wipac.deco.service.upload.HttpUploadTransport;
+import edu.wisc.physics.wipac.deco.service.upload.UploadOutbox;
+import edu.wisc.physics.wipac.deco.service.upload.Uploader;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -47,52 +85,416 @@ public class Camera
     private static final String TAG = "Camera";
 
     private static final String CAPTURE_BUILDER_PROP_FILE = "camera-settings.properties";
-    private static final SimpleDateFormat IMAGE_DIR_FORMAT = new SimpleDateFormat("yyyyMMdd_HH");
-    private static final SimpleDateFormat IMAGE_FILE_FORMAT = new SimpleDateFormat("yyyyMMdd_HHmmss.SSS");
+    private static final String EVENT_FILE_EXTENSION = ".evt";
+    private static final String CALIBRATION_DIRECTORY = "calibration";
+    private static final String LOG_DIRECTORY = "log";
+    private static final String TRACE_DIRECTORY = "trace";
+    private static final String CAMERA_DIRECTORY = "camera";
+
+    private static final String QUEUE_PIPELINE = "queue.pipeline";
+    private static final String QUEUE_EVENT_LOG = "queue.eventlog";
+    private static final String UPLOAD_PENDING = "upload.pending";
 
     private Context mContext;
     private Handler mHandler;
     private Properties mCaptureBuilderProperties;
+    private DecoSettings mDecoSettings;
 
     private HandlerThread mCaptureThread;
     private Handler mCaptureHandler;
 
     private AtomicBoolean mCameraReady = new AtomicBoolean();
+    // Set by the capture scheduler, the session stays open while paused
+    private AtomicBoolean mCapturePaused = new AtomicBoolean();
+    private AtomicBoolean mCaptureStopped = new AtomicBoolean();
+    // The reader thread ending the one-shot chain and a resume restarting it hold it, so
+    // neither misses the other
+    private final Object mCaptureLock = new Object();
     private CameraDevice mCameraDevice;
     private DecoCameraCharacteristics mDecoCameraCharacteristics;
+    private File mSnapshotDirectory;
+    private CameraSnapshot mCameraSnapshot;
+
+    // Capture request settings, compiled once the camera is open
+    private Map<String, CaptureProfile> mCaptureProfiles;
+    private String mCaptureProfileName;
+    private CaptureProfile mCaptureProfile;
+    private volatile CaptureRequest mSwitchRequest;
+    private volatile long mSwitchTime;
+    private volatile String mSwitchMetric;
+    private long mLastCompletedTime;
+
+    // Reloads camera-settings.properties when it changes
+    private static final long SETTINGS_RELOAD_DELAY = 500; // milliseconds
+    private File mSettingsFile;
+    private FileObserver mSettingsObserver;
     private CameraCaptureSession mCameraCaptureSession;
     private CameraCaptureSession.CaptureCallback mStillCaptureCallback;
     private CameraCaptureStateCallback mCameraCaptureStateCallback;
 
     // Still capture related fields
     private static final int READER_MAX_IMAGES = 10;
-    private static final int STILL_CAPTURE_PAUSE = 1000; // milliseconds
     private ImageReader mStillReader;
     private Size mStillSize = new Size(640, 480); // default
+    private FrameFormat mRequestedFrameFormat = FrameFormat.JPEG;
+    private FrameFormat mFrameFormat = FrameFormat.JPEG;
     private CaptureRequest mStillCaptureRequest;
 
+    // Capture mode related fields
+    private static final int DEFAULT_BURST_SIZE = 4;
+    private CaptureMode mCaptureMode = CaptureMode.ONE_SHOT;
+    private int mBurstSize = DEFAULT_BURST_SIZE;
+    private CaptureRateMonitor mCaptureRateMonitor = new CaptureRateMonitor();
+    private HandlerThread mReaderThread;
+    private Handler mReaderHandler;
+
+    // Frame processing pipeline behind the ImageReader
+    private static final int DEFAULT_FRAME_POOL_SIZE = 16;
+    private FramePipeline mFramePipeline;
+    private FramePool mFramePool;
+    private AllocationProbe mAllocationProbe;
+    private TriggerStage mTriggerStage;
+    private ClusterStage mClusterStage;
+    private DarkFrameCalibration mCalibration;
+    private CalibrationStore mCalibrationStore;
+    private String mCalibrationName;
+    private long mCaptureSettingsHash;
+
+    // Storage related fields
+    private StorageLayout mStorageLayout;
+    private FrameWriter mFrameWriter;
+    private EventRecordWriter mEventRecordWriter;
+    private EventLog[] mEventLogs;
+    private EventLogWriter mEventLogWriter;
+    private StorageBudget mStorageBudget;
+    private Uploader mUploader;
+    private boolean mPersistFrames = true;
+    private FrameStatisticsLog mFrameStatisticsLog;
+
     // Location information
     private static final long MIN_TIME_LOCATION_UPDATES      = 5 * 60 * 1000;  // 5mins
     private static final float MIN_DISTANCE_LOCATION_UPDATES = 10;  // meters
-    private Location mLocation;
+    private volatile Location mLocation;
 
     private AtomicLong mNumSavedImages = new AtomicLong();
+    private AtomicLong mNumAcquiredImages = new AtomicLong();
+
+    // Latencies and throughput, readable through the service while capturing
+    private MetricsRegistry mMetrics;
+    private CaptureMetrics mCaptureMetrics;
+    private volatile long mRequestTime;
+    private FrameTracer mTracer;
 
-    public Camera(Context context, Handler handler) throws IOException
+    // CPU cost per frame
+    private long mLastCpuTime;
+    private long mLastCpuImages;
+
+    public Camera(Context context, Handler handler, MetricsRegistry metrics) throws IOException
     {
         this.mContext = context;
         this.mHandler = handler;
+        this.mMetrics = metrics;
+        mCaptureMetrics = new CaptureMetrics(metrics);
         mCaptureBuilderProperties = new Properties();
+        File dir = new File(Environment.getExternalStorageDirectory(), mContext.getResources().getString(R.string.app_name));
         try
         {
-            File dir = new File(Environment.getExternalStorageDirectory(), mContext.getResources().getString(R.string.app_name));
-            mCaptureBuilderProperties.load(new FileInputStream(new File(dir, CAPTURE_BUILDER_PROP_FILE)));
+            mSettingsFile = new File(dir, CAPTURE_BUILDER_PROP_FILE);
+            mCaptureBuilderProperties.load(new FileInputStream(mSettingsFile));
         }
         catch (IOException e)
         {
             Logger.e(TAG, "Failed to load " + CAPTURE_BUILDER_PROP_FILE + " file", e);
             throw e;
         }
+
+        mDecoSettings = new DecoSettings(mCaptureBuilderProperties);
+        Logger.configure(mDecoSettings);
+        mCaptureMode = mDecoSettings.getEnum("capture.mode", CaptureMode.class, CaptureMode.ONE_SHOT);
+        mBurstSize = Math.max(1, mDecoSettings.getInt("capture.burst.size", DEFAULT_BURST_SIZE));
+        mRequestedFrameFormat = mDecoSettings.getEnum("capture.format", FrameFormat.class, FrameFormat.JPEG);
+        mCaptureProfileName = mDecoSettings.getString("capture.profile", CaptureProfile.DEFAULT);
+        if (mDecoSettings.getBoolean("settings.reload", true))
+        {
+            watchSettings();
+        }
+        Logger.i(TAG, "Capture mode " + mCaptureMode + (mCaptureMode == CaptureMode.BURST ? " (" + mBurstSize + " requests)" : ""));
+
+        mStorageLayout = new StorageLayout(dir, getDeviceId());
+        mSnapshotDirectory = new File(dir, CAMERA_DIRECTORY);
+        mFrameWriter = new FrameWriter(mDecoSettings.getBoolean("persist.heapcopy", false));
+        if (mDecoSettings.getBoolean("persist.log", true))
+        {
+            openEventLog(new File(dir, LOG_DIRECTORY));
+        }
+        createStorageBudget(new File(dir, LOG_DIRECTORY));
+        if (mEventLogs != null && !mDecoSettings.getString("upload.url", "").isEmpty())
+        {
+            createUploader(new File(dir, LOG_DIRECTORY));
+        }
+        mFramePool = new FramePool(mDecoSettings.getInt("pipeline.pool.size", DEFAULT_FRAME_POOL_SIZE));
+        if (mDecoSettings.getBoolean("trace.enabled", true))
+        {
+            createTracer();
+        }
+        mAllocationProbe = new AllocationProbe(mDecoSettings.getBoolean("debug.allocations", false));
+
+        mFramePipeline = new FramePipeline(mDecoSettings,
+                new FramePipeline.FramePersister()
+                {
+                    @Override
+                    public void persist(Frame frame) throws InterruptedException
+                    {
+                        saveImage(frame);
+                    }
+                },
+                new FramePipeline.Listener()
+                {
+                    @Override
+                    public void onFrameDropped(String stage, Frame frame)
+                    {
+                        mCaptureMetrics.onDropped();
+                        Logger.d(TAG, "{} stage fell behind, dropped image {}", stage, frame.getNumber());
+                    }
+
+                    @Override
+                    public void onFrameError(String stage, Frame frame, Exception e)
+                    {
+                        mCaptureMetrics.onError();
+                        Logger.e(TAG, stage + " stage failed to process image " + frame.getNumber(), e);
+                    }
+                });
+
+        if (FrameAnalysis.isEnabled(mDecoSettings))
+        {
+            mFrameStatisticsLog = new FrameStatisticsLog(mStorageLayout);
+            FrameAnalysis analysis = new FrameAnalysis(mDecoSettings,
+                    new JpegFrameDecoder(mDecoSettings.getInt("trigger.jpeg.samplesize", 1)), mFrameStatisticsLog);
+            analysis.addStages(mFramePipeline);
+            mTriggerStage = analysis.getTriggerStage();
+            mClusterStage = analysis.getClusterStage();
+            mCalibration = analysis.getCalibration();
+
+            if (mCalibration != null && mDecoSettings.getBoolean("calibration.store", true))
+            {
+                mCalibrationStore = new CalibrationStore(new File(dir, CALIBRATION_DIRECTORY));
+                mCalibration.setListener(
+                    new DarkFrameCalibration.Listener()
+                    {
+                        @Override
+                        public void onCalibrated(DarkFrameCalibration calibration)
+                        {
+                            saveCalibration();
+                        }
+                    });
+            }
+        }
+        Logger.i(TAG, "Hit trigger " + (mTriggerStage != null ? "enabled" : "disabled")
+                + ", calibration " + (mCalibration != null ? "enabled" : "disabled")
+                + ", cluster extraction " + (mClusterStage != null ? "enabled" : "disabled"));
+
+        // Once events are extracted the full frames are only kept on request
+        mPersistFrames = mDecoSettings.getBoolean("persist.frames", mClusterStage == null);
+        mEventRecordWriter = new EventRecordWriter();
+        if (mEventLogs != null)
+        {
+            createEventLogWriter();
+        }
+        registerGauges();
+    }
+
+    /**
+     * Traces the frames' way through the pipeline, see {@link #exportTrace()}.
+     */
+    private void createTracer()
+    {
+        mTracer = new FrameTracer(mDecoSettings.getInt("trace.events", 8192), mDecoSettings.getInt("trace.sample", 1));
+        mFramePool.setListener(
+            new FramePool.Listener()
+            {
+                @Override
+                public void onReleased(Frame frame)
+                {
+                    mTracer.record(frame.getCaptureId(), FrameTracer.Phase.CLOSED, System.nanoTime());
+                }
+            });
+        Logger.i(TAG, mTracer.report());
+    }
+
+    /**
+     * Writes the frames traced lately as a Chrome trace, to load into Perfetto or
+     * chrome://tracing. Capture goes on while it is written.
+     *
+     * @return The trace file, null if tracing is disabled
+     */
+    public File exportTrace() throws IOException
+    {
+        if (mTracer == null)
+        {
+            return null;
+        }
+
+        File directory = new File(mStorageLayout.getRoot(), TRACE_DIRECTORY);
+        directory.mkdirs();
+        File file = new File(directory, mStorageLayout.getFileName(System.currentTimeMillis(), ".json"));
+        long start = System.nanoTime();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        int events;
+        try
+        {
+            events = mTracer.export(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+        Logger.i(TAG, "Exported {} trace events to {} in {}ms", events, file, (System.nanoTime() - start) / 1000000);
+        return file;
+    }
+
+    private void registerGauges()
+    {
+        mMetrics.gauge(QUEUE_PIPELINE,
+            new Gauge()
+            {
+                @Override
+                public long getValue()
+                {
+                    return mFramePipeline.getQueueDepth();
+                }
+            });
+        if (mEventLogWriter != null)
+        {
+            mMetrics.gauge(QUEUE_EVENT_LOG,
+                new Gauge()
+                {
+                    @Override
+                    public long getValue()
+                    {
+                        return mEventLogWriter.getQueueDepth();
+                    }
+                });
+        }
+        if (mUploader != null)
+        {
+            mMetrics.gauge(UPLOAD_PENDING,
+                new Gauge()
+                {
+                    @Override
+                    public long getValue()
+                    {
+                        return mUploader.getOutbox().getPendingBytes();
+                    }
+                });
+        }
+    }
+
+    private void openEventLog(File directory)
+    {
+        mEventLogs = EventLog.createTiers(directory, mStorageLayout.getDeviceId(), mDecoSettings);
+        try
+        {
+            for (EventLog log : mEventLogs)
+            {
+                log.open();
+            }
+            Logger.i(TAG, "Appending to the event logs in " + directory);
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "Failed to open the event log, saving one file per image", e);
+            mEventLogs = null;
+        }
+    }
+
+    /**
+     * Counts what previous runs stored, once, and keeps a running total from then on.
+     */
+    private void createStorageBudget(File logDirectory)
+    {
+        mStorageBudget = new StorageBudget(mDecoSettings.getLong("storage.budget", 4096) * 1024 * 1024,
+                new StorageBudget.Listener()
+                {
+                    @Override
+                    public void onEvicted(StorageTier tier, File file, long bytes)
+                    {
+                        Logger.d(TAG, "Evicted {} {} ({} bytes)", tier.getName(), file.getName(), bytes);
+                        if (mCameraCaptureStateCallback != null)
+                        {
+                            mCameraCaptureStateCallback.onStorageEvicted(file.getName(), Long.valueOf(bytes));
+                        }
+                    }
+                });
+        mStorageBudget.scan(mStorageLayout, logDirectory, FrameAnalysis.isEnabled(mDecoSettings));
+        Logger.i(TAG, mStorageBudget.report());
+
+        if (mEventLogs != null)
+        {
+            for (StorageTier tier : StorageTier.values())
+            {
+                mEventLogs[tier.ordinal()].setStorageBudget(mStorageBudget, tier);
+            }
+        }
+    }
+
+    /**
+     * Uploads the segments sealed by this and previous runs, resuming where the last run stopped.
+     */
+    private void createUploader(File logDirectory)
+    {
+        UploadOutbox outbox = new UploadOutbox(logDirectory);
+        try
+        {
+            outbox.open();
+            outbox.addSegments(mStorageLayout.getDeviceId());
+            mUploader = new Uploader(outbox, new HttpUploadTransport(mStorageLayout.getDeviceId(), mDecoSettings), mDecoSettings,
+                    new Uploader.Backlog()
+                    {
+                        @Override
+                        public int getQueueDepth()
+                        {
+                            return mFramePipeline.getQueueDepth() + mEventLogWriter.getQueueDepth();
+                        }
+                    });
+            Uploader.watch(outbox, mEventLogs);
+            Logger.i(TAG, "Uploading to " + mDecoSettings.getString("upload.url", "") + ", " + outbox.report());
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "Failed to open the upload outbox, keeping the event logs local", e);
+            mUploader = null;
+        }
+    }
+
+    private void createEventLogWriter()
+    {
+        mEventLogWriter = new EventLogWriter(mEventLogs, mPersistFrames, mDecoSettings,
+                new EventLogWriter.Listener()
+                {
+                    @Override
+                    public void onWritten(Frame frame, File segment, int bytes)
+                    {
+                        long now = System.nanoTime();
+                        mCaptureMetrics.onPersisted(frame, bytes, now);
+                        if (mTracer != null)
+                        {
+                            mTracer.record(frame.getCaptureId(), FrameTracer.Phase.PERSISTED, now);
+                        }
+                        if (mCameraCaptureStateCallback != null)
+                        {
+                            mCameraCaptureStateCallback.onImageCaptured(
+                                    new ImageInfo(segment.getName(), Long.valueOf(bytes), null));
+                        }
+                    }
+
+                    @Override
+                    public void onError(Frame frame, Exception e)
+                    {
+                        mCaptureMetrics.onError();
+                        Logger.e(TAG, "Failed to append image " + frame.getNumber() + " to the event log", e);
+                    }
+                });
+        Logger.i(TAG, "Event log durability " + mEventLogWriter.getDurability());
     }
 
     public void setCameraCaptureStateCallback(CameraCaptureStateCallback cameraCaptureStateCallback)
@@ -130,7 +532,7 @@ public class Camera
                 @Override
                 public void onLocationChanged(Location location)
                 {
-                    Logger.d(TAG, "Location changed " + location);
+                    Logger.d(TAG, "Location changed {}", location);
                     try
                     {
                         if (mCameraReady.get())
@@ -140,6 +542,12 @@ public class Camera
                             CaptureRequest.Builder captureRequestBuilder = Camera.this.getStillCaptureRequestBuilder();
                             mStillCaptureRequest = captureRequestBuilder.build();
                             mCameraReady.set(true);
+
+                            // A repeating request keeps using the old request until it is replaced
+                            if (mCaptureMode != CaptureMode.ONE_SHOT && mCameraCaptureSession != null)
+                            {
+                                startRepeatingCapture();
+                            }
                         }
                     }
                     catch (Exception e)
@@ -151,19 +559,19 @@ public class Camera
                 @Override
                 public void onStatusChanged(String provider, int status, Bundle extras)
                 {
-                    Logger.d(TAG, "Location status changed " + provider + " " + status + " " + extras);
+                    Logger.d(TAG, "Location status changed {} {} {}", provider, status, extras);
                 }
 
                 @Override
                 public void onProviderEnabled(String provider)
                 {
-                    Logger.d(TAG, "Location provider enabled " + provider);
+                    Logger.d(TAG, "Location provider enabled {}", provider);
                 }
 
                 @Override
                 public void onProviderDisabled(String provider)
                 {
-                    Logger.d(TAG, "Location provider disabled " + provider);
+                    Logger.d(TAG, "Location provider disabled {}", provider);
                 }
             };
 
@@ -175,7 +583,7 @@ public class Camera
         criteria.setPowerRequirement (Criteria.NO_REQUIREMENT);
         String locationProvider = locationManager.getBestProvider(criteria, true);
 
-        Logger.d(TAG, "Location provider " + locationProvider);
+        Logger.d(TAG, "Location provider {}", locationProvider);
         if (locationProvider != null)
         {
             locationManager.requestLocationUpdates(locationProvider, MIN_TIME_LOCATION_UPDATES, MIN_DISTANCE_LOCATION_UPDATES, locationListener);
@@ -206,7 +614,12 @@ public class Camera
 
         try
         {
-            String cameraId = getCameraId(mContext);
+            // Saved by the first start on this build, spares looking through the cameras
+            long start = System.nanoTime();
+            mCameraSnapshot = CameraSnapshot.load(mSnapshotDirectory, Build.FINGERPRINT);
+            String cameraId = mCameraSnapshot != null ? mCameraSnapshot.getCameraId() : getCameraId(mContext);
+            Logger.i(TAG, "Camera {} found in {}ms, snapshot {}", cameraId,
+                    (System.nanoTime() - start) / 1000000, mCameraSnapshot != null ? "loaded" : "missing");
             if (cameraId == null)
             {
                 Logger.w(TAG, "No cameras found");
@@ -252,22 +665,31 @@ public class Camera
      */
     private void onCameraDeviceOpen(CameraDevice cameraDevice)
     {
-        Logger.d(TAG, "onCameraDeviceOpen - thread " + Thread.currentThread().getName() + "(" + Thread.currentThread().getId() + ")");
+        Logger.d(TAG, "onCameraDeviceOpen - thread {}({})", Thread.currentThread().getName(), Thread.currentThread().getId());
         mCameraDevice = cameraDevice;
 
         try
         {
-            mDecoCameraCharacteristics = new DecoCameraCharacteristics(mContext, mCameraDevice.getId());
+            long start = System.nanoTime();
+            String cameraId = mCameraDevice.getId();
+            if (mCameraSnapshot == null || !cameraId.equals(mCameraSnapshot.getCameraId()))
+            {
+                mCameraSnapshot = DecoCameraCharacteristics.createSnapshot(mContext, cameraId, Build.FINGERPRINT);
+                Logger.i(TAG, "Camera snapshot taken in {}ms", (System.nanoTime() - start) / 1000000);
+                saveCameraSnapshot();
+            }
+            mDecoCameraCharacteristics = new DecoCameraCharacteristics(mContext, cameraId, mCameraSnapshot);
+            Logger.i(TAG, "Camera characteristics ready in {}ms", (System.nanoTime() - start) / 1000000);
         }
         catch (CameraAccessException e)
         {
             Logger.e(TAG, "Failed to create camera characteristics", e);
         }
 
-        if (determineCameraOutputSize())
+        if (compileCaptureProfiles() && determineCameraOutputSize())
         {
             mCameraReady.set(true);
-            Logger.d(TAG, "onCameraDeviceOpen camera ready " + mCameraReady.get());
+            Logger.d(TAG, "onCameraDeviceOpen camera ready {}", mCameraReady.get());
             if (mCameraCaptureStateCallback != null)
             {
                 mCameraCaptureStateCallback.onCameraOpen();
@@ -276,148 +698,655 @@ public class Camera
         }
     }
 
-    private boolean determineCameraOutputSize()
+    /**
+     * Compiles every capture profile, a profile with an invalid value is left out.
+     *
+     * @return false if the selected profile and the default one are both unusable
+     */
+    private boolean compileCaptureProfiles()
     {
-        try
+        if (mDecoCameraCharacteristics == null)
+        {
+            return false;
+        }
+
+        mCaptureProfiles = compileCaptureProfiles(mCaptureBuilderProperties, false);
+        CaptureProfile profile = mCaptureProfiles.get(mCaptureProfileName);
+        if (profile == null)
+        {
+            Logger.w(TAG, "No capture profile " + mCaptureProfileName + ", using " + CaptureProfile.DEFAULT);
+            profile = mCaptureProfiles.get(CaptureProfile.DEFAULT);
+        }
+        if (profile == null)
+        {
+            return false;
+        }
+        selectCaptureProfile(profile);
+        return true;
+    }
+
+    /**
+     * @param strict Reject the settings if a profile has an unsupported key or invalid value,
+     *               rather than leaving it out
+     * @throws IllegalArgumentException if strict and the settings were rejected
+     */
+    private Map<String, CaptureProfile> compileCaptureProfiles(Properties properties, boolean strict)
+    {
+        long start = System.nanoTime();
+        Map<String, CaptureProfile> profiles = new HashMap<>();
+        for (String name : CaptureProfile.getNames(properties))
         {
-            CameraManager cameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-            CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(mCameraDevice.getId());
-            StreamConfigurationMap scalerStreamConfigurationMap = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (scalerStreamConfigurationMap == null)
+            try
             {
-                // TODO makeToast("Unable to determine camera output size");
-                Logger.e(TAG, "Unable to determine camera output size - CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP is null");
-                return false;
+                profiles.put(name, mDecoCameraCharacteristics.compile(name, CaptureProfile.getSettings(properties, name), strict));
             }
-            else
+            catch (IllegalArgumentException e)
             {
-
-                // Still capture output size
-                Size[] outputSizes = scalerStreamConfigurationMap.getOutputSizes(ImageFormat.JPEG);
-                if (outputSizes != null && outputSizes.length > 0)
+                if (strict)
                 {
-                    mStillSize = outputSizes[0];
+                    throw e;
                 }
-                Logger.d(TAG, "Still capture output size " + mStillSize);
+                Logger.e(TAG, "Failed to compile capture profile " + name, e);
             }
         }
-        catch (Exception e)
+        Logger.i(TAG, "Compiled capture profiles {} in {}us", profiles.keySet(), (System.nanoTime() - start) / 1000);
+        return profiles;
+    }
+
+    private void selectCaptureProfile(CaptureProfile profile)
+    {
+        mCaptureProfile = profile;
+        mCaptureProfileName = profile.getName();
+        // Calibrations are only valid for the settings they were taken with
+        mCaptureSettingsHash = CalibrationStore.hashCaptureSettings(profile.getSettings());
+    }
+
+    /**
+     * Switches to another capture profile without closing the capture session: the still
+     * capture request is rebuilt and replaces the repeating request, if any. Call on the
+     * camera handler's thread. The time the switch takes is recorded in the "profile.rebuild"
+     * histogram, the time until the first capture with the new profile completed in
+     * "profile.switch" and the time between it and the capture before in "profile.gap".
+     *
+     * @return false if there is no such profile or the request could not be rebuilt
+     */
+    public boolean setCaptureProfile(String name)
+    {
+        if (mCaptureProfiles == null)
+        {
+            // Selected once the camera is open
+            mCaptureProfileName = name;
+            return true;
+        }
+
+        CaptureProfile profile = mCaptureProfiles.get(name);
+        if (profile == null)
+        {
+            Logger.w(TAG, "No capture profile " + name + ", profiles are " + mCaptureProfiles.keySet());
+            return false;
+        }
+        if (profile == mCaptureProfile)
+        {
+            return true;
+        }
+
+        long start = System.nanoTime();
+        if (!applyCaptureProfile(profile, start, "profile"))
         {
-            // TODO makeToast("Failed to determine camera output size");
-            Logger.e(TAG, "Failed to determine camera output size", e);
             return false;
         }
 
+        long elapsed = System.nanoTime() - start;
+        mMetrics.histogram("profile.rebuild").record(elapsed);
+        Logger.i(TAG, "Switched to capture profile {} in {}us", name, elapsed / 1000);
         return true;
     }
 
     /**
-     * Attempt to create a capture session. Once the capture session
-     * is successfully created, the {@link #onCameraCaptureSessionConfigured(android.hardware.camera2.CameraCaptureSession)}
-     * method is invoked.
+     * Makes the profile the one of the next capture requests, rebuilding the still capture
+     * request if the session is open. The first capture with it is recorded in the
+     * "&lt;metric&gt;.switch" histogram, time since start, and in "&lt;metric&gt;.gap", the time
+     * since the capture completed before it.
      */
-    private void createCaptureSession()
+    private boolean applyCaptureProfile(CaptureProfile profile, long start, String metric)
     {
-        // Create a capture session with a set of Surfaces using CameraManager#createCaptureSession(List, ...)
-        try
+        CaptureProfile previous = mCaptureProfile;
+        long settingsHash = mCaptureSettingsHash;
+        selectCaptureProfile(profile);
+        if (mCameraReady.get() && mCameraCaptureSession != null)
         {
-            mCameraDevice.createCaptureSession(
-                    getCameraSurfaces(),
-                    new CameraCaptureSession.StateCallback()
-                    {
-                        @Override
-                        public void onConfigured(CameraCaptureSession session)
-                        {
-                            onCameraCaptureSessionConfigured(session);
-                        }
+            CaptureRequest request;
+            try
+            {
+                request = getStillCaptureRequestBuilder().build();
+            }
+            catch (CameraAccessException | IllegalStateException e)
+            {
+                Logger.e(TAG, "Failed to switch to capture profile " + profile.getName(), e);
+                // The camera still captures with the previous request
+                if (previous != null)
+                {
+                    selectCaptureProfile(previous);
+                }
+                return false;
+            }
 
-                        @Override
-                        public void onConfigureFailed(CameraCaptureSession session)
-                        {
-                            // TODO makeToast("Failed to configure camera capture session");
-                            Logger.e(TAG, "Failed to configure camera capture session");
-                        }
-                    },
-                    mHandler);
+            // Frames still in flight were taken with the previous settings
+            if (mCalibration != null && mCaptureSettingsHash != settingsHash && !loadCalibration())
+            {
+                mCalibration.reset();
+                Logger.i(TAG, "Calibrating on the next frames");
+            }
+
+            mSwitchMetric = metric;
+            mSwitchTime = start;
+            mSwitchRequest = request;
+            mStillCaptureRequest = request;
+            if (mCaptureMode != CaptureMode.ONE_SHOT)
+            {
+                startRepeatingCapture();
+            }
         }
-        catch (Exception e)
+        return true;
+    }
+
+    /**
+     * @return Hashes of the settings of all capture profiles, their calibrations are kept
+     */
+    private Set<Long> getCaptureSettingsHashes()
+    {
+        Set<Long> hashes = new HashSet<>();
+        hashes.add(mCaptureSettingsHash);
+        Map<String, CaptureProfile> profiles = mCaptureProfiles;
+        if (profiles != null)
         {
-            // TODO makeToast("Unable to create camera capture session");
-            Logger.e(TAG, "Unable to create camera capture session", e);
+            for (CaptureProfile profile : profiles.values())
+            {
+                hashes.add(CalibrationStore.hashCaptureSettings(profile.getSettings()));
+            }
         }
+        return hashes;
     }
 
     /**
-     * This method is invoked once the camera capture session is configured. Create a capture
-     * request which runs in a new background thread to capture preview images from the camera.
-     *
-     * @param session The capture session which was just configured.
+     * Reloads the settings shortly after the file was written or replaced, editors and adb push
+     * may write it in several steps.
      */
-    private void onCameraCaptureSessionConfigured(CameraCaptureSession session)
+    private void watchSettings()
     {
-        Logger.d(TAG, "onCameraCaptureSessionConfigured");
+        final String name = mSettingsFile.getName();
+        mSettingsObserver = new FileObserver(mSettingsFile.getParent(), FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)
+        {
+            @Override
+            public void onEvent(int event, String path)
+            {
+                if (name.equals(path))
+                {
+                    mHandler.removeCallbacks(mSettingsReloader);
+                    mHandler.postDelayed(mSettingsReloader, SETTINGS_RELOAD_DELAY);
+                }
+            }
+        };
+        mSettingsObserver.startWatching();
+    }
 
-        mCameraCaptureSession = session;
+    private Runnable mSettingsReloader =
+        new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reloadSettings();
+            }
+        };
 
+    /**
+     * Applies a changed settings file to the next capture request, or rejects it whole and
+     * keeps the current settings if a profile has a key the camera does not support, a value
+     * of the wrong type, or a DECO setting applied on reload is invalid. The capture profiles
+     * and the logging settings are applied; other DECO settings take effect once the service
+     * restarts. A profile selected at runtime stays selected unless deco.capture.profile or
+     * its own settings changed. Runs on the camera handler's thread.
+     */
+    private void reloadSettings()
+    {
+        long start = System.nanoTime();
+        Properties properties = new Properties();
         try
         {
-            // Setup still capture
-            CaptureRequest.Builder captureRequestBuilder = getStillCaptureRequestBuilder();
-            mStillCaptureRequest = captureRequestBuilder.build();
-
-            mStillCaptureCallback =
-                    new CameraCaptureSession.CaptureCallback()
-                    {
-                        @Override
-                        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, final TotalCaptureResult result)
-                        {
-                            Logger.d(TAG, "Image capture completed");
-                            if (mCameraCaptureStateCallback != null)
-                            {
-                                Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            FileInputStream input = new FileInputStream(mSettingsFile);
+            try
+            {
+                properties.load(input);
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            mMetrics.counter("reload.rejected").increment();
+            Logger.e(TAG, "Failed to reload " + CAPTURE_BUILDER_PROP_FILE + ", keeping the current settings", e);
+            return;
+        }
+        if (properties.equals(mCaptureBuilderProperties))
+        {
+            return;
+        }
+
+        DecoSettings settings = new DecoSettings(properties);
+        String profileName;
+        Map<String, CaptureProfile> profiles = null;
+        try
+        {
+            profileName = settings.getString("capture.profile", CaptureProfile.DEFAULT);
+            if (mDecoCameraCharacteristics != null)
+            {
+                profiles = compileCaptureProfiles(properties, true);
+                if (!profiles.containsKey(profileName))
+                {
+                    throw new IllegalArgumentException("No capture profile " + profileName + ", profiles are " + profiles.keySet());
+                }
+            }
+            Logger.configure(settings);
+        }
+        catch (IllegalArgumentException e)
+        {
+            mMetrics.counter("reload.rejected").increment();
+            Logger.e(TAG, "Rejected " + CAPTURE_BUILDER_PROP_FILE + ", keeping the current settings: " + e.getMessage());
+            return;
+        }
+
+        List<String> restart = new ArrayList<>();
+        for (String key : getChangedSettings(mCaptureBuilderProperties, properties))
+        {
+            if (DecoSettings.isDecoProperty(key) && !key.startsWith(DecoSettings.PREFIX + "profile.")
+                    && !key.startsWith(DecoSettings.PREFIX + "logging.") && !key.equals(DecoSettings.PREFIX + "capture.profile"))
+            {
+                restart.add(key);
+            }
+        }
+
+        // A profile chosen at runtime is kept unless deco.capture.profile or its own settings changed
+        Properties previousProperties = mCaptureBuilderProperties;
+        Map<String, CaptureProfile> previousProfiles = mCaptureProfiles;
+        boolean reselect = !profileName.equals(
+                new DecoSettings(previousProperties).getString("capture.profile", CaptureProfile.DEFAULT));
+        String name = reselect ? profileName : mCaptureProfileName;
+        mCaptureBuilderProperties = properties;
+        if (profiles != null)
+        {
+            if (!profiles.containsKey(name))
+            {
+                name = profileName;
+                reselect = true;
+            }
+            mCaptureProfiles = profiles;
+            if (reselect || !CaptureProfile.getSettings(previousProperties, name).equals(CaptureProfile.getSettings(properties, name)))
+            {
+                if (!applyCaptureProfile(profiles.get(name), start, "reload"))
+                {
+                    mCaptureBuilderProperties = previousProperties;
+                    mCaptureProfiles = previousProfiles;
+                    Logger.configure(new DecoSettings(previousProperties));
+                    mMetrics.counter("reload.rejected").increment();
+                    Logger.e(TAG, "Rejected " + CAPTURE_BUILDER_PROP_FILE + ", keeping the current settings: capture profile "
+                            + name + " could not be applied");
+                    return;
+                }
+            }
+            else if (mCaptureProfile != null)
+            {
+                // Same settings, compiled again
+                selectCaptureProfile(profiles.get(name));
+            }
+        }
+        else if (reselect)
+        {
+            mCaptureProfileName = profileName;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        mMetrics.histogram("reload.apply").record(elapsed);
+        Logger.i(TAG, "Reloaded {} in {}us, capture profile {}", CAPTURE_BUILDER_PROP_FILE, elapsed / 1000, name);
+        if (!restart.isEmpty())
+        {
+            Logger.w(TAG, "Changed settings " + restart + " take effect when the service restarts");
+        }
+    }
+
+    private static List<String> getChangedSettings(Properties before, Properties after)
+    {
+        Set<String> names = new TreeSet<>(before.stringPropertyNames());
+        names.addAll(after.stringPropertyNames());
+        List<String> changed = new ArrayList<>();
+        for (String name : names)
+        {
+            String value = after.getProperty(name);
+            if (value == null || !value.equals(before.getProperty(name)))
+            {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    public String getCaptureProfileName()
+    {
+        return mCaptureProfileName;
+    }
+
+    private void saveCameraSnapshot()
+    {
+        try
+        {
+            File file = mCameraSnapshot.save(mSnapshotDirectory);
+            Logger.i(TAG, "Saved camera snapshot {}", file.getName());
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "Failed to save camera snapshot", e);
+        }
+    }
+
+    private boolean determineCameraOutputSize()
+    {
+        if (mCameraSnapshot == null || mCameraSnapshot.getOutputFormats().isEmpty())
+        {
+            // TODO makeToast("Unable to determine camera output size");
+            Logger.e(TAG, "Unable to determine camera output size - no stream configuration for camera " + mCameraDevice.getId());
+            return false;
+        }
+
+        // Still capture output format, JPEG is supported by every camera
+        mFrameFormat = mRequestedFrameFormat;
+        if (!isOutputFormatSupported(mCameraSnapshot, mFrameFormat))
+        {
+            Logger.w(TAG, mFrameFormat + " output is not supported by camera " + mCameraDevice.getId() + ", falling back to JPEG");
+            mFrameFormat = FrameFormat.JPEG;
+        }
+
+        // Still capture output size, the largest one available for the format
+        int[] largest = null;
+        for (int[] outputSize : mCameraSnapshot.getOutputSizes(getImageFormat(mFrameFormat)))
+        {
+            if (largest == null || (long) outputSize[0] * outputSize[1] > (long) largest[0] * largest[1])
+            {
+                largest = outputSize;
+            }
+        }
+        if (largest != null)
+        {
+            mStillSize = new Size(largest[0], largest[1]);
+        }
+        Logger.i(TAG, "Still capture output " + mFrameFormat + " " + mStillSize);
+        return true;
+    }
+
+    private static int getImageFormat(FrameFormat frameFormat)
+    {
+        switch (frameFormat)
+        {
+            case    YUV:
+                return ImageFormat.YUV_420_888;
+
+            case    RAW:
+                return ImageFormat.RAW_SENSOR;
+
+            default:
+                return ImageFormat.JPEG;
+        }
+    }
+
+    private static boolean isOutputFormatSupported(CameraSnapshot snapshot, FrameFormat frameFormat)
+    {
+        if (frameFormat == FrameFormat.RAW && !snapshot.hasCapability(CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_RAW))
+        {
+            return false;
+        }
+
+        return snapshot.isOutputFormatSupported(getImageFormat(frameFormat));
+    }
+
+    /**
+     * Attempt to create a capture session. Once the capture session
+     * is successfully created, the {@link #onCameraCaptureSessionConfigured(android.hardware.camera2.CameraCaptureSession)}
+     * method is invoked.
+     */
+    private void createCaptureSession()
+    {
+        // Create a capture session with a set of Surfaces using CameraManager#createCaptureSession(List, ...)
+        try
+        {
+            mCameraDevice.createCaptureSession(
+                    getCameraSurfaces(),
+                    new CameraCaptureSession.StateCallback()
+                    {
+                        @Override
+                        public void onConfigured(CameraCaptureSession session)
+                        {
+                            onCameraCaptureSessionConfigured(session);
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession session)
+                        {
+                            // TODO makeToast("Failed to configure camera capture session");
+                            Logger.e(TAG, "Failed to configure camera capture session");
+                        }
+                    },
+                    mHandler);
+        }
+        catch (Exception e)
+        {
+            // TODO makeToast("Unable to create camera capture session");
+            Logger.e(TAG, "Unable to create camera capture session", e);
+        }
+    }
+
+    /**
+     * This method is invoked once the camera capture session is configured. Create a capture
+     * request which runs in a new background thread to capture preview images from the camera.
+     *
+     * @param session The capture session which was just configured.
+     */
+    private void onCameraCaptureSessionConfigured(CameraCaptureSession session)
+    {
+        Logger.d(TAG, "onCameraCaptureSessionConfigured");
+
+        mCameraCaptureSession = session;
+
+        if (mCalibration != null && !loadCalibration())
+        {
+            // Frames of a new session may differ, calibrate on the first frames it delivers
+            mCalibration.reset();
+            Logger.i(TAG, "Calibrating on the next frames");
+        }
+
+        try
+        {
+            // Setup still capture
+            CaptureRequest.Builder captureRequestBuilder = getStillCaptureRequestBuilder();
+            mStillCaptureRequest = captureRequestBuilder.build();
+
+            mStillCaptureCallback =
+                    new CameraCaptureSession.CaptureCallback()
+                    {
+                        @Override
+                        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request, long timestamp, long frameNumber)
+                        {
+                            // Repeating requests are not sent per frame, their latency metrics start with the capture
+                            boolean oneShot = mCaptureMode == CaptureMode.ONE_SHOT;
+                            long requestTime = oneShot ? mRequestTime : System.nanoTime();
+                            mCaptureMetrics.onCaptureStarted(frameNumber, timestamp, requestTime);
+                            // but the trace only shows requests which were actually issued for the frame
+                            if (mTracer != null && oneShot)
+                            {
+                                mTracer.record(frameNumber, FrameTracer.Phase.REQUEST_ISSUED, requestTime);
+                            }
+                        }
+
+                        @Override
+                        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, final TotalCaptureResult result)
+                        {
+                            long now = System.nanoTime();
+                            mCaptureMetrics.onCaptureCompleted(result.getFrameNumber(), now);
+                            if (request == mSwitchRequest)
+                            {
+                                mSwitchRequest = null;
+                                long gap = mLastCompletedTime != 0 ? now - mLastCompletedTime : 0;
+                                mMetrics.histogram(mSwitchMetric + ".switch").record(now - mSwitchTime);
+                                mMetrics.histogram(mSwitchMetric + ".gap").record(gap);
+                                Logger.i(TAG, "First capture with profile " + mCaptureProfileName + " completed {}ms after the switch, "
+                                        + "{}ms after the previous capture", (now - mSwitchTime) / 1000000, gap / 1000000);
+                            }
+                            mLastCompletedTime = now;
+                            if (mTracer != null)
+                            {
+                                mTracer.record(result.getFrameNumber(), FrameTracer.Phase.CAPTURE_COMPLETED, now);
+                            }
+                            Logger.d(TAG, "Image capture completed");
+                            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                            if (timestamp != null && exposureTime != null)
+                            {
+                                mCaptureRateMonitor.onCaptureCompleted(timestamp, exposureTime);
+                            }
+
+                            if (mCameraCaptureStateCallback != null)
+                            {
                                 mCameraCaptureStateCallback.onCaptureCompleted(exposureTime);
                             }
                         }
+
+                        @Override
+                        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure)
+                        {
+                            mCaptureMetrics.onError();
+                            Logger.w(TAG, "Capture {} failed, reason {}", failure.getFrameNumber(), failure.getReason());
+                        }
                     };
 
             ImageReader.OnImageAvailableListener readerListener =
                     new ImageReader.OnImageAvailableListener()
                     {
-                        private AtomicLong mNumImages = new AtomicLong();
-
                         @Override
                         public void onImageAvailable(ImageReader reader)
                         {
-                            captureImage();
+                            long available = System.nanoTime();
+                            if (mCaptureMode == CaptureMode.ONE_SHOT)
+                            {
+                                captureImage();
+                                acquireImage(reader.acquireLatestImage(), 1, available);
+                            }
+                            else
+                            {
+                                // The repeating request keeps the sensor busy on its own, all we
+                                // have to do is drain every image the camera produced
+                                Image image;
+                                int backlog = 0;
+                                while ((image = reader.acquireNextImage()) != null)
+                                {
+                                    acquireImage(image, ++backlog, available);
+                                }
+                            }
+                        }
 
-                            long imageNum = mNumImages.addAndGet(1);
-                            Logger.d(TAG, "Still capture image " + imageNum + " available");
+                        /**
+                         * Acquire stage of the pipeline: copy the frame out of the Image,
+                         * close the Image and hand the frame to the analyze stage.
+                         *
+                         * @param available System.nanoTime() the reader signalled the image
+                         */
+                        private void acquireImage(Image image, int backlog, long available)
+                        {
+                            if (image == null)
+                            {
+                                return;
+                            }
 
-                            long start = System.currentTimeMillis();
+                            long imageNum = mNumAcquiredImages.incrementAndGet();
+                            Logger.d(TAG, "Still capture image {} available", imageNum);
 
-                            Image image = reader.acquireLatestImage();
+                            long start = System.nanoTime();
 
-                            // TODO Save for now
-                            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                            byte[] bytes = new byte[buffer.capacity()];
-                            buffer.get(bytes);
-                            saveImage(bytes);
+                            Frame frame = null;
+                            try
+                            {
+                                // Direct buffer to direct buffer copy, nothing touches the Java heap
+                                // The first plane is the JPEG data, the Y plane of YUV or the RAW data
+                                Image.Plane plane = image.getPlanes()[0];
+                                ByteBuffer buffer = plane.getBuffer();
+                                frame = mFramePool.acquire(buffer.remaining());
+                                frame.getData().put(buffer).flip();
+                                frame.set(imageNum, image.getTimestamp(), System.currentTimeMillis(), start);
+                                mCaptureMetrics.onImageAvailable(frame, available);
+                                frame.setLayout(mFrameFormat, image.getWidth(), image.getHeight(), plane.getRowStride(), plane.getPixelStride());
+                                Location location = mLocation;
+                                if (location != null)
+                                {
+                                    frame.setLocation((float) location.getLatitude(), (float) location.getLongitude());
+                                }
+                            }
+                            catch (Exception e)
+                            {
+                                if (frame != null)
+                                {
+                                    frame.release();
+                                }
+                                mFramePipeline.onAcquireError();
+                                mCaptureMetrics.onError();
+                                Logger.e(TAG, "Failed to acquire image " + imageNum, e);
+                                return;
+                            }
+                            finally
+                            {
+                                // You need to close the image or you will exceed READER_MAX_IMAGES
+                                image.close();
+                            }
 
-                            // You need to close the image or you will exceed READER_MAX_IMAGES
-                            image.close();
-                            long total = (System.currentTimeMillis() - start);
+                            long total = System.nanoTime() - start;
+                            if (mTracer != null)
+                            {
+                                mTracer.record(frame.getCaptureId(), FrameTracer.Phase.IMAGE_AVAILABLE, available);
+                                mTracer.record(frame.getCaptureId(), FrameTracer.Phase.ACQUIRED, start + total);
+                            }
+                            mFramePipeline.offer(frame, total, backlog);
+                            mAllocationProbe.onFrame();
 
-                            Logger.d(TAG, "Acquired image " + imageNum + " in " + total + "ms");
+                            Logger.d(TAG, "Acquired image {} in {}ms", imageNum, total / 1000000);
                         }
                     };
 
-            mStillReader.setOnImageAvailableListener(readerListener, mHandler);
+            if (mEventLogWriter != null)
+            {
+                mEventLogWriter.start();
+            }
+            if (mUploader != null)
+            {
+                mUploader.start();
+            }
+            mFramePipeline.start();
+            mAllocationProbe.start();
+
+            mReaderThread = new HandlerThread("Image Reader Thread");
+            mReaderThread.start();
+            mReaderHandler = new Handler(mReaderThread.getLooper());
+            mStillReader.setOnImageAvailableListener(readerListener, mReaderHandler);
 
             mCaptureThread = new HandlerThread("Image Capture Thread");
             mCaptureThread.start();
             mCaptureHandler = new Handler(mCaptureThread.getLooper());
 
-            captureImage();
+            if (mCaptureMode == CaptureMode.ONE_SHOT)
+            {
+                captureImage();
+            }
+            else
+            {
+                startRepeatingCapture();
+            }
         }
         catch (Exception e)
         {
@@ -428,13 +1357,24 @@ public class Camera
 
     private void captureImage()
     {
+        synchronized (mCaptureLock)
+        {
+            if (mCapturePaused.get())
+            {
+                // The one-shot chain ends here, resumeCapture starts it again
+                mCaptureStopped.set(true);
+                return;
+            }
+        }
+
         try
         {
             if (mCameraReady.get())
             {
                 Logger.d(TAG, "Initiating still capture");
+                mRequestTime = System.nanoTime();
                 int captureId = mCameraCaptureSession.capture(mStillCaptureRequest, mStillCaptureCallback, mCaptureHandler);
-                Logger.d(TAG, "Capture ID " + captureId);
+                Logger.d(TAG, "Capture ID {}", captureId);
             }
         }
         catch (Exception e)
@@ -443,12 +1383,168 @@ public class Camera
         }
     }
 
+    /**
+     * Starts (or replaces) the repeating request so the sensor streams frames without waiting
+     * for the images to be processed.
+     */
+    private void startRepeatingCapture()
+    {
+        try
+        {
+            if (mCameraReady.get() && !mCapturePaused.get())
+            {
+                int sequenceId;
+                if (mCaptureMode == CaptureMode.BURST)
+                {
+                    Logger.d(TAG, "Starting repeating burst of {} still captures", mBurstSize);
+                    sequenceId = mCameraCaptureSession.setRepeatingBurst(Collections.nCopies(mBurstSize, mStillCaptureRequest), mStillCaptureCallback, mCaptureHandler);
+                }
+                else
+                {
+                    Logger.d(TAG, "Starting repeating still capture");
+                    sequenceId = mCameraCaptureSession.setRepeatingRequest(mStillCaptureRequest, mStillCaptureCallback, mCaptureHandler);
+                }
+                Logger.d(TAG, "Capture sequence ID {}", sequenceId);
+            }
+        }
+        catch (Exception e)
+        {
+            Logger.e(TAG, "Failed to start repeating capture", e);
+        }
+    }
+
+    /**
+     * Stops issuing capture requests, keeping the camera and the session open so capture
+     * resumes without reconfiguring. Call on the camera handler's thread.
+     */
+    public void pauseCapture()
+    {
+        if (mCapturePaused.getAndSet(true))
+        {
+            return;
+        }
+
+        Logger.i(TAG, "Pausing capture");
+        if (mCaptureMode != CaptureMode.ONE_SHOT && mCameraCaptureSession != null)
+        {
+            try
+            {
+                mCameraCaptureSession.stopRepeating();
+            }
+            catch (CameraAccessException | IllegalStateException e)
+            {
+                Logger.e(TAG, "Failed to stop repeating capture", e);
+            }
+        }
+    }
+
+    public void resumeCapture()
+    {
+        boolean stopped;
+        synchronized (mCaptureLock)
+        {
+            if (!mCapturePaused.getAndSet(false))
+            {
+                return;
+            }
+            stopped = mCaptureStopped.getAndSet(false);
+        }
+
+        Logger.i(TAG, "Resuming capture");
+        if (mCameraCaptureSession == null)
+        {
+            // Capture starts once the session is configured
+            return;
+        }
+        if (mCaptureMode == CaptureMode.ONE_SHOT)
+        {
+            // Unless the request in flight when capture paused is still to complete
+            if (stopped)
+            {
+                captureImage();
+            }
+        }
+        else
+        {
+            startRepeatingCapture();
+        }
+    }
+
+    public DecoSettings getSettings()
+    {
+        return mDecoSettings;
+    }
+
+    public boolean isCapturePaused()
+    {
+        return mCapturePaused.get();
+    }
+
+    /**
+     * Logs the capture statistics gathered since the previous call.
+     */
+    public void logStatistics()
+    {
+        Logger.i(TAG, mCaptureMode + " capture " + mCaptureRateMonitor.report());
+
+        // CPU time of the whole process per acquired frame, to compare output formats
+        long cpuTime = Process.getElapsedCpuTime();
+        long images = mNumAcquiredImages.get();
+        if (images > mLastCpuImages)
+        {
+            Logger.i(TAG, String.format(Locale.US, "Output %s %s: CPU %.1fms per frame",
+                    mFrameFormat, mStillSize, (double) (cpuTime - mLastCpuTime) / (images - mLastCpuImages)));
+        }
+        mLastCpuTime = cpuTime;
+        mLastCpuImages = images;
+        Logger.i(TAG, "Pipeline " + mFramePipeline.report());
+        Logger.i(TAG, mFramePool.report());
+        if (mTracer != null)
+        {
+            Logger.i(TAG, mTracer.report());
+        }
+        Logger.i(TAG, Logger.report());
+
+        if (mEventLogs != null)
+        {
+            for (StorageTier tier : StorageTier.values())
+            {
+                Logger.i(TAG, tier.getName() + " " + mEventLogs[tier.ordinal()].report());
+            }
+            Logger.i(TAG, mEventLogWriter.report());
+        }
+        Logger.i(TAG, mStorageBudget.report());
+        if (mUploader != null)
+        {
+            Logger.i(TAG, mUploader.report());
+        }
+
+        if (mTriggerStage != null)
+        {
+            Logger.i(TAG, mTriggerStage.getStatistics().report());
+            if (mCalibration != null)
+            {
+                Logger.i(TAG, mCalibration.report());
+            }
+            if (mClusterStage != null)
+            {
+                Logger.i(TAG, mClusterStage.report());
+            }
+            try
+            {
+                mFrameStatisticsLog.flush();
+            }
+            catch (IOException e)
+            {
+                Logger.e(TAG, "Failed to flush frame statistics", e);
+            }
+        }
+    }
+
     private CaptureRequest.Builder getStillCaptureRequestBuilder() throws CameraAccessException
     {
-        CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-        CameraCharacteristics characteristics = manager.getCameraCharacteristics(mCameraDevice.getId());
         CaptureRequest.Builder captureRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-        mDecoCameraCharacteristics.setupCaptureRequest(mCaptureBuilderProperties, captureRequestBuilder);
+        mCaptureProfile.apply(captureRequestBuilder);
 
         /*
         Long exposure = null;
@@ -517,46 +1613,153 @@ public class Camera
         return captureRequestBuilder;
     }
 
-    private void saveImage(final byte[] imageBytes)
+    /**
+     * Runs on the persist stage, which hands the frame over: the event log writer releases it
+     * once written, otherwise it is released here.
+     */
+    private void saveImage(final Frame frame) throws InterruptedException
     {
-        Logger.d(TAG, "Saving image");
-        try
+        if (mTracer != null)
         {
-            Date now = new Date();
-
-            final String tmDevice, tmSerial, androidId;
-            final TelephonyManager tm = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
-            tmDevice = "" + tm.getDeviceId();
-            tmSerial = "" + tm.getSimSerialNumber();
-            androidId = "" + android.provider.Settings.Secure.getString(mContext.getContentResolver(), android.provider.Settings.Secure.ANDROID_ID);
-
-            UUID deviceUuid = new UUID(androidId.hashCode(), ((long)tmDevice.hashCode() << 32) | tmSerial.hashCode());
-            String deviceId = deviceUuid.toString();
-
-            File dir = new File(Environment.getExternalStorageDirectory(), mContext.getResources().getString(R.string.app_name));
-            dir = new File(dir, IMAGE_DIR_FORMAT.format(now)+"_"+deviceId);
-            dir.mkdirs();
+            mTracer.record(frame.getCaptureId(), FrameTracer.Phase.ANALYZED, System.nanoTime());
+        }
+        if (mEventLogWriter != null)
+        {
+            // Blocks the persist stage while the writer is behind
+            mEventLogWriter.submit(frame);
+            return;
+        }
 
-            String imageName = deviceId+"_"+IMAGE_FILE_FORMAT.format(now) + ".jpg";
+        Logger.d(TAG, "Saving image {}", frame.getNumber());
+        try
+        {
+            long time = frame.getCaptureTime();
+            String imageName = null;
+            int size = 0;
 
-            File file = new File(dir, imageName);
-            Logger.d(TAG, "Image " + file.getAbsolutePath());
+            if (frame.hasEvents())
+            {
+                String eventName = mStorageLayout.getFileName(time, EVENT_FILE_EXTENSION);
+                size += writeFile(time, eventName, frame, true);
+                imageName = eventName;
+            }
 
-            FileOutputStream output = new FileOutputStream(file);
-            output.write(imageBytes);
-            output.close();
+            if (mPersistFrames || imageName == null)
+            {
+                imageName = mStorageLayout.getFileName(time, frame.getFormat().getExtension());
+                size += writeFile(time, imageName, frame, false);
+            }
 
+            long now = System.nanoTime();
+            mCaptureMetrics.onPersisted(frame, size, now);
+            if (mTracer != null)
+            {
+                mTracer.record(frame.getCaptureId(), FrameTracer.Phase.PERSISTED, now);
+            }
             Logger.d(TAG, "Saved image");
 
             if (mCameraCaptureStateCallback != null)
             {
-                mCameraCaptureStateCallback.onImageCaptured(new ImageInfo(imageName, Long.valueOf(imageBytes.length), null));
+                mCameraCaptureStateCallback.onImageCaptured(new ImageInfo(imageName, Long.valueOf(size), null));
             }
         }
         catch (Exception e)
         {
+            mCaptureMetrics.onError();
             Logger.e(TAG, "Failed to save image", e);
         }
+        finally
+        {
+            frame.release();
+        }
+    }
+
+    private int writeFile(long time, String name, Frame frame, boolean events) throws IOException
+    {
+        File file = new File(mStorageLayout.getDirectory(time), name);
+        Logger.d(TAG, "Image {}", file);
+        int size;
+        try
+        {
+            size = events ? mEventRecordWriter.write(file, frame) : mFrameWriter.write(file, frame);
+        }
+        catch (FileNotFoundException e)
+        {
+            // The directory is only created once per hour, it may have been removed since
+            mStorageLayout.createDirectory(time);
+            size = events ? mEventRecordWriter.write(file, frame) : mFrameWriter.write(file, frame);
+        }
+
+        mStorageBudget.add(events ? StorageTier.EVENTS : StorageTier.ofFrame(frame.isTriggered()), file, size);
+        return size;
+    }
+
+    /**
+     * Restores the calibration of the current camera, output and capture settings, if any.
+     *
+     * @return true if the calibration was restored
+     */
+    private boolean loadCalibration()
+    {
+        if (mCalibrationStore == null)
+        {
+            return false;
+        }
+
+        mCalibrationName = CalibrationStore.getName(mCameraDevice.getId(), mStillSize.getWidth(), mStillSize.getHeight(),
+                mFrameFormat.name(), mCaptureSettingsHash);
+        long start = System.nanoTime();
+        try
+        {
+            if (mCalibrationStore.load(mCalibrationName, getCaptureSettingsHashes(), mCalibration))
+            {
+                Logger.i(TAG, String.format(Locale.US, "Restored calibration %s in %.1fms",
+                        mCalibrationName, (System.nanoTime() - start) / 1e6));
+                return true;
+            }
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "Failed to load calibration " + mCalibrationName, e);
+        }
+        return false;
+    }
+
+    private void saveCalibration()
+    {
+        String name = mCalibrationName;
+        if (mCalibrationStore == null || name == null)
+        {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            long size = mCalibrationStore.save(name, mCaptureSettingsHash, getCaptureSettingsHashes(), mCalibration);
+            Logger.i(TAG, String.format(Locale.US, "Saved calibration %s (%d bytes) in %.1fms",
+                    name, size, (System.nanoTime() - start) / 1e6));
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "Failed to save calibration " + name, e);
+        }
+    }
+
+    /**
+     * Builds the device id frames are tagged with. Only computed once, the telephony and
+     * secure settings lookups are far too slow to repeat for every frame.
+     */
+    private String getDeviceId()
+    {
+        final String tmDevice, tmSerial, androidId;
+        final TelephonyManager tm = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        tmDevice = "" + tm.getDeviceId();
+        tmSerial = "" + tm.getSimSerialNumber();
+        androidId = "" + android.provider.Settings.Secure.getString(mContext.getContentResolver(), android.provider.Settings.Secure.ANDROID_ID);
+
+        UUID deviceUuid = new UUID(androidId.hashCode(), ((long)tmDevice.hashCode() << 32) | tmSerial.hashCode());
+        return deviceUuid.toString();
     }
 
     /**
@@ -570,7 +1773,7 @@ public class Camera
         Logger.d(TAG, "getCameraSurfaces");
 
         // Create still reader
-        mStillReader = ImageReader.newInstance(mStillSize.getWidth(), mStillSize.getHeight(), ImageFormat.JPEG, READER_MAX_IMAGES);
+        mStillReader = ImageReader.newInstance(mStillSize.getWidth(), mStillSize.getHeight(), getImageFormat(mFrameFormat), READER_MAX_IMAGES);
 
         return Arrays.asList(mStillReader.getSurface());
     }
@@ -587,6 +1790,12 @@ public class Camera
 
         mCameraReady.set(false);
 
+        if (mSettingsObserver != null)
+        {
+            mSettingsObserver.stopWatching();
+            mHandler.removeCallbacks(mSettingsReloader);
+        }
+
         if (mCameraCaptureSession != null)
         {
             Logger.d(TAG, "Closing camera capture session");
@@ -601,6 +1810,67 @@ public class Camera
             mCameraDevice = null;
         }
 
+        if (mReaderThread != null)
+        {
+            mReaderThread.quitSafely();
+            mReaderThread = null;
+            mReaderHandler = null;
+        }
+
+        mFramePipeline.stop();
+        mAllocationProbe.stop();
+        mMetrics.removeGauge(QUEUE_PIPELINE);
+        mMetrics.removeGauge(QUEUE_EVENT_LOG);
+        mMetrics.removeGauge(UPLOAD_PENDING);
+
+        if (mEventLogs != null)
+        {
+            // Writes and syncs what is still queued
+            mEventLogWriter.stop();
+            for (EventLog log : mEventLogs)
+            {
+                try
+                {
+                    log.close();
+                }
+                catch (IOException e)
+                {
+                    Logger.e(TAG, "Failed to close the event log", e);
+                }
+            }
+        }
+
+        // After the logs are closed so their last segments are queued for the next start
+        if (mUploader != null)
+        {
+            mUploader.stop();
+        }
+
+        // Keeps the updates made since the calibration was first saved
+        if (mCalibration != null && mCalibration.isCalibrated())
+        {
+            saveCalibration();
+        }
+
+        if (mFrameStatisticsLog != null)
+        {
+            try
+            {
+                mFrameStatisticsLog.close();
+            }
+            catch (IOException e)
+            {
+                Logger.e(TAG, "Failed to close frame statistics", e);
+            }
+        }
+
+        if (mCaptureThread != null)
+        {
+            mCaptureThread.quitSafely();
+            mCaptureThread = null;
+            mCaptureHandler = null;
+        }
+
         if (mCameraCaptureStateCallback != null)
         {
             mCameraCaptureStateCallback.onCameraClosed();
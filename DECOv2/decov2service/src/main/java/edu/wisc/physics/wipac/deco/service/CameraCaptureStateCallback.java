@@ -10,4 +10,5 @@ public interface CameraCaptureStateCallback
     void onExposureSet(Long maximumExposure);
     void onImageCaptured(ImageInfo imageInfo);
     void onCaptureCompleted(Long actualExposure);
+    void onStorageEvicted(String name, Long bytes);
 }
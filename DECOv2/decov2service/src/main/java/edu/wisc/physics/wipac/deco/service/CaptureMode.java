@@ -0,0 +1,24 @@
+package edu.wisc.physics.wipac.deco.service;
+
+/**
+ * How {@link Camera} keeps the sensor busy.
+ */
+public enum CaptureMode
+{
+    /**
+     * One capture request per frame, the next request is issued when the previous image
+     * becomes available. Simple, but the sensor sits idle for a full request round-trip.
+     */
+    ONE_SHOT,
+
+    /**
+     * A single repeating request (setRepeatingRequest) so the sensor streams continuously.
+     */
+    REPEATING,
+
+    /**
+     * A repeating burst of identical requests (setRepeatingBurst) for devices which pipeline
+     * bursts better than a single repeating request.
+     */
+    BURST
+}
@@ -0,0 +1,122 @@
+package edu.wisc.physics.wipac.deco.service;
+
+import android.hardware.camera2.CaptureRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Named set of capture request settings, compiled once by
+ * {@link DecoCameraCharacteristics#compile} into the typed keys and values set on every
+ * still capture request, so building a request parses nothing.
+ *
+ * The capture request keys of camera-settings.properties make up the "default" profile. Other
+ * profiles override some of them with deco.profile.&lt;name&gt;.&lt;capture request key&gt;
+ * properties, e.g. deco.profile.long-exposure.android.sensor.exposureTime. Profiles cannot
+ * change the output format or size, which would need a new capture session.
+ */
+public class CaptureProfile
+{
+    public static final String DEFAULT = "default";
+
+    private static final String PREFIX = DecoSettings.PREFIX + "profile.";
+
+    static final class Setter
+    {
+        final CaptureRequest.Key<Object> key;
+        final Object value;
+
+        Setter(CaptureRequest.Key<Object> key, Object value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final String mName;
+    private final List<Setter> mSetters;
+    private final Properties mSettings;
+
+    CaptureProfile(String name, List<Setter> setters, Properties settings)
+    {
+        mName = name;
+        mSetters = Collections.unmodifiableList(new ArrayList<>(setters));
+        mSettings = new Properties();
+        mSettings.putAll(settings);
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    /**
+     * @return The capture request keys and values the profile was compiled from
+     */
+    public Properties getSettings()
+    {
+        Properties settings = new Properties();
+        settings.putAll(mSettings);
+        return settings;
+    }
+
+    public void apply(CaptureRequest.Builder captureRequestBuilder)
+    {
+        for (int i = 0; i < mSetters.size(); i++)
+        {
+            Setter setter = mSetters.get(i);
+            captureRequestBuilder.set(setter.key, setter.value);
+        }
+    }
+
+    /**
+     * @return Names of the profiles in the properties, including the default one
+     */
+    public static Set<String> getNames(Properties properties)
+    {
+        Set<String> names = new TreeSet<>();
+        names.add(DEFAULT);
+        for (String propertyName : properties.stringPropertyNames())
+        {
+            int end = propertyName.indexOf('.', PREFIX.length());
+            if (propertyName.startsWith(PREFIX) && end > PREFIX.length())
+            {
+                names.add(propertyName.substring(PREFIX.length(), end));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return The capture request keys and values of the profile: the default ones with the
+     *         profile's overrides
+     */
+    public static Properties getSettings(Properties properties, String name)
+    {
+        Properties settings = new Properties();
+        for (String propertyName : properties.stringPropertyNames())
+        {
+            if (!DecoSettings.isDecoProperty(propertyName))
+            {
+                settings.setProperty(propertyName, properties.getProperty(propertyName).trim());
+            }
+        }
+
+        if (!DEFAULT.equals(name))
+        {
+            String prefix = PREFIX + name + ".";
+            for (String propertyName : properties.stringPropertyNames())
+            {
+                if (propertyName.startsWith(prefix))
+                {
+                    settings.setProperty(propertyName.substring(prefix.length()), properties.getProperty(propertyName).trim());
+                }
+            }
+        }
+        return settings;
+    }
+}
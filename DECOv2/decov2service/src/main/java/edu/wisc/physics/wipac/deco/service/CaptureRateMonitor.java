@@ -0,0 +1,113 @@
+package edu.wisc.physics.wipac.deco.service;
+
+import java.util.Locale;
+
+/**
+ * Keeps track of the achieved frame rate and the sensor dead time between frames.
+ *
+ * The dead time of a frame is the gap between the end of the previous exposure and the start
+ * of this one, computed from the sensor timestamp (start of exposure) and exposure time of the
+ * completed captures. Statistics are accumulated over a reporting window which is reset by
+ * {@link #report()}.
+ */
+public class CaptureRateMonitor
+{
+    private long mTotalFrames;
+
+    // Previous frame, kept across windows so the first dead time of a window is not lost
+    private long mLastTimestamp = -1;
+    private long mLastExposure;
+
+    // Current window
+    private long mWindowFrames;
+    private long mWindowStart = -1;
+    private long mWindowExposure;
+    private long mWindowDeadTime;
+    private long mWindowMaxDeadTime;
+    private int mWindowIntervals;
+
+    /**
+     * Records a completed capture.
+     *
+     * @param sensorTimestamp Start of exposure in nanoseconds, CaptureResult.SENSOR_TIMESTAMP
+     * @param exposureTime    Exposure time in nanoseconds, CaptureResult.SENSOR_EXPOSURE_TIME
+     */
+    public synchronized void onCaptureCompleted(long sensorTimestamp, long exposureTime)
+    {
+        mTotalFrames++;
+        mWindowFrames++;
+        mWindowExposure += exposureTime;
+
+        if (mWindowStart < 0)
+        {
+            mWindowStart = mLastTimestamp >= 0 ? mLastTimestamp + mLastExposure : sensorTimestamp;
+        }
+
+        if (mLastTimestamp >= 0 && sensorTimestamp > mLastTimestamp)
+        {
+            long deadTime = Math.max(0, sensorTimestamp - (mLastTimestamp + mLastExposure));
+            mWindowDeadTime += deadTime;
+            mWindowMaxDeadTime = Math.max(mWindowMaxDeadTime, deadTime);
+            mWindowIntervals++;
+        }
+
+        mLastTimestamp = sensorTimestamp;
+        mLastExposure = exposureTime;
+    }
+
+    public synchronized long getTotalFrames()
+    {
+        return mTotalFrames;
+    }
+
+    /**
+     * @return Frames per second over the current window, 0 if unknown
+     */
+    public synchronized double getFramesPerSecond()
+    {
+        long span = getWindowSpan();
+        return span > 0 ? mWindowFrames * 1e9 / span : 0;
+    }
+
+    /**
+     * @return Average dead time per frame in nanoseconds over the current window
+     */
+    public synchronized long getAverageDeadTime()
+    {
+        return mWindowIntervals > 0 ? mWindowDeadTime / mWindowIntervals : 0;
+    }
+
+    /**
+     * @return Fraction of the current window the sensor was exposing
+     */
+    public synchronized double getDutyCycle()
+    {
+        long span = getWindowSpan();
+        return span > 0 ? Math.min(1.0, (double) mWindowExposure / span) : 0;
+    }
+
+    /**
+     * Formats the statistics of the current window and starts a new one.
+     */
+    public synchronized String report()
+    {
+        String report = String.format(Locale.US,
+                "%d frames (%d total) %.2f frames/s, dead time avg %.1fms max %.1fms per frame, duty cycle %.1f%%",
+                mWindowFrames, mTotalFrames, getFramesPerSecond(),
+                getAverageDeadTime() / 1e6, mWindowMaxDeadTime / 1e6, getDutyCycle() * 100);
+
+        mWindowFrames = 0;
+        mWindowStart = -1;
+        mWindowExposure = 0;
+        mWindowDeadTime = 0;
+        mWindowMaxDeadTime = 0;
+        mWindowIntervals = 0;
+
+        return report;
+    }
+
+    private long getWindowSpan()
+    {
+        return mWindowStart >= 0 ? mLastTimestamp + mLastExposure - mWindowStart : 0;
+    }
+}
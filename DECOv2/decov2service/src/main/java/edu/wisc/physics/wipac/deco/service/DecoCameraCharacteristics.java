@@ -5,9 +5,15 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Range;
+import android.util.Size;
+
+import edu.wisc.physics.wipac.deco.service.storage.CameraSnapshot;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,10 +26,29 @@ public class DecoCameraCharacteristics
 {
     private static final String TAG = "DecoCameraCharacteristi";
 
+    // Names of the types a capture request property can be converted to
+    private static final Map<String, Class<?>> sTypes = new HashMap<>();
+    static
+    {
+        for (Class<?> type : new Class<?>[] {int.class, long.class, boolean.class, byte.class, float.class})
+        {
+            sTypes.put(type.getName(), type);
+        }
+    }
+
     private Context context;
     private Map<String, Characteristic> mapCharacteristicNameToKey = new HashMap<>();
 
     public DecoCameraCharacteristics(Context context, String cameraId) throws CameraAccessException
+    {
+        this(context, cameraId, null);
+    }
+
+    /**
+     * @param snapshot Types of the capture request keys, the ones it lacks are looked up
+     *                 through reflection
+     */
+    public DecoCameraCharacteristics(Context context, String cameraId, CameraSnapshot snapshot) throws CameraAccessException
     {
         this.context = context;
         CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
@@ -34,8 +59,17 @@ public class DecoCameraCharacteristics
             CaptureRequest.Key<Object> key = (CaptureRequest.Key<Object>) captureRequestKey;
             try
             {
-                mapCharacteristicNameToKey.put(captureRequestKey.getName(),
-                        new Characteristic(key, getType(captureRequestKey)));
+                String typeName = snapshot != null ? snapshot.getKeyType(captureRequestKey.getName()) : null;
+                Class<?> type;
+                if (typeName != null)
+                {
+                    type = sTypes.containsKey(typeName) ? sTypes.get(typeName) : Object.class;
+                }
+                else
+                {
+                    type = getType(captureRequestKey);
+                }
+                mapCharacteristicNameToKey.put(captureRequestKey.getName(), new Characteristic(key, type));
             }
             catch (Exception e)
             {
@@ -44,26 +78,107 @@ public class DecoCameraCharacteristics
         }
     }
 
-    public void setupCaptureRequest(Properties decoCameraProps, CaptureRequest.Builder captureRequestBuilder)
+    /**
+     * Takes what the service needs to know about the camera from its characteristics, the
+     * capture request key types through reflection. Slow, meant to be done once per build and
+     * saved, see {@link CameraSnapshot}.
+     */
+    public static CameraSnapshot createSnapshot(Context context, String cameraId, String fingerprint) throws CameraAccessException
     {
-        for (String propertyName : decoCameraProps.stringPropertyNames())
+        CameraSnapshot snapshot = new CameraSnapshot(cameraId, fingerprint);
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        CameraCharacteristics cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
+
+        for (CaptureRequest.Key<?> captureRequestKey : cameraCharacteristics.getAvailableCaptureRequestKeys())
         {
-            String propertyValue = decoCameraProps.getProperty(propertyName);
-            setCharacteristic(captureRequestBuilder, propertyName, propertyValue);
+            try
+            {
+                snapshot.putKeyType(captureRequestKey.getName(), getType(captureRequestKey).getName());
+            }
+            catch (Exception e)
+            {
+                Logger.e(TAG, "Failed to determine the type of " + captureRequestKey.getName(), e);
+            }
         }
-    }
 
-    private void setCharacteristic(CaptureRequest.Builder captureRequestBuilder, String propertyName, String propertyValue)
-    {
-        Characteristic characteristic = mapCharacteristicNameToKey.get(propertyName);
-        if (characteristic != null)
+        StreamConfigurationMap streamConfigurationMap = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (streamConfigurationMap != null && streamConfigurationMap.getOutputFormats() != null)
+        {
+            for (int format : streamConfigurationMap.getOutputFormats())
+            {
+                Size[] outputSizes = streamConfigurationMap.getOutputSizes(format);
+                if (outputSizes != null)
+                {
+                    for (Size outputSize : outputSizes)
+                    {
+                        snapshot.addOutputSize(format, outputSize.getWidth(), outputSize.getHeight());
+                    }
+                }
+            }
+        }
+
+        snapshot.setCapabilities(cameraCharacteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES));
+        Range<Long> exposureRange = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+        if (exposureRange != null)
         {
-            captureRequestBuilder.set(characteristic.key, convertValue(characteristic.type, propertyValue));
+            snapshot.putRange("exposure", exposureRange.getLower(), exposureRange.getUpper());
         }
-        else
+        Range<Integer> sensitivityRange = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+        if (sensitivityRange != null)
         {
-            Logger.e(TAG, "No such property \"" + propertyName + "\"");
+            snapshot.putRange("sensitivity", sensitivityRange.getLower(), sensitivityRange.getUpper());
         }
+        return snapshot;
+    }
+
+    /**
+     * Converts the values of the capture request keys once, keys the camera does not support
+     * are logged and left out.
+     *
+     * @param settings Capture request keys and values, see {@link CaptureProfile#getSettings}
+     * @throws IllegalArgumentException if a value does not fit its key's type
+     */
+    public CaptureProfile compile(String name, Properties settings)
+    {
+        return compile(name, settings, false);
+    }
+
+    /**
+     * @param strict Reject keys the camera does not support rather than leaving them out
+     */
+    public CaptureProfile compile(String name, Properties settings, boolean strict)
+    {
+        List<CaptureProfile.Setter> setters = new ArrayList<>();
+        for (String propertyName : settings.stringPropertyNames())
+        {
+            if (DecoSettings.isDecoProperty(propertyName))
+            {
+                continue;
+            }
+
+            String propertyValue = settings.getProperty(propertyName);
+            Characteristic characteristic = mapCharacteristicNameToKey.get(propertyName);
+            if (characteristic == null)
+            {
+                if (strict)
+                {
+                    throw new IllegalArgumentException("No such property \"" + propertyName + "\" of capture profile " + name);
+                }
+                Logger.e(TAG, "No such property \"" + propertyName + "\"");
+                continue;
+            }
+
+            try
+            {
+                setters.add(new CaptureProfile.Setter(characteristic.key, convertValue(characteristic.type, propertyValue.trim())));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException("Invalid value \"" + propertyValue + "\" for property \"" + propertyName
+                        + "\" of capture profile " + name);
+            }
+        }
+        return new CaptureProfile(name, setters, settings);
     }
 
     private class Characteristic
@@ -80,7 +195,7 @@ public class DecoCameraCharacteristics
         }
     }
 
-    private Class<?> getType(CaptureRequest.Key<?> key) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException
+    private static Class<?> getType(CaptureRequest.Key<?> key) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException
     {
         // OK, so here's the thing. getNativeKey() is not a documented method, but there
         // is no other way to determine the type of the characteristic key...well, other
@@ -90,7 +205,7 @@ public class DecoCameraCharacteristics
         Object nativeKey = getNativeKey.invoke(key);
         Method getType = nativeKey.getClass().getMethod("getType");
         Class<?> type =  (Class<?>) getType.invoke(nativeKey);
-        Logger.d(TAG, "CaptureRequest.Key " + key.getName() + "[" + type + "]");
+        Logger.d(TAG, "CaptureRequest.Key {}[{}]", key.getName(), type);
         return type;
     }
 
@@ -100,6 +215,10 @@ public class DecoCameraCharacteristics
         {
             return Integer.parseInt(value);
         }
+        else if (long.class.equals(type))
+        {
+            return Long.parseLong(value);
+        }
         else if (boolean.class.equals(type))
         {
             return Boolean.parseBoolean(value);
@@ -1,27 +1,217 @@
 package edu.wisc.physics.wipac.deco.service;
 
 import android.app.ActivityManager;
+import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
 
 import java.io.IOException;
+import java.util.TimeZone;
+
+import edu.wisc.physics.wipac.deco.service.metrics.MetricsRegistry;
+import edu.wisc.physics.wipac.deco.service.metrics.MetricsSnapshot;
+import edu.wisc.physics.wipac.deco.service.schedule.CaptureScheduler;
 
 public class DecoCameraService extends Service
 {
     private static final String TAG = "DecoCameraService";
+
+    /**
+     * Exports the frame trace without stopping capture, e.g.
+     * adb shell am startservice -n edu.wisc.physics.wipac.deco.service/.DecoCameraService
+     *     -a edu.wisc.physics.wipac.deco.service.EXPORT_TRACE
+     */
+    public static final String ACTION_EXPORT_TRACE = "edu.wisc.physics.wipac.deco.service.EXPORT_TRACE";
+
+    /**
+     * Switches to the capture profile named by EXTRA_PROFILE without closing the camera, e.g.
+     * adb shell am startservice -n edu.wisc.physics.wipac.deco.service/.DecoCameraService
+     *     -a edu.wisc.physics.wipac.deco.service.SET_CAPTURE_PROFILE -e profile long-exposure
+     */
+    public static final String ACTION_SET_CAPTURE_PROFILE = "edu.wisc.physics.wipac.deco.service.SET_CAPTURE_PROFILE";
+    public static final String EXTRA_PROFILE = "profile";
+
+    /**
+     * Broadcast by the alarm which wakes the device for the capture scheduler while capture is
+     * paused. The alarm manager only holds a wake lock while a broadcast is received, not until
+     * a service started by an alarm runs.
+     */
+    private static final String ACTION_SCHEDULE = "edu.wisc.physics.wipac.deco.service.SCHEDULE";
+    private static final long SCHEDULE_WAKE_TIMEOUT = 10 * 1000; // milliseconds
     private static final int FOREGROUND_ID = 1966;
+    private static final long STATISTICS_INTERVAL = 60 * 1000; // milliseconds
 
     private Camera mCamera;
     private Handler mServiceHandler;
     private PowerManager.WakeLock mWakeLock;
 
+    // Pauses capture and releases the wake lock depending on battery, temperature and time
+    private CaptureScheduler mScheduler;
+    private BatteryMonitor mBatteryMonitor;
+    private PendingIntent mScheduleAlarm;
+    // Held from the alarm's delivery until the scheduler was updated
+    private PowerManager.WakeLock mScheduleWakeLock;
+
+    // Outlives the camera, totals carry on when it is reopened
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private MetricsSnapshot mLastSnapshot;
+    // When onStartCommand created the camera, until its first frame is captured
+    private volatile long mStartTime;
+    private final IBinder mBinder = new MetricsBinder();
+
+    /**
+     * Returned to clients binding to the service in the same process, to read the capture
+     * metrics while the camera keeps capturing.
+     */
+    public class MetricsBinder extends Binder
+    {
+        public MetricsSnapshot getMetrics()
+        {
+            return mMetrics.snapshot();
+        }
+
+        /**
+         * Exports the frame trace on the service thread.
+         */
+        public void exportTrace()
+        {
+            mServiceHandler.post(mTraceExporter);
+        }
+
+        /**
+         * Switches the capture profile on the service thread, see {@link Camera#setCaptureProfile}.
+         */
+        public void setCaptureProfile(String name)
+        {
+            postCaptureProfile(name);
+        }
+    }
+
+    private void postCaptureProfile(final String name)
+    {
+        mServiceHandler.post(
+            new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (mCamera == null)
+                    {
+                        Logger.w(TAG, "No camera to switch to capture profile " + name);
+                        return;
+                    }
+                    mCamera.setCaptureProfile(name);
+                }
+            });
+    }
+
+    private Runnable mTraceExporter =
+        new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mCamera == null)
+                {
+                    Logger.w(TAG, "No camera to export the trace of");
+                    return;
+                }
+                try
+                {
+                    if (mCamera.exportTrace() == null)
+                    {
+                        Logger.w(TAG, "Tracing is disabled, deco.trace.enabled");
+                    }
+                }
+                catch (IOException e)
+                {
+                    Logger.e(TAG, "Failed to export the trace", e);
+                }
+            }
+        };
+
+    private Runnable mScheduleUpdater =
+        new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mServiceHandler.removeCallbacks(this);
+                try
+                {
+                    if (mScheduler == null)
+                    {
+                        return;
+                    }
+
+                    long delay = mScheduler.update();
+                    mServiceHandler.postDelayed(this, delay);
+
+                    // The handler stops with the CPU once the wake lock is released
+                    AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+                    if (mScheduler.isCapturing())
+                    {
+                        alarmManager.cancel(mScheduleAlarm);
+                    }
+                    else
+                    {
+                        alarmManager.setExact(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + delay, mScheduleAlarm);
+                    }
+                }
+                finally
+                {
+                    // Capture, if resumed, holds the service's wake lock by now
+                    if (mScheduleWakeLock.isHeld())
+                    {
+                        mScheduleWakeLock.release();
+                    }
+                }
+            }
+        };
+
+    private BroadcastReceiver mScheduleReceiver =
+        new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                // Keeps the CPU awake until the service thread ran the update
+                mScheduleWakeLock.acquire(SCHEDULE_WAKE_TIMEOUT);
+                mServiceHandler.post(mScheduleUpdater);
+            }
+        };
+
+    private Runnable mStatisticsReporter =
+        new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (mCamera != null)
+                {
+                    mCamera.logStatistics();
+                }
+                if (mScheduler != null)
+                {
+                    Logger.i(TAG, mScheduler.report());
+                }
+                MetricsSnapshot snapshot = mMetrics.snapshot();
+                Logger.i(TAG, snapshot.diff(mLastSnapshot).report());
+                mLastSnapshot = snapshot;
+                mServiceHandler.postDelayed(this, STATISTICS_INTERVAL);
+            }
+        };
+
     @Override
     public void onCreate()
     {
@@ -43,12 +233,15 @@ public class DecoCameraService extends Service
         HandlerThread thread = new HandlerThread("Deco Camera Service Thread");
         thread.start();
         mServiceHandler = new Handler(thread.getLooper());
+        mServiceHandler.postDelayed(mStatisticsReporter, STATISTICS_INTERVAL);
 
         startForeground(FOREGROUND_ID, buildForegroundNotification());
 
         PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
         mWakeLock.acquire();
+        mScheduleWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + ":schedule");
+        mScheduleWakeLock.setReferenceCounted(false);
     }
 
     @Override
@@ -56,8 +249,19 @@ public class DecoCameraService extends Service
     {
         Logger.d(TAG, "onDestroy");
 
-        mWakeLock.release();
+        mServiceHandler.removeCallbacks(mStatisticsReporter);
+        stopScheduler();
+
+        if (mWakeLock.isHeld())
+        {
+            mWakeLock.release();
+        }
         mWakeLock = null;
+        if (mScheduleWakeLock.isHeld())
+        {
+            mScheduleWakeLock.release();
+        }
+        mScheduleWakeLock = null;
 
         stopForeground(true);
 
@@ -73,21 +277,33 @@ public class DecoCameraService extends Service
     @Override
     public IBinder onBind(Intent intent)
     {
-        return null;
+        return mBinder;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId)
     {
-        Logger.d(TAG, "onStartCommand intent " + intent + " flags " + flags + " startId " + startId);
+        Logger.d(TAG, "onStartCommand intent {} flags {} startId {}", intent, flags, startId);
+
+        if (intent != null && ACTION_EXPORT_TRACE.equals(intent.getAction()))
+        {
+            mServiceHandler.post(mTraceExporter);
+            return START_STICKY;
+        }
+        if (intent != null && ACTION_SET_CAPTURE_PROFILE.equals(intent.getAction()))
+        {
+            postCaptureProfile(intent.getStringExtra(EXTRA_PROFILE));
+            return START_STICKY;
+        }
 
         if (mCamera == null)
         {
+            mStartTime = System.nanoTime();
             try
             {
-                mCamera = new Camera(this, mServiceHandler);
+                mCamera = new Camera(this, mServiceHandler, mMetrics);
             }
-            catch (IOException e)
+            catch (IOException | IllegalArgumentException e)
             {
                 Logger.e(TAG, "Failed to initialized camera", e);
                 return START_STICKY;
@@ -124,17 +340,128 @@ public class DecoCameraService extends Service
 
                     @Override
                     public void onCaptureCompleted(Long actualExposure)
+                    {
+                        long startTime = mStartTime;
+                        if (startTime != 0)
+                        {
+                            mStartTime = 0;
+                            long elapsed = System.nanoTime() - startTime;
+                            mMetrics.histogram("startup").record(elapsed);
+                            Logger.i(TAG, "First frame captured {}ms after onStartCommand", elapsed / 1000000);
+                        }
+                        CaptureScheduler scheduler = mScheduler;
+                        if (scheduler != null)
+                        {
+                            scheduler.onFrameCaptured();
+                        }
+                        // TODO Send a message to the app activity
+                    }
+
+                    @Override
+                    public void onStorageEvicted(String name, Long bytes)
                     {
                         // TODO Send a message to the app activity
                     }
                 }
             );
+            if (mScheduler == null && mCamera.getSettings().getBoolean("schedule.enabled", true))
+            {
+                startScheduler(mCamera.getSettings());
+            }
+            else if (mScheduler != null && !mScheduler.isCapturing())
+            {
+                // Reopened while the scheduler keeps capture paused
+                mCamera.pauseCapture();
+            }
             mCamera.openCameraDevice();
         }
 
         return START_STICKY;
     }
 
+    private void startScheduler(DecoSettings settings)
+    {
+        try
+        {
+            mBatteryMonitor = new BatteryMonitor(
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        mServiceHandler.post(mScheduleUpdater);
+                    }
+                });
+            mScheduler = new CaptureScheduler(settings, mBatteryMonitor,
+                new CaptureScheduler.Clock()
+                {
+                    @Override
+                    public long currentTimeMillis()
+                    {
+                        return System.currentTimeMillis();
+                    }
+                },
+                TimeZone.getDefault(),
+                new CaptureScheduler.Listener()
+                {
+                    @Override
+                    public void onResume()
+                    {
+                        Logger.i(TAG, "Scheduler resumes capture");
+                        if (!mWakeLock.isHeld())
+                        {
+                            mWakeLock.acquire();
+                        }
+                        if (mCamera != null)
+                        {
+                            mCamera.resumeCapture();
+                        }
+                    }
+
+                    @Override
+                    public void onPause(CaptureScheduler.State state)
+                    {
+                        Logger.i(TAG, "Scheduler pauses capture, " + state.getName());
+                        if (mCamera != null)
+                        {
+                            mCamera.pauseCapture();
+                        }
+                        if (mWakeLock.isHeld())
+                        {
+                            mWakeLock.release();
+                        }
+                    }
+                });
+        }
+        catch (IllegalArgumentException e)
+        {
+            Logger.e(TAG, "Failed to create the capture scheduler, capturing continuously", e);
+            mScheduler = null;
+            return;
+        }
+
+        Intent alarmIntent = new Intent(ACTION_SCHEDULE).setPackage(getPackageName());
+        mScheduleAlarm = PendingIntent.getBroadcast(this, 0, alarmIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        registerReceiver(mScheduleReceiver, new IntentFilter(ACTION_SCHEDULE));
+        mBatteryMonitor.register(this);
+        mServiceHandler.post(mScheduleUpdater);
+    }
+
+    private void stopScheduler()
+    {
+        if (mScheduler == null)
+        {
+            return;
+        }
+
+        mServiceHandler.removeCallbacks(mScheduleUpdater);
+        mBatteryMonitor.unregister(this);
+        unregisterReceiver(mScheduleReceiver);
+        ((AlarmManager) getSystemService(Context.ALARM_SERVICE)).cancel(mScheduleAlarm);
+        Logger.i(TAG, mScheduler.report());
+        mScheduler = null;
+    }
+
     private Notification buildForegroundNotification()
     {
         Intent notificationIntent = new Intent(this, MainActivity.class);
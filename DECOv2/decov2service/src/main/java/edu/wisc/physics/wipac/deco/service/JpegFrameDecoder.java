@@ -0,0 +1,108 @@
+package edu.wisc.physics.wipac.deco.service;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import edu.wisc.physics.wipac.deco.service.analysis.FrameDecoder;
+import edu.wisc.physics.wipac.deco.service.analysis.FramePlane;
+import edu.wisc.physics.wipac.deco.service.pipeline.Frame;
+
+/**
+ * Decodes JPEG frames with BitmapFactory so they can be scanned for hits. The green channel
+ * of the decoded ARGB pixels is used as the luma plane, it carries most of the luminance and
+ * needs no conversion.
+ *
+ * Each analyze thread keeps its own bitmap, pixel buffer and decode buffers, so after the
+ * first frame decoding does not allocate on the Java heap.
+ */
+public class JpegFrameDecoder implements FrameDecoder
+{
+    private static final String TAG = "JpegFrameDecoder";
+    private static final int GREEN_OFFSET = 1; // RGBA byte order in the pixel buffer
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int mSampleSize;
+
+    private final ThreadLocal<DecodeState> mDecodeState =
+        new ThreadLocal<DecodeState>()
+        {
+            @Override
+            protected DecodeState initialValue()
+            {
+                return new DecodeState();
+            }
+        };
+
+    private class DecodeState
+    {
+        public BitmapFactory.Options options = new BitmapFactory.Options();
+        public ByteBufferInputStream input = new ByteBufferInputStream();
+        public Bitmap bitmap;
+        public ByteBuffer pixels;
+        public FramePlane plane = new FramePlane();
+
+        public DecodeState()
+        {
+            options.inMutable = true;
+            options.inSampleSize = mSampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inTempStorage = new byte[16 * 1024];
+        }
+    }
+
+    /**
+     * @param sampleSize Decode every sampleSize-th pixel only (BitmapFactory.Options.inSampleSize)
+     */
+    public JpegFrameDecoder(int sampleSize)
+    {
+        mSampleSize = Math.max(1, sampleSize);
+    }
+
+    @Override
+    public FramePlane decode(Frame frame) throws IOException
+    {
+        DecodeState state = mDecodeState.get();
+        ByteBuffer data = frame.getData();
+        int position = data.position();
+
+        Bitmap bitmap;
+        try
+        {
+            state.options.inBitmap = state.bitmap;
+            bitmap = BitmapFactory.decodeStream(state.input.setBuffer(data), null, state.options);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // The bitmap could not be reused (frame size changed), decode into a new one
+            Logger.d(TAG, "Unable to reuse bitmap for frame {}", frame.getNumber());
+            data.position(position);
+            state.options.inBitmap = null;
+            bitmap = BitmapFactory.decodeStream(state.input.setBuffer(data), null, state.options);
+        }
+        finally
+        {
+            data.position(position);
+        }
+
+        if (bitmap == null)
+        {
+            throw new IOException("Unable to decode frame " + frame.getNumber());
+        }
+        state.bitmap = bitmap;
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int size = width * height * BYTES_PER_PIXEL;
+        if (state.pixels == null || state.pixels.capacity() < size)
+        {
+            state.pixels = ByteBuffer.allocateDirect(size);
+        }
+        state.pixels.clear();
+        bitmap.copyPixelsToBuffer(state.pixels);
+
+        return state.plane.set(state.pixels, GREEN_OFFSET, width, height, width * BYTES_PER_PIXEL, BYTES_PER_PIXEL, 1);
+    }
+}
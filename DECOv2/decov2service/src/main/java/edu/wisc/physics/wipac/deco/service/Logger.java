@@ -5,131 +5,343 @@ import android.os.Environment;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.IOException;
+
+import edu.wisc.physics.wipac.deco.service.logging.AsyncLog;
+import edu.wisc.physics.wipac.deco.service.logging.LogFormat;
+import edu.wisc.physics.wipac.deco.service.logging.LogLevel;
+import edu.wisc.physics.wipac.deco.service.logging.LogRecord;
+import edu.wisc.physics.wipac.deco.service.logging.LogSink;
+import edu.wisc.physics.wipac.deco.service.logging.RollingLogSink;
 
 /**
  * Created by andrewbiewer on 4/30/15.
+ *
+ * Logs to logcat and, once opened, to a file through an {@link AsyncLog}: levels above the
+ * log level are dropped before any work is done, messages are templates whose "{}" are
+ * filled in on the log writer thread, e.g.
+ * <pre>
+ *   Logger.d(TAG, "Acquired image {} in {}ms", imageNum, total / 1000000);
+ * </pre>
+ * The file is rotated once it reaches a size, and may be written in the compact binary
+ * format, see {@link #configure(DecoSettings)}.
  */
 public class Logger
 {
     private static final String TAG = "Logger";
 
-    private static PrintWriter log;
-    private static SimpleDateFormat TIMESTAMP = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-    private static final LogLevel LOG_LEVEL_MAX = LogLevel.INFO;
+    private static final int CAPACITY = 1024;
+    private static final long CLOSE_TIMEOUT = 1000; // milliseconds
+    private static final int DEFAULT_FILE_SIZE = 1024; // KB
+    private static final int DEFAULT_FILE_COUNT = 4;
+
+    private static final FileLogcatSink sSink = new FileLogcatSink();
+    private static final AsyncLog sLog = new AsyncLog(CAPACITY, LogLevel.INFO, sSink);
+
+    private static File sDirectory;
+    private static String sName;
+    private static long sMaxSize = DEFAULT_FILE_SIZE * 1024L;
+    private static int sMaxFiles = DEFAULT_FILE_COUNT;
+    private static LogFormat sFormat = LogFormat.TEXT;
+
+    static
+    {
+        sLog.start();
+    }
 
-    public enum LogLevel
+    /**
+     * Writes every record to logcat, and to the file while one is open.
+     */
+    private static class FileLogcatSink implements LogSink
     {
-        ERROR("E"), WARNING("W"), INFO("I"), DEBUG("D");
+        private LogSink mFile;
+
+        public synchronized void setFile(LogSink file) throws IOException
+        {
+            if (mFile != null)
+            {
+                mFile.close();
+            }
+            mFile = file;
+        }
+
+        @Override
+        public synchronized void write(LogRecord record) throws IOException
+        {
+            String tag = record.getTag();
+            String text = record.getMessage().toString();
+            Throwable thrown = record.getThrown();
+            switch (record.getLevel())
+            {
+                case    INFO:
+                    Log.i(tag, text);
+                    break;
 
-        private String level;
-        private LogLevel(String level)
+                case    WARNING:
+                    Log.w(tag, text, thrown);
+                    break;
+
+                case    DEBUG:
+                    Log.d(tag, text);
+                    break;
+
+                case    ERROR:
+                    Log.e(tag, text, thrown);
+                    break;
+            }
+
+            if (mFile != null)
+            {
+                mFile.write(record);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException
         {
-            this.level = level;
+            if (mFile != null)
+            {
+                mFile.flush();
+            }
         }
 
         @Override
-        public String toString()
+        public void close() throws IOException
         {
-            return level;
+            setFile(null);
         }
     }
 
-    public static void open(Context context, String filename)
+    /**
+     * @param filename Name of the file, its extension is replaced by the format's
+     */
+    public static synchronized void open(Context context, String filename)
     {
+        sDirectory = new File(Environment.getExternalStorageDirectory(), context.getString(R.string.app_name));
+        int extension = filename.lastIndexOf('.');
+        sName = extension > 0 ? filename.substring(0, extension) : filename;
+        reopen();
+    }
+
+    /**
+     * Applies the deco.logging.* settings: level, file.size (KB) and file.count of the rotated
+     * files, and format, TEXT or BINARY. Reopens the file if one is open and they changed.
+     */
+    public static synchronized void configure(DecoSettings settings)
+    {
+        // Nothing changes unless every value is valid
+        LogLevel level = settings.getEnum("logging.level", LogLevel.class, LogLevel.INFO);
+        long maxSize = Math.max(1, settings.getLong("logging.file.size", DEFAULT_FILE_SIZE)) * 1024;
+        int maxFiles = Math.max(1, settings.getInt("logging.file.count", DEFAULT_FILE_COUNT));
+        LogFormat format = settings.getEnum("logging.format", LogFormat.class, LogFormat.TEXT);
+        setLevel(level);
+        if (maxSize != sMaxSize || maxFiles != sMaxFiles || format != sFormat)
+        {
+            sMaxSize = maxSize;
+            sMaxFiles = maxFiles;
+            sFormat = format;
+            if (sName != null)
+            {
+                reopen();
+            }
+        }
+    }
+
+    private static void reopen()
+    {
+        File file = new File(sDirectory, sName + sFormat.getExtension());
         try
         {
-            File file = new File(Environment.getExternalStorageDirectory(), context.getString(R.string.app_name));
-            file.mkdirs();
-
-            log = new PrintWriter(
-                    new FileWriter(
-                            new File(file, filename),
-                            true), // append
-                    true); // autoFlush
+            sDirectory.mkdirs();
+            sLog.flush(CLOSE_TIMEOUT);
+            sSink.setFile(new RollingLogSink(file, sMaxSize, sMaxFiles, sFormat));
         }
         catch (Exception e)
         {
-            log = null;
-            Log.e(TAG, "Failed to open " + filename, e);
+            Log.e(TAG, "Failed to open " + file, e);
         }
     }
 
-    public static void close()
+    /**
+     * Writes what was logged so far and closes the file, logcat is still written to.
+     */
+    public static synchronized void close()
     {
-        if (log != null)
+        sName = null;
+        sLog.flush(CLOSE_TIMEOUT);
+        try
         {
-            log.close();
-            log = null;
+            sSink.setFile(null);
         }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Failed to close the log", e);
+        }
+    }
+
+    public static LogLevel getLevel()
+    {
+        return sLog.getLevel();
+    }
+
+    /**
+     * Records of levels above this one are dropped, INFO by default.
+     */
+    public static void setLevel(LogLevel level)
+    {
+        sLog.setLevel(level);
+    }
+
+    /**
+     * @return true if records of the level are kept, to skip work done only for logging
+     */
+    public static boolean isLoggable(LogLevel level)
+    {
+        return sLog.isLoggable(level);
+    }
+
+    public static String report()
+    {
+        return sLog.report();
     }
 
     public static void log(LogLevel level, String tag, String message)
     {
-        log(level, tag, message, null);
+        sLog.log(level, tag, message);
     }
 
     public static void log(LogLevel level, String tag, String message, Throwable e)
     {
-        if (log != null && level.ordinal() <= LOG_LEVEL_MAX.ordinal())
-        {
-            synchronized (log)
-            {
-                log.write(TIMESTAMP.format(new Date()) + " " + level + "/" + tag + ": " + message + "\n");
-                if (e != null)
-                {
-                    e.printStackTrace(log);
-                }
-                log.flush();
-            }
-        }
+        sLog.log(level, tag, message, e);
+    }
 
-        // Log to logcat at a minimum
-        switch (level)
-        {
-            case    INFO:
-                Log.i(tag, message);
-                break;
+    public static void d(String tag, String message)
+    {
+        sLog.log(LogLevel.DEBUG, tag, message);
+    }
 
-            case    WARNING:
-                Log.w(tag, message);
-                break;
+    public static void d(String tag, String template, Object a0)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0);
+    }
 
-            case    DEBUG:
-                Log.d(tag, message);
-                break;
+    public static void d(String tag, String template, Object a0, Object a1)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0, a1);
+    }
 
-            case    ERROR:
-                Log.e(tag, message, e);
-                break;
-        }
+    public static void d(String tag, String template, Object a0, Object a1, Object a2)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0, a1, a2);
+    }
+
+    public static void d(String tag, String template, long a0)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0);
+    }
+
+    public static void d(String tag, String template, long a0, long a1)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0, a1);
+    }
+
+    public static void d(String tag, String template, Object a0, long a1)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0, a1);
+    }
+
+    public static void d(String tag, String template, long a0, Object a1)
+    {
+        sLog.log(LogLevel.DEBUG, tag, template, a0, a1);
     }
 
     public static void i(String tag, String message)
     {
-        log(LogLevel.INFO, tag, message);
+        sLog.log(LogLevel.INFO, tag, message);
+    }
+
+    public static void i(String tag, String template, Object a0)
+    {
+        sLog.log(LogLevel.INFO, tag, template, a0);
+    }
+
+    public static void i(String tag, String template, Object a0, Object a1)
+    {
+        sLog.log(LogLevel.INFO, tag, template, a0, a1);
+    }
+
+    public static void i(String tag, String template, Object a0, Object a1, Object a2)
+    {
+        sLog.log(LogLevel.INFO, tag, template, a0, a1, a2);
+    }
+
+    public static void i(String tag, String template, long a0)
+    {
+        sLog.log(LogLevel.INFO, tag, template, a0);
+    }
+
+    public static void i(String tag, String template, long a0, long a1)
+    {
+        sLog.log(LogLevel.INFO, tag, template, a0, a1);
+    }
+
+    public static void i(String tag, String template, Object a0, long a1)
+    {
+        sLog.log(LogLevel.INFO, tag, template, a0, a1);
+    }
+
+    public static void i(String tag, String template, long a0, Object a1)
+    {
+        sLog.log(LogLevel.INFO, tag, template, a0, a1);
     }
 
     public static void w(String tag, String message)
     {
-        log(LogLevel.WARNING, tag, message);
+        sLog.log(LogLevel.WARNING, tag, message);
     }
 
-    public static void d(String tag, String message)
+    public static void w(String tag, String template, Object a0)
+    {
+        sLog.log(LogLevel.WARNING, tag, template, a0);
+    }
+
+    public static void w(String tag, String template, Object a0, Object a1)
+    {
+        sLog.log(LogLevel.WARNING, tag, template, a0, a1);
+    }
+
+    public static void w(String tag, String template, Object a0, Object a1, Object a2)
+    {
+        sLog.log(LogLevel.WARNING, tag, template, a0, a1, a2);
+    }
+
+    public static void w(String tag, String template, long a0)
+    {
+        sLog.log(LogLevel.WARNING, tag, template, a0);
+    }
+
+    public static void w(String tag, String template, long a0, long a1)
+    {
+        sLog.log(LogLevel.WARNING, tag, template, a0, a1);
+    }
+
+    public static void w(String tag, String template, Object a0, long a1)
+    {
+        sLog.log(LogLevel.WARNING, tag, template, a0, a1);
+    }
+
+    public static void w(String tag, String template, long a0, Object a1)
     {
-        log(LogLevel.DEBUG, tag, message);
+        sLog.log(LogLevel.WARNING, tag, template, a0, a1);
     }
 
     public static void e(String tag, String message)
     {
-        log(LogLevel.ERROR, tag, message);
+        sLog.log(LogLevel.ERROR, tag, message);
     }
 
     public static void e(String tag, String message, Throwable e)
     {
-        log(LogLevel.ERROR, tag, message, e);
+        sLog.log(LogLevel.ERROR, tag, message, e);
     }
 }